@@ -32,6 +32,11 @@ android {
         targetCompatibility = JavaVersion.VERSION_11
     }
 
+    testOptions {
+        // 本地单元测试中的Log、SystemClock等Android方法返回默认值
+        unitTests.isReturnDefaultValues = true
+    }
+
     packaging {
         resources.excludes.add("META-INF/DEPENDENCIES");
         resources.excludes.add("META-INF/NOTICE");
@@ -57,6 +62,13 @@ dependencies {
         "exclude" to listOf("httpclient-4.5.14.jar","commons-codec-1.11.jar","httpclient-cache-4.5.14.jar","fluent-hc-4.5.14.jar","httpmime-4.5.14.jar")
     )))
     testImplementation(libs.junit)
+    testImplementation(libs.robolectric)
+    // 本地单元测试没有系统自带的HTTP客户端，使用仓库中的httpcomponents
+    testImplementation(fileTree(mapOf(
+        "dir" to rootProject.file("httpcomponents-client-4.5.14-bin/lib"),
+        "include" to listOf("httpclient-4.5.14.jar", "httpcore-4.4.16.jar",
+            "commons-logging-1.2.jar", "commons-codec-1.11.jar")
+    )))
     androidTestImplementation(libs.ext.junit)
     androidTestImplementation(libs.espresso.core)
 }
\ No newline at end of file
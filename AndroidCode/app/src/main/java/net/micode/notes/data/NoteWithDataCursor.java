@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+
+import net.micode.notes.data.Notes.DataColumns;
+
+
+/**
+ * 笔记及其所有数据行的联合查询结果
+ * 每一行包含笔记的列和一个数据行的列，笔记没有数据行时只有一行且数据列为空。
+ * 笔记的列按笔记投影中的下标直接读取，数据列通过{@link #getDataView()}
+ * 按数据投影中的下标读取，原有按下标解析单表游标的代码可以直接复用。
+ */
+public class NoteWithDataCursor extends CursorWrapper {
+    // 第一个数据列在联合游标中的下标
+    private final int mDataOffset;
+
+    // 数据投影的列数
+    private final int mDataCount;
+
+    // 附加在末尾的数据行ID列，用于判断当前行是否有数据
+    private final int mDataIdColumn;
+
+    // 按数据投影下标读取当前行的视图
+    private final Cursor mDataView;
+
+    private NoteWithDataCursor(Cursor cursor, int noteCount, int dataCount) {
+        super(cursor);
+        mDataOffset = noteCount;
+        mDataCount = dataCount;
+        mDataIdColumn = noteCount + dataCount;
+        mDataView = new DataView(cursor);
+    }
+
+    /**
+     * 用一次查询读取笔记及其所有数据行
+     * @param resolver 内容解析器
+     * @param noteId 笔记ID
+     * @param noteProjection 笔记表的列
+     * @param dataProjection 数据表的列
+     * @param dataSortColumn 数据行的升序排序列，为null时不排序
+     * @return 联合查询结果，查询失败时返回null
+     */
+    public static NoteWithDataCursor query(ContentResolver resolver, long noteId,
+            String[] noteProjection, String[] dataProjection, String dataSortColumn) {
+        String[] projection = new String[noteProjection.length + dataProjection.length + 1];
+        System.arraycopy(noteProjection, 0, projection, 0, noteProjection.length);
+        for (int i = 0; i < dataProjection.length; i++) {
+            projection[noteProjection.length + i] = Notes.JOINED_DATA_PREFIX + dataProjection[i];
+        }
+        projection[projection.length - 1] = Notes.JOINED_DATA_PREFIX + DataColumns.ID;
+        String sortOrder = dataSortColumn == null ? null
+                : Notes.JOINED_DATA_PREFIX + dataSortColumn + " ASC";
+
+        Cursor cursor = resolver.query(
+                ContentUris.withAppendedId(Notes.CONTENT_NOTE_WITH_DATA_URI, noteId), projection,
+                null, null, sortOrder);
+        if (cursor == null) {
+            return null;
+        }
+        return new NoteWithDataCursor(cursor, noteProjection.length, dataProjection.length);
+    }
+
+    /**
+     * 当前行是否包含数据行
+     */
+    public boolean hasData() {
+        return !isNull(mDataIdColumn);
+    }
+
+    /**
+     * 获取按数据投影下标读取当前行的视图，随本游标移动
+     */
+    public Cursor getDataView() {
+        return mDataView;
+    }
+
+    /**
+     * 把数据投影的下标映射到联合游标的数据视图
+     */
+    private class DataView extends CursorWrapper {
+        DataView(Cursor cursor) {
+            super(cursor);
+        }
+
+        @Override
+        public int getColumnCount() {
+            return mDataCount;
+        }
+
+        @Override
+        public String getColumnName(int columnIndex) {
+            return super.getColumnName(mDataOffset + columnIndex)
+                    .substring(Notes.JOINED_DATA_PREFIX.length());
+        }
+
+        @Override
+        public int getColumnIndex(String columnName) {
+            int index = super.getColumnIndex(Notes.JOINED_DATA_PREFIX + columnName);
+            return index < 0 ? index : index - mDataOffset;
+        }
+
+        @Override
+        public int getColumnIndexOrThrow(String columnName) {
+            int index = getColumnIndex(columnName);
+            if (index < 0) {
+                throw new IllegalArgumentException("column '" + columnName + "' does not exist");
+            }
+            return index;
+        }
+
+        @Override
+        public String getString(int columnIndex) {
+            return super.getString(mDataOffset + columnIndex);
+        }
+
+        @Override
+        public byte[] getBlob(int columnIndex) {
+            return super.getBlob(mDataOffset + columnIndex);
+        }
+
+        @Override
+        public short getShort(int columnIndex) {
+            return super.getShort(mDataOffset + columnIndex);
+        }
+
+        @Override
+        public int getInt(int columnIndex) {
+            return super.getInt(mDataOffset + columnIndex);
+        }
+
+        @Override
+        public long getLong(int columnIndex) {
+            return super.getLong(mDataOffset + columnIndex);
+        }
+
+        @Override
+        public float getFloat(int columnIndex) {
+            return super.getFloat(mDataOffset + columnIndex);
+        }
+
+        @Override
+        public double getDouble(int columnIndex) {
+            return super.getDouble(mDataOffset + columnIndex);
+        }
+
+        @Override
+        public int getType(int columnIndex) {
+            return super.getType(mDataOffset + columnIndex);
+        }
+
+        @Override
+        public boolean isNull(int columnIndex) {
+            return super.isNull(mDataOffset + columnIndex);
+        }
+
+        @Override
+        public void close() {
+            // 视图不拥有游标，由NoteWithDataCursor负责关闭
+        }
+    }
+}
@@ -46,6 +46,40 @@ public class Notes {
     public static final String INTENT_EXTRA_FOLDER_ID = "net.micode.notes.folder_id";
     public static final String INTENT_EXTRA_CALL_DATE = "net.micode.notes.call_date";
 
+    /**
+     * Provider method to create notes together with their data rows in one transaction,
+     * see {@link android.content.ContentResolver#call}
+     * <P> {@link #EXTRA_NOTE_VALUES}: ContentValues[] of the notes </P>
+     * <P> {@link #EXTRA_DATA_VALUES}: ContentValues[] of the data rows, may be absent </P>
+     * <P> {@link #EXTRA_DATA_NOTE_INDEX}: int[], index into the notes of each data row </P>
+     * The result contains {@link #EXTRA_NOTE_IDS} and {@link #EXTRA_DATA_IDS} as long[]
+     */
+    public static final String METHOD_CREATE_NOTES = "create_notes";
+    public static final String EXTRA_NOTE_VALUES = "net.micode.notes.note_values";
+    public static final String EXTRA_DATA_VALUES = "net.micode.notes.data_values";
+    public static final String EXTRA_DATA_NOTE_INDEX = "net.micode.notes.data_note_index";
+    public static final String EXTRA_NOTE_IDS = "net.micode.notes.note_ids";
+    public static final String EXTRA_DATA_IDS = "net.micode.notes.data_ids";
+
+    /**
+     * Provider method to duplicate a note with all its data rows in one transaction,
+     * see {@link android.content.ContentResolver#call}
+     * <P> arg: the id of the note to duplicate </P>
+     * Large contents are shared with the original until either copy is edited.
+     * The result contains {@link #EXTRA_NOTE_IDS} with the id of the copy
+     */
+    public static final String METHOD_DUPLICATE_NOTE = "duplicate_note";
+
+    /**
+     * Provider method to write the sync ids of many notes in one transaction,
+     * see {@link android.content.ContentResolver#call}
+     * <P> {@link #EXTRA_NOTE_IDS}: long[] of the note ids </P>
+     * <P> {@link #EXTRA_SYNC_IDS}: long[] of the new sync ids, one for each note </P>
+     * The result contains {@link #EXTRA_NOTE_IDS} with the ids of the notes updated
+     */
+    public static final String METHOD_UPDATE_SYNC_IDS = "update_sync_ids";
+    public static final String EXTRA_SYNC_IDS = "net.micode.notes.sync_ids";
+
     public static final int TYPE_WIDGET_INVALIDE      = -1;
     public static final int TYPE_WIDGET_2X            = 0;
     public static final int TYPE_WIDGET_4X            = 1;
@@ -53,6 +87,7 @@ public class Notes {
     public static class DataConstants {
         public static final String NOTE = TextNote.CONTENT_ITEM_TYPE;
         public static final String CALL_NOTE = CallNote.CONTENT_ITEM_TYPE;
+        public static final String CHECK_ITEM = CheckItem.CONTENT_ITEM_TYPE;
     }
 
     /**
@@ -65,6 +100,21 @@ public class Notes {
      */
     public static final Uri CONTENT_DATA_URI = Uri.parse("content://" + AUTHORITY + "/data");
 
+    /**
+     * Uri to query a note together with all its data rows in one cursor, the note id should
+     * be appended. Each row holds the note columns and one data row, data columns are
+     * requested and returned with the {@link #JOINED_DATA_PREFIX}
+     */
+    public static final Uri CONTENT_NOTE_WITH_DATA_URI = Uri.parse("content://" + AUTHORITY
+            + "/note_data");
+
+    public static final String JOINED_DATA_PREFIX = "data_";
+
+    /**
+     * Uri to query or trim the local change journal, rows are written by triggers only
+     */
+    public static final Uri CONTENT_CHANGE_URI = Uri.parse("content://" + AUTHORITY + "/change");
+
     public interface NoteColumns {
         /**
          * The unique ID for a row
@@ -169,6 +219,33 @@ public class Notes {
          * <P> Type : INTEGER (long) </P>
          */
         public static final String VERSION = "version";
+
+        /**
+         * Number of structured check list items of the note
+         * <P> Type : INTEGER </P>
+         */
+        public static final String CHECK_ITEM_COUNT = "check_item_count";
+
+        /**
+         * Number of checked structured check list items of the note
+         * <P> Type : INTEGER </P>
+         */
+        public static final String CHECKED_ITEM_COUNT = "checked_item_count";
+    }
+
+    public interface ChangeColumns {
+        /**
+         * The sequence number of the change, increases with every change
+         * <P> Type: INTEGER (long) </P>
+         */
+        public static final String ID = "_id";
+
+        /**
+         * The id of the note or folder that has been changed, a note changed several
+         * times only keeps its latest sequence number
+         * <P> Type: INTEGER (long) </P>
+         */
+        public static final String NOTE_ID = "note_id";
     }
 
     public interface DataColumns {
@@ -243,6 +320,14 @@ public class Notes {
          * <P> Type: TEXT </P>
          */
         public static final String DATA5 = "data5";
+
+        /**
+         * The shared body holding the content of large data rows, 0 if the content is
+         * kept in the row itself. Maintained by the provider, reads always return the
+         * resolved {@link #CONTENT}
+         * <P> Type: INTEGER (long) </P>
+         */
+        public static final String BODY_ID = "body_id";
     }
 
     public static final class TextNote implements DataColumns {
@@ -254,6 +339,21 @@ public class Notes {
 
         public static final int MODE_CHECK_LIST = 1;
 
+        /**
+         * Storage of the check list items. With {@link #STORAGE_ITEMS} every item is
+         * kept in its own {@link CheckItem} row. The content holds the marked text as of the
+         * last change to the item texts for the snippet; checking or moving an item only
+         * writes its own row, so sync and backup build the marked text from the item rows.
+         * Sync sets {@link #STORAGE_TEXT} when it rewrites the content, and the item rows are
+         * reconciled against it when the note is opened
+         * <P> Type: Integer 1:item rows 0: text content </P>
+         */
+        public static final String STORAGE = DATA2;
+
+        public static final int STORAGE_TEXT = 0;
+
+        public static final int STORAGE_ITEMS = 1;
+
         public static final String CONTENT_TYPE = "vnd.android.cursor.dir/text_note";
 
         public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/text_note";
@@ -280,4 +380,24 @@ public class Notes {
 
         public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/call_note");
     }
+
+    public static final class CheckItem implements DataColumns {
+        /**
+         * Whether the item is checked
+         * <P> Type: Integer 1:checked 0: unchecked </P>
+         */
+        public static final String CHECKED = DATA1;
+
+        /**
+         * Order key of the item inside its note, items are sorted ascending
+         * <P> Type: INTEGER (long) </P>
+         */
+        public static final String ORDER = DATA2;
+
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/check_item";
+
+        public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/check_item";
+
+        public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/check_item");
+    }
 }
@@ -22,6 +22,8 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.util.Log;
 
+import net.micode.notes.data.Notes.ChangeColumns;
+import net.micode.notes.data.Notes.CheckItem;
 import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.DataConstants;
 import net.micode.notes.data.Notes.NoteColumns;
@@ -36,7 +38,7 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
     private static final String DB_NAME = "note.db";
 
     // 数据库版本号
-    private static final int DB_VERSION = 4;
+    private static final int DB_VERSION = 7;
 
     /**
      * 数据库表名定义接口
@@ -46,6 +48,26 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         public static final String NOTE = "note";
         // 数据内容表名
         public static final String DATA = "data";
+        // 按内容寻址的共享正文表名
+        public static final String BODY = "body";
+        // 解析了共享正文的数据内容视图名，所有读取数据内容的查询都使用该视图
+        public static final String DATA_VIEW = "data_view";
+        // 本地修改日志表名，由触发器写入，同步时只读取上次同步之后的修改
+        public static final String CHANGE = "change_log";
+    }
+
+    /**
+     * 共享正文表的列
+     */
+    public interface BodyColumns {
+        // 正文ID
+        public static final String ID = "_id";
+        // 正文内容的摘要，相同的内容只存储一份
+        public static final String HASH = "hash";
+        // 正文内容
+        public static final String CONTENT = "content";
+        // 引用该正文的数据行数量，由触发器维护
+        public static final String REF_COUNT = "ref_count";
     }
 
     // 日志标签
@@ -73,7 +95,9 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
             NoteColumns.LOCAL_MODIFIED + " INTEGER NOT NULL DEFAULT 0," +
             NoteColumns.ORIGIN_PARENT_ID + " INTEGER NOT NULL DEFAULT 0," +
             NoteColumns.GTASK_ID + " TEXT NOT NULL DEFAULT ''," +
-            NoteColumns.VERSION + " INTEGER NOT NULL DEFAULT 0" +
+            NoteColumns.VERSION + " INTEGER NOT NULL DEFAULT 0," +
+            NoteColumns.CHECK_ITEM_COUNT + " INTEGER NOT NULL DEFAULT 0," +
+            NoteColumns.CHECKED_ITEM_COUNT + " INTEGER NOT NULL DEFAULT 0" +
         ")";
 
     // 创建数据内容表的SQL语句
@@ -89,9 +113,51 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
             DataColumns.DATA2 + " INTEGER," +
             DataColumns.DATA3 + " TEXT NOT NULL DEFAULT ''," +
             DataColumns.DATA4 + " TEXT NOT NULL DEFAULT ''," +
-            DataColumns.DATA5 + " TEXT NOT NULL DEFAULT ''" +
+            DataColumns.DATA5 + " TEXT NOT NULL DEFAULT ''," +
+            DataColumns.BODY_ID + " INTEGER NOT NULL DEFAULT 0" +
+        ")";
+
+    // 创建共享正文表的SQL语句
+    private static final String CREATE_BODY_TABLE_SQL =
+        "CREATE TABLE IF NOT EXISTS " + TABLE.BODY + "(" +
+            BodyColumns.ID + " INTEGER PRIMARY KEY," +
+            BodyColumns.HASH + " TEXT NOT NULL UNIQUE," +
+            BodyColumns.CONTENT + " TEXT NOT NULL DEFAULT ''," +
+            BodyColumns.REF_COUNT + " INTEGER NOT NULL DEFAULT 0" +
+        ")";
+
+    // 创建本地修改日志表的SQL语句，序号自增不复用，每个笔记只保留最新的一条
+    private static final String CREATE_CHANGE_TABLE_SQL =
+        "CREATE TABLE IF NOT EXISTS " + TABLE.CHANGE + "(" +
+            ChangeColumns.ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+            ChangeColumns.NOTE_ID + " INTEGER NOT NULL UNIQUE" +
         ")";
 
+    // 共享正文的内容，数据行没有引用正文时为null
+    private static final String BODY_CONTENT_OF_NEW =
+        "(SELECT " + BodyColumns.CONTENT + " FROM " + TABLE.BODY +
+        " WHERE " + BodyColumns.ID + "=new." + DataColumns.BODY_ID + ")";
+
+    // 创建数据内容视图的SQL语句，引用共享正文的行从正文表取内容
+    private static final String CREATE_DATA_VIEW_SQL =
+        "CREATE VIEW " + TABLE.DATA_VIEW + " AS SELECT " +
+            TABLE.DATA + "." + DataColumns.ID + " AS " + DataColumns.ID + "," +
+            DataColumns.MIME_TYPE + "," +
+            DataColumns.NOTE_ID + "," +
+            DataColumns.CREATED_DATE + "," +
+            DataColumns.MODIFIED_DATE + "," +
+            "IFNULL(" + TABLE.BODY + "." + BodyColumns.CONTENT + "," + TABLE.DATA + "."
+                + DataColumns.CONTENT + ") AS " + DataColumns.CONTENT + "," +
+            DataColumns.DATA1 + "," +
+            DataColumns.DATA2 + "," +
+            DataColumns.DATA3 + "," +
+            DataColumns.DATA4 + "," +
+            DataColumns.DATA5 + "," +
+            DataColumns.BODY_ID +
+        " FROM " + TABLE.DATA + " LEFT JOIN " + TABLE.BODY +
+        " ON (" + TABLE.BODY + "." + BodyColumns.ID + "=" + TABLE.DATA + "."
+            + DataColumns.BODY_ID + ")";
+
     // 为数据内容表的note_id字段创建索引的SQL语句
     private static final String CREATE_DATA_NOTE_ID_INDEX_SQL =
         "CREATE INDEX IF NOT EXISTS note_id_index ON " +
@@ -156,7 +222,8 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         " WHEN new." + DataColumns.MIME_TYPE + "='" + DataConstants.NOTE + "'" +
         " BEGIN" +
         "  UPDATE " + TABLE.NOTE +
-        "   SET " + NoteColumns.SNIPPET + "=new." + DataColumns.CONTENT +
+        "   SET " + NoteColumns.SNIPPET + "=IFNULL(" + BODY_CONTENT_OF_NEW + ",new."
+                + DataColumns.CONTENT + ")" +
         "  WHERE " + NoteColumns.ID + "=new." + DataColumns.NOTE_ID + ";" +
         " END";
 
@@ -169,7 +236,8 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         " WHEN old." + DataColumns.MIME_TYPE + "='" + DataConstants.NOTE + "'" +
         " BEGIN" +
         "  UPDATE " + TABLE.NOTE +
-        "   SET " + NoteColumns.SNIPPET + "=new." + DataColumns.CONTENT +
+        "   SET " + NoteColumns.SNIPPET + "=IFNULL(" + BODY_CONTENT_OF_NEW + ",new."
+                + DataColumns.CONTENT + ")" +
         "  WHERE " + NoteColumns.ID + "=new." + DataColumns.NOTE_ID + ";" +
         " END";
 
@@ -186,6 +254,153 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         "  WHERE " + NoteColumns.ID + "=old." + DataColumns.NOTE_ID + ";" +
         " END";
 
+    /**
+     * Increase note's check item counts when insert data with type {@link DataConstants#CHECK_ITEM}
+     */
+    private static final String DATA_INCREASE_CHECK_ITEM_COUNT_ON_INSERT_TRIGGER =
+        "CREATE TRIGGER increase_check_item_count_on_insert " +
+        " AFTER INSERT ON " + TABLE.DATA +
+        " WHEN new." + DataColumns.MIME_TYPE + "='" + DataConstants.CHECK_ITEM + "'" +
+        " BEGIN" +
+        "  UPDATE " + TABLE.NOTE +
+        "   SET " + NoteColumns.CHECK_ITEM_COUNT + "=" + NoteColumns.CHECK_ITEM_COUNT + "+1," +
+        "   " + NoteColumns.CHECKED_ITEM_COUNT + "=" + NoteColumns.CHECKED_ITEM_COUNT +
+        "+(IFNULL(new." + CheckItem.CHECKED + ",0)<>0)" +
+        "  WHERE " + NoteColumns.ID + "=new." + DataColumns.NOTE_ID + ";" +
+        " END";
+
+    /**
+     * Update note's checked item count when a {@link DataConstants#CHECK_ITEM} is checked or unchecked
+     */
+    private static final String DATA_UPDATE_CHECKED_ITEM_COUNT_ON_UPDATE_TRIGGER =
+        "CREATE TRIGGER update_checked_item_count_on_update " +
+        " AFTER UPDATE OF " + CheckItem.CHECKED + " ON " + TABLE.DATA +
+        " WHEN new." + DataColumns.MIME_TYPE + "='" + DataConstants.CHECK_ITEM + "'" +
+        " BEGIN" +
+        "  UPDATE " + TABLE.NOTE +
+        "   SET " + NoteColumns.CHECKED_ITEM_COUNT + "=" + NoteColumns.CHECKED_ITEM_COUNT +
+        "+(IFNULL(new." + CheckItem.CHECKED + ",0)<>0)" +
+        "-(IFNULL(old." + CheckItem.CHECKED + ",0)<>0)" +
+        "  WHERE " + NoteColumns.ID + "=new." + DataColumns.NOTE_ID + ";" +
+        " END";
+
+    /**
+     * Decrease note's check item counts when delete data with type {@link DataConstants#CHECK_ITEM}
+     */
+    private static final String DATA_DECREASE_CHECK_ITEM_COUNT_ON_DELETE_TRIGGER =
+        "CREATE TRIGGER decrease_check_item_count_on_delete " +
+        " AFTER DELETE ON " + TABLE.DATA +
+        " WHEN old." + DataColumns.MIME_TYPE + "='" + DataConstants.CHECK_ITEM + "'" +
+        " BEGIN" +
+        "  UPDATE " + TABLE.NOTE +
+        "   SET " + NoteColumns.CHECK_ITEM_COUNT + "=" + NoteColumns.CHECK_ITEM_COUNT + "-1," +
+        "   " + NoteColumns.CHECKED_ITEM_COUNT + "=" + NoteColumns.CHECKED_ITEM_COUNT +
+        "-(IFNULL(old." + CheckItem.CHECKED + ",0)<>0)" +
+        "  WHERE " + NoteColumns.ID + "=old." + DataColumns.NOTE_ID + ";" +
+        " END";
+
+    /**
+     * Increase body's reference count when insert data referencing the body
+     */
+    private static final String DATA_INCREASE_BODY_REF_ON_INSERT_TRIGGER =
+        "CREATE TRIGGER increase_body_ref_on_insert " +
+        " AFTER INSERT ON " + TABLE.DATA +
+        " WHEN new." + DataColumns.BODY_ID + ">0" +
+        " BEGIN" +
+        "  UPDATE " + TABLE.BODY +
+        "   SET " + BodyColumns.REF_COUNT + "=" + BodyColumns.REF_COUNT + "+1" +
+        "  WHERE " + BodyColumns.ID + "=new." + DataColumns.BODY_ID + ";" +
+        " END";
+
+    /**
+     * Move the reference when data switches to another body or back to its own content
+     */
+    private static final String DATA_UPDATE_BODY_REF_ON_UPDATE_TRIGGER =
+        "CREATE TRIGGER update_body_ref_on_update " +
+        " AFTER UPDATE OF " + DataColumns.BODY_ID + " ON " + TABLE.DATA +
+        " WHEN old." + DataColumns.BODY_ID + "<>new." + DataColumns.BODY_ID +
+        " BEGIN" +
+        "  UPDATE " + TABLE.BODY +
+        "   SET " + BodyColumns.REF_COUNT + "=" + BodyColumns.REF_COUNT + "+1" +
+        "  WHERE " + BodyColumns.ID + "=new." + DataColumns.BODY_ID + ";" +
+        "  UPDATE " + TABLE.BODY +
+        "   SET " + BodyColumns.REF_COUNT + "=" + BodyColumns.REF_COUNT + "-1" +
+        "  WHERE " + BodyColumns.ID + "=old." + DataColumns.BODY_ID + ";" +
+        " END";
+
+    /**
+     * Decrease body's reference count when delete data referencing the body, the body
+     * itself is collected by the provider
+     */
+    private static final String DATA_DECREASE_BODY_REF_ON_DELETE_TRIGGER =
+        "CREATE TRIGGER decrease_body_ref_on_delete " +
+        " AFTER DELETE ON " + TABLE.DATA +
+        " WHEN old." + DataColumns.BODY_ID + ">0" +
+        " BEGIN" +
+        "  UPDATE " + TABLE.BODY +
+        "   SET " + BodyColumns.REF_COUNT + "=" + BodyColumns.REF_COUNT + "-1" +
+        "  WHERE " + BodyColumns.ID + "=old." + DataColumns.BODY_ID + ";" +
+        " END";
+
+    /**
+     * Journal the note or folder created locally or by sync
+     */
+    private static final String NOTE_JOURNAL_ON_INSERT_TRIGGER =
+        "CREATE TRIGGER journal_note_on_insert " +
+        " AFTER INSERT ON " + TABLE.NOTE +
+        " WHEN new." + NoteColumns.TYPE + "<>" + Notes.TYPE_SYSTEM +
+        " BEGIN" +
+        "  INSERT OR REPLACE INTO " + TABLE.CHANGE + "(" + ChangeColumns.NOTE_ID + ")" +
+        "   VALUES(new." + NoteColumns.ID + ");" +
+        " END";
+
+    /**
+     * Journal the note or folder modified locally or moved to another folder, sync clears
+     * local_modified and is not journaled unless it moves the note
+     */
+    private static final String NOTE_JOURNAL_ON_UPDATE_TRIGGER =
+        "CREATE TRIGGER journal_note_on_update " +
+        " AFTER UPDATE ON " + TABLE.NOTE +
+        " WHEN new." + NoteColumns.LOCAL_MODIFIED + "=1" +
+        "  OR new." + NoteColumns.PARENT_ID + "<>old." + NoteColumns.PARENT_ID +
+        " BEGIN" +
+        "  INSERT OR REPLACE INTO " + TABLE.CHANGE + "(" + ChangeColumns.NOTE_ID + ")" +
+        "   VALUES(new." + NoteColumns.ID + ");" +
+        " END";
+
+    /**
+     * Journal the note when its data is inserted
+     */
+    private static final String DATA_JOURNAL_ON_INSERT_TRIGGER =
+        "CREATE TRIGGER journal_data_on_insert " +
+        " AFTER INSERT ON " + TABLE.DATA +
+        " BEGIN" +
+        "  INSERT OR REPLACE INTO " + TABLE.CHANGE + "(" + ChangeColumns.NOTE_ID + ")" +
+        "   VALUES(new." + DataColumns.NOTE_ID + ");" +
+        " END";
+
+    /**
+     * Journal the note when its data is updated
+     */
+    private static final String DATA_JOURNAL_ON_UPDATE_TRIGGER =
+        "CREATE TRIGGER journal_data_on_update " +
+        " AFTER UPDATE ON " + TABLE.DATA +
+        " BEGIN" +
+        "  INSERT OR REPLACE INTO " + TABLE.CHANGE + "(" + ChangeColumns.NOTE_ID + ")" +
+        "   VALUES(new." + DataColumns.NOTE_ID + ");" +
+        " END";
+
+    /**
+     * Journal the note when its data is deleted
+     */
+    private static final String DATA_JOURNAL_ON_DELETE_TRIGGER =
+        "CREATE TRIGGER journal_data_on_delete " +
+        " AFTER DELETE ON " + TABLE.DATA +
+        " BEGIN" +
+        "  INSERT OR REPLACE INTO " + TABLE.CHANGE + "(" + ChangeColumns.NOTE_ID + ")" +
+        "   VALUES(old." + DataColumns.NOTE_ID + ");" +
+        " END";
+
     /**
      * Delete datas belong to note which has been deleted
      */
@@ -235,6 +450,7 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
      */
     public void createNoteTable(SQLiteDatabase db) {
         db.execSQL(CREATE_NOTE_TABLE_SQL);
+        db.execSQL(CREATE_CHANGE_TABLE_SQL);
         reCreateNoteTableTriggers(db);
         createSystemFolder(db);
         Log.d(TAG, "note table has been created");
@@ -252,6 +468,8 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("DROP TRIGGER IF EXISTS increase_folder_count_on_insert");
         db.execSQL("DROP TRIGGER IF EXISTS folder_delete_notes_on_delete");
         db.execSQL("DROP TRIGGER IF EXISTS folder_move_notes_on_trash");
+        db.execSQL("DROP TRIGGER IF EXISTS journal_note_on_insert");
+        db.execSQL("DROP TRIGGER IF EXISTS journal_note_on_update");
 
         db.execSQL(NOTE_INCREASE_FOLDER_COUNT_ON_UPDATE_TRIGGER);
         db.execSQL(NOTE_DECREASE_FOLDER_COUNT_ON_UPDATE_TRIGGER);
@@ -260,6 +478,8 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL(NOTE_INCREASE_FOLDER_COUNT_ON_INSERT_TRIGGER);
         db.execSQL(FOLDER_DELETE_NOTES_ON_DELETE_TRIGGER);
         db.execSQL(FOLDER_MOVE_NOTES_ON_TRASH_TRIGGER);
+        db.execSQL(NOTE_JOURNAL_ON_INSERT_TRIGGER);
+        db.execSQL(NOTE_JOURNAL_ON_UPDATE_TRIGGER);
     }
 
     /**
@@ -307,11 +527,22 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
      */
     public void createDataTable(SQLiteDatabase db) {
         db.execSQL(CREATE_DATA_TABLE_SQL);
+        db.execSQL(CREATE_BODY_TABLE_SQL);
         reCreateDataTableTriggers(db);
         db.execSQL(CREATE_DATA_NOTE_ID_INDEX_SQL);
+        reCreateDataView(db);
         Log.d(TAG, "data table has been created");
     }
 
+    /**
+     * 重新创建数据内容视图，数据表增加列后需要重新创建
+     * @param db SQLite数据库对象
+     */
+    private void reCreateDataView(SQLiteDatabase db) {
+        db.execSQL("DROP VIEW IF EXISTS " + TABLE.DATA_VIEW);
+        db.execSQL(CREATE_DATA_VIEW_SQL);
+    }
+
     /**
      * 重新创建数据内容表的触发器
      * @param db SQLite数据库对象
@@ -320,10 +551,28 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("DROP TRIGGER IF EXISTS update_note_content_on_insert");
         db.execSQL("DROP TRIGGER IF EXISTS update_note_content_on_update");
         db.execSQL("DROP TRIGGER IF EXISTS update_note_content_on_delete");
+        db.execSQL("DROP TRIGGER IF EXISTS increase_check_item_count_on_insert");
+        db.execSQL("DROP TRIGGER IF EXISTS update_checked_item_count_on_update");
+        db.execSQL("DROP TRIGGER IF EXISTS decrease_check_item_count_on_delete");
+        db.execSQL("DROP TRIGGER IF EXISTS increase_body_ref_on_insert");
+        db.execSQL("DROP TRIGGER IF EXISTS update_body_ref_on_update");
+        db.execSQL("DROP TRIGGER IF EXISTS decrease_body_ref_on_delete");
+        db.execSQL("DROP TRIGGER IF EXISTS journal_data_on_insert");
+        db.execSQL("DROP TRIGGER IF EXISTS journal_data_on_update");
+        db.execSQL("DROP TRIGGER IF EXISTS journal_data_on_delete");
 
         db.execSQL(DATA_UPDATE_NOTE_CONTENT_ON_INSERT_TRIGGER);
         db.execSQL(DATA_UPDATE_NOTE_CONTENT_ON_UPDATE_TRIGGER);
         db.execSQL(DATA_UPDATE_NOTE_CONTENT_ON_DELETE_TRIGGER);
+        db.execSQL(DATA_INCREASE_CHECK_ITEM_COUNT_ON_INSERT_TRIGGER);
+        db.execSQL(DATA_UPDATE_CHECKED_ITEM_COUNT_ON_UPDATE_TRIGGER);
+        db.execSQL(DATA_DECREASE_CHECK_ITEM_COUNT_ON_DELETE_TRIGGER);
+        db.execSQL(DATA_INCREASE_BODY_REF_ON_INSERT_TRIGGER);
+        db.execSQL(DATA_UPDATE_BODY_REF_ON_UPDATE_TRIGGER);
+        db.execSQL(DATA_DECREASE_BODY_REF_ON_DELETE_TRIGGER);
+        db.execSQL(DATA_JOURNAL_ON_INSERT_TRIGGER);
+        db.execSQL(DATA_JOURNAL_ON_UPDATE_TRIGGER);
+        db.execSQL(DATA_JOURNAL_ON_DELETE_TRIGGER);
     }
 
     /**
@@ -376,6 +625,24 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
             oldVersion++;
         }
 
+        if (oldVersion == 4) {
+            upgradeToV5(db);
+            reCreateTriggers = true;
+            oldVersion++;
+        }
+
+        if (oldVersion == 5) {
+            upgradeToV6(db);
+            reCreateTriggers = true;
+            oldVersion++;
+        }
+
+        if (oldVersion == 6) {
+            upgradeToV7(db);
+            reCreateTriggers = true;
+            oldVersion++;
+        }
+
         if (reCreateTriggers) {
             reCreateNoteTableTriggers(db);
             reCreateDataTableTriggers(db);
@@ -425,4 +692,37 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("ALTER TABLE " + TABLE.NOTE + " ADD COLUMN " + NoteColumns.VERSION
                 + " INTEGER NOT NULL DEFAULT 0");
     }
+
+    /**
+     * 升级数据库到版本5
+     * 为笔记表增加结构化待办事项的计数列
+     * @param db SQLite数据库对象
+     */
+    private void upgradeToV5(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + TABLE.NOTE + " ADD COLUMN " + NoteColumns.CHECK_ITEM_COUNT
+                + " INTEGER NOT NULL DEFAULT 0");
+        db.execSQL("ALTER TABLE " + TABLE.NOTE + " ADD COLUMN " + NoteColumns.CHECKED_ITEM_COUNT
+                + " INTEGER NOT NULL DEFAULT 0");
+    }
+
+    /**
+     * 升级数据库到版本6
+     * 增加按内容寻址的共享正文表，复制笔记时大段内容只增加引用
+     * @param db SQLite数据库对象
+     */
+    private void upgradeToV6(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + TABLE.DATA + " ADD COLUMN " + DataColumns.BODY_ID
+                + " INTEGER NOT NULL DEFAULT 0");
+        db.execSQL(CREATE_BODY_TABLE_SQL);
+        reCreateDataView(db);
+    }
+
+    /**
+     * 升级数据库到版本7
+     * 增加本地修改日志表，已有的笔记由升级后的第一次完整同步处理
+     * @param db SQLite数据库对象
+     */
+    private void upgradeToV7(SQLiteDatabase db) {
+        db.execSQL(CREATE_CHANGE_TABLE_SQL);
+    }
 }
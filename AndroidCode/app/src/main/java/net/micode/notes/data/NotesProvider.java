@@ -19,21 +19,36 @@ package net.micode.notes.data;
 
 import android.app.SearchManager;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.Parcelable;
 import android.text.TextUtils;
 import android.util.Log;
 
 import net.micode.notes.R;
 import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.NotesDatabaseHelper.BodyColumns;
 import net.micode.notes.data.NotesDatabaseHelper.TABLE;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+
 
 /**
  * 笔记应用的ContentProvider，负责处理所有数据操作请求
@@ -46,6 +61,13 @@ public class NotesProvider extends ContentProvider {
     // 数据库助手实例
     private NotesDatabaseHelper mHelper;
 
+    // 当前线程正在执行的批量操作中变化的URI，在提交后统一发送通知
+    private final ThreadLocal<LinkedHashSet<Uri>> mApplyingBatch =
+            new ThreadLocal<LinkedHashSet<Uri>>();
+
+    // 批量操作中变化的URI超过该数量时改为通知整个笔记表和数据表
+    private static final int MAX_BATCH_NOTIFICATIONS = 64;
+
     // 日志标签
     private static final String TAG = "NotesProvider";
 
@@ -56,6 +78,8 @@ public class NotesProvider extends ContentProvider {
     private static final int URI_DATA_ITEM       = 4;   // 单个数据内容
     private static final int URI_SEARCH          = 5;   // 搜索
     private static final int URI_SEARCH_SUGGEST  = 6;   // 搜索建议
+    private static final int URI_NOTE_WITH_DATA  = 7;   // 单个笔记及其所有数据内容
+    private static final int URI_CHANGE          = 8;   // 本地修改日志
 
     static {
         mMatcher = new UriMatcher(UriMatcher.NO_MATCH);
@@ -63,6 +87,8 @@ public class NotesProvider extends ContentProvider {
         mMatcher.addURI(Notes.AUTHORITY, "note/#", URI_NOTE_ITEM);
         mMatcher.addURI(Notes.AUTHORITY, "data", URI_DATA);
         mMatcher.addURI(Notes.AUTHORITY, "data/#", URI_DATA_ITEM);
+        mMatcher.addURI(Notes.AUTHORITY, "note_data/#", URI_NOTE_WITH_DATA);
+        mMatcher.addURI(Notes.AUTHORITY, "change", URI_CHANGE);
         mMatcher.addURI(Notes.AUTHORITY, "search", URI_SEARCH);
         mMatcher.addURI(Notes.AUTHORITY, SearchManager.SUGGEST_URI_PATH_QUERY, URI_SEARCH_SUGGEST);
         mMatcher.addURI(Notes.AUTHORITY, SearchManager.SUGGEST_URI_PATH_QUERY + "/*", URI_SEARCH_SUGGEST);
@@ -81,6 +107,26 @@ public class NotesProvider extends ContentProvider {
         + "'" + Intent.ACTION_VIEW + "' AS " + SearchManager.SUGGEST_COLUMN_INTENT_ACTION + ","
         + "'" + Notes.TextNote.CONTENT_TYPE + "' AS " + SearchManager.SUGGEST_COLUMN_INTENT_DATA;
 
+    // 笔记及其数据内容的联合表，数据内容从视图读取，共享正文已经解析
+    private static final String NOTE_WITH_DATA_TABLES = TABLE.NOTE + " LEFT JOIN " + TABLE.DATA_VIEW
+        + " AS " + TABLE.DATA
+        + " ON (" + TABLE.DATA + "." + DataColumns.NOTE_ID + "=" + TABLE.NOTE + "." + NoteColumns.ID + ")";
+
+    // 内容达到该长度的数据行使用共享正文，较短的内容直接复制更省事
+    private static final int BODY_MIN_LENGTH = 1024;
+
+    // 复制笔记时从原笔记复制的列，内容摘要和清单计数由数据行的触发器生成
+    private static final String DUPLICATE_NOTE_COLUMNS = NoteColumns.PARENT_ID + ","
+        + NoteColumns.ALERTED_DATE + "," + NoteColumns.BG_COLOR_ID + ","
+        + NoteColumns.HAS_ATTACHMENT + "," + NoteColumns.TYPE + ","
+        + NoteColumns.WIDGET_ID + "," + NoteColumns.WIDGET_TYPE;
+
+    // 复制笔记时从原数据行复制的列，共享正文的行只复制正文ID
+    private static final String DUPLICATE_DATA_COLUMNS = DataColumns.MIME_TYPE + ","
+        + DataColumns.CONTENT + "," + DataColumns.DATA1 + "," + DataColumns.DATA2 + ","
+        + DataColumns.DATA3 + "," + DataColumns.DATA4 + "," + DataColumns.DATA5 + ","
+        + DataColumns.BODY_ID;
+
     // 搜索笔记内容的SQL查询语句
     private static String NOTES_SNIPPET_SEARCH_QUERY = "SELECT " + NOTES_SEARCH_PROJECTION
         + " FROM " + TABLE.NOTE
@@ -125,14 +171,27 @@ public class NotesProvider extends ContentProvider {
                         + parseSelection(selection), selectionArgs, null, null, sortOrder);
                 break;
             case URI_DATA:
-                c = db.query(TABLE.DATA, projection, selection, selectionArgs, null, null,
+                c = db.query(TABLE.DATA_VIEW, projection, selection, selectionArgs, null, null,
                         sortOrder);
                 break;
             case URI_DATA_ITEM:
                 id = uri.getPathSegments().get(1);
-                c = db.query(TABLE.DATA, projection, DataColumns.ID + "=" + id
+                c = db.query(TABLE.DATA_VIEW, projection, DataColumns.ID + "=" + id
                         + parseSelection(selection), selectionArgs, null, null, sortOrder);
                 break;
+            case URI_NOTE_WITH_DATA:
+                if (projection == null) {
+                    throw new IllegalArgumentException("projection is required for " + uri);
+                }
+                id = uri.getPathSegments().get(1);
+                c = db.query(NOTE_WITH_DATA_TABLES, qualifyJoinedProjection(projection),
+                        TABLE.NOTE + "." + NoteColumns.ID + "=" + id + parseSelection(selection),
+                        selectionArgs, null, null, sortOrder);
+                break;
+            case URI_CHANGE:
+                c = db.query(TABLE.CHANGE, projection, selection, selectionArgs, null, null,
+                        sortOrder);
+                break;
             case URI_SEARCH:
             case URI_SEARCH_SUGGEST:
                 if (sortOrder != null || projection != null) {
@@ -191,26 +250,297 @@ public class NotesProvider extends ContentProvider {
                 } else {
                     Log.d(TAG, "Wrong data format without note id:" + values.toString());
                 }
-                insertedId = dataId = db.insert(TABLE.DATA, null, values);
+                db.beginTransaction();
+                try {
+                    insertedId = dataId = db.insert(TABLE.DATA, null, storeContent(db, values));
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
                 break;
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
         // Notify the note uri
         if (noteId > 0) {
-            getContext().getContentResolver().notifyChange(
-                    ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId), null);
+            notifyChange(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId));
         }
 
         // Notify the data uri
         if (dataId > 0) {
-            getContext().getContentResolver().notifyChange(
-                    ContentUris.withAppendedId(Notes.CONTENT_DATA_URI, dataId), null);
+            notifyChange(ContentUris.withAppendedId(Notes.CONTENT_DATA_URI, dataId));
         }
 
         return ContentUris.withAppendedId(uri, insertedId);
     }
 
+    /**
+     * 执行自定义方法，支持{@link Notes#METHOD_CREATE_NOTES}、{@link Notes#METHOD_DUPLICATE_NOTE}
+     * 和{@link Notes#METHOD_UPDATE_SYNC_IDS}
+     * @param method 方法名
+     * @param arg 未使用
+     * @param extras 方法参数
+     * @return 方法结果
+     * @throws IllegalArgumentException 当方法或参数不合法时抛出
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (Notes.METHOD_CREATE_NOTES.equals(method)) {
+            return createNotes(extras);
+        } else if (Notes.METHOD_UPDATE_SYNC_IDS.equals(method)) {
+            return updateSyncIds(extras);
+        } else if (Notes.METHOD_DUPLICATE_NOTE.equals(method)) {
+            try {
+                return duplicateNote(Long.parseLong(arg));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Wrong note id:" + arg);
+            }
+        }
+        throw new IllegalArgumentException("Unknown method " + method);
+    }
+
+    /**
+     * 在一个事务中插入笔记及其数据行，数据行的笔记ID由新插入的笔记ID填充
+     * 任何一行插入失败时整个事务回滚，不会留下没有内容的空笔记
+     * 触发器在事务内照常执行，变化通知在提交后只发送一次
+     * @param extras 笔记和数据行的内容，格式见{@link Notes#METHOD_CREATE_NOTES}
+     * @return 新笔记和新数据行的ID，插入失败时返回null
+     */
+    private Bundle createNotes(Bundle extras) {
+        if (extras == null) {
+            throw new IllegalArgumentException("Missing values for " + Notes.METHOD_CREATE_NOTES);
+        }
+        Parcelable[] notes = extras.getParcelableArray(Notes.EXTRA_NOTE_VALUES);
+        Parcelable[] data = extras.getParcelableArray(Notes.EXTRA_DATA_VALUES);
+        int[] dataNoteIndex = extras.getIntArray(Notes.EXTRA_DATA_NOTE_INDEX);
+        if (notes == null || notes.length == 0) {
+            throw new IllegalArgumentException("No note to create");
+        }
+        if (data == null) {
+            data = new Parcelable[0];
+        }
+        if (dataNoteIndex == null || dataNoteIndex.length != data.length) {
+            throw new IllegalArgumentException("Data rows do not match their notes");
+        }
+
+        long[] noteIds = new long[notes.length];
+        long[] dataIds = new long[data.length];
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < notes.length; i++) {
+                noteIds[i] = db.insert(TABLE.NOTE, null, (ContentValues) notes[i]);
+                if (noteIds[i] <= 0) {
+                    Log.e(TAG, "Create note failed:" + notes[i]);
+                    return null;
+                }
+            }
+            for (int i = 0; i < data.length; i++) {
+                if (dataNoteIndex[i] < 0 || dataNoteIndex[i] >= notes.length) {
+                    throw new IllegalArgumentException("Wrong note index:" + dataNoteIndex[i]);
+                }
+                ContentValues values = storeContent(db, (ContentValues) data[i]);
+                values.put(DataColumns.NOTE_ID, noteIds[dataNoteIndex[i]]);
+                dataIds[i] = db.insert(TABLE.DATA, null, values);
+                if (dataIds[i] <= 0) {
+                    Log.e(TAG, "Create note data failed:" + values);
+                    return null;
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        for (long noteId : noteIds) {
+            notifyNoteChange(noteId);
+        }
+        if (data.length > 0) {
+            notifyChange(Notes.CONTENT_DATA_URI);
+        }
+
+        Bundle result = new Bundle();
+        result.putLongArray(Notes.EXTRA_NOTE_IDS, noteIds);
+        result.putLongArray(Notes.EXTRA_DATA_IDS, dataIds);
+        return result;
+    }
+
+    /**
+     * 在一个事务中写入多个笔记的同步ID
+     * 与逐个更新笔记一样递增版本号，同步期间用户修改的笔记不会被同步覆盖
+     * @param extras 笔记ID和对应的同步ID
+     * @return 成功更新的笔记ID
+     */
+    private Bundle updateSyncIds(Bundle extras) {
+        if (extras == null) {
+            throw new IllegalArgumentException("Missing values for "
+                    + Notes.METHOD_UPDATE_SYNC_IDS);
+        }
+        long[] noteIds = extras.getLongArray(Notes.EXTRA_NOTE_IDS);
+        long[] syncIds = extras.getLongArray(Notes.EXTRA_SYNC_IDS);
+        if (noteIds == null || syncIds == null || noteIds.length != syncIds.length) {
+            throw new IllegalArgumentException("Sync ids do not match their notes");
+        }
+
+        long[] updated = new long[noteIds.length];
+        int count = 0;
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            SQLiteStatement statement = db.compileStatement("UPDATE " + TABLE.NOTE
+                    + " SET " + NoteColumns.SYNC_ID + "=?," + NoteColumns.VERSION + "="
+                    + NoteColumns.VERSION + "+1 WHERE " + NoteColumns.ID + "=?");
+            try {
+                for (int i = 0; i < noteIds.length; i++) {
+                    statement.bindLong(1, syncIds[i]);
+                    statement.bindLong(2, noteIds[i]);
+                    if (statement.executeUpdateDelete() > 0) {
+                        updated[count++] = noteIds[i];
+                    }
+                }
+            } finally {
+                statement.close();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        for (int i = 0; i < count; i++) {
+            notifyNoteChange(updated[i]);
+        }
+
+        Bundle result = new Bundle();
+        result.putLongArray(Notes.EXTRA_NOTE_IDS, Arrays.copyOf(updated, count));
+        return result;
+    }
+
+    /**
+     * 在一个事务中复制笔记及其所有数据行
+     * 复制完全在数据库中进行，内容不经过应用进程；共享正文的数据行只复制正文ID，
+     * 两份笔记共用一份正文，直到其中一份被修改
+     * @param noteId 要复制的笔记ID
+     * @return 新笔记的ID，原笔记不存在时返回null
+     */
+    private Bundle duplicateNote(long noteId) {
+        long newId;
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            db.execSQL("INSERT INTO " + TABLE.NOTE + "(" + DUPLICATE_NOTE_COLUMNS + ","
+                    + NoteColumns.LOCAL_MODIFIED + ") SELECT " + DUPLICATE_NOTE_COLUMNS
+                    + ",1 FROM " + TABLE.NOTE + " WHERE " + NoteColumns.ID + "=? AND "
+                    + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE,
+                    new Object[] { noteId });
+            if (DatabaseUtils.longForQuery(db, "SELECT changes()", null) == 0) {
+                Log.e(TAG, "Duplicate note failed, note not found:" + noteId);
+                return null;
+            }
+            newId = DatabaseUtils.longForQuery(db, "SELECT last_insert_rowid()", null);
+            db.execSQL("INSERT INTO " + TABLE.DATA + "(" + DUPLICATE_DATA_COLUMNS + ","
+                    + DataColumns.NOTE_ID + ") SELECT " + DUPLICATE_DATA_COLUMNS + ",? FROM "
+                    + TABLE.DATA + " WHERE " + DataColumns.NOTE_ID + "=? ORDER BY "
+                    + DataColumns.ID, new Object[] { newId, noteId });
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        notifyNoteChange(newId);
+        notifyChange(Notes.CONTENT_DATA_URI);
+
+        Bundle result = new Bundle();
+        result.putLongArray(Notes.EXTRA_NOTE_IDS, new long[] { newId });
+        return result;
+    }
+
+    /**
+     * 把较长的内容存入共享正文表，数据行只保存正文ID
+     * 写入新内容的数据行不再与其他行共享原来的正文，即写时复制，
+     * 原来的正文引用计数由触发器减少，没有引用后由{@link #collectBodies}回收。
+     * 应在事务中调用，正文在被引用之前不会被回收
+     * @param db 可写数据库
+     * @param values 客户端提交的列值，不会被修改
+     * @return 实际写入数据表的列值
+     */
+    private ContentValues storeContent(SQLiteDatabase db, ContentValues values) {
+        values = new ContentValues(values);
+        values.remove(DataColumns.BODY_ID);
+        if (!values.containsKey(DataColumns.CONTENT)) {
+            return values;
+        }
+        String content = values.getAsString(DataColumns.CONTENT);
+        if (content == null || content.length() < BODY_MIN_LENGTH) {
+            values.put(DataColumns.BODY_ID, 0);
+            return values;
+        }
+
+        String hash = hashContent(content);
+        long bodyId = findBody(db, hash);
+        if (bodyId <= 0) {
+            ContentValues body = new ContentValues();
+            body.put(BodyColumns.HASH, hash);
+            body.put(BodyColumns.CONTENT, content);
+            bodyId = db.insertWithOnConflict(TABLE.BODY, null, body,
+                    SQLiteDatabase.CONFLICT_IGNORE);
+            if (bodyId <= 0) {
+                bodyId = findBody(db, hash);
+            }
+        }
+        if (bodyId <= 0) {
+            // 正文写入失败时仍把内容保存在数据行中
+            Log.e(TAG, "Store body failed, keep the content inline");
+            values.put(DataColumns.BODY_ID, 0);
+            return values;
+        }
+        values.put(DataColumns.CONTENT, "");
+        values.put(DataColumns.BODY_ID, bodyId);
+        return values;
+    }
+
+    private static long findBody(SQLiteDatabase db, String hash) {
+        Cursor c = db.query(TABLE.BODY, new String[] { BodyColumns.ID },
+                BodyColumns.HASH + "=?", new String[] { hash }, null, null, null);
+        if (c == null) {
+            return 0;
+        }
+        try {
+            return c.moveToFirst() ? c.getLong(0) : 0;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * 删除不再被任何数据行引用的共享正文
+     * @param db 可写数据库
+     */
+    private static void collectBodies(SQLiteDatabase db) {
+        int count = db.delete(TABLE.BODY, BodyColumns.REF_COUNT + "<=0", null);
+        if (count > 0) {
+            Log.d(TAG, "Collected " + count + " unreferenced bodies");
+        }
+    }
+
+    /**
+     * 计算内容的摘要，长度一并计入，相同摘要视为相同内容
+     */
+    private static String hashContent(String content) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] bytes = digest.digest(content.getBytes(StandardCharsets.UTF_8));
+        StringBuilder sb = new StringBuilder(bytes.length * 2 + 12);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.append(':').append(content.length()).toString();
+    }
+
     /**
      * 删除数据
      * @param uri 请求的URI
@@ -222,9 +552,37 @@ public class NotesProvider extends ContentProvider {
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
         int count = 0;
-        String id = null;
         SQLiteDatabase db = mHelper.getWritableDatabase();
-        boolean deleteData = false;
+        int match = mMatcher.match(uri);
+        boolean deleteData = match == URI_DATA || match == URI_DATA_ITEM;
+        ArrayList<Long> noteIds = null;
+        // 删除笔记会由触发器删除其数据行，之后回收不再被引用的正文
+        db.beginTransaction();
+        try {
+            if (deleteData) {
+                noteIds = queryDataNoteIds(db, uri, selection, selectionArgs);
+            }
+            count = deleteInTransaction(db, uri, selection, selectionArgs);
+            if (count > 0) {
+                collectBodies(db);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (count > 0) {
+            if (deleteData) {
+                notifyNoteChanges(noteIds);
+            }
+            notifyChange(uri);
+        }
+        return count;
+    }
+
+    private int deleteInTransaction(SQLiteDatabase db, Uri uri, String selection,
+            String[] selectionArgs) {
+        int count = 0;
+        String id = null;
         switch (mMatcher.match(uri)) {
             case URI_NOTE:
                 selection = "(" + selection + ") AND " + NoteColumns.ID + ">0 ";
@@ -245,23 +603,18 @@ public class NotesProvider extends ContentProvider {
                 break;
             case URI_DATA:
                 count = db.delete(TABLE.DATA, selection, selectionArgs);
-                deleteData = true;
                 break;
             case URI_DATA_ITEM:
                 id = uri.getPathSegments().get(1);
                 count = db.delete(TABLE.DATA,
                         DataColumns.ID + "=" + id + parseSelection(selection), selectionArgs);
-                deleteData = true;
+                break;
+            case URI_CHANGE:
+                count = db.delete(TABLE.CHANGE, selection, selectionArgs);
                 break;
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
-        if (count > 0) {
-            if (deleteData) {
-                getContext().getContentResolver().notifyChange(Notes.CONTENT_NOTE_URI, null);
-            }
-            getContext().getContentResolver().notifyChange(uri, null);
-        }
         return count;
     }
 
@@ -279,7 +632,7 @@ public class NotesProvider extends ContentProvider {
         int count = 0;
         String id = null;
         SQLiteDatabase db = mHelper.getWritableDatabase();
-        boolean updateData = false;
+        ArrayList<Long> noteIds = null;
         switch (mMatcher.match(uri)) {
             case URI_NOTE:
                 increaseNoteVersion(-1, selection, selectionArgs);
@@ -292,28 +645,148 @@ public class NotesProvider extends ContentProvider {
                         + parseSelection(selection), selectionArgs);
                 break;
             case URI_DATA:
-                count = db.update(TABLE.DATA, values, selection, selectionArgs);
-                updateData = true;
-                break;
             case URI_DATA_ITEM:
-                id = uri.getPathSegments().get(1);
-                count = db.update(TABLE.DATA, values, DataColumns.ID + "=" + id
-                        + parseSelection(selection), selectionArgs);
-                updateData = true;
+                if (mMatcher.match(uri) == URI_DATA_ITEM) {
+                    id = uri.getPathSegments().get(1);
+                    selection = DataColumns.ID + "=" + id + parseSelection(selection);
+                }
+                // 新内容写入新的正文，原来的正文没有引用后回收
+                db.beginTransaction();
+                try {
+                    noteIds = queryDataNoteIds(db, null, selection, selectionArgs);
+                    count = db.update(TABLE.DATA, storeContent(db, values), selection,
+                            selectionArgs);
+                    collectBodies(db);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                // 数据行移到其他笔记时，新笔记也发生了变化
+                if (values.containsKey(DataColumns.NOTE_ID)) {
+                    noteIds.add(values.getAsLong(DataColumns.NOTE_ID));
+                }
                 break;
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
         if (count > 0) {
-            if (updateData) {
-                getContext().getContentResolver().notifyChange(Notes.CONTENT_NOTE_URI, null);
+            if (noteIds != null) {
+                notifyNoteChanges(noteIds);
             }
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
         return count;
     }
 
+    /**
+     * 查询条件选中的数据行所属的笔记，在修改或删除数据行之前调用
+     * @param db 数据库
+     * @param uri 单个数据行的URI，为空时只使用选择条件
+     * @param selection 选择条件
+     * @param selectionArgs 选择条件的参数
+     * @return 不重复的笔记ID
+     */
+    private ArrayList<Long> queryDataNoteIds(SQLiteDatabase db, Uri uri, String selection,
+            String[] selectionArgs) {
+        if (uri != null && mMatcher.match(uri) == URI_DATA_ITEM) {
+            selection = DataColumns.ID + "=" + uri.getPathSegments().get(1)
+                    + parseSelection(selection);
+        }
+        ArrayList<Long> noteIds = new ArrayList<Long>();
+        Cursor c = db.query(true, TABLE.DATA, new String[] { DataColumns.NOTE_ID }, selection,
+                selectionArgs, null, null, null, null);
+        if (c == null) {
+            return noteIds;
+        }
+        try {
+            while (c.moveToNext()) {
+                noteIds.add(c.getLong(0));
+            }
+        } finally {
+            c.close();
+        }
+        return noteIds;
+    }
+
+    /**
+     * 在一个事务中执行批量操作
+     * 任何一个操作失败时整个批次回滚，插入没有得到新行ID也视为失败；
+     * 允许让步的操作之前，如果其他线程在等待数据库，先提交已执行的部分。
+     * 触发器在事务内照常执行，变化通知在提交后只发送一次
+     * @param operations 要执行的操作
+     * @return 每个操作的结果
+     * @throws OperationApplicationException 当任何一个操作失败时抛出
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        ContentProviderResult[] results = new ContentProviderResult[operations.size()];
+        if (operations.isEmpty()) {
+            return results;
+        }
+
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        LinkedHashSet<Uri> changes = new LinkedHashSet<Uri>();
+        mApplyingBatch.set(changes);
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < operations.size(); i++) {
+                ContentProviderOperation operation = operations.get(i);
+                if (i > 0 && operation.isYieldAllowed()) {
+                    db.yieldIfContendedSafely();
+                }
+                results[i] = operation.apply(this, results, i);
+                // 只有插入的结果带有URI，失败的插入返回的ID不大于0
+                if (results[i].uri != null && ContentUris.parseId(results[i].uri) <= 0) {
+                    throw new OperationApplicationException("Insert failed: "
+                            + operation.getUri());
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            mApplyingBatch.remove();
+        }
+
+        if (changes.size() > MAX_BATCH_NOTIFICATIONS) {
+            notifyChange(Notes.CONTENT_NOTE_URI);
+            notifyChange(Notes.CONTENT_DATA_URI);
+        } else {
+            for (Uri uri : changes) {
+                notifyChange(uri);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * 发送变化通知，批量操作中只记录URI，由批量操作提交后统一发送
+     * @param uri 发生变化的URI
+     */
+    private void notifyChange(Uri uri) {
+        LinkedHashSet<Uri> changes = mApplyingBatch.get();
+        if (changes != null) {
+            changes.add(uri);
+        } else {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+    }
+
+    /**
+     * 通知单个笔记发生变化，笔记URI的观察者只需处理这一个笔记
+     * @param noteId 笔记ID
+     */
+    private void notifyNoteChange(long noteId) {
+        notifyChange(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId));
+    }
+
+    private void notifyNoteChanges(ArrayList<Long> noteIds) {
+        for (long noteId : noteIds) {
+            notifyNoteChange(noteId);
+        }
+    }
+
     /**
      * 解析选择条件，添加到已有的条件中
      * @param selection 要解析的选择条件
@@ -323,6 +796,25 @@ public class NotesProvider extends ContentProvider {
         return (!TextUtils.isEmpty(selection) ? " AND (" + selection + ')' : "");
     }
 
+    /**
+     * 为联合查询的列加上表名，带{@link Notes#JOINED_DATA_PREFIX}前缀的列属于数据表
+     * @param projection 客户端请求的列
+     * @return 加上表名和别名后的列
+     */
+    private String[] qualifyJoinedProjection(String[] projection) {
+        String[] qualified = new String[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            String column = projection[i];
+            if (column.startsWith(Notes.JOINED_DATA_PREFIX)) {
+                qualified[i] = TABLE.DATA + "." + column.substring(Notes.JOINED_DATA_PREFIX.length())
+                        + " AS " + column;
+            } else {
+                qualified[i] = TABLE.NOTE + "." + column + " AS " + column;
+            }
+        }
+        return qualified;
+    }
+
     /**
      * 增加笔记版本号
      * @param id 笔记ID，-1表示所有笔记
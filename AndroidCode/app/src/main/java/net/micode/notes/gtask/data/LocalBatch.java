@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.OperationApplicationException;
+import android.os.RemoteException;
+import android.util.Log;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.gtask.exception.ActionFailureException;
+
+import java.util.ArrayList;
+
+/**
+ * 同步时的本地批量写入
+ * 笔记和数据行的写入先收集为ContentProviderOperation，执行时在一个事务中完成，
+ * 新笔记的数据行通过反向引用得到笔记ID。新行的ID和更新的结果在执行后交给各自的回调
+ */
+public class LocalBatch {
+    private static final String TAG = LocalBatch.class.getSimpleName();
+
+    /**
+     * 批次执行后的回调，在执行批次的线程上调用
+     */
+    interface ResultHandler {
+        void onApplied(ContentProviderResult[] results);
+    }
+
+    // 内容解析器
+    private final ContentResolver mContentResolver;
+
+    // 收集的操作
+    private final ArrayList<ContentProviderOperation> mOperations;
+
+    // 执行后的回调
+    private final ArrayList<ResultHandler> mHandlers;
+
+    public LocalBatch(ContentResolver resolver) {
+        mContentResolver = resolver;
+        mOperations = new ArrayList<ContentProviderOperation>();
+        mHandlers = new ArrayList<ResultHandler>();
+    }
+
+    /**
+     * 加入一个操作
+     * @param operation 要执行的操作
+     * @return 操作在批次中的下标，用于反向引用和读取结果
+     */
+    int add(ContentProviderOperation operation) {
+        mOperations.add(operation);
+        return mOperations.size() - 1;
+    }
+
+    /**
+     * 加入批次执行后的回调
+     */
+    void addHandler(ResultHandler handler) {
+        mHandlers.add(handler);
+    }
+
+    /**
+     * @return 已收集的操作数
+     */
+    public int size() {
+        return mOperations.size();
+    }
+
+    /**
+     * 在一个事务中执行收集的操作并调用回调，之后批次清空
+     * @throws ActionFailureException 如果执行失败，批次中的操作全部回滚
+     */
+    public void apply() {
+        if (mOperations.isEmpty()) {
+            return;
+        }
+
+        ArrayList<ResultHandler> handlers = new ArrayList<ResultHandler>(mHandlers);
+        ContentProviderResult[] results;
+        try {
+            results = mContentResolver.applyBatch(Notes.AUTHORITY, mOperations);
+        } catch (RemoteException e) {
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+            throw new ActionFailureException("apply local batch failed");
+        } catch (OperationApplicationException e) {
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+            throw new ActionFailureException("apply local batch failed");
+        } finally {
+            mOperations.clear();
+            mHandlers.clear();
+        }
+
+        for (ResultHandler handler : handlers) {
+            handler.onApplied(results);
+        }
+    }
+}
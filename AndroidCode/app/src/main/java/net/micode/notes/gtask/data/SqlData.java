@@ -16,20 +16,20 @@
 
 package net.micode.notes.gtask.data;
 
-import android.content.ContentResolver;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
-import android.net.Uri;
 import android.util.Log;
 
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.DataConstants;
 import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.Notes.TextNote;
 import net.micode.notes.data.NotesDatabaseHelper.TABLE;
-import net.micode.notes.gtask.exception.ActionFailureException;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -37,7 +37,7 @@ import org.json.JSONObject;
 
 /**
  * 数据库数据处理类，用于管理笔记的数据部分
- * 提供与ContentResolver的交互，实现数据的创建、更新和提交
+ * 数据的创建、更新和提交加入同步的批量操作执行
  */
 public class SqlData {
     // 日志标签
@@ -67,9 +67,6 @@ public class SqlData {
     // 投影数组中DATA3列的索引
     public static final int DATA_CONTENT_DATA_3_COLUMN = 4;
 
-    // 内容解析器
-    private ContentResolver mContentResolver;
-
     // 是否为创建操作
     private boolean mIsCreate;
 
@@ -96,7 +93,6 @@ public class SqlData {
      * @param context 上下文对象
      */
     public SqlData(Context context) {
-        mContentResolver = context.getContentResolver();
         mIsCreate = true;
         mDataId = INVALID_ID;
         mDataMimeType = DataConstants.NOTE;
@@ -112,7 +108,6 @@ public class SqlData {
      * @param c 数据库游标
      */
     public SqlData(Context context, Cursor c) {
-        mContentResolver = context.getContentResolver();
         mIsCreate = false;
         loadFromCursor(c);
         mDiffDataValues = new ContentValues();
@@ -188,44 +183,38 @@ public class SqlData {
     }
 
     /**
-     * 提交数据到数据库
+     * 把数据行的写入加入批量操作，新数据行的ID在批次执行后设置
+     * @param batch 批量操作
      * @param noteId 笔记ID
      * @param validateVersion 是否验证版本
      * @param version 版本号
-     * @throws ActionFailureException 创建笔记失败时抛出
      */
-    public void commit(long noteId, boolean validateVersion, long version) {
+    public void commit(LocalBatch batch, long noteId, boolean validateVersion, long version) {
 
         if (mIsCreate) {
-            if (mDataId == INVALID_ID && mDiffDataValues.containsKey(DataColumns.ID)) {
-                mDiffDataValues.remove(DataColumns.ID);
-            }
-
-            mDiffDataValues.put(DataColumns.NOTE_ID, noteId);
-            Uri uri = mContentResolver.insert(Notes.CONTENT_DATA_URI, mDiffDataValues);
-            try {
-                mDataId = Long.valueOf(uri.getPathSegments().get(1));
-            } catch (NumberFormatException e) {
-                Log.e(TAG, "Get note id error :" + e.toString());
-                throw new ActionFailureException("create note failed");
-            }
+            ContentProviderOperation.Builder builder = newInsert();
+            builder.withValue(DataColumns.NOTE_ID, noteId);
+            addInsert(batch, builder);
         } else {
             if (mDiffDataValues.size() > 0) {
-                int result = 0;
-                if (!validateVersion) {
-                    result = mContentResolver.update(ContentUris.withAppendedId(
-                            Notes.CONTENT_DATA_URI, mDataId), mDiffDataValues, null, null);
-                } else {
-                    result = mContentResolver.update(ContentUris.withAppendedId(
-                            Notes.CONTENT_DATA_URI, mDataId), mDiffDataValues,
-                            " ? in (SELECT " + NoteColumns.ID + " FROM " + TABLE.NOTE
-                                    + " WHERE " + NoteColumns.VERSION + "=?)", new String[] {
+                ContentProviderOperation.Builder builder = ContentProviderOperation
+                        .newUpdate(ContentUris.withAppendedId(Notes.CONTENT_DATA_URI, mDataId))
+                        .withValues(mDiffDataValues);
+                if (validateVersion) {
+                    builder.withSelection(" ? in (SELECT " + NoteColumns.ID + " FROM "
+                            + TABLE.NOTE + " WHERE " + NoteColumns.VERSION + "=?)",
+                            new String[] {
                                     String.valueOf(noteId), String.valueOf(version)
                             });
                 }
-                if (result == 0) {
-                    Log.w(TAG, "there is no update. maybe user updates note when syncing");
-                }
+                final int index = batch.add(builder.build());
+                batch.addHandler(new LocalBatch.ResultHandler() {
+                    public void onApplied(ContentProviderResult[] results) {
+                        if (results[index].count == 0) {
+                            Log.w(TAG, "there is no update. maybe user updates note when syncing");
+                        }
+                    }
+                });
             }
         }
 
@@ -233,6 +222,37 @@ public class SqlData {
         mIsCreate = false;
     }
 
+    /**
+     * 把新数据行的插入加入批量操作，所属笔记在同一个批次中创建
+     * @param batch 批量操作
+     * @param noteIndex 笔记的插入操作在批次中的下标
+     */
+    void commitWithNote(LocalBatch batch, int noteIndex) {
+        ContentProviderOperation.Builder builder = newInsert();
+        builder.withValueBackReference(DataColumns.NOTE_ID, noteIndex);
+        addInsert(batch, builder);
+
+        mDiffDataValues.clear();
+        mIsCreate = false;
+    }
+
+    private ContentProviderOperation.Builder newInsert() {
+        if (mDataId == INVALID_ID && mDiffDataValues.containsKey(DataColumns.ID)) {
+            mDiffDataValues.remove(DataColumns.ID);
+        }
+        return ContentProviderOperation.newInsert(Notes.CONTENT_DATA_URI)
+                .withValues(mDiffDataValues);
+    }
+
+    private void addInsert(LocalBatch batch, ContentProviderOperation.Builder builder) {
+        final int index = batch.add(builder.build());
+        batch.addHandler(new LocalBatch.ResultHandler() {
+            public void onApplied(ContentProviderResult[] results) {
+                mDataId = ContentUris.parseId(results[index].uri);
+            }
+        });
+    }
+
     /**
      * 获取数据ID
      * @return 数据ID
@@ -240,4 +260,44 @@ public class SqlData {
     public long getId() {
         return mDataId;
     }
+
+    /**
+     * 获取数据MIME类型
+     * @return MIME类型
+     */
+    String getMimeType() {
+        return mDataMimeType;
+    }
+
+    /**
+     * 获取数据内容
+     * @return 数据内容
+     */
+    String getDataContent() {
+        return mDataContent;
+    }
+
+    /**
+     * 待办事项是否已完成，只对待办事项的数据行有意义
+     * @return 已完成返回true
+     */
+    boolean isChecked() {
+        return mDataContentData1 != 0;
+    }
+
+    /**
+     * 数据内容是否有尚未写入的修改
+     * @return 有修改返回true
+     */
+    boolean isContentChanged() {
+        return mDiffDataValues.containsKey(DataColumns.CONTENT);
+    }
+
+    /**
+     * 设置文本数据的存储方式，随下次提交写入
+     * @param storage {@link TextNote#STORAGE_TEXT}或{@link TextNote#STORAGE_ITEMS}
+     */
+    void setStorage(int storage) {
+        mDiffDataValues.put(TextNote.STORAGE, storage);
+    }
 }
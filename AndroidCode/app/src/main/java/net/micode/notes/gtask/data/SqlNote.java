@@ -17,17 +17,24 @@
 package net.micode.notes.gtask.data;
 
 import android.appwidget.AppWidgetManager;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
-import android.net.Uri;
 import android.util.Log;
 
+import net.micode.notes.data.NoteWithDataCursor;
 import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.CheckItem;
 import net.micode.notes.data.Notes.DataColumns;
+import net.micode.notes.data.Notes.DataConstants;
 import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.Notes.TextNote;
 import net.micode.notes.gtask.exception.ActionFailureException;
+import net.micode.notes.model.CheckList;
 import net.micode.notes.tool.GTaskStringUtils;
 import net.micode.notes.tool.ResourceParser;
 
@@ -205,6 +212,27 @@ public class SqlNote {
         mDiffNoteValues = new ContentValues();
     }
 
+    /**
+     * 构造函数，从游标和已经查询的数据内容创建笔记对象，由{@link SqlNoteLoader}批量加载时使用
+     * @param context 上下文对象
+     * @param c 数据库游标
+     * @param dataList 笔记的数据内容，文件夹忽略
+     */
+    SqlNote(Context context, Cursor c, ArrayList<SqlData> dataList) {
+        mContext = context;
+        mContentResolver = context.getContentResolver();
+        mIsCreate = false;
+        loadFromCursor(c);
+        mDataList = new ArrayList<SqlData>();
+        if (mType == Notes.TYPE_NOTE) {
+            mDataList.addAll(dataList);
+            if (mDataList.isEmpty()) {
+                Log.w(TAG, "it seems that the note has not data");
+            }
+        }
+        mDiffNoteValues = new ContentValues();
+    }
+
     /**
      * 构造函数，通过ID加载笔记对象
      * @param context 上下文对象
@@ -214,29 +242,40 @@ public class SqlNote {
         mContext = context;
         mContentResolver = context.getContentResolver();
         mIsCreate = false;
-        loadFromCursor(id);
         mDataList = new ArrayList<SqlData>();
-        if (mType == Notes.TYPE_NOTE)
-            loadDataContent();
+        loadFromId(id);
         mDiffNoteValues = new ContentValues();
     }
 
     /**
-     * 通过ID从数据库加载笔记数据
+     * 通过ID用一次联合查询从数据库加载笔记及其关联数据内容
      * @param id 笔记ID
      */
-    private void loadFromCursor(long id) {
-        Cursor c = null;
+    private void loadFromId(long id) {
+        NoteWithDataCursor c = null;
+        mDataList.clear();
         try {
-            c = mContentResolver.query(Notes.CONTENT_NOTE_URI, PROJECTION_NOTE, "(_id=?)",
-                    new String[] {
-                        String.valueOf(id)
-                    }, null);
+            // 待办事项按排序键读出，按顺序生成清单的文本
+            c = NoteWithDataCursor.query(mContentResolver, id, PROJECTION_NOTE,
+                    SqlData.PROJECTION_DATA, CheckItem.ORDER);
             if (c != null) {
-                c.moveToNext();
+                if (!c.moveToFirst()) {
+                    Log.w(TAG, "loadFromId: no note with id " + id);
+                    return;
+                }
                 loadFromCursor(c);
+                if (mType != Notes.TYPE_NOTE)
+                    return;
+                do {
+                    if (c.hasData()) {
+                        mDataList.add(new SqlData(mContext, c.getDataView()));
+                    }
+                } while (c.moveToNext());
+                if (mDataList.isEmpty()) {
+                    Log.w(TAG, "it seems that the note has not data");
+                }
             } else {
-                Log.w(TAG, "loadFromCursor: cursor = null");
+                Log.w(TAG, "loadFromId: cursor = null");
             }
         } finally {
             if (c != null)
@@ -273,7 +312,7 @@ public class SqlNote {
             c = mContentResolver.query(Notes.CONTENT_DATA_URI, SqlData.PROJECTION_DATA,
                     "(note_id=?)", new String[] {
                         String.valueOf(mId)
-                    }, null);
+                    }, CheckItem.ORDER);
             if (c != null) {
                 if (c.getCount() == 0) {
                     Log.w(TAG, "it seems that the note has not data");
@@ -421,6 +460,16 @@ public class SqlNote {
 
                     sqlData.setContent(data);
                 }
+
+                // 改写结构化清单的文本行时把存储方式标为文本，打开笔记时按文本行调整列表项
+                if (getCheckListContent() != null) {
+                    for (SqlData sqlData : mDataList) {
+                        if (DataConstants.NOTE.equals(sqlData.getMimeType())
+                                && sqlData.isContentChanged()) {
+                            sqlData.setStorage(TextNote.STORAGE_TEXT);
+                        }
+                    }
+                }
             }
         } catch (JSONException e) {
             Log.e(TAG, e.toString());
@@ -460,9 +509,15 @@ public class SqlNote {
                 js.put(GTaskStringUtils.META_HEAD_NOTE, note);
 
                 JSONArray dataArray = new JSONArray();
+                String checkListContent = getCheckListContent();
                 for (SqlData sqlData : mDataList) {
                     JSONObject data = sqlData.getContent();
                     if (data != null) {
+                        // 勾选和移动只写列表项的行，文本行可能不是最新的，交换格式按列表项生成
+                        if (checkListContent != null
+                                && DataConstants.NOTE.equals(sqlData.getMimeType())) {
+                            data.put(DataColumns.CONTENT, checkListContent);
+                        }
                         dataArray.put(data);
                     }
                 }
@@ -546,6 +601,23 @@ public class SqlNote {
         return mType == Notes.TYPE_NOTE;
     }
 
+    /**
+     * 按待办事项的数据行生成带前缀标记的清单文本
+     * @return 清单文本，笔记没有待办事项的数据行时返回null
+     */
+    private String getCheckListContent() {
+        CheckList list = null;
+        for (SqlData sqlData : mDataList) {
+            if (DataConstants.CHECK_ITEM.equals(sqlData.getMimeType())) {
+                if (list == null) {
+                    list = new CheckList();
+                }
+                list.addSaved(sqlData.getId(), sqlData.getDataContent(), sqlData.isChecked(), 0);
+            }
+        }
+        return list == null ? null : list.getContent();
+    }
+
     /**
      * 提交笔记到数据库，创建或更新记录
      * @param validateVersion 是否验证版本号
@@ -553,25 +625,34 @@ public class SqlNote {
      * @throws IllegalStateException 更新无效ID时抛出
      */
     public void commit(boolean validateVersion) {
+        LocalBatch batch = new LocalBatch(mContentResolver);
+        commit(validateVersion, batch);
+        batch.apply();
+    }
+
+    /**
+     * 把笔记的创建或更新加入批量操作，新笔记的ID在批次执行后设置
+     * @param validateVersion 是否验证版本号
+     * @param batch 批量操作
+     * @throws IllegalStateException 更新无效ID时抛出
+     */
+    public void commit(boolean validateVersion, LocalBatch batch) {
         if (mIsCreate) {
             if (mId == INVALID_ID && mDiffNoteValues.containsKey(NoteColumns.ID)) {
                 mDiffNoteValues.remove(NoteColumns.ID);
             }
 
-            Uri uri = mContentResolver.insert(Notes.CONTENT_NOTE_URI, mDiffNoteValues);
-            try {
-                mId = Long.valueOf(uri.getPathSegments().get(1));
-            } catch (NumberFormatException e) {
-                Log.e(TAG, "Get note id error :" + e.toString());
-                throw new ActionFailureException("create note failed");
-            }
-            if (mId == 0) {
-                throw new IllegalStateException("Create thread id failed");
-            }
-
+            // 笔记行和数据行在同一个批次中创建，数据行通过反向引用得到笔记ID
+            final int noteIndex = batch.add(ContentProviderOperation
+                    .newInsert(Notes.CONTENT_NOTE_URI).withValues(mDiffNoteValues).build());
+            batch.addHandler(new LocalBatch.ResultHandler() {
+                public void onApplied(ContentProviderResult[] results) {
+                    mId = ContentUris.parseId(results[noteIndex].uri);
+                }
+            });
             if (mType == Notes.TYPE_NOTE) {
                 for (SqlData sqlData : mDataList) {
-                    sqlData.commit(mId, false, -1);
+                    sqlData.commitWithNote(batch, noteIndex);
                 }
             }
         } else {
@@ -581,35 +662,43 @@ public class SqlNote {
             }
             if (mDiffNoteValues.size() > 0) {
                 mVersion ++;
-                int result = 0;
+                ContentProviderOperation.Builder builder = ContentProviderOperation
+                        .newUpdate(Notes.CONTENT_NOTE_URI).withValues(mDiffNoteValues);
                 if (!validateVersion) {
-                    result = mContentResolver.update(Notes.CONTENT_NOTE_URI, mDiffNoteValues, "("
-                            + NoteColumns.ID + "=?)", new String[] {
+                    builder.withSelection("(" + NoteColumns.ID + "=?)", new String[] {
                         String.valueOf(mId)
                     });
                 } else {
-                    result = mContentResolver.update(Notes.CONTENT_NOTE_URI, mDiffNoteValues, "("
-                            + NoteColumns.ID + "=?) AND (" + NoteColumns.VERSION + "<=?)",
-                            new String[] {
+                    builder.withSelection("(" + NoteColumns.ID + "=?) AND ("
+                            + NoteColumns.VERSION + "<=?)", new String[] {
                                     String.valueOf(mId), String.valueOf(mVersion)
                             });
                 }
-                if (result == 0) {
-                    Log.w(TAG, "there is no update. maybe user updates note when syncing");
-                }
+                final int index = batch.add(builder.build());
+                batch.addHandler(new LocalBatch.ResultHandler() {
+                    public void onApplied(ContentProviderResult[] results) {
+                        if (results[index].count == 0) {
+                            Log.w(TAG, "there is no update. maybe user updates note when syncing");
+                        }
+                    }
+                });
             }
 
             if (mType == Notes.TYPE_NOTE) {
                 for (SqlData sqlData : mDataList) {
-                    sqlData.commit(mId, validateVersion, mVersion);
+                    sqlData.commit(batch, mId, validateVersion, mVersion);
                 }
             }
         }
 
-        // refresh local info
-        loadFromCursor(mId);
-        if (mType == Notes.TYPE_NOTE)
-            loadDataContent();
+        // 内存中的状态就是刚写入的内容，不再重新查询；摘要由数据库触发器根据笔记内容生成，这里同步更新
+        if (mType == Notes.TYPE_NOTE) {
+            for (SqlData sqlData : mDataList) {
+                if (DataConstants.NOTE.equals(sqlData.getMimeType())) {
+                    mSnippet = sqlData.getDataContent();
+                }
+            }
+        }
 
         mDiffNoteValues.clear();
         mIsCreate = false;
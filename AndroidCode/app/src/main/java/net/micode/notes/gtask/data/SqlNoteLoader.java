@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.util.Log;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.DataColumns;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * 按批加载同步中的本地笔记
+ * 笔记行来自同步时遍历的游标，数据行按游标中连续的一批笔记一次查询，
+ * 避免每条笔记单独查询一次数据表。只有需要创建SqlNote时才查询当前这一批
+ */
+public class SqlNoteLoader {
+    private static final String TAG = SqlNoteLoader.class.getSimpleName();
+
+    // 每次查询数据行的笔记数，不超过SQLite参数个数的限制
+    private static final int BATCH_SIZE = 200;
+
+    // 数据行查询投影，最后一列为所属笔记ID
+    private static final String[] PROJECTION_DATA_WITH_NOTE;
+
+    static {
+        int count = SqlData.PROJECTION_DATA.length;
+        PROJECTION_DATA_WITH_NOTE = new String[count + 1];
+        System.arraycopy(SqlData.PROJECTION_DATA, 0, PROJECTION_DATA_WITH_NOTE, 0, count);
+        PROJECTION_DATA_WITH_NOTE[count] = DataColumns.NOTE_ID;
+    }
+
+    // 上下文对象
+    private final Context mContext;
+
+    // 同步遍历的笔记游标，投影为SqlNote.PROJECTION_NOTE
+    private final Cursor mCursor;
+
+    // 已加载批次在游标中的起止位置，不包含结束位置
+    private int mBatchStart;
+    private int mBatchEnd;
+
+    // 已加载批次中笔记ID到数据行的映射
+    private final HashMap<Long, ArrayList<SqlData>> mDataByNote;
+
+    /**
+     * @param context 上下文对象
+     * @param c 笔记游标，投影为{@link SqlNote#PROJECTION_NOTE}
+     */
+    public SqlNoteLoader(Context context, Cursor c) {
+        mContext = context;
+        mCursor = c;
+        mBatchStart = -1;
+        mBatchEnd = -1;
+        mDataByNote = new HashMap<Long, ArrayList<SqlData>>();
+    }
+
+    /**
+     * 判断游标是否由此加载器加载
+     */
+    public boolean isFor(Cursor c) {
+        return c == mCursor;
+    }
+
+    /**
+     * 加载游标当前行的笔记，当前行不在已加载的批次中时查询从当前行开始的一批数据行
+     * @return 笔记对象
+     */
+    public SqlNote load() {
+        int position = mCursor.getPosition();
+        if (position < mBatchStart || position >= mBatchEnd) {
+            loadBatch(position);
+        }
+        ArrayList<SqlData> dataList = mDataByNote.get(mCursor.getLong(SqlNote.ID_COLUMN));
+        return new SqlNote(mContext, mCursor,
+                dataList != null ? dataList : new ArrayList<SqlData>());
+    }
+
+    private void loadBatch(int start) {
+        mDataByNote.clear();
+        mBatchStart = start;
+        mBatchEnd = Math.min(start + BATCH_SIZE, mCursor.getCount());
+
+        // 收集这一批中笔记类型的ID，文件夹没有数据行
+        StringBuilder selection = new StringBuilder(DataColumns.NOTE_ID + " IN (");
+        ArrayList<String> args = new ArrayList<String>();
+        for (int i = mBatchStart; i < mBatchEnd; i++) {
+            mCursor.moveToPosition(i);
+            if (mCursor.getInt(SqlNote.TYPE_COLUMN) == Notes.TYPE_NOTE) {
+                selection.append(args.isEmpty() ? "?" : ",?");
+                args.add(String.valueOf(mCursor.getLong(SqlNote.ID_COLUMN)));
+            }
+        }
+        mCursor.moveToPosition(start);
+        if (args.isEmpty()) {
+            return;
+        }
+        selection.append(')');
+
+        Cursor c = mContext.getContentResolver().query(Notes.CONTENT_DATA_URI,
+                PROJECTION_DATA_WITH_NOTE, selection.toString(),
+                args.toArray(new String[args.size()]), null);
+        if (c == null) {
+            Log.w(TAG, "loadBatch: cursor = null");
+            return;
+        }
+        try {
+            int noteIdColumn = SqlData.PROJECTION_DATA.length;
+            while (c.moveToNext()) {
+                long noteId = c.getLong(noteIdColumn);
+                ArrayList<SqlData> dataList = mDataByNote.get(noteId);
+                if (dataList == null) {
+                    dataList = new ArrayList<SqlData>();
+                    mDataByNote.put(noteId, dataList);
+                }
+                dataList.add(new SqlData(mContext, c));
+            }
+        } finally {
+            c.close();
+        }
+    }
+}
@@ -383,6 +383,19 @@ public class Task extends Node {
         this.mNotes = notes;
     }
 
+    /**
+     * 设置任务的GID，任务在列表中时同时更新列表的GID索引
+     * @param gid 新的GID
+     */
+    @Override
+    public void setGid(String gid) {
+        String oldGid = getGid();
+        super.setGid(gid);
+        if (mParent != null) {
+            mParent.onChildGidChanged(this, oldGid);
+        }
+    }
+
     /**
      * 设置前一个兄弟任务
      * @param priorSibling 前一个兄弟任务
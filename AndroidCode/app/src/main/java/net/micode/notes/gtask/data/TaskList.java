@@ -28,12 +28,14 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 
 
 /**
  * 表示Google Tasks中的任务列表，继承自Node类
  * 用于管理任务列表的属性和操作，包括创建、更新、同步等功能
- * 同时管理列表中的任务项
+ * 同时管理列表中的任务项。子任务按位置保存在TaskSequence中，取位置和按位置增删都是O(log n)，
+ * 另有GID到子任务的索引，按GID查找不再遍历列表
  */
 public class TaskList extends Node {
     // 日志标签
@@ -43,14 +45,18 @@ public class TaskList extends Node {
     private int mIndex;
 
     // 任务列表中的子任务集合
-    private ArrayList<Task> mChildren;
+    private TaskSequence mChildren;
+
+    // GID到子任务的索引，子任务的GID变化时由子任务通知更新
+    private HashMap<String, Task> mGidIndex;
 
     /**
      * 构造函数，初始化任务列表对象
      */
     public TaskList() {
         super();
-        mChildren = new ArrayList<Task>();
+        mChildren = new TaskSequence();
+        mGidIndex = new HashMap<String, Task>();
         mIndex = 1;
     }
 
@@ -273,13 +279,13 @@ public class TaskList extends Node {
     public boolean addChildTask(Task task) {
         boolean ret = false;
         if (task != null && !mChildren.contains(task)) {
-            ret = mChildren.add(task);
-            if (ret) {
-                // need to set prior sibling and parent
-                task.setPriorSibling(mChildren.isEmpty() ? null : mChildren
-                        .get(mChildren.size() - 1));
-                task.setParent(this);
-            }
+            int index = mChildren.size();
+            mChildren.add(index, task);
+            ret = true;
+            // need to set prior sibling and parent
+            task.setPriorSibling(index == 0 ? null : mChildren.get(index - 1));
+            task.setParent(this);
+            indexChild(task);
         }
         return ret;
     }
@@ -296,9 +302,10 @@ public class TaskList extends Node {
             return false;
         }
 
-        int pos = mChildren.indexOf(task);
-        if (task != null && pos == -1) {
+        if (task != null && !mChildren.contains(task)) {
             mChildren.add(index, task);
+            task.setParent(this);
+            indexChild(task);
 
             // update the task list
             Task preTask = null;
@@ -323,20 +330,19 @@ public class TaskList extends Node {
      */
     public boolean removeChildTask(Task task) {
         boolean ret = false;
-        int index = mChildren.indexOf(task);
+        int index = mChildren.remove(task);
         if (index != -1) {
-            ret = mChildren.remove(task);
+            unindexChild(task);
+            ret = true;
 
-            if (ret) {
-                // reset prior sibling and parent
-                task.setPriorSibling(null);
-                task.setParent(null);
+            // reset prior sibling and parent
+            task.setPriorSibling(null);
+            task.setParent(null);
 
-                // update the task list
-                if (index != mChildren.size()) {
-                    mChildren.get(index).setPriorSibling(
-                            index == 0 ? null : mChildren.get(index - 1));
-                }
+            // update the task list
+            if (index != mChildren.size()) {
+                mChildren.get(index).setPriorSibling(
+                        index == 0 ? null : mChildren.get(index - 1));
             }
         }
         return ret;
@@ -355,7 +361,7 @@ public class TaskList extends Node {
             return false;
         }
 
-        int pos = mChildren.indexOf(task);
+        int pos = getChildTaskIndex(task);
         if (pos == -1) {
             Log.e(TAG, "move child task: the task should in the list");
             return false;
@@ -372,19 +378,13 @@ public class TaskList extends Node {
      * @return 找到的任务，若未找到则返回null
      */
     public Task findChildTaskByGid(String gid) {
-        for (int i = 0; i < mChildren.size(); i++) {
-            Task t = mChildren.get(i);
-            if (t.getGid().equals(gid)) {
-                return t;
-            }
-        }
-        return null;
+        return gid == null ? null : mGidIndex.get(gid);
     }
 
     /**
      * 获取子任务在列表中的索引位置
      * @param task 子任务对象
-     * @return 子任务的索引位置
+     * @return 子任务的索引位置，不在列表中时返回-1
      */
     public int getChildTaskIndex(Task task) {
         return mChildren.indexOf(task);
@@ -409,19 +409,44 @@ public class TaskList extends Node {
      * @return 找到的任务，若未找到则返回null
      */
     public Task getChilTaskByGid(String gid) {
-        for (Task task : mChildren) {
-            if (task.getGid().equals(gid))
-                return task;
+        return findChildTaskByGid(gid);
+    }
+
+    /**
+     * 子任务的GID变化后更新GID索引，由子任务调用
+     * @param task GID已经变化的子任务
+     * @param oldGid 原来的GID
+     */
+    void onChildGidChanged(Task task, String oldGid) {
+        if (!mChildren.contains(task)) {
+            return;
+        }
+        if (oldGid != null && mGidIndex.get(oldGid) == task) {
+            mGidIndex.remove(oldGid);
+        }
+        if (task.getGid() != null) {
+            mGidIndex.put(task.getGid(), task);
+        }
+    }
+
+    private void indexChild(Task task) {
+        if (task.getGid() != null) {
+            mGidIndex.put(task.getGid(), task);
+        }
+    }
+
+    private void unindexChild(Task task) {
+        if (task.getGid() != null && mGidIndex.get(task.getGid()) == task) {
+            mGidIndex.remove(task.getGid());
         }
-        return null;
     }
 
     /**
      * 获取所有子任务的列表
-     * @return 子任务列表
+     * @return 按位置排列的子任务列表的副本，修改它不影响任务列表
      */
     public ArrayList<Task> getChildTaskList() {
-        return this.mChildren;
+        return mChildren.toList();
     }
 
     /**
@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.data;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Random;
+
+/**
+ * 任务列表中按位置排列的子任务
+ * 用以子树大小为隐式键的Treap保存，节点记录父节点，按位置插入、移除，
+ * 按位置取任务和取任务的位置都是O(log n)，中间位置的变化不需要给后面的任务重新编号
+ */
+class TaskSequence {
+    /**
+     * 树中的一个节点
+     */
+    private static class Entry {
+        final Task task;
+
+        // 随机优先级，父节点的优先级不小于子节点
+        final int priority;
+
+        // 以该节点为根的子树中的节点数
+        int size;
+
+        Entry left;
+
+        Entry right;
+
+        Entry parent;
+
+        Entry(Task task, int priority) {
+            this.task = task;
+            this.priority = priority;
+            this.size = 1;
+        }
+    }
+
+    // 根节点
+    private Entry mRoot;
+
+    // 任务到节点的索引
+    private final IdentityHashMap<Task, Entry> mEntries;
+
+    // 节点优先级的随机数来源
+    private final Random mRandom;
+
+    // split的两个结果，避免每次分割都分配对象
+    private Entry mSplitLeft;
+
+    private Entry mSplitRight;
+
+    TaskSequence() {
+        mRoot = null;
+        mEntries = new IdentityHashMap<Task, Entry>();
+        mRandom = new Random();
+    }
+
+    int size() {
+        return size(mRoot);
+    }
+
+    boolean contains(Task task) {
+        return mEntries.containsKey(task);
+    }
+
+    /**
+     * @param index 位置，调用者保证在0到size()-1之间
+     * @return 该位置上的任务
+     */
+    Task get(int index) {
+        Entry entry = mRoot;
+        while (true) {
+            int leftSize = size(entry.left);
+            if (index < leftSize) {
+                entry = entry.left;
+            } else if (index > leftSize) {
+                index -= leftSize + 1;
+                entry = entry.right;
+            } else {
+                return entry.task;
+            }
+        }
+    }
+
+    /**
+     * @return 任务的位置，不在序列中时返回-1
+     */
+    int indexOf(Task task) {
+        Entry entry = mEntries.get(task);
+        if (entry == null) {
+            return -1;
+        }
+        int index = size(entry.left);
+        while (entry.parent != null) {
+            if (entry == entry.parent.right) {
+                index += size(entry.parent.left) + 1;
+            }
+            entry = entry.parent;
+        }
+        return index;
+    }
+
+    /**
+     * 在指定位置插入任务
+     * @param index 位置，调用者保证在0到size()之间
+     * @param task 不在序列中的任务
+     */
+    void add(int index, Task task) {
+        Entry entry = new Entry(task, mRandom.nextInt());
+        mEntries.put(task, entry);
+        split(mRoot, index);
+        Entry right = mSplitRight;
+        mRoot = merge(merge(mSplitLeft, entry), right);
+        mRoot.parent = null;
+    }
+
+    /**
+     * 移除任务
+     * @return 任务原来的位置，不在序列中时返回-1
+     */
+    int remove(Task task) {
+        int index = indexOf(task);
+        if (index == -1) {
+            return -1;
+        }
+        mEntries.remove(task);
+        split(mRoot, index);
+        Entry left = mSplitLeft;
+        split(mSplitRight, 1);
+        mRoot = merge(left, mSplitRight);
+        if (mRoot != null) {
+            mRoot.parent = null;
+        }
+        return index;
+    }
+
+    /**
+     * @return 按位置排列的任务的副本
+     */
+    ArrayList<Task> toList() {
+        ArrayList<Task> list = new ArrayList<Task>(size());
+        appendTo(mRoot, list);
+        return list;
+    }
+
+    private static void appendTo(Entry entry, ArrayList<Task> list) {
+        while (entry != null) {
+            appendTo(entry.left, list);
+            list.add(entry.task);
+            entry = entry.right;
+        }
+    }
+
+    /**
+     * 把子树分成前count个节点和其余节点，结果放在mSplitLeft和mSplitRight，两个根的父节点置空
+     */
+    private void split(Entry entry, int count) {
+        splitTree(entry, count);
+        if (mSplitLeft != null) {
+            mSplitLeft.parent = null;
+        }
+        if (mSplitRight != null) {
+            mSplitRight.parent = null;
+        }
+    }
+
+    private void splitTree(Entry entry, int count) {
+        if (entry == null) {
+            mSplitLeft = null;
+            mSplitRight = null;
+            return;
+        }
+        int leftSize = size(entry.left);
+        if (count <= leftSize) {
+            splitTree(entry.left, count);
+            entry.left = mSplitRight;
+            update(entry);
+            mSplitRight = entry;
+        } else {
+            splitTree(entry.right, count - leftSize - 1);
+            entry.right = mSplitLeft;
+            update(entry);
+            mSplitLeft = entry;
+        }
+    }
+
+    /**
+     * 合并两棵子树，left中的节点都排在right之前
+     */
+    private static Entry merge(Entry left, Entry right) {
+        if (left == null) {
+            return right;
+        }
+        if (right == null) {
+            return left;
+        }
+        if (left.priority > right.priority) {
+            left.right = merge(left.right, right);
+            update(left);
+            return left;
+        } else {
+            right.left = merge(left, right.left);
+            update(right);
+            return right;
+        }
+    }
+
+    private static void update(Entry entry) {
+        entry.size = 1 + size(entry.left) + size(entry.right);
+        if (entry.left != null) {
+            entry.left.parent = entry;
+        }
+        if (entry.right != null) {
+            entry.right.parent = entry;
+        }
+    }
+
+    private static int size(Entry entry) {
+        return entry == null ? 0 : entry.size;
+    }
+}
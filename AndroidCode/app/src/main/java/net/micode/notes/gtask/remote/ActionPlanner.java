@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.util.Log;
+
+import net.micode.notes.gtask.data.Node;
+import net.micode.notes.gtask.exception.ActionFailureException;
+import net.micode.notes.tool.GTaskStringUtils;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * 远程操作的批量计划
+ * 创建、移动、删除和更新操作按提交顺序放入同一个action_list，一次请求发送。
+ * 新建的节点在服务器返回之前使用临时ID，返回后换成new_id，之后的操作中引用的临时ID
+ * 在加入批次时替换。操作引用了同一批次中尚未创建的节点时先发送当前批次；
+ * 只引用前一个兄弟节点的创建操作仍然放在同一批次，按index排序
+ */
+class ActionPlanner {
+    private static final String TAG = ActionPlanner.class.getSimpleName();
+
+    // 临时ID的前缀
+    private static final String TEMP_ID_PREFIX = "temp_";
+
+    // 操作中引用其他节点的字段
+    private static final String[] REFERENCE_KEYS = {
+            GTaskStringUtils.GTASK_JSON_ID,
+            GTaskStringUtils.GTASK_JSON_PARENT_ID,
+            GTaskStringUtils.GTASK_JSON_LIST_ID,
+            GTaskStringUtils.GTASK_JSON_PRIOR_SIBLING_ID,
+            GTaskStringUtils.GTASK_JSON_SOURCE_LIST,
+            GTaskStringUtils.GTASK_JSON_DEST_PARENT,
+            GTaskStringUtils.GTASK_JSON_DEST_LIST
+    };
+
+    /**
+     * 批次中的一个操作
+     */
+    static class Entry {
+        // 操作的JSON对象
+        final JSONObject action;
+
+        // 创建操作新建的节点，其他操作为null
+        final Node node;
+
+        // 创建完成后的回调，可以为null
+        final GTaskClient.OnCreatedListener listener;
+
+        Entry(JSONObject action, Node node, GTaskClient.OnCreatedListener listener) {
+            this.action = action;
+            this.node = node;
+            this.listener = listener;
+        }
+    }
+
+    // 每批最多的操作数
+    private final int mMaxActions;
+
+    // 当前批次中的操作
+    private ArrayList<Entry> mEntries;
+
+    // 当前批次中尚未创建的节点，临时ID到操作
+    private final HashMap<String, Entry> mPendingCreates;
+
+    // 已创建节点的临时ID到服务器ID
+    private final HashMap<String, String> mResolvedIds;
+
+    ActionPlanner(int maxActions) {
+        mMaxActions = maxActions;
+        mEntries = new ArrayList<Entry>();
+        mPendingCreates = new HashMap<String, Entry>();
+        mResolvedIds = new HashMap<String, String>();
+    }
+
+    /**
+     * 准备加入当前批次的操作，替换其中已经创建的临时ID
+     * @param action 操作的JSON对象
+     * @return 可以加入当前批次时返回true；批次已满或引用了批次中尚未创建的节点时返回false，
+     *         需要先发送当前批次
+     */
+    boolean prepare(JSONObject action) {
+        if (mEntries.size() >= mMaxActions) {
+            return false;
+        }
+
+        try {
+            boolean create = GTaskStringUtils.GTASK_JSON_ACTION_TYPE_CREATE.equals(
+                    action.optString(GTaskStringUtils.GTASK_JSON_ACTION_TYPE));
+            for (String key : REFERENCE_KEYS) {
+                String id = action.optString(key, null);
+                if (id == null || !id.startsWith(TEMP_ID_PREFIX)) {
+                    continue;
+                }
+                String resolved = mResolvedIds.get(id);
+                if (resolved != null) {
+                    action.put(key, resolved);
+                } else if (!mPendingCreates.containsKey(id)) {
+                    throw new ActionFailureException("unknown temporary id: " + id);
+                } else if (!create || !GTaskStringUtils.GTASK_JSON_PRIOR_SIBLING_ID.equals(key)) {
+                    return false;
+                }
+            }
+
+            // 前一个兄弟节点在同一批次中先创建，位置由index决定
+            if (create) {
+                String sibling = action.optString(GTaskStringUtils.GTASK_JSON_PRIOR_SIBLING_ID,
+                        null);
+                if (sibling != null && mPendingCreates.containsKey(sibling)) {
+                    action.remove(GTaskStringUtils.GTASK_JSON_PRIOR_SIBLING_ID);
+                }
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, e.toString());
+            e.printStackTrace();
+            throw new ActionFailureException("prepare action: handing jsonobject failed");
+        }
+        return true;
+    }
+
+    /**
+     * 将准备好的操作加入当前批次，新建的节点分配临时ID
+     * @param action 已经通过{@link #prepare}的操作
+     * @param node 创建操作新建的节点，其他操作为null
+     * @param listener 创建完成后的回调，可以为null
+     */
+    void add(JSONObject action, Node node, GTaskClient.OnCreatedListener listener) {
+        Entry entry = new Entry(action, node, listener);
+        if (node != null) {
+            String tempId = TEMP_ID_PREFIX
+                    + action.optInt(GTaskStringUtils.GTASK_JSON_ACTION_ID);
+            node.setGid(tempId);
+            mPendingCreates.put(tempId, entry);
+        }
+        mEntries.add(entry);
+    }
+
+    /**
+     * @return 当前批次是否有待发送的操作
+     */
+    boolean hasPending() {
+        return !mEntries.isEmpty();
+    }
+
+    /**
+     * 取出当前批次，之后加入的操作进入新的批次
+     * @return 当前批次中的操作
+     */
+    ArrayList<Entry> takeBatch() {
+        ArrayList<Entry> entries = mEntries;
+        mEntries = new ArrayList<Entry>();
+        return entries;
+    }
+
+    /**
+     * 根据服务器返回的结果设置新建节点的ID
+     * 结果带有action_id时按操作ID对应，否则按操作顺序对应
+     * @param entries 已发送的批次
+     * @param results 服务器返回的结果
+     * @throws ActionFailureException 如果新建的节点没有返回ID
+     */
+    void resolve(ArrayList<Entry> entries, JSONArray results) {
+        HashMap<Integer, JSONObject> resultById = new HashMap<Integer, JSONObject>();
+        if (results != null) {
+            for (int i = 0; i < results.length(); i++) {
+                JSONObject result = results.optJSONObject(i);
+                if (result != null && result.has(GTaskStringUtils.GTASK_JSON_ACTION_ID)) {
+                    resultById.put(result.optInt(GTaskStringUtils.GTASK_JSON_ACTION_ID), result);
+                }
+            }
+        }
+
+        for (int i = 0; i < entries.size(); i++) {
+            Entry entry = entries.get(i);
+            if (entry.node == null) {
+                continue;
+            }
+            JSONObject result = resultById.get(
+                    entry.action.optInt(GTaskStringUtils.GTASK_JSON_ACTION_ID));
+            if (result == null && resultById.isEmpty() && results != null) {
+                result = results.optJSONObject(i);
+            }
+            String newId = result != null
+                    ? result.optString(GTaskStringUtils.GTASK_JSON_NEW_ID, null) : null;
+            if (newId == null) {
+                throw new ActionFailureException("create: no new id for " + entry.node.getName());
+            }
+            String tempId = entry.node.getGid();
+            mPendingCreates.remove(tempId);
+            mResolvedIds.put(tempId, newId);
+            entry.node.setGid(newId);
+        }
+    }
+
+    /**
+     * 清空所有未发送的操作和临时ID
+     */
+    void reset() {
+        mEntries = new ArrayList<Entry>();
+        mPendingCreates.clear();
+        mResolvedIds.clear();
+    }
+}
@@ -32,33 +32,29 @@ import net.micode.notes.gtask.exception.NetworkFailureException;
 import net.micode.notes.tool.GTaskStringUtils;
 import net.micode.notes.ui.NotesPreferenceActivity;
 
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.cookie.Cookie;
-import org.apache.http.impl.client.BasicCookieStore;
-import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.message.BasicNameValuePair;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.HttpConnectionParams;
-import org.apache.http.params.HttpParams;
-import org.apache.http.params.HttpProtocolParams;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.Inflater;
-import java.util.zip.InflaterInputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 
 /**
@@ -79,11 +75,45 @@ public class GTaskClient {
     // Google Tasks POST请求URL
     private static final String GTASK_POST_URL = "https://mail.google.com/tasks/r/ig";
 
+    // 并发下载任务列表的默认线程数
+    private static final int DEFAULT_FETCH_PARALLELISM = 4;
+
+    // 到服务器的最大连接数，也是并发下载线程数的上限
+    private static final int MAX_CONNECTIONS = 8;
+
+    // 一次请求中最多的操作数
+    private static final int MAX_BATCH_ACTIONS = 50;
+
+    // 将响应解析为JSON对象
+    private static final HttpTransport.ResponseReader<JSONObject> OBJECT_READER =
+            new HttpTransport.ResponseReader<JSONObject>() {
+                public JSONObject read(Reader reader) throws IOException, JSONException {
+                    return RemoteJsonParser.readObject(reader);
+                }
+            };
+
+    // 从页面的初始化数据中读取客户端版本
+    private static final HttpTransport.ResponseReader<Object> SETUP_VERSION_READER =
+            new HttpTransport.ResponseReader<Object>() {
+                public Object read(Reader reader) throws IOException, JSONException {
+                    return RemoteJsonParser.readSetupValue(reader, "v");
+                }
+            };
+
+    // 从页面的初始化数据中读取所有任务列表
+    private static final HttpTransport.ResponseReader<Object> SETUP_LISTS_READER =
+            new HttpTransport.ResponseReader<Object>() {
+                public Object read(Reader reader) throws IOException, JSONException {
+                    return RemoteJsonParser.readSetupValue(reader, "t",
+                            GTaskStringUtils.GTASK_JSON_LISTS);
+                }
+            };
+
     // 单例实例
     private static GTaskClient mInstance = null;
 
-    // HTTP客户端实例
-    private DefaultHttpClient mHttpClient;
+    // HTTP传输层，所有请求共用连接池
+    private HttpTransport mTransport;
 
     // 当前使用的GET请求URL
     private String mGetUrl;
@@ -106,15 +136,21 @@ public class GTaskClient {
     // 登录的Google账户
     private Account mAccount;
 
-    // 更新操作的JSON数组
-    private JSONArray mUpdateArray;
+    // 待发送的创建、移动、删除和更新操作
+    private ActionPlanner mPlanner;
+
+    // 并发下载任务列表的线程数
+    private int mFetchParallelism;
+
+    // 下载任务列表的线程池，空闲的线程会退出
+    private ThreadPoolExecutor mFetchExecutor;
 
     /**
      * 私有构造函数
      * 初始化客户端参数
      */
     private GTaskClient() {
-        mHttpClient = null;
+        mTransport = new HttpTransport(MAX_CONNECTIONS);
         mGetUrl = GTASK_GET_URL;
         mPostUrl = GTASK_POST_URL;
         mClientVersion = -1;
@@ -122,7 +158,17 @@ public class GTaskClient {
         mLastLoginTime = 0;
         mActionId = 1;
         mAccount = null;
-        mUpdateArray = null;
+        mPlanner = new ActionPlanner(MAX_BATCH_ACTIONS);
+        mFetchParallelism = DEFAULT_FETCH_PARALLELISM;
+        mFetchExecutor = null;
+    }
+
+    /**
+     * 节点创建完成的回调
+     * 创建操作和其他操作一起批量发送，服务器返回节点ID之后在同步线程上调用
+     */
+    public interface OnCreatedListener {
+        void onCreated(Node node) throws NetworkFailureException;
     }
 
     /**
@@ -136,6 +182,22 @@ public class GTaskClient {
         return mInstance;
     }
 
+    /**
+     * 创建连接到指定服务器、视为已登录的客户端，用于在本地的测试服务器上运行
+     * @param baseUrl 服务器地址，以/结尾，请求发送到其下的"r/ig"
+     * @param clientVersion 请求中的客户端版本
+     * @return 新的客户端实例，不影响单例
+     */
+    static GTaskClient createForServer(String baseUrl, long clientVersion) {
+        GTaskClient client = new GTaskClient();
+        client.mGetUrl = baseUrl + "ig";
+        client.mPostUrl = baseUrl + "r/ig";
+        client.mClientVersion = clientVersion;
+        client.mLoggedin = true;
+        client.mLastLoginTime = System.currentTimeMillis();
+        return client;
+    }
+
     /**
      * 登录Google Tasks
      * 检查是否需要重新登录，处理Google账户认证和Tasks登录
@@ -276,25 +338,16 @@ public class GTaskClient {
      * @return 是否登录成功
      */
     private boolean loginGtask(String authToken) {
-        int timeoutConnection = 10000;
-        int timeoutSocket = 15000;
-        HttpParams httpParameters = new BasicHttpParams();
-        HttpConnectionParams.setConnectionTimeout(httpParameters, timeoutConnection);
-        HttpConnectionParams.setSoTimeout(httpParameters, timeoutSocket);
-        mHttpClient = new DefaultHttpClient(httpParameters);
-        BasicCookieStore localBasicCookieStore = new BasicCookieStore();
-        mHttpClient.setCookieStore(localBasicCookieStore);
-        HttpProtocolParams.setUseExpectContinue(mHttpClient.getParams(), false);
+        // 连接池在登录之间复用，只清除上次登录的Cookie
+        mTransport.getCookieStore().clear();
 
         // 登录Google Tasks
         try {
             String loginUrl = mGetUrl + "?auth=" + authToken;
-            HttpGet httpGet = new HttpGet(loginUrl);
-            HttpResponse response = null;
-            response = mHttpClient.execute(httpGet);
+            Object version = mTransport.execute(new HttpGet(loginUrl), SETUP_VERSION_READER);
 
             // 获取认证Cookie
-            List<Cookie> cookies = mHttpClient.getCookieStore().getCookies();
+            List<Cookie> cookies = mTransport.getCookieStore().getCookies();
             boolean hasAuthCookie = false;
             for (Cookie cookie : cookies) {
                 if (cookie.getName().contains("GTL")) {
@@ -306,17 +359,10 @@ public class GTaskClient {
             }
 
             // 获取客户端版本
-            String resString = getResponseContent(response.getEntity());
-            String jsBegin = "_setup(";
-            String jsEnd = ")}</script>";
-            int begin = resString.indexOf(jsBegin);
-            int end = resString.lastIndexOf(jsEnd);
-            String jsString = null;
-            if (begin != -1 && end != -1 && begin < end) {
-                jsString = resString.substring(begin + jsBegin.length(), end);
+            if (!(version instanceof Number)) {
+                throw new JSONException("No client version in setup");
             }
-            JSONObject js = new JSONObject(jsString);
-            mClientVersion = js.getLong("v");
+            mClientVersion = ((Number) version).longValue();
         } catch (JSONException e) {
             Log.e(TAG, e.toString());
             e.printStackTrace();
@@ -352,52 +398,26 @@ public class GTaskClient {
     }
 
     /**
-     * 获取HTTP响应内容
-     * 处理不同的编码格式（gzip、deflate等）
-     * @param entity HTTP响应实体
-     * @return 响应内容字符串
-     * @throws IOException 如果读取响应内容时发生错误
+     * 发送POST请求
+     * 向Google Tasks服务器发送请求并返回响应
+     * @param js 请求的JSON对象
+     * @return 响应的JSON对象
+     * @throws NetworkFailureException 如果网络请求失败
      */
-    private String getResponseContent(HttpEntity entity) throws IOException {
-        String contentEncoding = null;
-        if (entity.getContentEncoding() != null) {
-            contentEncoding = entity.getContentEncoding().getValue();
-            Log.d(TAG, "encoding: " + contentEncoding);
-        }
-
-        InputStream input = entity.getContent();
-        if (contentEncoding != null && contentEncoding.equalsIgnoreCase("gzip")) {
-            input = new GZIPInputStream(entity.getContent());
-        } else if (contentEncoding != null && contentEncoding.equalsIgnoreCase("deflate")) {
-            Inflater inflater = new Inflater(true);
-            input = new InflaterInputStream(entity.getContent(), inflater);
-        }
-
-        try {
-            InputStreamReader isr = new InputStreamReader(input);
-            BufferedReader br = new BufferedReader(isr);
-            StringBuilder sb = new StringBuilder();
-
-            while (true) {
-                String buff = br.readLine();
-                if (buff == null) {
-                    return sb.toString();
-                }
-                sb = sb.append(buff);
-            }
-        } finally {
-            input.close();
-        }
+    private JSONObject postRequest(JSONObject js) throws NetworkFailureException {
+        return postRequest(js, OBJECT_READER);
     }
 
     /**
      * 发送POST请求
-     * 向Google Tasks服务器发送请求并返回响应
+     * 向Google Tasks服务器发送请求，响应边下载边交给读取器
      * @param js 请求的JSON对象
-     * @return 响应的JSON对象
+     * @param responseReader 响应内容的读取器
+     * @return 读取器返回的结果
      * @throws NetworkFailureException 如果网络请求失败
      */
-    private JSONObject postRequest(JSONObject js) throws NetworkFailureException {
+    private <T> T postRequest(JSONObject js, HttpTransport.ResponseReader<T> responseReader)
+            throws NetworkFailureException {
         if (!mLoggedin) {
             Log.e(TAG, "please login first");
             throw new ActionFailureException("not logged in");
@@ -411,9 +431,7 @@ public class GTaskClient {
             httpPost.setEntity(entity);
 
             // 执行POST请求
-            HttpResponse response = mHttpClient.execute(httpPost);
-            String jsString = getResponseContent(response.getEntity());
-            return new JSONObject(jsString);
+            return mTransport.execute(httpPost, responseReader);
 
         } catch (ClientProtocolException e) {
             Log.e(TAG, e.toString());
@@ -427,6 +445,8 @@ public class GTaskClient {
             Log.e(TAG, e.toString());
             e.printStackTrace();
             throw new ActionFailureException("unable to convert response content to jsonobject");
+        } catch (ActionFailureException e) {
+            throw e;
         } catch (Exception e) {
             Log.e(TAG, e.toString());
             e.printStackTrace();
@@ -436,112 +456,67 @@ public class GTaskClient {
 
     /**
      * 创建任务
-     * 向Google Tasks服务器发送创建任务请求
+     * 创建操作加入待发送的批次，发送之前任务使用临时ID
      * @param task 要创建的任务对象
      * @throws NetworkFailureException 如果网络请求失败
      */
     public void createTask(Task task) throws NetworkFailureException {
-        commitUpdate();
-        try {
-            JSONObject jsPost = new JSONObject();
-            JSONArray actionList = new JSONArray();
-
-            // action_list
-            actionList.put(task.getCreateAction(getActionId()));
-            jsPost.put(GTaskStringUtils.GTASK_JSON_ACTION_LIST, actionList);
-
-            // client_version
-            jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
-
-            // 发送请求
-            JSONObject jsResponse = postRequest(jsPost);
-            JSONObject jsResult = (JSONObject) jsResponse.getJSONArray(
-                    GTaskStringUtils.GTASK_JSON_RESULTS).get(0);
-            task.setGid(jsResult.getString(GTaskStringUtils.GTASK_JSON_NEW_ID));
+        createTask(task, null);
+    }
 
-        } catch (JSONException e) {
-            Log.e(TAG, e.toString());
-            e.printStackTrace();
-            throw new ActionFailureException("create task: handing jsonobject failed");
-        }
+    /**
+     * 创建任务
+     * 创建操作加入待发送的批次，服务器返回任务ID之后调用回调
+     * @param task 要创建的任务对象
+     * @param listener 创建完成后的回调，可以为null
+     * @throws NetworkFailureException 如果网络请求失败
+     */
+    public void createTask(Task task, OnCreatedListener listener) throws NetworkFailureException {
+        addAction(task.getCreateAction(getActionId()), task, listener);
     }
 
     /**
      * 创建任务列表
-     * 向Google Tasks服务器发送创建任务列表请求
+     * 创建操作加入待发送的批次，发送之前任务列表使用临时ID
      * @param tasklist 要创建的任务列表对象
      * @throws NetworkFailureException 如果网络请求失败
      */
     public void createTaskList(TaskList tasklist) throws NetworkFailureException {
-        commitUpdate();
-        try {
-            JSONObject jsPost = new JSONObject();
-            JSONArray actionList = new JSONArray();
-
-            // action_list
-            actionList.put(tasklist.getCreateAction(getActionId()));
-            jsPost.put(GTaskStringUtils.GTASK_JSON_ACTION_LIST, actionList);
-
-            // client_version
-            jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
-
-            // 发送请求
-            JSONObject jsResponse = postRequest(jsPost);
-            JSONObject jsResult = (JSONObject) jsResponse.getJSONArray(
-                    GTaskStringUtils.GTASK_JSON_RESULTS).get(0);
-            tasklist.setGid(jsResult.getString(GTaskStringUtils.GTASK_JSON_NEW_ID));
+        createTaskList(tasklist, null);
+    }
 
-        } catch (JSONException e) {
-            Log.e(TAG, e.toString());
-            e.printStackTrace();
-            throw new ActionFailureException("create tasklist: handing jsonobject failed");
-        }
+    /**
+     * 创建任务列表
+     * 创建操作加入待发送的批次，服务器返回任务列表ID之后调用回调
+     * @param tasklist 要创建的任务列表对象
+     * @param listener 创建完成后的回调，可以为null
+     * @throws NetworkFailureException 如果网络请求失败
+     */
+    public void createTaskList(TaskList tasklist, OnCreatedListener listener)
+            throws NetworkFailureException {
+        addAction(tasklist.getCreateAction(getActionId()), tasklist, listener);
     }
 
     /**
      * 提交更新
-     * 将待更新的操作发送到Google Tasks服务器
+     * 发送所有待发送的操作，创建完成的回调中新加入的操作也一并发送
      * @throws NetworkFailureException 如果网络请求失败
      */
     public void commitUpdate() throws NetworkFailureException {
-        if (mUpdateArray != null) {
-            try {
-                JSONObject jsPost = new JSONObject();
-
-                // action_list
-                jsPost.put(GTaskStringUtils.GTASK_JSON_ACTION_LIST, mUpdateArray);
-
-                // client_version
-                jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
-
-                postRequest(jsPost);
-                mUpdateArray = null;
-            } catch (JSONException e) {
-                Log.e(TAG, e.toString());
-                e.printStackTrace();
-                throw new ActionFailureException("commit update: handing jsonobject failed");
-            }
+        while (mPlanner.hasPending()) {
+            postBatch();
         }
     }
 
     /**
      * 添加更新节点
-     * 将节点的更新操作添加到待更新列表中
-     * 如果待更新列表超过10项，则立即提交更新
+     * 将节点的更新操作添加到待发送的批次中
      * @param node 要更新的节点
      * @throws NetworkFailureException 如果网络请求失败
      */
     public void addUpdateNode(Node node) throws NetworkFailureException {
         if (node != null) {
-            // 过多的更新项可能导致错误
-            // 最大设置为10项
-            if (mUpdateArray != null && mUpdateArray.length() > 10) {
-                commitUpdate();
-            }
-
-            if (mUpdateArray == null)
-                mUpdateArray = new JSONArray();
-            mUpdateArray.put(node.getUpdateAction(getActionId()));
+            addAction(node.getUpdateAction(getActionId()), null, null);
         }
     }
 
@@ -555,10 +530,7 @@ public class GTaskClient {
      */
     public void moveTask(Task task, TaskList preParent, TaskList curParent)
             throws NetworkFailureException {
-        commitUpdate();
         try {
-            JSONObject jsPost = new JSONObject();
-            JSONArray actionList = new JSONArray();
             JSONObject action = new JSONObject();
 
             // action_list
@@ -568,7 +540,8 @@ public class GTaskClient {
             action.put(GTaskStringUtils.GTASK_JSON_ID, task.getGid());
             if (preParent == curParent && task.getPriorSibling() != null) {
                 // 只有在同一任务列表内移动且不是第一个任务时，才设置prior_sibling_id
-                action.put(GTaskStringUtils.GTASK_JSON_PRIOR_SIBLING_ID, task.getPriorSibling());
+                action.put(GTaskStringUtils.GTASK_JSON_PRIOR_SIBLING_ID,
+                        task.getPriorSibling().getGid());
             }
             action.put(GTaskStringUtils.GTASK_JSON_SOURCE_LIST, preParent.getGid());
             action.put(GTaskStringUtils.GTASK_JSON_DEST_PARENT, curParent.getGid());
@@ -576,13 +549,7 @@ public class GTaskClient {
                 // 只有在不同任务列表之间移动时，才设置dest_list
                 action.put(GTaskStringUtils.GTASK_JSON_DEST_LIST, curParent.getGid());
             }
-            actionList.put(action);
-            jsPost.put(GTaskStringUtils.GTASK_JSON_ACTION_LIST, actionList);
-
-            // client_version
-            jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
-
-            postRequest(jsPost);
+            addAction(action, null, null);
 
         } catch (JSONException e) {
             Log.e(TAG, e.toString());
@@ -593,30 +560,67 @@ public class GTaskClient {
 
     /**
      * 删除节点
-     * 将节点标记为已删除并发送到服务器
+     * 将节点标记为已删除，删除操作加入待发送的批次
      * @param node 要删除的节点
      * @throws NetworkFailureException 如果网络请求失败
      */
     public void deleteNode(Node node) throws NetworkFailureException {
-        commitUpdate();
+        node.setDeleted(true);
+        addAction(node.getUpdateAction(getActionId()), null, null);
+    }
+
+    /**
+     * 将操作加入待发送的批次
+     * 批次已满或操作引用了批次中尚未创建的节点时，先发送当前批次
+     * @param action 操作的JSON对象
+     * @param node 创建操作新建的节点，其他操作为null
+     * @param listener 创建完成后的回调，可以为null
+     * @throws NetworkFailureException 如果网络请求失败
+     */
+    private void addAction(JSONObject action, Node node, OnCreatedListener listener)
+            throws NetworkFailureException {
+        while (!mPlanner.prepare(action)) {
+            postBatch();
+        }
+        mPlanner.add(action, node, listener);
+    }
+
+    /**
+     * 发送当前批次的所有操作
+     * 新建节点的ID设置完成后按提交顺序调用创建完成的回调，回调中加入的操作进入下一批次
+     * @throws NetworkFailureException 如果网络请求失败
+     */
+    private void postBatch() throws NetworkFailureException {
+        ArrayList<ActionPlanner.Entry> entries = mPlanner.takeBatch();
+        if (entries.isEmpty()) {
+            return;
+        }
+
         try {
             JSONObject jsPost = new JSONObject();
             JSONArray actionList = new JSONArray();
 
             // action_list
-            node.setDeleted(true);
-            actionList.put(node.getUpdateAction(getActionId()));
+            for (ActionPlanner.Entry entry : entries) {
+                actionList.put(entry.action);
+            }
             jsPost.put(GTaskStringUtils.GTASK_JSON_ACTION_LIST, actionList);
 
             // client_version
             jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
 
-            postRequest(jsPost);
-            mUpdateArray = null;
+            JSONObject jsResponse = postRequest(jsPost);
+            mPlanner.resolve(entries, jsResponse.optJSONArray(GTaskStringUtils.GTASK_JSON_RESULTS));
         } catch (JSONException e) {
             Log.e(TAG, e.toString());
             e.printStackTrace();
-            throw new ActionFailureException("delete node: handing jsonobject failed");
+            throw new ActionFailureException("commit update: handing jsonobject failed");
+        }
+
+        for (ActionPlanner.Entry entry : entries) {
+            if (entry.listener != null) {
+                entry.listener.onCreated(entry.node);
+            }
         }
     }
 
@@ -633,22 +637,12 @@ public class GTaskClient {
         }
 
         try {
-            HttpGet httpGet = new HttpGet(mGetUrl);
-            HttpResponse response = null;
-            response = mHttpClient.execute(httpGet);
-
             // get the task list
-            String resString = getResponseContent(response.getEntity());
-            String jsBegin = "_setup(";
-            String jsEnd = ")}</script>";
-            int begin = resString.indexOf(jsBegin);
-            int end = resString.lastIndexOf(jsEnd);
-            String jsString = null;
-            if (begin != -1 && end != -1 && begin < end) {
-                jsString = resString.substring(begin + jsBegin.length(), end);
+            Object lists = mTransport.execute(new HttpGet(mGetUrl), SETUP_LISTS_READER);
+            if (!(lists instanceof JSONArray)) {
+                throw new JSONException("No task lists in setup");
             }
-            JSONObject js = new JSONObject(jsString);
-            return js.getJSONObject("t").getJSONArray(GTaskStringUtils.GTASK_JSON_LISTS);
+            return (JSONArray) lists;
         } catch (ClientProtocolException e) {
             Log.e(TAG, e.toString());
             e.printStackTrace();
@@ -674,29 +668,205 @@ public class GTaskClient {
     public JSONArray getTaskList(String listGid) throws NetworkFailureException {
         commitUpdate();
         try {
-            JSONObject jsPost = new JSONObject();
-            JSONArray actionList = new JSONArray();
-            JSONObject action = new JSONObject();
+            JSONObject jsResponse = postRequest(createGetTaskListRequest(listGid));
+            return jsResponse.getJSONArray(GTaskStringUtils.GTASK_JSON_TASKS);
+        } catch (JSONException e) {
+            Log.e(TAG, e.toString());
+            e.printStackTrace();
+            throw new ActionFailureException("get task list: handing jsonobject failed");
+        }
+    }
 
-            // action_list
-            action.put(GTaskStringUtils.GTASK_JSON_ACTION_TYPE,
-                    GTaskStringUtils.GTASK_JSON_ACTION_TYPE_GETALL);
-            action.put(GTaskStringUtils.GTASK_JSON_ACTION_ID, getActionId());
-            action.put(GTaskStringUtils.GTASK_JSON_LIST_ID, listGid);
-            action.put(GTaskStringUtils.GTASK_JSON_GET_DELETED, false);
-            actionList.put(action);
-            jsPost.put(GTaskStringUtils.GTASK_JSON_ACTION_LIST, actionList);
+    /**
+     * 并发获取多个任务列表的任务
+     * 请求在当前线程按列表顺序构造，操作ID的分配与逐个获取时相同；
+     * 请求在线程池中并发发送，响应边下载边解析，任务逐个交给对应列表的回调。
+     * 每个回调只在一个线程上调用，不同列表的回调可能同时在不同线程上调用
+     * @param listGids 任务列表的GID
+     * @param handlers 接收任务的回调，与listGids一一对应
+     * @throws NetworkFailureException 如果任一网络请求失败
+     */
+    public void getTaskList(List<String> listGids,
+            List<? extends RemoteJsonParser.TaskHandler> handlers)
+            throws NetworkFailureException {
+        commitUpdate();
+        ArrayList<Future<Void>> futures = new ArrayList<Future<Void>>();
+        HandlerGate gate = new HandlerGate();
+        try {
+            JSONObject[] requests = new JSONObject[listGids.size()];
+            for (int i = 0; i < requests.length; i++) {
+                requests[i] = createGetTaskListRequest(listGids.get(i));
+            }
 
-            // client_version
-            jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
+            if (requests.length == 1 || getFetchParallelism() == 1) {
+                for (int i = 0; i < requests.length; i++) {
+                    postRequest(requests[i], newTasksReader(handlers.get(i)));
+                }
+                return;
+            }
 
-            JSONObject jsResponse = postRequest(jsPost);
-            return jsResponse.getJSONArray(GTaskStringUtils.GTASK_JSON_TASKS);
+            // 按完成的顺序取结果，任一请求失败时立即停止其余的请求
+            ExecutorCompletionService<Void> completion =
+                    new ExecutorCompletionService<Void>(getFetchExecutor());
+            for (int i = 0; i < requests.length; i++) {
+                final JSONObject request = requests[i];
+                final HttpTransport.ResponseReader<Void> reader = newTasksReader(
+                        gate.wrap(handlers.get(i)));
+                futures.add(completion.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        return postRequest(request, reader);
+                    }
+                }));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                completion.take().get();
+            }
         } catch (JSONException e) {
             Log.e(TAG, e.toString());
             e.printStackTrace();
-            throw new ActionFailureException("get task list: handing jsonobject failed");
+            throw new ActionFailureException("get task lists: handing jsonobject failed");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NetworkFailureException("get task lists: interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof NetworkFailureException) {
+                throw (NetworkFailureException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            Log.e(TAG, cause.toString());
+            throw new ActionFailureException("get task lists: " + cause.getMessage());
+        } finally {
+            // 出错时不再等待其余的请求，仍在下载的线程不能再调用回调，
+            // 返回后调用者可以直接结束回调
+            gate.close();
+            for (Future<Void> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * 并发下载时回调的关闭开关
+     * 回调在读锁内调用，关闭时取得写锁，等正在进行的回调结束后才返回，之后的回调直接失败
+     */
+    private static class HandlerGate {
+        private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+
+        // 是否已关闭，在锁内访问
+        private boolean mClosed;
+
+        RemoteJsonParser.TaskHandler wrap(final RemoteJsonParser.TaskHandler handler) {
+            return new RemoteJsonParser.TaskHandler() {
+                public void onTask(JSONObject js) throws JSONException {
+                    mLock.readLock().lock();
+                    try {
+                        if (mClosed) {
+                            throw new JSONException("task list fetch has been closed");
+                        }
+                        handler.onTask(js);
+                    } finally {
+                        mLock.readLock().unlock();
+                    }
+                }
+            };
         }
+
+        void close() {
+            mLock.writeLock().lock();
+            try {
+                mClosed = true;
+            } finally {
+                mLock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * 构造逐个解析响应中任务的读取器
+     * @param handler 接收任务的回调
+     */
+    private static HttpTransport.ResponseReader<Void> newTasksReader(
+            final RemoteJsonParser.TaskHandler handler) {
+        return new HttpTransport.ResponseReader<Void>() {
+            public Void read(Reader reader) throws IOException, JSONException {
+                RemoteJsonParser.readTasks(reader, handler);
+                return null;
+            }
+        };
+    }
+
+    /**
+     * 构造获取任务列表中所有任务的请求
+     * @param listGid 任务列表的GID
+     * @return 请求的JSON对象
+     * @throws JSONException 如果构造JSON失败
+     */
+    private JSONObject createGetTaskListRequest(String listGid) throws JSONException {
+        JSONObject jsPost = new JSONObject();
+        JSONArray actionList = new JSONArray();
+        JSONObject action = new JSONObject();
+
+        // action_list
+        action.put(GTaskStringUtils.GTASK_JSON_ACTION_TYPE,
+                GTaskStringUtils.GTASK_JSON_ACTION_TYPE_GETALL);
+        action.put(GTaskStringUtils.GTASK_JSON_ACTION_ID, getActionId());
+        action.put(GTaskStringUtils.GTASK_JSON_LIST_ID, listGid);
+        action.put(GTaskStringUtils.GTASK_JSON_GET_DELETED, false);
+        actionList.put(action);
+        jsPost.put(GTaskStringUtils.GTASK_JSON_ACTION_LIST, actionList);
+
+        // client_version
+        jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
+        return jsPost;
+    }
+
+    /**
+     * 设置并发下载任务列表的线程数
+     * @param parallelism 线程数，1表示逐个下载，最大为{@link #MAX_CONNECTIONS}
+     * @throws IllegalArgumentException 如果线程数不在允许的范围内
+     */
+    public synchronized void setFetchParallelism(int parallelism) {
+        if (parallelism < 1 || parallelism > MAX_CONNECTIONS) {
+            throw new IllegalArgumentException("Wrong fetch parallelism:" + parallelism);
+        }
+        mFetchParallelism = parallelism;
+        if (mFetchExecutor != null) {
+            mFetchExecutor.shutdown();
+            mFetchExecutor = null;
+        }
+    }
+
+    /**
+     * 获取并发下载任务列表的线程数
+     */
+    public synchronized int getFetchParallelism() {
+        return mFetchParallelism;
+    }
+
+    private synchronized ThreadPoolExecutor getFetchExecutor() {
+        if (mFetchExecutor == null) {
+            mFetchExecutor = new ThreadPoolExecutor(mFetchParallelism, mFetchParallelism,
+                    30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+            mFetchExecutor.allowCoreThreadTimeOut(true);
+        }
+        return mFetchExecutor;
+    }
+
+    /**
+     * 设置每个请求完成后的回调
+     * @param listener 回调，为null时不再回调
+     */
+    public void setTimingListener(HttpTransport.TimingListener listener) {
+        mTransport.setTimingListener(listener);
+    }
+
+    /**
+     * 关闭连接池中空闲的连接
+     */
+    public void closeIdleConnections() {
+        mTransport.closeIdleConnections();
     }
 
     /**
@@ -709,9 +879,9 @@ public class GTaskClient {
 
     /**
      * 重置更新数组
-     * 清空待更新的操作列表
+     * 清空待发送的操作和临时ID
      */
     public void resetUpdateArray() {
-        mUpdateArray = null;
+        mPlanner.reset();
     }
 }
@@ -26,26 +26,35 @@ import android.util.Log;
 
 import net.micode.notes.R;
 import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.ChangeColumns;
 import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.NotesDatabaseHelper.TABLE;
+import net.micode.notes.gtask.data.LocalBatch;
 import net.micode.notes.gtask.data.MetaData;
 import net.micode.notes.gtask.data.Node;
 import net.micode.notes.gtask.data.SqlNote;
+import net.micode.notes.gtask.data.SqlNoteLoader;
 import net.micode.notes.gtask.data.Task;
 import net.micode.notes.gtask.data.TaskList;
 import net.micode.notes.gtask.exception.ActionFailureException;
 import net.micode.notes.gtask.exception.NetworkFailureException;
 import net.micode.notes.tool.DataUtils;
 import net.micode.notes.tool.GTaskStringUtils;
+import net.micode.notes.ui.NotesPreferenceActivity;
 
+import org.apache.http.client.methods.HttpUriRequest;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
@@ -72,6 +81,9 @@ public class GTaskManager {
     // 同步状态：同步已取消
     public static final int STATE_SYNC_CANCELLED = 4;
 
+    // 本地修改或远程修改超过该数量时直接完整同步
+    private static final int MAX_INCREMENTAL_CHANGES = 500;
+
     // 单例实例
     private static GTaskManager mInstance = null;
 
@@ -108,9 +120,39 @@ public class GTaskManager {
     // GID到本地ID的映射表
     private HashMap<String, Long> mGidToNid;
 
+    // 本次同步处理到的本地修改日志序号
+    private long mChangeSeq;
+
+    // 本次同步下载时远程节点的最大修改时间
+    private long mRemoteCheckpoint;
+
+    // 本次同步是否只处理检查点之后的修改
+    private boolean mIncremental;
+
+    // 当前账户的远程任务列表缓存
+    private TaskListCache mTaskListCache;
+
+    // 本次同步的本地写入流水线
+    private LocalApplyQueue mApplyQueue;
+
+    // 同步后需要写入的同步ID，本地ID到远程修改时间
+    private HashMap<Long, Long> mSyncIds;
+
+    // 本次同步在本地写入过的笔记ID，写入触发的修改日志在同步完成后删除
+    private HashSet<Long> mWrittenIds;
+
+    // 推送到服务器、需要重新获取修改时间的节点，GID到本地ID
+    private HashMap<String, Long> mPushedNodes;
+
+    // 内容被本次同步修改过的任务列表
+    private HashSet<String> mDirtyLists;
+
     // 本地ID到GID的映射表
     private HashMap<Long, String> mNidToGid;
 
+    // 正在逐行同步的本地笔记游标的批量加载器
+    private SqlNoteLoader mNoteLoader;
+
     /**
      * 私有构造函数
      * 初始化同步管理器的各个集合和映射表
@@ -125,6 +167,10 @@ public class GTaskManager {
         mLocalDeleteIdMap = new HashSet<Long>();
         mGidToNid = new HashMap<String, Long>();
         mNidToGid = new HashMap<Long, String>();
+        mSyncIds = new HashMap<Long, Long>();
+        mWrittenIds = new HashSet<Long>();
+        mPushedNodes = new HashMap<String, Long>();
+        mDirtyLists = new HashSet<String>();
     }
 
     /**
@@ -164,12 +210,30 @@ public class GTaskManager {
         mContentResolver = mContext.getContentResolver();
         mSyncing = true;
         mCancelled = false;
+        mIncremental = false;
+        mApplyQueue = new LocalApplyQueue(mContentResolver);
+        mApplyQueue.start();
         mGTaskListHashMap.clear();
         mGTaskHashMap.clear();
         mMetaHashMap.clear();
         mLocalDeleteIdMap.clear();
         mGidToNid.clear();
         mNidToGid.clear();
+        mSyncIds.clear();
+        mWrittenIds.clear();
+        mPushedNodes.clear();
+        mDirtyLists.clear();
+
+        // 统计本次同步的请求数和网络耗时，并发下载时在多个线程上回调
+        final AtomicInteger requestCount = new AtomicInteger();
+        final AtomicLong requestTime = new AtomicLong();
+        GTaskClient.getInstance().setTimingListener(new HttpTransport.TimingListener() {
+            public void onRequestFinished(HttpUriRequest request, int statusCode, long elapsed,
+                    long length) {
+                requestCount.incrementAndGet();
+                requestTime.addAndGet(elapsed);
+            }
+        });
 
         try {
             GTaskClient client = GTaskClient.getInstance();
@@ -180,6 +244,7 @@ public class GTaskManager {
                 if (!client.login(mActivity)) {
                     throw new NetworkFailureException("login google task failed");
                 }
+                mTaskListCache = new TaskListCache(mContext, client.getSyncAccount().name);
             }
 
             // get the task list from google
@@ -200,12 +265,21 @@ public class GTaskManager {
             e.printStackTrace();
             return STATE_INTERNAL_ERROR;
         } finally {
+            mApplyQueue.quit();
+            GTaskClient.getInstance().setTimingListener(null);
+            GTaskClient.getInstance().closeIdleConnections();
+            Log.d(TAG, "Sync requests: " + requestCount.get() + ", network time: "
+                    + requestTime.get() + "ms");
             mGTaskListHashMap.clear();
             mGTaskHashMap.clear();
             mMetaHashMap.clear();
             mLocalDeleteIdMap.clear();
             mGidToNid.clear();
             mNidToGid.clear();
+            mSyncIds.clear();
+            mWrittenIds.clear();
+            mPushedNodes.clear();
+            mDirtyLists.clear();
             mSyncing = false;
         }
 
@@ -224,6 +298,9 @@ public class GTaskManager {
         try {
             JSONArray jsTaskLists = client.getTaskLists();
 
+            // 未缓存的列表一次并发下载，之后按服务器返回的列表顺序合并
+            HashMap<String, ArrayList<Task>> tasksByList = loadTaskLists(jsTaskLists);
+
             // init meta list first
             mMetaList = null;
             for (int i = 0; i < jsTaskLists.length(); i++) {
@@ -237,11 +314,8 @@ public class GTaskManager {
                     mMetaList.setContentByRemoteJSON(object);
 
                     // load meta data
-                    JSONArray jsMetas = client.getTaskList(gid);
-                    for (int j = 0; j < jsMetas.length(); j++) {
-                        object = (JSONObject) jsMetas.getJSONObject(j);
-                        MetaData metaData = new MetaData();
-                        metaData.setContentByRemoteJSON(object);
+                    for (Task meta : tasksByList.get(gid)) {
+                        MetaData metaData = (MetaData) meta;
                         if (metaData.isWorthSaving()) {
                             mMetaList.addChildTask(metaData);
                             if (metaData.getGid() != null) {
@@ -258,13 +332,17 @@ public class GTaskManager {
                 mMetaList.setName(GTaskStringUtils.MIUI_FOLDER_PREFFIX
                         + GTaskStringUtils.FOLDER_META);
                 GTaskClient.getInstance().createTaskList(mMetaList);
+                // 之后的元数据都以元数据列表为父节点，立即创建
+                GTaskClient.getInstance().commitUpdate();
             }
 
             // init task list
+            HashSet<String> listGids = new HashSet<String>();
             for (int i = 0; i < jsTaskLists.length(); i++) {
                 JSONObject object = jsTaskLists.getJSONObject(i);
                 String gid = object.getString(GTaskStringUtils.GTASK_JSON_ID);
                 String name = object.getString(GTaskStringUtils.GTASK_JSON_NAME);
+                listGids.add(gid);
 
                 if (name.startsWith(GTaskStringUtils.MIUI_FOLDER_PREFFIX)
                         && !name.equals(GTaskStringUtils.MIUI_FOLDER_PREFFIX
@@ -275,20 +353,22 @@ public class GTaskManager {
                     mGTaskHashMap.put(gid, tasklist);
 
                     // load tasks
-                    JSONArray jsTasks = client.getTaskList(gid);
-                    for (int j = 0; j < jsTasks.length(); j++) {
-                        object = (JSONObject) jsTasks.getJSONObject(j);
-                        gid = object.getString(GTaskStringUtils.GTASK_JSON_ID);
-                        Task task = new Task();
-                        task.setContentByRemoteJSON(object);
+                    for (Task task : tasksByList.get(gid)) {
                         if (task.isWorthSaving()) {
-                            task.setMetaInfo(mMetaHashMap.get(gid));
+                            task.setMetaInfo(mMetaHashMap.get(task.getGid()));
                             tasklist.addChildTask(task);
-                            mGTaskHashMap.put(gid, task);
+                            mGTaskHashMap.put(task.getGid(), task);
                         }
                     }
                 }
             }
+            mTaskListCache.retain(listGids);
+
+            // 检查点取下载时的最大修改时间，本次推送的修改在下次同步时只是一次无需动作的比较
+            mRemoteCheckpoint = 0;
+            for (Node node : mGTaskHashMap.values()) {
+                mRemoteCheckpoint = Math.max(mRemoteCheckpoint, node.getLastModified());
+            }
         } catch (JSONException e) {
             Log.e(TAG, e.toString());
             e.printStackTrace();
@@ -296,63 +376,279 @@ public class GTaskManager {
         }
     }
 
+    /**
+     * 获取所有MIUI任务列表（包括元数据列表）中的任务
+     * 列表的修改时间与上次下载时相同则读取本地缓存，其余的列表并发下载并更新缓存。
+     * 缓存和响应都逐个解析成任务对象，元数据列表中的解析为元数据
+     * @param jsTaskLists 服务器返回的所有任务列表
+     * @return 任务列表的gid到其中所有任务的映射
+     * @throws NetworkFailureException 如果网络请求失败
+     * @throws JSONException 如果任务列表的JSON不完整
+     */
+    private HashMap<String, ArrayList<Task>> loadTaskLists(JSONArray jsTaskLists)
+            throws NetworkFailureException, JSONException {
+        HashMap<String, ArrayList<Task>> tasksByList = new HashMap<String, ArrayList<Task>>();
+        ArrayList<String> downloadGids = new ArrayList<String>();
+        ArrayList<Long> downloadModified = new ArrayList<Long>();
+        ArrayList<Boolean> downloadMeta = new ArrayList<Boolean>();
+        for (int i = 0; i < jsTaskLists.length(); i++) {
+            JSONObject object = jsTaskLists.getJSONObject(i);
+            String gid = object.getString(GTaskStringUtils.GTASK_JSON_ID);
+            String name = object.getString(GTaskStringUtils.GTASK_JSON_NAME);
+            if (!name.startsWith(GTaskStringUtils.MIUI_FOLDER_PREFFIX)) {
+                continue;
+            }
+
+            boolean meta = isMetaList(name);
+            long lastModified = object.optLong(GTaskStringUtils.GTASK_JSON_LAST_MODIFIED, 0);
+            TaskCollector collector = new TaskCollector(meta, null);
+            if (lastModified != 0 && mTaskListCache.read(gid, lastModified, collector)) {
+                tasksByList.put(gid, collector.getTasks());
+            } else {
+                downloadGids.add(gid);
+                downloadModified.add(lastModified);
+                downloadMeta.add(meta);
+            }
+        }
+
+        if (!downloadGids.isEmpty()) {
+            tasksByList.putAll(downloadTaskLists(downloadGids, downloadModified, downloadMeta));
+        }
+        return tasksByList;
+    }
+
+    /**
+     * 并发下载任务列表中的任务，同时写入缓存
+     * @param gids 任务列表的gid
+     * @param lastModified 任务列表的修改时间，为0时不写入缓存
+     * @param meta 是否为元数据列表
+     * @return 任务列表的gid到其中所有任务的映射
+     * @throws NetworkFailureException 如果网络请求失败
+     */
+    private HashMap<String, ArrayList<Task>> downloadTaskLists(ArrayList<String> gids,
+            ArrayList<Long> lastModified, ArrayList<Boolean> meta)
+            throws NetworkFailureException {
+        ArrayList<TaskCollector> collectors = new ArrayList<TaskCollector>();
+        for (int i = 0; i < gids.size(); i++) {
+            TaskListCache.Editor editor = lastModified.get(i) != 0
+                    ? mTaskListCache.edit(gids.get(i), lastModified.get(i)) : null;
+            collectors.add(new TaskCollector(meta.get(i), editor));
+        }
+
+        boolean success = false;
+        try {
+            GTaskClient.getInstance().getTaskList(gids, collectors);
+            success = true;
+        } finally {
+            for (TaskCollector collector : collectors) {
+                collector.finish(success);
+            }
+        }
+
+        HashMap<String, ArrayList<Task>> tasksByList = new HashMap<String, ArrayList<Task>>();
+        for (int i = 0; i < gids.size(); i++) {
+            tasksByList.put(gids.get(i), collectors.get(i).getTasks());
+        }
+        return tasksByList;
+    }
+
+    private static boolean isMetaList(String name) {
+        return name.equals(GTaskStringUtils.MIUI_FOLDER_PREFFIX + GTaskStringUtils.FOLDER_META);
+    }
+
+    /**
+     * 将逐个解析出的任务JSON转换为任务对象，需要时同时写入缓存
+     * 每个收集器只在一个下载线程上使用
+     */
+    private static class TaskCollector implements RemoteJsonParser.TaskHandler {
+        // 是否为元数据列表
+        private final boolean mMeta;
+
+        // 缓存的写入，不写入缓存时为null
+        private final TaskListCache.Editor mEditor;
+
+        private final ArrayList<Task> mTasks;
+
+        TaskCollector(boolean meta, TaskListCache.Editor editor) {
+            mMeta = meta;
+            mEditor = editor;
+            mTasks = new ArrayList<Task>();
+        }
+
+        public void onTask(JSONObject js) {
+            if (mEditor != null) {
+                mEditor.onTask(js);
+            }
+            Task task = mMeta ? new MetaData() : new Task();
+            task.setContentByRemoteJSON(js);
+            mTasks.add(task);
+        }
+
+        /**
+         * 下载结束，完整下载时提交缓存，否则放弃
+         */
+        void finish(boolean success) {
+            if (mEditor == null) {
+                return;
+            }
+            if (success) {
+                mEditor.commit();
+            } else {
+                mEditor.abort();
+            }
+        }
+
+        ArrayList<Task> getTasks() {
+            return mTasks;
+        }
+    }
+
     /**
      * 同步内容
-     * 处理本地与服务器之间的内容同步
+     * 处理本地与服务器之间的内容同步。有同步检查点时只处理检查点之后本地修改日志中的笔记
+     * 和远程修改时间更新的任务，无法确定变化范围时退回完整同步
      * @throws NetworkFailureException 如果网络请求失败
      */
     private void syncContent() throws NetworkFailureException {
-        int syncType;
-        Cursor c = null;
-        String gid;
-        Node node;
-
         mLocalDeleteIdMap.clear();
 
         if (mCancelled) {
             return;
         }
 
+        // 日志序号在处理之前读取，同步期间产生的修改留给下次同步
+        mChangeSeq = getLatestChangeSeq();
+        HashSet<Long> changedIds = loadLocalChanges();
+        ArrayList<String> remoteChangedGids = changedIds != null ? getRemoteChangedGids() : null;
+        mIncremental = remoteChangedGids != null
+                && isRemoteDeleteFree(remoteChangedGids);
+        Log.d(TAG, mIncremental ? "Incremental sync, local changes:" + changedIds.size()
+                + " remote changes:" + remoteChangedGids.size() : "Full sync");
+
+        String idFilter = null;
+        if (mIncremental) {
+            if (changedIds.isEmpty()) {
+                idFilter = "";
+            } else {
+                StringBuilder sb = new StringBuilder(" AND " + NoteColumns.ID + " IN (");
+                for (Long id : changedIds) {
+                    sb.append(id).append(',');
+                }
+                sb.setCharAt(sb.length() - 1, ')');
+                idFilter = sb.toString();
+            }
+        }
+
         // for local deleted note
-        try {
-            c = mContentResolver.query(Notes.CONTENT_NOTE_URI, SqlNote.PROJECTION_NOTE,
-                    "(type<>? AND parent_id=?)", new String[] {
+        if (!"".equals(idFilter)) {
+            syncLocalNotes("(type<>? AND parent_id=?)" + (idFilter != null ? idFilter : ""),
+                    new String[] {
                             String.valueOf(Notes.TYPE_SYSTEM), String.valueOf(Notes.ID_TRASH_FOLER)
-                    }, null);
-            if (c != null) {
-                while (c.moveToNext()) {
-                    gid = c.getString(SqlNote.GTASK_ID_COLUMN);
-                    node = mGTaskHashMap.get(gid);
-                    if (node != null) {
-                        mGTaskHashMap.remove(gid);
-                        doContentSync(Node.SYNC_ACTION_DEL_REMOTE, node, c);
-                    }
+                    }, true);
+        }
+
+        // sync folder first
+        syncFolder();
+
+        // for note existing in database
+        if (!"".equals(idFilter)) {
+            syncLocalNotes("(type=? AND parent_id<>?)" + (idFilter != null ? idFilter : ""),
+                    new String[] {
+                            String.valueOf(Notes.TYPE_NOTE), String.valueOf(Notes.ID_TRASH_FOLER)
+                    }, false);
+        }
 
-                    mLocalDeleteIdMap.add(c.getLong(SqlNote.ID_COLUMN));
+        if (mIncremental) {
+            // 远程修改的任务中尚未处理的，找到对应的本地笔记逐个处理，其余为远程新增
+            ArrayList<String> gids = new ArrayList<String>();
+            for (String gid : remoteChangedGids) {
+                if (mGTaskHashMap.containsKey(gid)) {
+                    gids.add(gid);
                 }
-            } else {
-                Log.w(TAG, "failed to query trash folder");
             }
-        } finally {
-            if (c != null) {
-                c.close();
-                c = null;
+            if (!gids.isEmpty()) {
+                syncLocalNotes("(type=? AND parent_id<>?) AND " + gtaskIdIn(gids.size()),
+                        concatArgs(new String[] {
+                                String.valueOf(Notes.TYPE_NOTE),
+                                String.valueOf(Notes.ID_TRASH_FOLER)
+                        }, gids), false);
+            }
+            for (String gid : gids) {
+                Node node = mGTaskHashMap.remove(gid);
+                if (node != null) {
+                    doContentSync(Node.SYNC_ACTION_ADD_LOCAL, node, null);
+                }
+            }
+        } else {
+            // go through remaining items
+            Iterator<Map.Entry<String, Node>> iter = mGTaskHashMap.entrySet().iterator();
+            while (iter.hasNext()) {
+                Map.Entry<String, Node> entry = iter.next();
+                doContentSync(Node.SYNC_ACTION_ADD_LOCAL, entry.getValue(), null);
             }
         }
 
-        // sync folder first
-        syncFolder();
+        // 远程创建完成的回调还会提交本地写入，先发送所有操作再等待写入完成
+        if (!mCancelled) {
+            GTaskClient.getInstance().commitUpdate();
+        }
 
-        // for note existing in database
+        // mCancelled can be set by another thread, so we neet to check one by
+        // one
+        // clear local delete table
+        mApplyQueue.drain();
+        if (!mCancelled) {
+            if (!DataUtils.batchDeleteNotes(mContentResolver, mLocalDeleteIdMap)) {
+                throw new ActionFailureException("failed to batch-delete local deleted notes");
+            }
+        }
+
+        // refresh local sync id
+        if (!mCancelled) {
+            GTaskClient.getInstance().commitUpdate();
+            mApplyQueue.drain();
+            refreshLocalSyncId();
+        }
+
+        // 全部完成后才移动检查点，中途失败的同步下次会重新处理这些修改
+        if (!mCancelled) {
+            mContentResolver.delete(Notes.CONTENT_CHANGE_URI, ChangeColumns.ID + "<=?"
+                    + getWrittenChangesFilter(),
+                    new String[] { String.valueOf(mChangeSeq) });
+            NotesPreferenceActivity.setSyncCheckpoint(mContext, mChangeSeq, mRemoteCheckpoint);
+        }
+    }
+
+    /**
+     * 逐行同步查询到的本地笔记
+     * @param selection 查询条件
+     * @param selectionArgs 查询条件的参数
+     * @param trash 是否为回收站中的笔记，回收站中的笔记删除远程节点后在本地删除
+     * @throws NetworkFailureException 如果网络请求失败
+     */
+    private void syncLocalNotes(String selection, String[] selectionArgs, boolean trash)
+            throws NetworkFailureException {
+        int syncType;
+        String gid;
+        Node node;
+        Cursor c = null;
         try {
             c = mContentResolver.query(Notes.CONTENT_NOTE_URI, SqlNote.PROJECTION_NOTE,
-                    "(type=? AND parent_id<>?)", new String[] {
-                            String.valueOf(Notes.TYPE_NOTE), String.valueOf(Notes.ID_TRASH_FOLER)
-                    }, NoteColumns.TYPE + " DESC");
+                    selection, selectionArgs, trash ? null : NoteColumns.TYPE + " DESC");
             if (c != null) {
+                mNoteLoader = new SqlNoteLoader(mContext, c);
                 while (c.moveToNext()) {
                     gid = c.getString(SqlNote.GTASK_ID_COLUMN);
                     node = mGTaskHashMap.get(gid);
+                    if (trash) {
+                        if (node != null) {
+                            mGTaskHashMap.remove(gid);
+                            doContentSync(Node.SYNC_ACTION_DEL_REMOTE, node, c);
+                        }
+
+                        mLocalDeleteIdMap.add(c.getLong(SqlNote.ID_COLUMN));
+                        continue;
+                    }
                     if (node != null) {
                         mGTaskHashMap.remove(gid);
                         mGidToNid.put(gid, c.getLong(SqlNote.ID_COLUMN));
@@ -370,39 +666,174 @@ public class GTaskManager {
                     doContentSync(syncType, node, c);
                 }
             } else {
-                Log.w(TAG, "failed to query existing note in database");
+                Log.w(TAG, trash ? "failed to query trash folder"
+                        : "failed to query existing note in database");
             }
-
         } finally {
+            mNoteLoader = null;
             if (c != null) {
                 c.close();
-                c = null;
             }
         }
+    }
 
-        // go through remaining items
-        Iterator<Map.Entry<String, Node>> iter = mGTaskHashMap.entrySet().iterator();
-        while (iter.hasNext()) {
-            Map.Entry<String, Node> entry = iter.next();
-            node = entry.getValue();
-            doContentSync(Node.SYNC_ACTION_ADD_LOCAL, node, null);
+    /**
+     * 加载游标当前行的本地笔记
+     * 游标是正在逐行同步的笔记时按批查询数据内容，否则单独查询这条笔记的数据内容
+     * @param c 本地数据库游标
+     * @return 笔记对象
+     */
+    private SqlNote loadSqlNote(Cursor c) {
+        if (mNoteLoader != null && mNoteLoader.isFor(c)) {
+            return mNoteLoader.load();
         }
+        return new SqlNote(mContext, c);
+    }
 
-        // mCancelled can be set by another thread, so we neet to check one by
-        // one
-        // clear local delete table
-        if (!mCancelled) {
-            if (!DataUtils.batchDeleteNotes(mContentResolver, mLocalDeleteIdMap)) {
-                throw new ActionFailureException("failed to batch-delete local deleted notes");
+    /**
+     * 生成同步自己的写入所触发的日志行的条件
+     * 检查点之后的日志行中，本次同步写入过、之后没有再被用户修改的笔记不是本地修改，
+     * 与检查点之前的行一起删除；同步期间用户修改过的笔记仍标记为本地修改，留给下次同步
+     * @return 以OR开头的条件，没有写入时为空串
+     */
+    private String getWrittenChangesFilter() {
+        if (mWrittenIds.isEmpty()) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder(" OR (" + ChangeColumns.NOTE_ID + " IN (");
+        for (Long id : mWrittenIds) {
+            sb.append(id).append(',');
+        }
+        sb.setCharAt(sb.length() - 1, ')');
+        sb.append(" AND " + ChangeColumns.NOTE_ID + " NOT IN (SELECT " + NoteColumns.ID
+                + " FROM " + TABLE.NOTE + " WHERE " + NoteColumns.LOCAL_MODIFIED + "=1))");
+        return sb.toString();
+    }
+
+    /**
+     * 获取本地修改日志的最新序号
+     * @return 最新序号，日志为空时返回0
+     */
+    private long getLatestChangeSeq() {
+        Cursor c = mContentResolver.query(Notes.CONTENT_CHANGE_URI,
+                new String[] { "MAX(" + ChangeColumns.ID + ")" }, null, null, null);
+        if (c == null) {
+            return 0;
+        }
+        try {
+            return c.moveToFirst() ? c.getLong(0) : 0;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * 读取上次同步检查点之后修改过的笔记ID
+     * @return 修改过的笔记ID，没有检查点或修改太多时返回null，需要完整同步
+     */
+    private HashSet<Long> loadLocalChanges() {
+        long checkpoint = NotesPreferenceActivity.getSyncCheckpoint(mContext);
+        if (checkpoint < 0) {
+            return null;
+        }
+        Cursor c = mContentResolver.query(Notes.CONTENT_CHANGE_URI,
+                new String[] { ChangeColumns.NOTE_ID },
+                ChangeColumns.ID + ">? AND " + ChangeColumns.ID + "<=?", new String[] {
+                        String.valueOf(checkpoint), String.valueOf(mChangeSeq)
+                }, null);
+        if (c == null) {
+            Log.w(TAG, "failed to query change journal");
+            return null;
+        }
+        try {
+            if (c.getCount() > MAX_INCREMENTAL_CHANGES) {
+                return null;
+            }
+            HashSet<Long> ids = new HashSet<Long>();
+            while (c.moveToNext()) {
+                ids.add(c.getLong(0));
             }
+            return ids;
+        } finally {
+            c.close();
         }
+    }
 
-        // refresh local sync id
-        if (!mCancelled) {
-            GTaskClient.getInstance().commitUpdate();
-            refreshLocalSyncId();
+    /**
+     * 找出上次同步之后远程修改过的任务
+     * @return 任务的gid，修改太多时返回null，需要完整同步
+     */
+    private ArrayList<String> getRemoteChangedGids() {
+        long checkpoint = NotesPreferenceActivity.getSyncRemoteCheckpoint(mContext);
+        ArrayList<String> gids = new ArrayList<String>();
+        for (Map.Entry<String, Node> entry : mGTaskHashMap.entrySet()) {
+            Node node = entry.getValue();
+            if (node instanceof Task && node.getLastModified() > checkpoint) {
+                gids.add(entry.getKey());
+                if (gids.size() > MAX_INCREMENTAL_CHANGES) {
+                    return null;
+                }
+            }
+        }
+        return gids;
+    }
+
+    /**
+     * 检查上次同步之后是否没有远程删除
+     * 远程删除的任务不再出现在任务列表中，无法从修改时间发现。上次同步之后本地有gid的笔记
+     * 与远程任务一一对应，新增的远程任务都有新的修改时间，所以两边的数量加上远程新增的数量
+     * 应该相等，不相等时需要完整同步
+     * @param remoteChangedGids 远程修改过的任务
+     * @return 没有远程删除返回true
+     */
+    private boolean isRemoteDeleteFree(ArrayList<String> remoteChangedGids) {
+        int remoteCount = 0;
+        for (Node node : mGTaskHashMap.values()) {
+            if (node instanceof Task) {
+                remoteCount++;
+            }
         }
 
+        int localCount = countLocalNotes(NoteColumns.TYPE + "=? AND " + NoteColumns.GTASK_ID
+                + "<>''", new String[] { String.valueOf(Notes.TYPE_NOTE) });
+        int existing = remoteChangedGids.isEmpty() ? 0 : countLocalNotes(
+                NoteColumns.TYPE + "=? AND " + gtaskIdIn(remoteChangedGids.size()),
+                concatArgs(new String[] { String.valueOf(Notes.TYPE_NOTE) },
+                        remoteChangedGids));
+        if (localCount < 0 || existing < 0) {
+            return false;
+        }
+        return remoteCount == localCount + remoteChangedGids.size() - existing;
+    }
+
+    private int countLocalNotes(String selection, String[] selectionArgs) {
+        Cursor c = mContentResolver.query(Notes.CONTENT_NOTE_URI, new String[] { "COUNT(*)" },
+                selection, selectionArgs, null);
+        if (c == null) {
+            return -1;
+        }
+        try {
+            return c.moveToFirst() ? c.getInt(0) : -1;
+        } finally {
+            c.close();
+        }
+    }
+
+    private static String gtaskIdIn(int count) {
+        StringBuilder sb = new StringBuilder(NoteColumns.GTASK_ID + " IN (");
+        for (int i = 0; i < count; i++) {
+            sb.append(i == 0 ? "?" : ",?");
+        }
+        return sb.append(')').toString();
+    }
+
+    private static String[] concatArgs(String[] args, ArrayList<String> more) {
+        String[] result = new String[args.length + more.size()];
+        System.arraycopy(args, 0, result, 0, args.length);
+        for (int i = 0; i < more.size(); i++) {
+            result[args.length + i] = more.get(i);
+        }
+        return result;
     }
 
     /**
@@ -548,6 +979,9 @@ public class GTaskManager {
             return;
         }
 
+        // 先处理已完成的本地写入的后续工作，让远程请求尽早发出
+        mApplyQueue.runCompletions();
+
         MetaData meta;
         switch (syncType) {
             case Node.SYNC_ACTION_ADD_LOCAL:
@@ -560,6 +994,7 @@ public class GTaskManager {
                 meta = mMetaHashMap.get(c.getString(SqlNote.GTASK_ID_COLUMN));
                 if (meta != null) {
                     GTaskClient.getInstance().deleteNode(meta);
+                    mDirtyLists.add(mMetaList.getGid());
                 }
                 mLocalDeleteIdMap.add(c.getLong(SqlNote.ID_COLUMN));
                 break;
@@ -567,8 +1002,12 @@ public class GTaskManager {
                 meta = mMetaHashMap.get(node.getGid());
                 if (meta != null) {
                     GTaskClient.getInstance().deleteNode(meta);
+                    mDirtyLists.add(mMetaList.getGid());
                 }
                 GTaskClient.getInstance().deleteNode(node);
+                if (node instanceof Task) {
+                    mDirtyLists.add(((Task) node).getParent().getGid());
+                }
                 break;
             case Node.SYNC_ACTION_UPDATE_LOCAL:
                 updateLocalNode(node, c);
@@ -659,14 +1098,49 @@ public class GTaskManager {
 
         // create the local node
         sqlNote.setGtaskId(node.getGid());
-        sqlNote.commit(false);
+        if (node instanceof TaskList) {
+            // 之后的笔记需要文件夹的本地ID，文件夹直接创建
+            sqlNote.commit(false);
+            onLocalNodeAdded(node, sqlNote);
+            return;
+        }
+
+        // 笔记交给写入线程创建，创建后才有本地ID和数据ID，映射和元数据在完成后更新
+        final SqlNote note = sqlNote;
+        final Node remote = node;
+        mApplyQueue.submit(new LocalApplyQueue.Write() {
+            public void run(LocalBatch batch) {
+                note.commit(false, batch);
+            }
+        }, new LocalApplyQueue.Completion() {
+            public void run() throws NetworkFailureException {
+                onLocalNodeAdded(remote, note);
+            }
+        });
+    }
+
+    /**
+     * 本地节点创建后更新映射表、同步ID和远程元数据
+     * @param node Google Tasks节点
+     * @param sqlNote 已创建的本地笔记
+     * @throws NetworkFailureException 如果网络请求失败
+     */
+    private void onLocalNodeAdded(Node node, SqlNote sqlNote) throws NetworkFailureException {
+        if (mCancelled) {
+            return;
+        }
+        String gid = node.getGid();
+
+        // 远程节点没有变化，同步ID就是下载时的修改时间
+        mSyncIds.put(sqlNote.getId(), node.getLastModified());
+        mWrittenIds.add(sqlNote.getId());
 
         // update gid-nid mapping
-        mGidToNid.put(node.getGid(), sqlNote.getId());
-        mNidToGid.put(sqlNote.getId(), node.getGid());
+        mGidToNid.put(gid, sqlNote.getId());
+        mNidToGid.put(sqlNote.getId(), gid);
 
         // update meta
-        updateRemoteMeta(node.getGid(), sqlNote);
+        updateRemoteMeta(gid, sqlNote);
     }
 
     /**
@@ -683,7 +1157,7 @@ public class GTaskManager {
 
         SqlNote sqlNote;
         // update the note locally
-        sqlNote = new SqlNote(mContext, c);
+        sqlNote = loadSqlNote(c);
         sqlNote.setContent(node.getLocalJSONFromContent());
 
         Long parentId = (node instanceof Task) ? mGidToNid.get(((Task) node).getParent().getGid())
@@ -693,10 +1167,26 @@ public class GTaskManager {
             throw new ActionFailureException("cannot update local node");
         }
         sqlNote.setParentId(parentId.longValue());
-        sqlNote.commit(true);
 
-        // update meta info
-        updateRemoteMeta(node.getGid(), sqlNote);
+        // 远程节点没有变化，同步ID就是下载时的修改时间
+        mSyncIds.put(sqlNote.getId(), node.getLastModified());
+        mWrittenIds.add(sqlNote.getId());
+
+        // 元数据包含写入后的数据ID，在写入完成后更新
+        final SqlNote note = sqlNote;
+        final String gid = node.getGid();
+        mApplyQueue.submit(new LocalApplyQueue.Write() {
+            public void run(LocalBatch batch) {
+                note.commit(true, batch);
+            }
+        }, new LocalApplyQueue.Completion() {
+            public void run() throws NetworkFailureException {
+                if (!mCancelled) {
+                    // update meta info
+                    updateRemoteMeta(gid, note);
+                }
+            }
+        });
     }
 
     /**
@@ -711,8 +1201,7 @@ public class GTaskManager {
             return;
         }
 
-        SqlNote sqlNote = new SqlNote(mContext, c);
-        Node n;
+        SqlNote sqlNote = loadSqlNote(c);
 
         // update remotely
         if (sqlNote.isNoteType()) {
@@ -725,12 +1214,16 @@ public class GTaskManager {
                 throw new ActionFailureException("cannot add remote task");
             }
             mGTaskListHashMap.get(parentGid).addChildTask(task);
-
-            GTaskClient.getInstance().createTask(task);
-            n = (Node) task;
-
-            // add meta
-            updateRemoteMeta(task.getGid(), sqlNote);
+            mDirtyLists.add(parentGid);
+
+            // 创建和之后的操作一起批量发送，任务ID在服务器返回后才确定
+            final SqlNote note = sqlNote;
+            GTaskClient.getInstance().createTask(task, new GTaskClient.OnCreatedListener() {
+                public void onCreated(Node node) throws NetworkFailureException {
+                    mPushedNodes.put(node.getGid(), note.getId());
+                    onRemoteNodeAdded(node, note);
+                }
+            });
         } else {
             TaskList tasklist = null;
 
@@ -762,21 +1255,52 @@ public class GTaskManager {
             if (tasklist == null) {
                 tasklist = new TaskList();
                 tasklist.setContentByLocalJSON(sqlNote.getContent());
-                GTaskClient.getInstance().createTaskList(tasklist);
-                mGTaskListHashMap.put(tasklist.getGid(), tasklist);
+                final SqlNote note = sqlNote;
+                GTaskClient.getInstance().createTaskList(tasklist,
+                        new GTaskClient.OnCreatedListener() {
+                            public void onCreated(Node node) throws NetworkFailureException {
+                                mGTaskListHashMap.put(node.getGid(), (TaskList) node);
+                                mPushedNodes.put(node.getGid(), note.getId());
+                                onRemoteNodeAdded(node, note);
+                            }
+                        });
+            } else {
+                mSyncIds.put(sqlNote.getId(), tasklist.getLastModified());
+                onRemoteNodeAdded(tasklist, sqlNote);
             }
-            n = (Node) tasklist;
         }
+    }
 
+    /**
+     * 远程节点创建后更新本地笔记的GID和映射表
+     * 笔记由写入线程修改，元数据在写入完成后才读取笔记内容
+     * @param node 已创建的Google Tasks节点
+     * @param sqlNote 对应的本地笔记
+     */
+    private void onRemoteNodeAdded(Node node, SqlNote sqlNote) {
         // update local note
-        sqlNote.setGtaskId(n.getGid());
-        sqlNote.commit(false);
-        sqlNote.resetLocalModified();
-        sqlNote.commit(true);
+        final SqlNote note = sqlNote;
+        final String gid = node.getGid();
+        mApplyQueue.submit(new LocalApplyQueue.Write() {
+            public void run(LocalBatch batch) {
+                note.setGtaskId(gid);
+                note.commit(false, batch);
+                note.resetLocalModified();
+                note.commit(true, batch);
+            }
+        }, new LocalApplyQueue.Completion() {
+            public void run() throws NetworkFailureException {
+                if (!mCancelled) {
+                    // add meta
+                    updateRemoteMeta(gid, note);
+                }
+            }
+        });
+        mWrittenIds.add(sqlNote.getId());
 
         // gid-id mapping
-        mGidToNid.put(n.getGid(), sqlNote.getId());
-        mNidToGid.put(sqlNote.getId(), n.getGid());
+        mGidToNid.put(gid, sqlNote.getId());
+        mNidToGid.put(sqlNote.getId(), gid);
     }
 
     /**
@@ -791,11 +1315,12 @@ public class GTaskManager {
             return;
         }
 
-        SqlNote sqlNote = new SqlNote(mContext, c);
+        SqlNote sqlNote = loadSqlNote(c);
 
         // update remotely
         node.setContentByLocalJSON(sqlNote.getContent());
         GTaskClient.getInstance().addUpdateNode(node);
+        mPushedNodes.put(node.getGid(), sqlNote.getId());
 
         // update meta
         updateRemoteMeta(node.getGid(), sqlNote);
@@ -811,8 +1336,10 @@ public class GTaskManager {
                 throw new ActionFailureException("cannot update remote task");
             }
             TaskList curParentList = mGTaskListHashMap.get(curParentGid);
+            mDirtyLists.add(curParentGid);
 
             if (preParentList != curParentList) {
+                mDirtyLists.add(preParentList.getGid());
                 preParentList.removeChildTask(task);
                 curParentList.addChildTask(task);
                 GTaskClient.getInstance().moveTask(task, preParentList, curParentList);
@@ -820,8 +1347,14 @@ public class GTaskManager {
         }
 
         // clear local modified flag
-        sqlNote.resetLocalModified();
-        sqlNote.commit(true);
+        final SqlNote note = sqlNote;
+        mApplyQueue.submit(new LocalApplyQueue.Write() {
+            public void run(LocalBatch batch) {
+                note.resetLocalModified();
+                note.commit(true, batch);
+            }
+        }, null);
+        mWrittenIds.add(sqlNote.getId());
     }
 
     /**
@@ -833,6 +1366,7 @@ public class GTaskManager {
      */
     private void updateRemoteMeta(String gid, SqlNote sqlNote) throws NetworkFailureException {
         if (sqlNote != null && sqlNote.isNoteType()) {
+            mDirtyLists.add(mMetaList.getGid());
             MetaData metaData = mMetaHashMap.get(gid);
             if (metaData != null) {
                 metaData.setMeta(gid, sqlNote.getContent());
@@ -849,7 +1383,9 @@ public class GTaskManager {
 
     /**
      * 刷新本地同步ID
-     * 更新本地数据库中的同步ID，确保与服务器保持一致
+     * 本地应用的远程节点没有变化，同步ID在处理时已经确定；推送到服务器的节点重新获取
+     * 任务列表清单和内容有变化的任务列表，从中取得新的修改时间。
+     * 所有同步ID在一个事务中写入
      * @throws NetworkFailureException 如果网络请求失败
      */
     private void refreshLocalSyncId() throws NetworkFailureException {
@@ -857,42 +1393,74 @@ public class GTaskManager {
             return;
         }
 
-        // get the latest gtask list
-        mGTaskHashMap.clear();
-        mGTaskListHashMap.clear();
-        mMetaHashMap.clear();
-        initGTaskList();
+        if (!mPushedNodes.isEmpty() || !mDirtyLists.isEmpty()) {
+            fetchPushedVersions();
+        }
+        if (mSyncIds.isEmpty()) {
+            return;
+        }
 
-        Cursor c = null;
+        long[] noteIds = new long[mSyncIds.size()];
+        long[] syncIds = new long[mSyncIds.size()];
+        int i = 0;
+        for (Map.Entry<Long, Long> entry : mSyncIds.entrySet()) {
+            noteIds[i] = entry.getKey();
+            syncIds[i] = entry.getValue();
+            i++;
+        }
+        if (DataUtils.batchUpdateSyncIds(mContentResolver, noteIds, syncIds) < 0) {
+            throw new ActionFailureException("failed to update local sync ids");
+        }
+    }
+
+    /**
+     * 获取推送到服务器的节点的新修改时间，同时更新有变化的任务列表的缓存
+     * @throws NetworkFailureException 如果网络请求失败
+     */
+    private void fetchPushedVersions() throws NetworkFailureException {
+        GTaskClient client = GTaskClient.getInstance();
         try {
-            c = mContentResolver.query(Notes.CONTENT_NOTE_URI, SqlNote.PROJECTION_NOTE,
-                    "(type<>? AND parent_id<>?)", new String[] {
-                            String.valueOf(Notes.TYPE_SYSTEM), String.valueOf(Notes.ID_TRASH_FOLER)
-                    }, NoteColumns.TYPE + " DESC");
-            if (c != null) {
-                while (c.moveToNext()) {
-                    String gid = c.getString(SqlNote.GTASK_ID_COLUMN);
-                    Node node = mGTaskHashMap.get(gid);
-                    if (node != null) {
-                        mGTaskHashMap.remove(gid);
-                        ContentValues values = new ContentValues();
-                        values.put(NoteColumns.SYNC_ID, node.getLastModified());
-                        mContentResolver.update(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI,
-                                c.getLong(SqlNote.ID_COLUMN)), values, null, null);
-                    } else {
-                        Log.e(TAG, "something is missed");
-                        throw new ActionFailureException(
-                                "some local items don't have gid after sync");
-                    }
+            JSONArray jsTaskLists = client.getTaskLists();
+            ArrayList<String> listGids = new ArrayList<String>();
+            ArrayList<Long> listModified = new ArrayList<Long>();
+            ArrayList<Boolean> listMeta = new ArrayList<Boolean>();
+            for (int i = 0; i < jsTaskLists.length(); i++) {
+                JSONObject object = jsTaskLists.getJSONObject(i);
+                String gid = object.getString(GTaskStringUtils.GTASK_JSON_ID);
+                long lastModified = object.optLong(GTaskStringUtils.GTASK_JSON_LAST_MODIFIED, 0);
+                collectPushedVersion(gid, lastModified);
+                if (mDirtyLists.contains(gid)) {
+                    listGids.add(gid);
+                    listModified.add(lastModified);
+                    listMeta.add(isMetaList(object.getString(GTaskStringUtils.GTASK_JSON_NAME)));
                 }
-            } else {
-                Log.w(TAG, "failed to query local note to refresh sync id");
             }
-        } finally {
-            if (c != null) {
-                c.close();
-                c = null;
+
+            if (!listGids.isEmpty()) {
+                HashMap<String, ArrayList<Task>> lists = downloadTaskLists(listGids,
+                        listModified, listMeta);
+                for (ArrayList<Task> tasks : lists.values()) {
+                    for (Task task : tasks) {
+                        collectPushedVersion(task.getGid(), task.getLastModified());
+                    }
+                }
             }
+        } catch (JSONException e) {
+            Log.e(TAG, e.toString());
+            e.printStackTrace();
+            throw new ActionFailureException("fetchPushedVersions: handing JSONObject failed");
+        }
+
+        if (!mPushedNodes.isEmpty()) {
+            Log.e(TAG, "something is missed");
+            throw new ActionFailureException("some pushed items are missing after sync");
+        }
+    }
+
+    private void collectPushedVersion(String gid, long lastModified) {
+        Long noteId = mPushedNodes.remove(gid);
+        if (noteId != null) {
+            mSyncIds.put(noteId, lastModified);
         }
     }
 
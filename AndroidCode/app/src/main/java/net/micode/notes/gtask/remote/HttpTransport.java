@@ -0,0 +1,358 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.CookieStore;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.BasicCookieStore;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+import org.json.JSONException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * 同步使用的HTTP传输层
+ * 所有请求共用一个线程安全的连接池，连接在服务器允许的时间内保持并被之后的请求复用，
+ * 并发下载和批量提交的请求共享这些连接。请求声明接受gzip压缩，响应按编码解压。
+ * 响应可以边读边解析，不必先读成完整的字符串。
+ * 每个请求完成后可以通过回调得到耗时，用于分析同步的网络开销。
+ * 传输层不关心请求的地址，可以连接到本地的测试服务器
+ */
+public class HttpTransport {
+    private static final String TAG = HttpTransport.class.getSimpleName();
+
+    // 连接超时时间
+    private static final int CONNECTION_TIMEOUT = 10000;
+
+    // 读取超时时间
+    private static final int SOCKET_TIMEOUT = 15000;
+
+    // 服务器没有指定时连接保持的时间
+    private static final long DEFAULT_KEEP_ALIVE = 30 * 1000;
+
+    /**
+     * 请求完成的回调，在发送请求的线程上调用
+     */
+    public interface TimingListener {
+        /**
+         * @param request 已完成的请求
+         * @param statusCode 响应的状态码，请求失败时为-1
+         * @param elapsed 从发送请求到读完响应的毫秒数
+         * @param length 已读取的解压后响应字节数，请求失败时为-1
+         */
+        void onRequestFinished(HttpUriRequest request, int statusCode, long elapsed, long length);
+    }
+
+    /**
+     * 读取响应内容，在发送请求的线程上调用
+     */
+    public interface ResponseReader<T> {
+        /**
+         * @param reader 解压并按UTF-8解码后的响应内容
+         * @return 读取的结果
+         */
+        T read(Reader reader) throws IOException, JSONException;
+    }
+
+    // 将响应读成字符串，行之间的换行被去掉
+    private static final ResponseReader<String> STRING_READER = new ResponseReader<String>() {
+        public String read(Reader reader) throws IOException {
+            BufferedReader br = (BufferedReader) reader;
+            StringBuilder sb = new StringBuilder();
+
+            while (true) {
+                String buff = br.readLine();
+                if (buff == null) {
+                    return sb.toString();
+                }
+                sb = sb.append(buff);
+            }
+        }
+    };
+
+    // 连接池
+    private final ThreadSafeClientConnManager mConnManager;
+
+    // HTTP客户端，所有线程共用
+    private final DefaultHttpClient mHttpClient;
+
+    // 请求完成的回调
+    private volatile TimingListener mTimingListener;
+
+    /**
+     * @param maxConnections 连接池中最多的连接数
+     */
+    public HttpTransport(int maxConnections) {
+        HttpParams httpParameters = new BasicHttpParams();
+        HttpConnectionParams.setConnectionTimeout(httpParameters, CONNECTION_TIMEOUT);
+        HttpConnectionParams.setSoTimeout(httpParameters, SOCKET_TIMEOUT);
+        // 复用连接之前检查连接是否已被服务器关闭
+        HttpConnectionParams.setStaleCheckingEnabled(httpParameters, true);
+        ConnManagerParams.setMaxTotalConnections(httpParameters, maxConnections);
+        ConnManagerParams.setMaxConnectionsPerRoute(httpParameters,
+                new ConnPerRouteBean(maxConnections));
+        HttpProtocolParams.setUseExpectContinue(httpParameters, false);
+
+        SchemeRegistry schemeRegistry = new SchemeRegistry();
+        schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        schemeRegistry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+        mConnManager = new ThreadSafeClientConnManager(httpParameters, schemeRegistry);
+
+        mHttpClient = new DefaultHttpClient(mConnManager, httpParameters);
+        mHttpClient.setCookieStore(new BasicCookieStore());
+        mHttpClient.setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
+            public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                // 使用服务器Keep-Alive头中的timeout，没有时使用默认值
+                HeaderElementIterator it = new BasicHeaderElementIterator(
+                        response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+                while (it.hasNext()) {
+                    HeaderElement element = it.nextElement();
+                    if ("timeout".equalsIgnoreCase(element.getName())
+                            && element.getValue() != null) {
+                        try {
+                            return Long.parseLong(element.getValue()) * 1000;
+                        } catch (NumberFormatException e) {
+                            Log.w(TAG, "Wrong keep-alive timeout: " + element.getValue());
+                        }
+                    }
+                }
+                return DEFAULT_KEEP_ALIVE;
+            }
+        });
+        mHttpClient.addRequestInterceptor(new HttpRequestInterceptor() {
+            public void process(HttpRequest request, HttpContext context)
+                    throws HttpException, IOException {
+                if (!request.containsHeader("Accept-Encoding")) {
+                    request.addHeader("Accept-Encoding", "gzip, deflate");
+                }
+            }
+        });
+    }
+
+    /**
+     * 设置请求完成的回调
+     * @param listener 回调，为null时不再回调
+     */
+    public void setTimingListener(TimingListener listener) {
+        mTimingListener = listener;
+    }
+
+    /**
+     * 获取所有请求共用的Cookie
+     */
+    public CookieStore getCookieStore() {
+        return mHttpClient.getCookieStore();
+    }
+
+    /**
+     * 发送请求并读取完整的响应内容，读完后连接回到连接池
+     * @param request 要发送的请求
+     * @return 解压后的响应内容
+     * @throws IOException 如果网络请求失败
+     */
+    public String execute(HttpUriRequest request) throws IOException {
+        try {
+            return execute(request, STRING_READER);
+        } catch (JSONException e) {
+            // 读成字符串时不会解析JSON
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 发送请求，响应边下载边交给读取器，读完后连接回到连接池
+     * @param request 要发送的请求
+     * @param responseReader 响应内容的读取器
+     * @return 读取器返回的结果
+     * @throws IOException 如果网络请求失败或读取器读取失败
+     * @throws JSONException 如果读取器解析失败
+     */
+    public <T> T execute(HttpUriRequest request, ResponseReader<T> responseReader)
+            throws IOException, JSONException {
+        // 超过保持时间的连接不再复用
+        mConnManager.closeExpiredConnections();
+
+        long start = SystemClock.elapsedRealtime();
+        int statusCode = -1;
+        CountingInputStream counter = null;
+        boolean success = false;
+        try {
+            HttpResponse response = mHttpClient.execute(request);
+            statusCode = response.getStatusLine().getStatusCode();
+            HttpEntity entity = response.getEntity();
+            counter = new CountingInputStream(getContent(entity));
+            T result;
+            try {
+                result = responseReader.read(new BufferedReader(
+                        new InputStreamReader(counter, "UTF-8")));
+            } finally {
+                // 关闭响应后连接才能回到连接池，没读完的内容在关闭时读完
+                counter.close();
+            }
+            success = true;
+            return result;
+        } finally {
+            if (!success) {
+                request.abort();
+            }
+            TimingListener listener = mTimingListener;
+            if (listener != null) {
+                listener.onRequestFinished(request, statusCode,
+                        SystemClock.elapsedRealtime() - start,
+                        success ? counter.getCount() : -1);
+            }
+        }
+    }
+
+    /**
+     * 关闭空闲的连接，同步结束后调用
+     */
+    public void closeIdleConnections() {
+        mConnManager.closeExpiredConnections();
+        mConnManager.closeIdleConnections(0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 关闭连接池，之后不能再发送请求
+     */
+    public void shutdown() {
+        mConnManager.shutdown();
+    }
+
+    /**
+     * 获取HTTP响应内容
+     * 处理不同的编码格式（gzip、deflate等）
+     * @param entity HTTP响应实体
+     * @return 解压后的响应内容
+     * @throws IOException 如果读取响应内容时发生错误
+     */
+    private InputStream getContent(HttpEntity entity) throws IOException {
+        if (entity == null) {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+
+        String contentEncoding = null;
+        Header encoding = entity.getContentEncoding();
+        if (encoding != null) {
+            contentEncoding = encoding.getValue();
+            Log.d(TAG, "encoding: " + contentEncoding);
+        }
+
+        InputStream input = entity.getContent();
+        if (contentEncoding != null && contentEncoding.equalsIgnoreCase("gzip")) {
+            input = new GZIPInputStream(input);
+        } else if (contentEncoding != null && contentEncoding.equalsIgnoreCase("deflate")) {
+            input = newDeflateStream(input);
+        }
+        return input;
+    }
+
+    /**
+     * HTTP的deflate编码是带zlib头的数据，但有些服务器发送不带头的原始数据，按前两个字节区分
+     * @param input 压缩的响应内容
+     * @return 解压后的响应内容
+     * @throws IOException 如果读取响应内容时发生错误
+     */
+    private static InputStream newDeflateStream(InputStream input) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(input);
+        buffered.mark(2);
+        int cmf = buffered.read();
+        int flg = buffered.read();
+        buffered.reset();
+        // zlib头：压缩方法为8，两个字节组成的数是31的倍数
+        boolean zlib = cmf != -1 && flg != -1 && (cmf & 0x0F) == 8
+                && ((cmf << 8) | flg) % 31 == 0;
+        return new InflaterInputStream(buffered, new Inflater(!zlib));
+    }
+
+    /**
+     * 统计已读取字节数的输入流
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        private long mCount;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                mCount++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int n = super.read(buffer, offset, count);
+            if (n > 0) {
+                mCount += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            mCount += skipped;
+            return skipped;
+        }
+
+        long getCount() {
+            return mCount;
+        }
+    }
+}
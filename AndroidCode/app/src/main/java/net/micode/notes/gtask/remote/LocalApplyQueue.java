@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.content.ContentResolver;
+import android.util.Log;
+
+import net.micode.notes.gtask.data.LocalBatch;
+import net.micode.notes.gtask.exception.ActionFailureException;
+import net.micode.notes.gtask.exception.NetworkFailureException;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 同步时的本地写入流水线
+ * 同步线程负责比较差异和访问服务器，本地数据库的写入交给写入线程按提交顺序执行，
+ * 两者之间是有界队列，写入跟不上时同步线程在提交处等待。
+ * 写入线程把连续的写入收集到一个批次中，批次满、写入空闲或同步线程等待时在一个事务中执行，
+ * 数据库的提交次数与批次数而不是笔记数相关。
+ * 写入完成后需要继续的工作（例如更新远程元数据）在所在批次执行后放入完成队列，由同步线程执行，
+ * GTaskClient和同步管理器的映射表始终只在同步线程上使用
+ */
+class LocalApplyQueue {
+    private static final String TAG = LocalApplyQueue.class.getSimpleName();
+
+    // 等待写入的最大数量
+    private static final int CAPACITY = 16;
+
+    // 每个批次最多的操作数，达到后执行
+    private static final int MAX_BATCH_OPERATIONS = 200;
+
+    // 没有新的写入时等待多久执行已收集的批次
+    private static final long FLUSH_DELAY = 200;
+
+    /**
+     * 在写入线程上执行的本地写入
+     */
+    interface Write {
+        /**
+         * @param batch 当前批次，写入加入其中，执行后才有新行的ID
+         */
+        void run(LocalBatch batch);
+    }
+
+    /**
+     * 写入完成后在同步线程上执行的工作
+     */
+    interface Completion {
+        void run() throws NetworkFailureException;
+    }
+
+    /**
+     * 队列中的一次写入
+     */
+    private static class Task {
+        final Write write;
+        final Completion completion;
+
+        Task(Write write, Completion completion) {
+            this.write = write;
+            this.completion = completion;
+        }
+    }
+
+    // 通知写入线程执行已收集的批次
+    private static final Task FLUSH = new Task(null, null);
+
+    // 通知写入线程退出
+    private static final Task QUIT = new Task(null, null);
+
+    // 内容解析器
+    private final ContentResolver mContentResolver;
+
+    // 等待写入的任务
+    private final ArrayBlockingQueue<Task> mQueue;
+
+    // 已完成写入、等待同步线程继续的工作
+    private final ConcurrentLinkedQueue<Completion> mCompletions;
+
+    // 已提交尚未执行的数量
+    private int mPending;
+
+    // 第一次写入失败的异常，之后的写入不再执行
+    private volatile RuntimeException mFailure;
+
+    private Thread mThread;
+
+    LocalApplyQueue(ContentResolver resolver) {
+        mContentResolver = resolver;
+        mQueue = new ArrayBlockingQueue<Task>(CAPACITY);
+        mCompletions = new ConcurrentLinkedQueue<Completion>();
+    }
+
+    /**
+     * 启动写入线程
+     */
+    void start() {
+        mThread = new Thread(new Runnable() {
+            public void run() {
+                loop();
+            }
+        }, TAG);
+        mThread.start();
+    }
+
+    /**
+     * 提交一次本地写入，队列满时等待
+     * @param write 在写入线程上执行的数据库写入
+     * @param completion 写入所在的批次执行后在同步线程上执行的工作，可以为null
+     * @throws ActionFailureException 如果之前的写入已经失败
+     */
+    void submit(Write write, Completion completion) {
+        checkFailure();
+        synchronized (this) {
+            mPending++;
+        }
+        try {
+            mQueue.put(new Task(write, completion));
+        } catch (InterruptedException e) {
+            synchronized (this) {
+                mPending--;
+            }
+            Thread.currentThread().interrupt();
+            throw new ActionFailureException("local apply interrupted");
+        }
+    }
+
+    /**
+     * 在同步线程上执行已完成写入的后续工作
+     * @throws NetworkFailureException 如果后续工作访问服务器失败
+     */
+    void runCompletions() throws NetworkFailureException {
+        Completion completion;
+        while ((completion = mCompletions.poll()) != null) {
+            completion.run();
+        }
+        checkFailure();
+    }
+
+    /**
+     * 执行已收集的批次，等待已提交的写入全部完成，并执行所有后续工作
+     * @throws NetworkFailureException 如果后续工作访问服务器失败
+     */
+    void drain() throws NetworkFailureException {
+        try {
+            mQueue.put(FLUSH);
+            synchronized (this) {
+                while (mPending > 0) {
+                    wait();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ActionFailureException("local apply interrupted");
+        }
+        runCompletions();
+    }
+
+    /**
+     * 执行完已提交的写入后结束写入线程，未执行的后续工作被丢弃
+     */
+    void quit() {
+        if (mThread == null) {
+            return;
+        }
+        try {
+            mQueue.put(QUIT);
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mThread = null;
+        mCompletions.clear();
+    }
+
+    private void loop() {
+        LocalBatch batch = new LocalBatch(mContentResolver);
+        ArrayList<Completion> completions = new ArrayList<Completion>();
+        int writes = 0;
+        while (true) {
+            Task task;
+            try {
+                task = writes > 0 ? mQueue.poll(FLUSH_DELAY, TimeUnit.MILLISECONDS)
+                        : mQueue.take();
+            } catch (InterruptedException e) {
+                Log.w(TAG, "local apply thread interrupted");
+                return;
+            }
+            if (task != null && task != FLUSH && task != QUIT) {
+                try {
+                    if (mFailure == null) {
+                        task.write.run(batch);
+                        if (task.completion != null) {
+                            completions.add(task.completion);
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+                    mFailure = e;
+                }
+                writes++;
+                if (batch.size() < MAX_BATCH_OPERATIONS) {
+                    continue;
+                }
+            }
+
+            // 批次已满、写入空闲、同步线程等待或退出时执行已收集的批次
+            if (writes > 0) {
+                try {
+                    if (mFailure == null) {
+                        batch.apply();
+                        mCompletions.addAll(completions);
+                    }
+                } catch (RuntimeException e) {
+                    Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+                    mFailure = e;
+                }
+                completions.clear();
+                synchronized (this) {
+                    mPending -= writes;
+                    notifyAll();
+                }
+                writes = 0;
+            }
+            if (task == QUIT) {
+                return;
+            }
+        }
+    }
+
+    private void checkFailure() {
+        RuntimeException failure = mFailure;
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import net.micode.notes.tool.GTaskStringUtils;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * 服务器响应的流式解析
+ * 响应边读边解析，不再先读成完整的字符串。任务列表中的任务逐个解析成JSON对象交给回调，
+ * 同一时间只有一个任务的JSON在内存中
+ */
+class RemoteJsonParser {
+    // 页面中初始化数据的开始标记
+    private static final String SETUP_BEGIN = "_setup(";
+
+    /**
+     * 逐个接收任务的回调
+     */
+    interface TaskHandler {
+        void onTask(JSONObject js) throws JSONException;
+    }
+
+    private RemoteJsonParser() {
+    }
+
+    /**
+     * 解析获取任务列表的响应，其中的任务逐个交给回调
+     * @param in 响应内容
+     * @param handler 接收任务的回调
+     * @throws IOException 如果读取失败或响应不是合法的JSON
+     * @throws JSONException 如果响应中没有任务数组
+     */
+    static void readTasks(Reader in, TaskHandler handler) throws IOException, JSONException {
+        JsonReader reader = newReader(in);
+        boolean found = false;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (GTaskStringUtils.GTASK_JSON_TASKS.equals(reader.nextName())) {
+                readTaskArray(reader, handler);
+                found = true;
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (!found) {
+            throw new JSONException("No value for " + GTaskStringUtils.GTASK_JSON_TASKS);
+        }
+    }
+
+    /**
+     * 解析任务数组，其中的任务逐个交给回调
+     * @param reader 位于数组开始处的JsonReader
+     * @param handler 接收任务的回调
+     * @throws IOException 如果读取失败或内容不是合法的JSON
+     * @throws JSONException 如果回调处理失败
+     */
+    static void readTaskArray(JsonReader reader, TaskHandler handler)
+            throws IOException, JSONException {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            handler.onTask(readObject(reader));
+        }
+        reader.endArray();
+    }
+
+    /**
+     * 解析页面中_setup(...)的初始化数据，只读取指定路径上的值，其余内容跳过
+     * @param in 页面内容
+     * @param path 从初始化数据的根对象开始的字段名
+     * @return 路径上的值，找不到时返回null
+     * @throws IOException 如果读取失败或初始化数据不是合法的JSON
+     * @throws JSONException 如果值无法转换为JSON
+     */
+    static Object readSetupValue(Reader in, String... path) throws IOException, JSONException {
+        if (!skipTo(in, SETUP_BEGIN)) {
+            return null;
+        }
+        JsonReader reader = newReader(in);
+        return readPath(reader, path, 0);
+    }
+
+    /**
+     * 将响应内容完整解析为JSON对象
+     * @param in 响应内容
+     * @return 解析出的JSON对象
+     * @throws IOException 如果读取失败或响应不是合法的JSON
+     * @throws JSONException 如果值无法转换为JSON
+     */
+    static JSONObject readObject(Reader in) throws IOException, JSONException {
+        return readObject(newReader(in));
+    }
+
+    private static JsonReader newReader(Reader in) {
+        JsonReader reader = new JsonReader(in);
+        reader.setLenient(true);
+        return reader;
+    }
+
+    private static Object readPath(JsonReader reader, String[] path, int depth)
+            throws IOException, JSONException {
+        if (depth == path.length) {
+            return readValue(reader);
+        }
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            return null;
+        }
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (path[depth].equals(reader.nextName())) {
+                // 找到后不再读取剩余的内容
+                return readPath(reader, path, depth + 1);
+            }
+            reader.skipValue();
+        }
+        return null;
+    }
+
+    private static JSONObject readObject(JsonReader reader) throws IOException, JSONException {
+        JSONObject js = new JSONObject();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            js.put(reader.nextName(), readValue(reader));
+        }
+        reader.endObject();
+        return js;
+    }
+
+    private static Object readValue(JsonReader reader) throws IOException, JSONException {
+        switch (reader.peek()) {
+            case BEGIN_OBJECT:
+                return readObject(reader);
+            case BEGIN_ARRAY:
+                JSONArray array = new JSONArray();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    array.put(readValue(reader));
+                }
+                reader.endArray();
+                return array;
+            case STRING:
+                return reader.nextString();
+            case NUMBER:
+                return parseNumber(reader.nextString());
+            case BOOLEAN:
+                return reader.nextBoolean();
+            case NULL:
+                reader.nextNull();
+                return JSONObject.NULL;
+            default:
+                throw new JSONException("Unexpected token: " + reader.peek());
+        }
+    }
+
+    private static Number parseNumber(String number) {
+        if (number.indexOf('.') < 0 && number.indexOf('e') < 0 && number.indexOf('E') < 0) {
+            try {
+                return Long.parseLong(number);
+            } catch (NumberFormatException e) {
+                // 超出long范围的整数按浮点数处理
+            }
+        }
+        return Double.parseDouble(number);
+    }
+
+    /**
+     * 跳过内容直到标记之后
+     * @return 找到标记时返回true
+     */
+    private static boolean skipTo(Reader in, String marker) throws IOException {
+        int matched = 0;
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == marker.charAt(matched)) {
+                matched++;
+                if (matched == marker.length()) {
+                    return true;
+                }
+            } else {
+                matched = c == marker.charAt(0) ? 1 : 0;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.content.Context;
+import android.util.JsonReader;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * 远程任务列表的本地缓存
+ * 每个任务列表保存一个文件，记录列表的修改时间和列表中所有任务的JSON。
+ * 同步时列表的修改时间没有变化就使用缓存的任务，不再向服务器请求。
+ * 缓存的读写都是流式的，任务逐个读出和写入，不会把整个列表读进内存。
+ * 缓存按账户分目录存放，放在应用缓存目录中，被系统清理后只是需要重新下载
+ */
+public class TaskListCache {
+    private static final String TAG = TaskListCache.class.getSimpleName();
+
+    // 缓存目录名
+    private static final String CACHE_DIR = "gtask_lists";
+
+    // 缓存文件中的字段
+    private static final String KEY_LAST_MODIFIED = "last_modified";
+    private static final String KEY_TASKS = "tasks";
+
+    // 当前账户的缓存目录
+    private final File mDir;
+
+    /**
+     * @param context 上下文对象
+     * @param account 同步账户名，不同账户的缓存互不影响
+     */
+    public TaskListCache(Context context, String account) {
+        mDir = new File(new File(context.getCacheDir(), CACHE_DIR), toFileName(account));
+    }
+
+    /**
+     * 读取缓存的任务，任务逐个交给回调
+     * @param gid 任务列表的gid
+     * @param lastModified 服务器返回的列表修改时间
+     * @param handler 接收任务的回调，缓存损坏时可能已经收到部分任务
+     * @return 修改时间与缓存一致并且读取完整时返回true
+     */
+    public boolean read(String gid, long lastModified, RemoteJsonParser.TaskHandler handler) {
+        File file = getFile(gid);
+        if (!file.isFile()) {
+            return false;
+        }
+        JsonReader reader = null;
+        try {
+            reader = new JsonReader(new BufferedReader(new InputStreamReader(
+                    new FileInputStream(file), StandardCharsets.UTF_8)));
+            // 修改时间写在任务之前，不一致时不再读取任务
+            reader.beginObject();
+            boolean matched = false;
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (KEY_LAST_MODIFIED.equals(name)) {
+                    if (reader.nextLong() != lastModified) {
+                        return false;
+                    }
+                    matched = true;
+                } else if (KEY_TASKS.equals(name) && matched) {
+                    RemoteJsonParser.readTaskArray(reader, handler);
+                    return true;
+                } else {
+                    break;
+                }
+            }
+            Log.e(TAG, "Task list cache is incomplete: " + file.getName());
+        } catch (IOException e) {
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+        } catch (JSONException e) {
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+        } catch (RuntimeException e) {
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+        } finally {
+            closeQuietly(reader);
+        }
+        file.delete();
+        return false;
+    }
+
+    /**
+     * 开始写入任务列表的缓存，任务在下载时逐个写入
+     * @param gid 任务列表的gid
+     * @param lastModified 列表的修改时间
+     * @return 写入缓存的回调，无法写入时返回null
+     */
+    public Editor edit(String gid, long lastModified) {
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            Log.e(TAG, "Create task list cache directory failed");
+            return null;
+        }
+        File file = getFile(gid);
+        File temp = new File(mDir, file.getName() + ".tmp");
+        try {
+            Editor editor = new Editor(file, temp);
+            editor.write("{\"" + KEY_LAST_MODIFIED + "\":" + lastModified
+                    + ",\"" + KEY_TASKS + "\":[");
+            return editor;
+        } catch (IOException e) {
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+            temp.delete();
+            return null;
+        }
+    }
+
+    /**
+     * 任务列表缓存的写入
+     * 先写入临时文件，全部写完后替换原来的缓存；写入失败只影响缓存，不影响同步
+     */
+    public static class Editor implements RemoteJsonParser.TaskHandler {
+        // 缓存文件
+        private final File mFile;
+
+        // 写入中的临时文件
+        private final File mTemp;
+
+        private Writer mWriter;
+
+        // 是否还没有写入任务
+        private boolean mFirst;
+
+        private Editor(File file, File temp) throws IOException {
+            mFile = file;
+            mTemp = temp;
+            mWriter = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(temp), StandardCharsets.UTF_8));
+            mFirst = true;
+        }
+
+        public void onTask(JSONObject js) {
+            if (mWriter == null) {
+                return;
+            }
+            try {
+                if (!mFirst) {
+                    mWriter.write(',');
+                }
+                mFirst = false;
+                write(js.toString());
+            } catch (IOException e) {
+                Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+                abort();
+            }
+        }
+
+        /**
+         * 所有任务写入完成，替换原来的缓存
+         */
+        public void commit() {
+            if (mWriter == null) {
+                return;
+            }
+            try {
+                write("]}");
+                mWriter.close();
+                mWriter = null;
+                if (!mTemp.renameTo(mFile)) {
+                    Log.e(TAG, "Rename task list cache failed: " + mTemp.getName());
+                    mTemp.delete();
+                }
+            } catch (IOException e) {
+                Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+                abort();
+            }
+        }
+
+        /**
+         * 放弃写入，原来的缓存不变
+         */
+        public void abort() {
+            closeQuietly(mWriter);
+            mWriter = null;
+            mTemp.delete();
+        }
+
+        private void write(String s) throws IOException {
+            mWriter.write(s);
+        }
+    }
+
+    /**
+     * 删除已经不存在的任务列表的缓存
+     * @param gids 服务器上现有的任务列表
+     */
+    public void retain(Set<String> gids) {
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        HashSet<String> names = new HashSet<String>();
+        for (String gid : gids) {
+            names.add(toFileName(gid));
+        }
+        for (File file : files) {
+            if (!names.contains(file.getName())) {
+                file.delete();
+            }
+        }
+    }
+
+    private File getFile(String gid) {
+        return new File(mDir, toFileName(gid));
+    }
+
+    /**
+     * gid和账户名可能含有不能用于文件名的字符，按UTF-8字节转成十六进制
+     */
+    private static String toFileName(String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+            }
+        }
+    }
+}
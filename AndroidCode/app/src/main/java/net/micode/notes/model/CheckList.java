@@ -0,0 +1,733 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.model;
+
+import android.text.TextUtils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+
+/**
+ * 待办事项清单模型
+ * 保存清单模式下的所有列表项，编辑界面只为可见的列表项创建视图。
+ * 插入和删除只影响对应的列表项。清单的文本形式保存在一个缓冲区中，每个列表项记录自己片段的
+ * 长度和起点，修改一个列表项只重新生成它的片段并替换缓冲区中对应的一段。
+ * 使用结构化存储时，每个列表项对应一行数据，清单记录发生变化的列表项，
+ * 保存时只写入这些行。文本行保存列表项文本有变化时的带前缀标记的文本，供摘要和搜索使用；
+ * 勾选和移动只写列表项自己的行，同步和备份使用的交换格式按列表项生成。
+ * 文本行被同步改写后，加载时按它调整列表项。
+ * 清单由编辑界面在主线程修改，由保存线程读取变化，所有状态的访问都在清单的锁内进行。
+ */
+public class CheckList {
+    // 已完成列表项的前缀标记
+    public static final String TAG_CHECKED = String.valueOf('\u221A');
+
+    // 未完成列表项的前缀标记
+    public static final String TAG_UNCHECKED = String.valueOf('\u25A1');
+
+    // 相邻列表项排序键的默认间隔，插入时取前后两项的中间值
+    private static final long ORDER_STEP = 1 << 16;
+
+    /**
+     * 单个列表项
+     */
+    public static class Item {
+        // 列表项文本，不含前缀标记
+        private String mText;
+
+        // 是否已完成
+        private boolean mChecked;
+
+        // 对应的数据行ID，尚未保存时为0
+        private long mId;
+
+        // 排序键
+        private long mOrder;
+
+        // 是否有未保存的修改
+        private boolean mDirty;
+
+        // 修改版本号，保存期间列表项再次被修改时不清除修改标记
+        private int mVersion;
+
+        // 是否已从清单中移除
+        private boolean mRemoved;
+
+        // 文本形式中该列表项片段的长度，空列表项为0
+        private int mLength;
+
+        // 文本形式中该列表项片段的起点，只有位置小于mValidOffsets的列表项是最新的
+        private int mOffset;
+
+        public Item(String text, boolean checked) {
+            mText = text == null ? "" : text;
+            mChecked = checked;
+            mDirty = true;
+        }
+
+        public String getText() {
+            return mText;
+        }
+
+        public boolean isChecked() {
+            return mChecked;
+        }
+
+        public long getId() {
+            return mId;
+        }
+
+        public long getOrder() {
+            return mOrder;
+        }
+
+        public boolean isDirty() {
+            return mDirty;
+        }
+
+        private void markDirty() {
+            mDirty = true;
+            mVersion++;
+        }
+    }
+
+    /**
+     * 单个列表项待保存内容的快照
+     */
+    public static class ItemChange {
+        // 对应的列表项
+        private final Item mItem;
+
+        // 快照时的数据行ID，尚未保存时为0
+        private final long mId;
+
+        // 快照时的文本
+        private final String mText;
+
+        // 快照时的完成状态
+        private final boolean mChecked;
+
+        // 快照时的排序键
+        private final long mOrder;
+
+        // 快照时的修改版本号
+        private final int mVersion;
+
+        private ItemChange(Item item) {
+            mItem = item;
+            mId = item.mId;
+            mText = item.mText;
+            mChecked = item.mChecked;
+            mOrder = item.mOrder;
+            mVersion = item.mVersion;
+        }
+
+        public long getId() {
+            return mId;
+        }
+
+        public String getText() {
+            return mText;
+        }
+
+        public boolean isChecked() {
+            return mChecked;
+        }
+
+        public long getOrder() {
+            return mOrder;
+        }
+    }
+
+    /**
+     * 清单变化监听器，用于按操作记录编辑过程
+     * 删除和修改文本时同时给出原来的内容，撤销时不必再查询清单
+     * 回调在清单的锁内执行，不应再访问清单
+     */
+    public interface OnChangeListener {
+        void onItemInserted(int index, String text, boolean checked);
+
+        void onItemRemoved(int index, String text, boolean checked);
+
+        void onItemMoved(int from, int to);
+
+        void onItemTextChanged(int index, String oldText, String text);
+
+        void onItemCheckedChanged(int index, boolean checked);
+
+        void onCleared();
+    }
+
+    /**
+     * 一次保存需要写入的全部变化，由{@link #takeChanges()}取出
+     */
+    public static class Changes {
+        // 需要删除的数据行ID
+        private final ArrayList<Long> mRemovedIds;
+
+        // 需要插入、更新或删除的列表项
+        private final ArrayList<ItemChange> mItems;
+
+        // 取出时清单的文本形式是否有变化
+        private final boolean mContentChanged;
+
+        private Changes(ArrayList<Long> removedIds, ArrayList<ItemChange> items,
+                boolean contentChanged) {
+            mRemovedIds = removedIds;
+            mItems = items;
+            mContentChanged = contentChanged;
+        }
+
+        public ArrayList<Long> getRemovedIds() {
+            return mRemovedIds;
+        }
+
+        public ArrayList<ItemChange> getItems() {
+            return mItems;
+        }
+
+        public boolean isEmpty() {
+            return mRemovedIds.isEmpty() && mItems.isEmpty();
+        }
+    }
+
+    // 所有列表项
+    private final ArrayList<Item> mItems;
+
+    // 已完成且非空的列表项数量
+    private int mCheckedCount;
+
+    // 清单的文本形式，随列表项的修改逐段更新
+    private final StringBuilder mBuffer;
+
+    // 片段起点有效的列表项个数，之后的列表项在使用时从前一项推算
+    private int mValidOffsets;
+
+    // 缓冲区内容的字符串形式，缓冲区变化后置为null
+    private String mContent;
+
+    // 已删除但尚未从数据库移除的列表项数据行ID
+    private final ArrayList<Long> mRemovedIds;
+
+    // 列表项的增删和文本修改是否有未写入文本行的变化，勾选和移动不计在内
+    private boolean mContentChanged;
+
+    // 清单变化监听器
+    private OnChangeListener mListener;
+
+    public CheckList() {
+        mItems = new ArrayList<Item>();
+        mRemovedIds = new ArrayList<Long>();
+        mCheckedCount = 0;
+        mBuffer = new StringBuilder();
+        mValidOffsets = 0;
+        mContent = "";
+        mContentChanged = false;
+    }
+
+    /**
+     * 从便签文本解析清单，每个非空行是一个列表项
+     * @param content 便签文本
+     * @return 解析出的清单
+     */
+    public static CheckList parse(String content) {
+        CheckList list = new CheckList();
+        if (content == null) {
+            return list;
+        }
+        String[] lines = content.split("\n");
+        list.mItems.ensureCapacity(lines.length + 1);
+        for (String line : lines) {
+            if (TextUtils.isEmpty(line)) {
+                continue;
+            }
+            boolean checked = false;
+            if (line.startsWith(TAG_CHECKED)) {
+                checked = true;
+                line = line.substring(TAG_CHECKED.length()).trim();
+            } else if (line.startsWith(TAG_UNCHECKED)) {
+                line = line.substring(TAG_UNCHECKED.length()).trim();
+            }
+            Item item = new Item(line, checked);
+            item.mOrder = (list.mItems.size() + 1) * ORDER_STEP;
+            list.append(item);
+        }
+        list.mContentChanged = true;
+        return list;
+    }
+
+    /**
+     * 追加一个从数据库读出的列表项，调用者需按排序键升序追加
+     * @param id 数据行ID
+     * @param text 列表项文本
+     * @param checked 是否已完成
+     * @param order 排序键
+     */
+    public synchronized void addSaved(long id, String text, boolean checked, long order) {
+        Item item = new Item(text, checked);
+        item.mId = id;
+        item.mOrder = order;
+        item.mDirty = false;
+        append(item);
+    }
+
+    /**
+     * 设置清单变化监听器，从数据库读出列表项不会触发回调
+     * @param listener 清单变化监听器，为null时取消监听
+     */
+    public synchronized void setOnChangeListener(OnChangeListener listener) {
+        mListener = listener;
+    }
+
+    public synchronized int size() {
+        return mItems.size();
+    }
+
+    public synchronized Item get(int index) {
+        return mItems.get(index);
+    }
+
+    /**
+     * 在指定位置插入列表项
+     * @param index 插入位置
+     * @param text 列表项文本
+     * @param checked 是否已完成
+     */
+    public synchronized void insert(int index, String text, boolean checked) {
+        Item item = new Item(text, checked);
+        int offset = offsetOf(index);
+        mItems.add(index, item);
+        assignOrder(index);
+        if (countsAsChecked(item)) {
+            mCheckedCount++;
+        }
+        insertFragment(index, offset);
+        mContentChanged = true;
+        if (mListener != null) {
+            mListener.onItemInserted(index, item.mText, checked);
+        }
+    }
+
+    /**
+     * 删除指定位置的列表项
+     * @param index 列表项位置
+     * @return 被删除的列表项
+     */
+    public synchronized Item remove(int index) {
+        removeFragment(index);
+        Item item = mItems.remove(index);
+        item.mRemoved = true;
+        if (countsAsChecked(item)) {
+            mCheckedCount--;
+        }
+        if (item.mId > 0) {
+            mRemovedIds.add(item.mId);
+        }
+        mContentChanged = true;
+        if (mListener != null) {
+            mListener.onItemRemoved(index, item.mText, item.mChecked);
+        }
+        return item;
+    }
+
+    /**
+     * 移动列表项，只有被移动的列表项需要重新保存，不需要改写文本行
+     * @param from 原位置
+     * @param to 新位置
+     */
+    public synchronized void move(int from, int to) {
+        if (from == to) {
+            return;
+        }
+        removeFragment(from);
+        Item item = mItems.remove(from);
+        int offset = offsetOf(to);
+        mItems.add(to, item);
+        assignOrder(to);
+        insertFragment(to, offset);
+        if (mListener != null) {
+            mListener.onItemMoved(from, to);
+        }
+    }
+
+    /**
+     * 删除所有列表项，已保存的列表项在下次保存时从数据库移除
+     */
+    public synchronized void clear() {
+        for (Item item : mItems) {
+            item.mRemoved = true;
+            if (item.mId > 0) {
+                mRemovedIds.add(item.mId);
+            }
+        }
+        mItems.clear();
+        mCheckedCount = 0;
+        mBuffer.setLength(0);
+        mValidOffsets = 0;
+        mContent = null;
+        mContentChanged = true;
+        if (mListener != null) {
+            mListener.onCleared();
+        }
+    }
+
+    /**
+     * 修改列表项文本
+     * @param index 列表项位置
+     * @param text 新的文本
+     */
+    public synchronized void setText(int index, String text) {
+        Item item = mItems.get(index);
+        if (TextUtils.equals(item.mText, text)) {
+            return;
+        }
+        boolean counted = countsAsChecked(item);
+        String oldText = item.mText;
+        item.mText = text == null ? "" : text;
+        item.markDirty();
+        if (counted != countsAsChecked(item)) {
+            mCheckedCount += counted ? -1 : 1;
+        }
+        replaceFragment(index);
+        mContentChanged = true;
+        if (mListener != null) {
+            mListener.onItemTextChanged(index, oldText, item.mText);
+        }
+    }
+
+    /**
+     * 修改列表项的完成状态，只有该列表项需要重新保存，不需要改写文本行
+     * @param index 列表项位置
+     * @param checked 是否已完成
+     */
+    public synchronized void setChecked(int index, boolean checked) {
+        Item item = mItems.get(index);
+        if (item.mChecked == checked) {
+            return;
+        }
+        boolean counted = countsAsChecked(item);
+        item.mChecked = checked;
+        item.markDirty();
+        if (counted != countsAsChecked(item)) {
+            mCheckedCount += counted ? -1 : 1;
+        }
+        replaceFragment(index);
+        if (mListener != null) {
+            mListener.onItemCheckedChanged(index, checked);
+        }
+    }
+
+    /**
+     * 是否存在已完成的非空列表项
+     */
+    public synchronized boolean hasChecked() {
+        return mCheckedCount > 0;
+    }
+
+    /**
+     * 获取清单的文本形式，空列表项不会输出
+     * 缓冲区已随修改逐段更新，这里只复制一次；清单未变化时直接返回上次的结果
+     * @return 带前缀标记的便签文本
+     */
+    public synchronized String getContent() {
+        if (mContent == null) {
+            mContent = mBuffer.toString();
+        }
+        return mContent;
+    }
+
+    /**
+     * 获取清单文本形式的长度，不生成字符串
+     */
+    synchronized int getContentLength() {
+        return mBuffer.length();
+    }
+
+    /**
+     * 获取不带前缀标记的列表项文本，每行一项
+     * 用于退出清单模式时的转换，以及识别旧版本写入的文本行
+     * @return 列表项文本
+     */
+    public synchronized String getPlainContent() {
+        StringBuilder sb = new StringBuilder();
+        for (Item item : mItems) {
+            if (!TextUtils.isEmpty(item.mText)) {
+                sb.append(item.mText).append("\n");
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 是否有尚未保存的修改
+     */
+    public synchronized boolean isDirty() {
+        if (mContentChanged || !mRemovedIds.isEmpty()) {
+            return true;
+        }
+        for (Item item : mItems) {
+            if (item.mDirty && (item.mId > 0 || !TextUtils.isEmpty(item.mText))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 列表项的增删或文本是否有尚未写入文本行的变化，只勾选或移动列表项时返回false
+     */
+    public synchronized boolean isContentChanged() {
+        return mContentChanged;
+    }
+
+    /**
+     * 按文本行调整列表项，用于文本行被同步改写之后
+     * 文本相同的列表项沿用原来的数据行，只更新完成状态和排序键，
+     * 文本行中没有的列表项在下次保存时删除，新出现的列表项在下次保存时插入。
+     * 从数据库读出列表项后调用，不会触发清单变化的回调
+     * @param content 文本行的内容
+     * @return 列表项有变化返回true，否则返回false
+     */
+    public synchronized boolean reconcile(String content) {
+        if (content == null) {
+            content = "";
+        }
+        if (content.equals(getContent())) {
+            return false;
+        }
+        if (content.equals(getPlainContent())) {
+            // 旧版本的文本行不带前缀标记，以列表项为准，下次保存时写入交换格式
+            mContentChanged = true;
+            return false;
+        }
+
+        // 同一文本的多个列表项按原来的顺序依次沿用
+        HashMap<String, ArrayDeque<Item>> saved = new HashMap<String, ArrayDeque<Item>>();
+        for (Item item : mItems) {
+            ArrayDeque<Item> items = saved.get(item.mText);
+            if (items == null) {
+                items = new ArrayDeque<Item>();
+                saved.put(item.mText, items);
+            }
+            items.add(item);
+        }
+
+        CheckList parsed = parse(content);
+        mItems.clear();
+        mCheckedCount = 0;
+        mBuffer.setLength(0);
+        mValidOffsets = 0;
+        for (int i = 0; i < parsed.mItems.size(); i++) {
+            Item target = parsed.mItems.get(i);
+            ArrayDeque<Item> candidates = saved.get(target.mText);
+            Item item = candidates == null ? null : candidates.poll();
+            if (item == null) {
+                item = target;
+            } else if (item.mChecked != target.mChecked || item.mOrder != target.mOrder) {
+                item.mChecked = target.mChecked;
+                item.mOrder = target.mOrder;
+                item.markDirty();
+            }
+            append(item);
+        }
+        for (ArrayDeque<Item> items : saved.values()) {
+            for (Item item : items) {
+                item.mRemoved = true;
+                if (item.mId > 0) {
+                    mRemovedIds.add(item.mId);
+                }
+            }
+        }
+        // 文本行不是规范格式时，下次保存写回规范的文本
+        mContentChanged = !content.equals(getContent());
+        return true;
+    }
+
+    /**
+     * 取出待保存的变化，列表项的修改标记在{@link #commitChanges}中才清除
+     * 取出后清单可以继续修改，不会影响正在进行的保存
+     * @return 待保存的变化
+     */
+    public synchronized Changes takeChanges() {
+        ArrayList<ItemChange> items = new ArrayList<ItemChange>();
+        for (Item item : mItems) {
+            if (item.mDirty && (item.mId > 0 || !TextUtils.isEmpty(item.mText))) {
+                items.add(new ItemChange(item));
+            }
+        }
+        Changes changes = new Changes(new ArrayList<Long>(mRemovedIds), items, mContentChanged);
+        mRemovedIds.clear();
+        mContentChanged = false;
+        return changes;
+    }
+
+    /**
+     * 变化写入数据库后调用，回填新插入行的ID
+     * 保存期间再次被修改的列表项保留修改标记，保存期间被移除的新列表项在下次保存时删除
+     * @param changes {@link #takeChanges()}取出的变化
+     * @param newIds 与{@link Changes#getItems()}一一对应，新插入行的ID，其余为0
+     */
+    public synchronized void commitChanges(Changes changes, long[] newIds) {
+        for (int i = 0; i < changes.mItems.size(); i++) {
+            ItemChange change = changes.mItems.get(i);
+            Item item = change.mItem;
+            long id;
+            if (TextUtils.isEmpty(change.mText)) {
+                id = 0;
+            } else {
+                id = change.mId == 0 ? newIds[i] : change.mId;
+            }
+            if (item.mRemoved) {
+                if (change.mId == 0 && id > 0) {
+                    mRemovedIds.add(id);
+                }
+                continue;
+            }
+            item.mId = id;
+            if (item.mVersion == change.mVersion) {
+                item.mDirty = false;
+            }
+        }
+    }
+
+    /**
+     * 写入数据库失败后调用，恢复取出的变化以便下次重试
+     * @param changes {@link #takeChanges()}取出的变化
+     */
+    public synchronized void rollbackChanges(Changes changes) {
+        mRemovedIds.addAll(0, changes.mRemovedIds);
+        if (changes.mContentChanged) {
+            mContentChanged = true;
+        }
+    }
+
+    /**
+     * 为指定位置的列表项分配位于前后两项之间的排序键
+     * 没有可用的间隔时重新为所有列表项分配排序键
+     * @param index 列表项位置
+     */
+    private void assignOrder(int index) {
+        Item item = mItems.get(index);
+        long prev = index > 0 ? mItems.get(index - 1).mOrder : 0;
+        if (index + 1 < mItems.size()) {
+            long next = mItems.get(index + 1).mOrder;
+            if (next - prev > 1) {
+                item.mOrder = prev + (next - prev) / 2;
+            } else {
+                for (int i = 0; i < mItems.size(); i++) {
+                    Item it = mItems.get(i);
+                    it.mOrder = (i + 1) * ORDER_STEP;
+                    it.markDirty();
+                }
+            }
+        } else {
+            item.mOrder = prev + ORDER_STEP;
+        }
+        item.markDirty();
+    }
+
+    /**
+     * 在末尾追加列表项及其片段，用于解析和读出已保存的列表项
+     */
+    private void append(Item item) {
+        int index = mItems.size();
+        int offset = offsetOf(index);
+        mItems.add(item);
+        if (countsAsChecked(item)) {
+            mCheckedCount++;
+        }
+        insertFragment(index, offset);
+    }
+
+    /**
+     * 获取指定位置的列表项片段在缓冲区中的起点，位置等于列表项数时为缓冲区末尾
+     * 从最后一个有效的起点向后推算，连续编辑同一处时不需要推算
+     */
+    private int offsetOf(int index) {
+        if (index < mValidOffsets) {
+            return mItems.get(index).mOffset;
+        }
+        int offset = 0;
+        if (mValidOffsets > 0) {
+            Item last = mItems.get(mValidOffsets - 1);
+            offset = last.mOffset + last.mLength;
+        }
+        int end = Math.min(index, mItems.size());
+        for (int i = mValidOffsets; i < end; i++) {
+            Item item = mItems.get(i);
+            item.mOffset = offset;
+            offset += item.mLength;
+        }
+        mValidOffsets = end;
+        return offset;
+    }
+
+    /**
+     * 把已加入清单的列表项的片段插入缓冲区
+     * @param index 列表项位置
+     * @param offset 加入清单前用{@link #offsetOf}取得的该位置的片段起点
+     */
+    private void insertFragment(int index, int offset) {
+        Item item = mItems.get(index);
+        String fragment = fragmentOf(item);
+        mBuffer.insert(offset, fragment);
+        item.mOffset = offset;
+        item.mLength = fragment.length();
+        // 取得起点时已推算到该位置，之后的列表项位置和起点都变了
+        mValidOffsets = index + 1;
+        mContent = null;
+    }
+
+    /**
+     * 从缓冲区删除仍在清单中的列表项的片段
+     */
+    private void removeFragment(int index) {
+        Item item = mItems.get(index);
+        int offset = offsetOf(index);
+        mBuffer.delete(offset, offset + item.mLength);
+        item.mLength = 0;
+        mValidOffsets = Math.min(mValidOffsets, index);
+        mContent = null;
+    }
+
+    /**
+     * 列表项的文本或完成状态变化后，只重新生成它的片段
+     */
+    private void replaceFragment(int index) {
+        Item item = mItems.get(index);
+        int offset = offsetOf(index);
+        String fragment = fragmentOf(item);
+        mBuffer.replace(offset, offset + item.mLength, fragment);
+        item.mOffset = offset;
+        item.mLength = fragment.length();
+        mValidOffsets = index + 1;
+        mContent = null;
+    }
+
+    private static String fragmentOf(Item item) {
+        if (TextUtils.isEmpty(item.mText)) {
+            return "";
+        }
+        return (item.mChecked ? TAG_CHECKED : TAG_UNCHECKED) + " " + item.mText + "\n";
+    }
+
+    private static boolean countsAsChecked(Item item) {
+        return item.mChecked && !TextUtils.isEmpty(item.mText);
+    }
+}
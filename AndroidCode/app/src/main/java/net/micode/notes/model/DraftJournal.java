@@ -0,0 +1,997 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.model;
+
+import android.content.Context;
+import android.util.Log;
+
+import net.micode.notes.data.Notes.TextNote;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * 便签草稿日志
+ * 编辑时把每次输入的增量追加到便签专属的日志文件，进程意外退出后下次打开便签时重放，
+ * 不需要为了不丢失输入而频繁整行写入数据库。
+ * 日志由若干段组成，段头保存该段开始时的完整文本，当前段超过大小上限时保存才开始新的一段，
+ * 保存完成后删除之前的段。重放时从最后一段的段头开始，数据库内容须是重放经过的某个状态。
+ * 记录先写入内存缓冲区，由后台线程定期批量顺序写入文件并同步到磁盘，段头也在后台线程生成。
+ */
+public class DraftJournal implements CheckList.OnChangeListener {
+    // 日志标签
+    private static final String TAG = "DraftJournal";
+
+    // 日志文件所在目录名
+    private static final String DIR_NAME = "drafts";
+
+    // 尚未保存的新便签使用的日志名
+    private static final String NEW_NOTE_KEY = "new";
+
+    // 日志文件后缀
+    private static final String SUFFIX = ".jnl";
+
+    // 撤销历史文件后缀
+    private static final String HISTORY_SUFFIX = ".undo";
+
+    // 新便签保存后记录其ID的文件后缀
+    private static final String CREATED_SUFFIX = ".created";
+
+    // 批量写入并同步到磁盘的间隔（毫秒）
+    private static final long SYNC_INTERVAL = 500;
+
+    // 段头标记
+    private static final int MAGIC = 0x4d434a32;
+
+    // 当前段的记录超过该大小（字节）时，保存才开始新的一段
+    private static final int MAX_SEGMENT_SIZE = 256 * 1024;
+
+    // 记录类型：普通模式的文本替换
+    private static final int RECORD_EDIT = 1;
+
+    // 记录类型：插入列表项
+    private static final int RECORD_ITEM_INSERT = 2;
+
+    // 记录类型：删除列表项
+    private static final int RECORD_ITEM_REMOVE = 3;
+
+    // 记录类型：移动列表项
+    private static final int RECORD_ITEM_MOVE = 4;
+
+    // 记录类型：修改列表项文本
+    private static final int RECORD_ITEM_TEXT = 5;
+
+    // 记录类型：修改列表项完成状态
+    private static final int RECORD_ITEM_CHECKED = 6;
+
+    // 记录类型：清空列表
+    private static final int RECORD_ITEM_CLEAR = 7;
+
+    // 所有日志共用的文件写入线程
+    private static final ScheduledExecutorService sIoExecutor =
+            Executors.newSingleThreadScheduledExecutor();
+
+    /**
+     * 从日志恢复的草稿
+     */
+    public static class Draft {
+        // 恢复后的便签模式
+        private final int mMode;
+
+        // 恢复后的文本，清单模式下为带前缀标记的文本
+        private final String mText;
+
+        private Draft(int mode, String text) {
+            mMode = mode;
+            mText = text;
+        }
+
+        public int getMode() {
+            return mMode;
+        }
+
+        public String getText() {
+            return mText;
+        }
+    }
+
+    // 日志文件目录
+    private final File mDir;
+
+    // 尚未写入文件的记录
+    private final ByteArrayOutputStream mPending;
+
+    // 写入mPending的数据流
+    private final DataOutputStream mRecordOut;
+
+    // 当前段的序号
+    private long mSequence;
+
+    // 当前段开始时的文本，第一次追加记录时才交给写入线程生成段头，没有输入的段不会产生文件
+    private Object mBase;
+
+    // 当前段开始时的便签模式
+    private int mBaseMode;
+
+    // 当前段开始时空列表项的位置
+    private int[] mBaseEmptyItems;
+
+    // 当前段已交给写入线程的记录大小
+    private long mSegmentSize;
+
+    // 当前段是否接受记录，切换模式期间暂停
+    private boolean mActive;
+
+    // 是否已安排批量写入
+    private boolean mFlushScheduled;
+
+    // 日志名，只在写入线程访问
+    private String mKey;
+
+    // 当前打开的段序号，只在写入线程访问
+    private long mOpenSequence;
+
+    // 当前打开的段文件，只在写入线程访问
+    private FileOutputStream mOut;
+
+    /**
+     * 打开便签的草稿日志，新的段序号排在已有的段之后
+     * @param context 上下文对象
+     * @param noteId 便签ID，新便签为0
+     */
+    public DraftJournal(Context context, long noteId) {
+        mDir = getDir(context);
+        mPending = new ByteArrayOutputStream();
+        mRecordOut = new DataOutputStream(mPending);
+        mKey = getKey(noteId);
+        mSequence = 0;
+        for (long sequence : listSequences(mDir, mKey)) {
+            mSequence = Math.max(mSequence, sequence);
+        }
+        mActive = false;
+    }
+
+    /**
+     * 以清单开始新的一段，之前未写入的记录立即交给写入线程
+     * @param mode 便签模式
+     * @param base 清单带前缀标记的文本
+     * @param emptyItems 清单中空列表项的位置，按升序排列
+     * @return 新段的序号，保存完成后传给{@link #compact(long, long)}
+     */
+    public synchronized long begin(int mode, String base, int[] emptyItems) {
+        return beginSegment(mode, base, emptyItems);
+    }
+
+    /**
+     * 以普通模式的文本开始新的一段，快照只在写入段头时才在写入线程上生成字符串
+     * @param mode 便签模式
+     * @param base 当前工作文本的快照
+     * @return 新段的序号，保存完成后传给{@link #compact(long, long)}
+     */
+    public synchronized long begin(int mode, NoteText.Snapshot base) {
+        return beginSegment(mode, base, null);
+    }
+
+    private long beginSegment(int mode, Object base, int[] emptyItems) {
+        dispatchPending();
+        mSequence++;
+        mBase = base;
+        mBaseMode = mode;
+        mBaseEmptyItems = emptyItems;
+        mSegmentSize = 0;
+        mActive = true;
+        return mSequence;
+    }
+
+    /**
+     * 当前段被暂停或记录超过大小上限时需要开始新的一段，否则保存时继续追加到当前段
+     */
+    public synchronized boolean needsNewSegment() {
+        return !mActive || mSegmentSize + mPending.size() > MAX_SEGMENT_SIZE;
+    }
+
+    /**
+     * @return 当前段的序号
+     */
+    public synchronized long getSequence() {
+        return mSequence;
+    }
+
+    /**
+     * 暂停记录，直到下一次{@link #begin}
+     * 用于模式切换等整体替换文本的操作
+     */
+    public synchronized void suspend() {
+        mActive = false;
+    }
+
+    /**
+     * 记录普通模式下的一次文本替换
+     * @param start 替换的起始位置
+     * @param before 被替换的字符数
+     * @param text 新的文本
+     */
+    public synchronized void appendEdit(int start, int before, CharSequence text) {
+        if (!prepareRecord()) {
+            return;
+        }
+        try {
+            mRecordOut.writeByte(RECORD_EDIT);
+            mRecordOut.writeInt(start);
+            mRecordOut.writeInt(before);
+            writeString(mRecordOut, text.toString());
+        } catch (IOException e) {
+            // 写入内存不会失败
+        }
+        scheduleFlush();
+    }
+
+    public synchronized void onItemInserted(int index, String text, boolean checked) {
+        if (!prepareRecord()) {
+            return;
+        }
+        try {
+            mRecordOut.writeByte(RECORD_ITEM_INSERT);
+            mRecordOut.writeInt(index);
+            mRecordOut.writeBoolean(checked);
+            writeString(mRecordOut, text);
+        } catch (IOException e) {
+            // 写入内存不会失败
+        }
+        scheduleFlush();
+    }
+
+    public synchronized void onItemRemoved(int index, String text, boolean checked) {
+        if (!prepareRecord()) {
+            return;
+        }
+        try {
+            mRecordOut.writeByte(RECORD_ITEM_REMOVE);
+            mRecordOut.writeInt(index);
+        } catch (IOException e) {
+            // 写入内存不会失败
+        }
+        scheduleFlush();
+    }
+
+    public synchronized void onItemMoved(int from, int to) {
+        if (!prepareRecord()) {
+            return;
+        }
+        try {
+            mRecordOut.writeByte(RECORD_ITEM_MOVE);
+            mRecordOut.writeInt(from);
+            mRecordOut.writeInt(to);
+        } catch (IOException e) {
+            // 写入内存不会失败
+        }
+        scheduleFlush();
+    }
+
+    public synchronized void onItemTextChanged(int index, String oldText, String text) {
+        if (!prepareRecord()) {
+            return;
+        }
+        try {
+            mRecordOut.writeByte(RECORD_ITEM_TEXT);
+            mRecordOut.writeInt(index);
+            writeString(mRecordOut, text);
+        } catch (IOException e) {
+            // 写入内存不会失败
+        }
+        scheduleFlush();
+    }
+
+    public synchronized void onItemCheckedChanged(int index, boolean checked) {
+        if (!prepareRecord()) {
+            return;
+        }
+        try {
+            mRecordOut.writeByte(RECORD_ITEM_CHECKED);
+            mRecordOut.writeInt(index);
+            mRecordOut.writeBoolean(checked);
+        } catch (IOException e) {
+            // 写入内存不会失败
+        }
+        scheduleFlush();
+    }
+
+    public synchronized void onCleared() {
+        if (!prepareRecord()) {
+            return;
+        }
+        try {
+            mRecordOut.writeByte(RECORD_ITEM_CLEAR);
+        } catch (IOException e) {
+            // 写入内存不会失败
+        }
+        scheduleFlush();
+    }
+
+    /**
+     * 便签内容写入数据库后删除之前的段
+     * 新便签得到ID后，之后的段改用便签ID命名，并记录ID供{@link #readCreatedNoteId}查找
+     * @param sequence 保存开始时{@link #begin}返回的段序号
+     * @param noteId 保存后的便签ID
+     */
+    public void compact(final long sequence, final long noteId) {
+        sIoExecutor.execute(new Runnable() {
+            public void run() {
+                for (long s : listSequences(mDir, mKey)) {
+                    if (s < sequence) {
+                        deleteSegment(mKey, s);
+                    }
+                }
+                String key = getKey(noteId);
+                if (!key.equals(mKey)) {
+                    closeSegment();
+                    for (long s : listSequences(mDir, mKey)) {
+                        File from = getSegmentFile(mDir, mKey, s);
+                        if (!from.renameTo(getSegmentFile(mDir, key, s))) {
+                            Log.e(TAG, "Rename draft segment failed: " + from.getName());
+                        }
+                    }
+                    File history = getHistoryFile(mDir, mKey);
+                    if (history.exists() && !history.renameTo(getHistoryFile(mDir, key))) {
+                        Log.e(TAG, "Rename edit history failed: " + history.getName());
+                    }
+                    if (NEW_NOTE_KEY.equals(mKey)) {
+                        writeCreatedNoteId(noteId);
+                    }
+                    mKey = key;
+                }
+            }
+        });
+    }
+
+    /**
+     * 写入剩余的记录并关闭日志，已有的段保留到下次保存
+     */
+    public void close() {
+        synchronized (this) {
+            dispatchPending();
+            mActive = false;
+        }
+        sIoExecutor.execute(new Runnable() {
+            public void run() {
+                closeSegment();
+            }
+        });
+    }
+
+    /**
+     * 丢弃日志的全部内容，用于便签被删除时
+     */
+    public void discard() {
+        synchronized (this) {
+            mPending.reset();
+            mActive = false;
+        }
+        sIoExecutor.execute(new Runnable() {
+            public void run() {
+                closeSegment();
+                for (long s : listSequences(mDir, mKey)) {
+                    deleteSegment(mKey, s);
+                }
+                File history = getHistoryFile(mDir, mKey);
+                if (history.exists() && !history.delete()) {
+                    Log.w(TAG, "Delete edit history failed: " + history.getName());
+                }
+            }
+        });
+    }
+
+    /**
+     * 把序列化的撤销历史写到日志旁边，界面重建后可以继续撤销
+     * 交给写入线程后立即返回，先写临时文件再改名，不会留下写了一半的文件
+     * @param context 上下文对象
+     * @param noteId 便签ID，新便签为0
+     * @param data 序列化的撤销历史，调用后不能再修改
+     */
+    public static void writeHistory(Context context, final long noteId, final byte[] data) {
+        final File dir = getDir(context);
+        sIoExecutor.execute(new Runnable() {
+            public void run() {
+                writeHistoryFile(dir, getKey(noteId), data);
+            }
+        });
+    }
+
+    private static void writeHistoryFile(File dir, String key, byte[] data) {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.e(TAG, "Create draft directory failed");
+            return;
+        }
+        File file = getHistoryFile(dir, key);
+        File temp = new File(dir, file.getName() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            out.write(data);
+            out.close();
+            out = null;
+            if (!temp.renameTo(file)) {
+                Log.e(TAG, "Rename edit history failed: " + temp.getName());
+            }
+        } catch (IOException e) {
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+                }
+            }
+        }
+    }
+
+    /**
+     * 读取{@link #writeHistory}保存的撤销历史
+     * @param context 上下文对象
+     * @param noteId 便签ID，新便签为0
+     * @return 序列化的撤销历史，没有保存过时返回null
+     */
+    public static byte[] readHistory(Context context, long noteId) {
+        File file = getHistoryFile(getDir(context), getKey(noteId));
+        if (!file.isFile()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            byte[] data = new byte[(int) file.length()];
+            in = new DataInputStream(new FileInputStream(file));
+            in.readFully(data);
+            return data;
+        } catch (IOException e) {
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+                }
+            }
+        }
+    }
+
+    /**
+     * 删除保存的撤销历史，用于退出编辑时
+     * 交给写入线程，排在之前提交的{@link #writeHistory}之后
+     * @param context 上下文对象
+     * @param noteId 便签ID
+     */
+    public static void deleteHistory(Context context, final long noteId) {
+        final File dir = getDir(context);
+        sIoExecutor.execute(new Runnable() {
+            public void run() {
+                File file = getHistoryFile(dir, getKey(noteId));
+                if (file.exists() && !file.delete()) {
+                    Log.w(TAG, "Delete edit history failed: " + file.getName());
+                }
+            }
+        });
+    }
+
+    /**
+     * 开始编辑新便签时清除上一个新便签留下的撤销历史和创建记录
+     * 同步删除，之后的{@link #readHistory}和{@link #readCreatedNoteId}不会再读到旧的内容
+     * @param context 上下文对象
+     */
+    public static void resetNewNote(Context context) {
+        File dir = getDir(context);
+        File history = getHistoryFile(dir, NEW_NOTE_KEY);
+        if (history.exists() && !history.delete()) {
+            Log.w(TAG, "Delete edit history failed: " + history.getName());
+        }
+        File created = new File(dir, NEW_NOTE_KEY + CREATED_SUFFIX);
+        if (created.exists() && !created.delete()) {
+            Log.w(TAG, "Delete created note record failed: " + created.getName());
+        }
+    }
+
+    /**
+     * 读取最近一个新便签保存后得到的ID
+     * 新便签在保存完成前界面被销毁时，重建的界面据此找到已经创建的便签
+     * @param context 上下文对象
+     * @return 便签ID，没有记录时返回0
+     */
+    public static long readCreatedNoteId(Context context) {
+        File file = new File(getDir(context), NEW_NOTE_KEY + CREATED_SUFFIX);
+        if (!file.isFile()) {
+            return 0;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            return in.readLong();
+        } catch (IOException e) {
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+            return 0;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+                }
+            }
+        }
+    }
+
+    /**
+     * 等待之前交给写入线程的整理和撤销历史写入完成，应在后台线程调用
+     * 延迟的批量写入不在等待之内
+     */
+    public static void awaitPendingWrites() {
+        try {
+            sIoExecutor.submit(new Runnable() {
+                public void run() {
+                }
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+        }
+    }
+
+    /**
+     * 从日志恢复便签草稿，应在后台线程调用
+     * 最后一段的段头保存了完整的起始文本，重放即得到草稿；数据库中的内容须是最后一段
+     * 或与之衔接的之前各段重放时经过的某个状态，否则说明便签已被其他途径修改，日志作废
+     * @param context 上下文对象
+     * @param noteId 便签ID，新便签为0
+     * @param mode 数据库中的便签模式
+     * @param text 数据库中的工作文本，清单模式下为带前缀标记的文本
+     * @return 恢复的草稿，没有需要恢复的输入时返回null
+     */
+    public static Draft recover(Context context, long noteId, int mode, String text) {
+        File dir = getDir(context);
+        String key = getKey(noteId);
+        long[] sequences = listSequences(dir, key);
+        if (sequences.length == 0) {
+            return null;
+        }
+        Arrays.sort(sequences);
+        String saved = text == null ? "" : text;
+
+        ArrayList<Segment> segments = new ArrayList<Segment>();
+        for (long sequence : sequences) {
+            Segment segment = readSegment(getSegmentFile(dir, key, sequence));
+            if (segment != null) {
+                segments.add(segment);
+            }
+        }
+
+        String draft = null;
+        int draftMode = mode;
+        String nextBase = null;
+        boolean reached = false;
+        for (int i = segments.size() - 1; i >= 0 && !reached; i--) {
+            Segment segment = segments.get(i);
+            String result = segment.apply(saved);
+            // 之前的段必须恰好衔接到下一段的起点
+            if (result == null || (nextBase != null && !result.equals(nextBase))) {
+                break;
+            }
+            if (draft == null) {
+                draft = result;
+                draftMode = segment.mMode;
+            }
+            reached = segment.mReachedSaved;
+            nextBase = segment.mBase;
+        }
+        if (!reached) {
+            if (draft != null) {
+                Log.w(TAG, "Draft journal does not match note " + noteId + ", ignored");
+            }
+            return null;
+        }
+        return draft.equals(saved) && draftMode == mode ? null : new Draft(draftMode, draft);
+    }
+
+    /**
+     * 日志中的一段
+     */
+    private static class Segment {
+        // 段开始时的便签模式
+        int mMode;
+
+        // 段开始时的文本
+        String mBase;
+
+        // 段开始时空列表项的位置
+        int[] mEmptyItems;
+
+        // 段中的全部记录
+        byte[] mRecords;
+
+        // 上次重放是否经过了数据库中的内容
+        boolean mReachedSaved;
+
+        /**
+         * 从段头的文本开始应用本段的记录，末尾不完整的记录被忽略
+         * 只在长度相同时才比较全文，检查是否经过数据库中的内容
+         * @param saved 数据库中的工作文本
+         * @return 应用后的文本，记录与文本不符时返回null
+         */
+        String apply(String saved) {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(mRecords));
+            StringBuilder text = null;
+            CheckList list = null;
+            if (mMode == TextNote.MODE_CHECK_LIST) {
+                list = CheckList.parse(mBase);
+                for (int index : mEmptyItems) {
+                    if (index > list.size()) {
+                        return null;
+                    }
+                    list.insert(index, "", false);
+                }
+            } else {
+                text = new StringBuilder(mBase);
+            }
+            mReachedSaved = mBase.equals(saved);
+            try {
+                while (true) {
+                    int type;
+                    try {
+                        type = in.readByte();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    if (type == RECORD_EDIT && text != null) {
+                        int start = in.readInt();
+                        int before = in.readInt();
+                        String inserted = readString(in);
+                        if (start < 0 || before < 0 || start + before > text.length()) {
+                            return null;
+                        }
+                        text.replace(start, start + before, inserted);
+                    } else if (type == RECORD_ITEM_INSERT && list != null) {
+                        int index = in.readInt();
+                        boolean checked = in.readBoolean();
+                        String itemText = readString(in);
+                        if (index < 0 || index > list.size()) {
+                            return null;
+                        }
+                        list.insert(index, itemText, checked);
+                    } else if (type == RECORD_ITEM_REMOVE && list != null) {
+                        int index = in.readInt();
+                        if (index < 0 || index >= list.size()) {
+                            return null;
+                        }
+                        list.remove(index);
+                    } else if (type == RECORD_ITEM_MOVE && list != null) {
+                        int from = in.readInt();
+                        int to = in.readInt();
+                        if (from < 0 || from >= list.size() || to < 0 || to >= list.size()) {
+                            return null;
+                        }
+                        list.move(from, to);
+                    } else if (type == RECORD_ITEM_TEXT && list != null) {
+                        int index = in.readInt();
+                        String itemText = readString(in);
+                        if (index < 0 || index >= list.size()) {
+                            return null;
+                        }
+                        list.setText(index, itemText);
+                    } else if (type == RECORD_ITEM_CHECKED && list != null) {
+                        int index = in.readInt();
+                        boolean checked = in.readBoolean();
+                        if (index < 0 || index >= list.size()) {
+                            return null;
+                        }
+                        list.setChecked(index, checked);
+                    } else if (type == RECORD_ITEM_CLEAR && list != null) {
+                        list.clear();
+                    } else {
+                        Log.e(TAG, "Unexpected draft record type:" + type);
+                        return null;
+                    }
+                    if (!mReachedSaved) {
+                        mReachedSaved = text != null
+                                ? text.length() == saved.length() && saved.contentEquals(text)
+                                : list.getContentLength() == saved.length()
+                                        && saved.equals(list.getContent());
+                    }
+                }
+            } catch (EOFException e) {
+                // 进程退出时最后一条记录可能不完整，忽略即可
+                Log.w(TAG, "Truncated draft record ignored");
+            } catch (IOException e) {
+                Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+                return null;
+            }
+            return list != null ? list.getContent() : text.toString();
+        }
+    }
+
+    /**
+     * 读取一段日志文件
+     * @param file 段文件
+     * @return 读出的段，文件损坏时返回null
+     */
+    private static Segment readSegment(File file) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC) {
+                Log.e(TAG, "Bad draft segment: " + file.getName());
+                return null;
+            }
+            Segment segment = new Segment();
+            segment.mMode = in.readByte();
+            segment.mBase = readString(in);
+            int count = in.readInt();
+            if (count < 0) {
+                return null;
+            }
+            segment.mEmptyItems = new int[count];
+            for (int i = 0; i < count; i++) {
+                segment.mEmptyItems[i] = in.readInt();
+            }
+            ByteArrayOutputStream records = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                records.write(buffer, 0, read);
+            }
+            segment.mRecords = records.toByteArray();
+            return segment;
+        } catch (IOException e) {
+            Log.e(TAG, "Read draft segment failed: " + file.getName());
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // 只读文件，关闭失败可以忽略
+                }
+            }
+        }
+    }
+
+    /**
+     * 追加记录前把段头交给写入线程，排在该段的记录之前
+     * @return 当前段是否接受记录
+     */
+    private boolean prepareRecord() {
+        if (!mActive) {
+            return false;
+        }
+        if (mBase != null) {
+            final long sequence = mSequence;
+            final int mode = mBaseMode;
+            final Object base = mBase;
+            final int[] emptyItems = mBaseEmptyItems;
+            mBase = null;
+            mBaseEmptyItems = null;
+            sIoExecutor.execute(new Runnable() {
+                public void run() {
+                    writeHeader(sequence, mode, base, emptyItems);
+                }
+            });
+        }
+        return true;
+    }
+
+    /**
+     * 在写入线程上生成段头并写入段文件，起始文本在这里才生成字符串
+     * @param sequence 段序号
+     * @param mode 便签模式
+     * @param base 段开始时的文本或文本快照
+     * @param emptyItems 空列表项的位置，普通模式为null
+     */
+    private void writeHeader(long sequence, int mode, Object base, int[] emptyItems) {
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(header);
+        try {
+            out.writeInt(MAGIC);
+            out.writeByte(mode);
+            writeString(out, base.toString());
+            int count = emptyItems == null ? 0 : emptyItems.length;
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                out.writeInt(emptyItems[i]);
+            }
+        } catch (IOException e) {
+            // 写入内存不会失败
+        }
+        writeSegment(sequence, header.toByteArray());
+    }
+
+    /**
+     * 安排一次批量写入，同步间隔内的所有记录一起写入文件
+     */
+    private void scheduleFlush() {
+        if (mFlushScheduled) {
+            return;
+        }
+        mFlushScheduled = true;
+        sIoExecutor.schedule(new Runnable() {
+            public void run() {
+                synchronized (DraftJournal.this) {
+                    mFlushScheduled = false;
+                    dispatchPending();
+                }
+            }
+        }, SYNC_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 把未写入的记录交给写入线程，调用者需持有锁
+     */
+    private void dispatchPending() {
+        if (mPending.size() == 0) {
+            return;
+        }
+        final byte[] data = mPending.toByteArray();
+        final long sequence = mSequence;
+        mPending.reset();
+        mSegmentSize += data.length;
+        sIoExecutor.execute(new Runnable() {
+            public void run() {
+                writeSegment(sequence, data);
+            }
+        });
+    }
+
+    /**
+     * 在写入线程上把记录追加到段文件末尾并同步到磁盘
+     * @param sequence 段序号
+     * @param data 记录数据
+     */
+    private void writeSegment(long sequence, byte[] data) {
+        try {
+            if (mOut == null || mOpenSequence != sequence) {
+                closeSegment();
+                if (!mDir.exists() && !mDir.mkdirs()) {
+                    Log.e(TAG, "Create draft directory failed");
+                    return;
+                }
+                mOut = new FileOutputStream(getSegmentFile(mDir, mKey, sequence), true);
+                mOpenSequence = sequence;
+            }
+            mOut.write(data);
+            mOut.getFD().sync();
+        } catch (IOException e) {
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+            closeSegment();
+        }
+    }
+
+    private void closeSegment() {
+        if (mOut != null) {
+            try {
+                mOut.close();
+            } catch (IOException e) {
+                Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+            }
+            mOut = null;
+        }
+    }
+
+    private void deleteSegment(String key, long sequence) {
+        if (mOut != null && key.equals(mKey) && sequence == mOpenSequence) {
+            closeSegment();
+        }
+        File file = getSegmentFile(mDir, key, sequence);
+        if (!file.delete()) {
+            Log.w(TAG, "Delete draft segment failed: " + file.getName());
+        }
+    }
+
+    private void writeCreatedNoteId(long noteId) {
+        File file = new File(mDir, NEW_NOTE_KEY + CREATED_SUFFIX);
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new FileOutputStream(file));
+            out.writeLong(noteId);
+        } catch (IOException e) {
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+                }
+            }
+        }
+    }
+
+    private static File getDir(Context context) {
+        return new File(context.getApplicationContext().getFilesDir(), DIR_NAME);
+    }
+
+    private static String getKey(long noteId) {
+        return noteId > 0 ? String.valueOf(noteId) : NEW_NOTE_KEY;
+    }
+
+    private static File getSegmentFile(File dir, String key, long sequence) {
+        return new File(dir, key + "." + sequence + SUFFIX);
+    }
+
+    private static File getHistoryFile(File dir, String key) {
+        return new File(dir, key + HISTORY_SUFFIX);
+    }
+
+    /**
+     * 列出日志的所有段序号
+     * @param dir 日志文件目录
+     * @param key 日志名
+     * @return 段序号，未排序
+     */
+    private static long[] listSequences(File dir, String key) {
+        String[] names = dir.list();
+        if (names == null) {
+            return new long[0];
+        }
+        String prefix = key + ".";
+        long[] sequences = new long[names.length];
+        int count = 0;
+        for (String name : names) {
+            if (!name.startsWith(prefix) || !name.endsWith(SUFFIX)) {
+                continue;
+            }
+            try {
+                long sequence = Long.parseLong(
+                        name.substring(prefix.length(), name.length() - SUFFIX.length()));
+                sequences[count++] = sequence;
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Unexpected draft file: " + name);
+            }
+        }
+        return Arrays.copyOf(sequences, count);
+    }
+
+    private static void writeString(DataOutputStream out, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("Bad string length:" + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,581 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.model;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * 编辑器的撤销/重做历史
+ * 只记录每次修改的增量：普通模式为一次文本替换的位置、删除和插入的文本，
+ * 清单模式为列表项的插入、删除、移动、文本和完成状态的变化。
+ * 连续的输入合并为一条记录；所有记录的内存占用按字节估算，
+ * 超过预算时丢弃最早的记录，占用可以通过{@link #getMemoryUsage()}获取。
+ */
+public class EditHistory {
+    private static final String TAG = "EditHistory";
+
+    // 默认的内存预算（字节）
+    public static final int DEFAULT_BUDGET = 256 * 1024;
+
+    // 间隔小于该值（毫秒）的连续输入合并为一条记录
+    private static final long MERGE_INTERVAL = 1000;
+
+    // 估算的每条记录的对象开销（字节）
+    private static final int ENTRY_OVERHEAD = 48;
+
+    // 序列化格式的标识
+    private static final int MAGIC = 0x4d435548;
+
+    // 记录类型：普通模式的文本替换
+    private static final int OP_TEXT = 1;
+
+    // 记录类型：修改列表项文本
+    private static final int OP_ITEM_TEXT = 2;
+
+    // 记录类型：插入列表项
+    private static final int OP_ITEM_INSERT = 3;
+
+    // 记录类型：删除列表项
+    private static final int OP_ITEM_REMOVE = 4;
+
+    // 记录类型：移动列表项
+    private static final int OP_ITEM_MOVE = 5;
+
+    // 记录类型：修改列表项完成状态
+    private static final int OP_ITEM_CHECKED = 6;
+
+    /**
+     * 撤销和重做时修改的对象
+     */
+    public interface Target {
+        /**
+         * 用text替换普通模式文本中的[start, end)
+         */
+        void replaceText(int start, int end, String text);
+
+        void insertItem(int index, String text, boolean checked);
+
+        void removeItem(int index);
+
+        void moveItem(int from, int to);
+
+        void setItemText(int index, String text);
+
+        void setItemChecked(int index, boolean checked);
+    }
+
+    /**
+     * 一条修改记录
+     */
+    private static class Entry {
+        final int mType;
+        int mGroup;        // 同一组的记录一起撤销
+        int mIndex;        // 文本替换的起点，或列表项位置
+        int mTo;           // 移动的目标位置
+        String mOld;       // 被替换或删除的文本
+        String mNew;       // 插入的文本
+        boolean mChecked;  // 列表项的完成状态
+        long mTime;        // 记录时间，用于合并连续输入
+
+        Entry(int type) {
+            mType = type;
+        }
+
+        int cost() {
+            return ENTRY_OVERHEAD + 2 * (length(mOld) + length(mNew));
+        }
+
+        private static int length(String text) {
+            return text == null ? 0 : text.length();
+        }
+    }
+
+    private final ArrayDeque<Entry> mUndo = new ArrayDeque<Entry>();
+    private final ArrayDeque<Entry> mRedo = new ArrayDeque<Entry>();
+
+    // 内存预算
+    private final int mBudget;
+
+    // 当前的内存占用估算
+    private int mBytes;
+
+    // 正在撤销或重做，此时的修改不再记录
+    private boolean mApplying;
+
+    // 嵌套的分组深度
+    private int mGroupDepth;
+
+    // 正在进行的分组的组号
+    private int mCurrentGroup;
+
+    // 已分配的最大组号
+    private int mGroupCounter;
+
+    public EditHistory() {
+        this(DEFAULT_BUDGET);
+    }
+
+    public EditHistory(int budget) {
+        mBudget = budget;
+    }
+
+    /**
+     * 正在撤销或重做时，对编辑器和清单的修改不应再记录
+     */
+    public boolean isApplying() {
+        return mApplying;
+    }
+
+    public boolean canUndo() {
+        return !mUndo.isEmpty();
+    }
+
+    public boolean canRedo() {
+        return !mRedo.isEmpty();
+    }
+
+    /**
+     * 获取所有记录的内存占用估算（字节）
+     */
+    public int getMemoryUsage() {
+        return mBytes;
+    }
+
+    public int getBudget() {
+        return mBudget;
+    }
+
+    public int getEntryCount() {
+        return mUndo.size() + mRedo.size();
+    }
+
+    /**
+     * 清空历史，用于模式切换等整体替换文本的操作
+     */
+    public void clear() {
+        mUndo.clear();
+        mRedo.clear();
+        mBytes = 0;
+    }
+
+    /**
+     * 开始一组修改，组内的记录一起撤销，不与其他记录合并
+     */
+    public void beginGroup() {
+        if (mGroupDepth++ == 0) {
+            mCurrentGroup = ++mGroupCounter;
+        }
+    }
+
+    /**
+     * 把接下来的修改并入最后一条记录所在的组
+     * 用于由多步组成、而前一步已经在别处记录的操作，例如清单中回车拆分列表项
+     */
+    public void continueGroup() {
+        if (mGroupDepth++ == 0) {
+            mCurrentGroup = mUndo.isEmpty() ? ++mGroupCounter : mUndo.peekLast().mGroup;
+        }
+    }
+
+    public void endGroup() {
+        if (mGroupDepth > 0 && --mGroupDepth == 0) {
+            // 分组期间超出预算的部分在分组结束后丢弃
+            trim();
+        }
+    }
+
+    /**
+     * 记录普通模式下的一次文本替换
+     * @param start 替换的起点
+     * @param removed 被替换的文本
+     * @param inserted 插入的文本
+     */
+    public void recordText(int start, String removed, String inserted) {
+        if (mApplying || (removed.length() == 0 && inserted.length() == 0)) {
+            return;
+        }
+        Entry last = mergeCandidate(OP_TEXT);
+        if (last != null && inserted.indexOf('\n') < 0) {
+            int offset = start - last.mIndex;
+            int end = offset + removed.length();
+            if (offset >= 0 && end <= last.mNew.length()) {
+                // 修改落在上一次插入的文本内，例如继续输入、退格或输入法替换正在组合的词
+                mBytes -= last.cost();
+                last.mNew = last.mNew.substring(0, offset) + inserted
+                        + last.mNew.substring(end);
+                touch(last);
+                return;
+            }
+            if (inserted.length() == 0 && last.mNew.length() == 0) {
+                if (start + removed.length() == last.mIndex) {
+                    // 连续退格
+                    mBytes -= last.cost();
+                    last.mIndex = start;
+                    last.mOld = removed + last.mOld;
+                    touch(last);
+                    return;
+                } else if (start == last.mIndex) {
+                    // 连续向后删除
+                    mBytes -= last.cost();
+                    last.mOld = last.mOld + removed;
+                    touch(last);
+                    return;
+                }
+            }
+        }
+        Entry entry = new Entry(OP_TEXT);
+        entry.mIndex = start;
+        entry.mOld = removed;
+        entry.mNew = inserted;
+        push(entry);
+    }
+
+    /**
+     * 记录列表项文本的变化，同一列表项的连续输入合并为一条
+     */
+    public void recordItemText(int index, String oldText, String newText) {
+        if (mApplying) {
+            return;
+        }
+        Entry last = mergeCandidate(OP_ITEM_TEXT);
+        if (last != null && last.mIndex == index) {
+            mBytes -= last.cost();
+            last.mNew = newText;
+            touch(last);
+            return;
+        }
+        Entry entry = new Entry(OP_ITEM_TEXT);
+        entry.mIndex = index;
+        entry.mOld = oldText;
+        entry.mNew = newText;
+        push(entry);
+    }
+
+    public void recordItemInserted(int index, String text, boolean checked) {
+        if (mApplying) {
+            return;
+        }
+        Entry entry = new Entry(OP_ITEM_INSERT);
+        entry.mIndex = index;
+        entry.mNew = text;
+        entry.mChecked = checked;
+        push(entry);
+    }
+
+    public void recordItemRemoved(int index, String text, boolean checked) {
+        if (mApplying) {
+            return;
+        }
+        Entry entry = new Entry(OP_ITEM_REMOVE);
+        entry.mIndex = index;
+        entry.mOld = text;
+        entry.mChecked = checked;
+        push(entry);
+    }
+
+    public void recordItemMoved(int from, int to) {
+        if (mApplying) {
+            return;
+        }
+        Entry entry = new Entry(OP_ITEM_MOVE);
+        entry.mIndex = from;
+        entry.mTo = to;
+        push(entry);
+    }
+
+    public void recordItemChecked(int index, boolean checked) {
+        if (mApplying) {
+            return;
+        }
+        Entry entry = new Entry(OP_ITEM_CHECKED);
+        entry.mIndex = index;
+        entry.mChecked = checked;
+        push(entry);
+    }
+
+    /**
+     * 撤销最近的一组修改
+     * @param target 被修改的对象
+     * @return 是否有可以撤销的修改
+     */
+    public boolean undo(Target target) {
+        if (mUndo.isEmpty()) {
+            return false;
+        }
+        mApplying = true;
+        try {
+            int group = mUndo.peekLast().mGroup;
+            while (!mUndo.isEmpty() && mUndo.peekLast().mGroup == group) {
+                Entry entry = mUndo.pollLast();
+                entry.mTime = 0;
+                applyInverse(entry, target);
+                mRedo.addLast(entry);
+            }
+        } finally {
+            mApplying = false;
+        }
+        return true;
+    }
+
+    /**
+     * 重做最近撤销的一组修改
+     * @param target 被修改的对象
+     * @return 是否有可以重做的修改
+     */
+    public boolean redo(Target target) {
+        if (mRedo.isEmpty()) {
+            return false;
+        }
+        mApplying = true;
+        try {
+            int group = mRedo.peekLast().mGroup;
+            while (!mRedo.isEmpty() && mRedo.peekLast().mGroup == group) {
+                Entry entry = mRedo.pollLast();
+                apply(entry, target);
+                mUndo.addLast(entry);
+            }
+        } finally {
+            mApplying = false;
+        }
+        return true;
+    }
+
+    /**
+     * 序列化历史，与草稿日志一起保存，界面重建后可以继续撤销
+     * @param base 当前的文本，恢复时用于确认历史仍然适用
+     * @return 序列化的数据
+     */
+    public byte[] toBytes(String base) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(mBytes + 64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(base.length());
+            out.writeInt(base.hashCode());
+            writeEntries(out, mUndo);
+            writeEntries(out, mRedo);
+        } catch (IOException e) {
+            // 写入内存不会失败
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * 从序列化的数据恢复历史
+     * @param data 序列化的数据
+     * @param base 当前的文本，与保存时不一致说明历史已不适用
+     * @return 恢复的历史，数据损坏或不适用时返回null
+     */
+    public static EditHistory fromBytes(byte[] data, String base) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != base.length()
+                    || in.readInt() != base.hashCode()) {
+                return null;
+            }
+            EditHistory history = new EditHistory();
+            history.readEntries(in, history.mUndo);
+            history.readEntries(in, history.mRedo);
+            history.trim();
+            return history;
+        } catch (IOException e) {
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+            return null;
+        }
+    }
+
+    /**
+     * 获取可以与新修改合并的最后一条记录
+     */
+    private Entry mergeCandidate(int type) {
+        if (mGroupDepth > 0 || mUndo.isEmpty() || !mRedo.isEmpty()) {
+            return null;
+        }
+        Entry last = mUndo.peekLast();
+        if (last.mType != type
+                || SystemClock.uptimeMillis() - last.mTime > MERGE_INTERVAL) {
+            return null;
+        }
+        return last;
+    }
+
+    /**
+     * 新的修改使重做记录失效
+     */
+    private void clearRedo() {
+        for (Entry entry : mRedo) {
+            mBytes -= entry.cost();
+        }
+        mRedo.clear();
+    }
+
+    private void touch(Entry entry) {
+        entry.mTime = SystemClock.uptimeMillis();
+        mBytes += entry.cost();
+        trim();
+    }
+
+    private void push(Entry entry) {
+        entry.mTime = SystemClock.uptimeMillis();
+        entry.mGroup = mGroupDepth > 0 ? mCurrentGroup : ++mGroupCounter;
+        clearRedo();
+        mUndo.addLast(entry);
+        mBytes += entry.cost();
+        trim();
+    }
+
+    /**
+     * 超出预算时丢弃最早的记录，先丢弃最早的撤销记录，再丢弃最远的重做记录
+     */
+    private void trim() {
+        int evicted = 0;
+        while (mBytes > mBudget && !mUndo.isEmpty()) {
+            // 同一组的记录一起丢弃，避免只撤销一组修改的一部分；正在进行的分组结束后再处理
+            int group = mUndo.peekFirst().mGroup;
+            if (mGroupDepth > 0 && group == mCurrentGroup) {
+                break;
+            }
+            while (!mUndo.isEmpty() && mUndo.peekFirst().mGroup == group) {
+                mBytes -= mUndo.pollFirst().cost();
+                evicted++;
+            }
+        }
+        while (mBytes > mBudget && !mRedo.isEmpty()) {
+            int group = mRedo.peekFirst().mGroup;
+            while (!mRedo.isEmpty() && mRedo.peekFirst().mGroup == group) {
+                mBytes -= mRedo.pollFirst().cost();
+                evicted++;
+            }
+        }
+        if (evicted > 0) {
+            Log.d(TAG, "Evicted " + evicted + " entries, history uses " + mBytes + "/"
+                    + mBudget + " bytes");
+        }
+    }
+
+    private static void applyInverse(Entry entry, Target target) {
+        switch (entry.mType) {
+            case OP_TEXT:
+                target.replaceText(entry.mIndex, entry.mIndex + entry.mNew.length(), entry.mOld);
+                break;
+            case OP_ITEM_TEXT:
+                target.setItemText(entry.mIndex, entry.mOld);
+                break;
+            case OP_ITEM_INSERT:
+                target.removeItem(entry.mIndex);
+                break;
+            case OP_ITEM_REMOVE:
+                target.insertItem(entry.mIndex, entry.mOld, entry.mChecked);
+                break;
+            case OP_ITEM_MOVE:
+                target.moveItem(entry.mTo, entry.mIndex);
+                break;
+            case OP_ITEM_CHECKED:
+                target.setItemChecked(entry.mIndex, !entry.mChecked);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static void apply(Entry entry, Target target) {
+        switch (entry.mType) {
+            case OP_TEXT:
+                target.replaceText(entry.mIndex, entry.mIndex + entry.mOld.length(), entry.mNew);
+                break;
+            case OP_ITEM_TEXT:
+                target.setItemText(entry.mIndex, entry.mNew);
+                break;
+            case OP_ITEM_INSERT:
+                target.insertItem(entry.mIndex, entry.mNew, entry.mChecked);
+                break;
+            case OP_ITEM_REMOVE:
+                target.removeItem(entry.mIndex);
+                break;
+            case OP_ITEM_MOVE:
+                target.moveItem(entry.mIndex, entry.mTo);
+                break;
+            case OP_ITEM_CHECKED:
+                target.setItemChecked(entry.mIndex, entry.mChecked);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static void writeEntries(DataOutputStream out, ArrayDeque<Entry> entries)
+            throws IOException {
+        out.writeInt(entries.size());
+        Iterator<Entry> iterator = entries.iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            out.writeByte(entry.mType);
+            out.writeInt(entry.mGroup);
+            out.writeInt(entry.mIndex);
+            out.writeInt(entry.mTo);
+            out.writeBoolean(entry.mChecked);
+            writeString(out, entry.mOld);
+            writeString(out, entry.mNew);
+        }
+    }
+
+    private void readEntries(DataInputStream in, ArrayDeque<Entry> entries) throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            Entry entry = new Entry(in.readByte());
+            entry.mGroup = in.readInt();
+            entry.mIndex = in.readInt();
+            entry.mTo = in.readInt();
+            entry.mChecked = in.readBoolean();
+            entry.mOld = readString(in);
+            entry.mNew = readString(in);
+            entries.addLast(entry);
+            mBytes += entry.cost();
+            mGroupCounter = Math.max(mGroupCounter, entry.mGroup);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String text) throws IOException {
+        if (text == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(text.length());
+        out.writeChars(text);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = in.readChar();
+        }
+        return new String(chars);
+    }
+}
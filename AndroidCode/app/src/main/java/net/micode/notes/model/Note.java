@@ -23,13 +23,16 @@ import android.content.Context;
 import android.content.OperationApplicationException;
 import android.net.Uri;
 import android.os.RemoteException;
+import android.text.TextUtils;
 import android.util.Log;
 
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.CallNote;
+import net.micode.notes.data.Notes.CheckItem;
 import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.NoteColumns;
 import net.micode.notes.data.Notes.TextNote;
+import net.micode.notes.tool.DataUtils;
 
 import java.util.ArrayList;
 
@@ -37,6 +40,7 @@ import java.util.ArrayList;
 /**
  * 笔记模型类，用于管理笔记的创建、更新和同步操作
  * 支持文本笔记和通话记录笔记，通过ContentResolver与数据库交互
+ * 修改在主线程上累积，由保存线程通过{@link #takeChanges()}整体取出后写入
  */
 public class Note {
     // 日志标签
@@ -51,31 +55,10 @@ public class Note {
      * 为添加新笔记到数据库创建一个新的笔记ID
      * @param context 上下文对象
      * @param folderId 文件夹ID，新笔记将被添加到该文件夹
-     * @return 新创建的笔记ID
-     * @throws IllegalStateException 如果创建笔记失败
+     * @return 新创建的笔记ID，失败时返回0
      */
-    public static synchronized long getNewNoteId(Context context, long folderId) {
-        // Create a new note in the database
-        ContentValues values = new ContentValues();
-        long createdTime = System.currentTimeMillis();
-        values.put(NoteColumns.CREATED_DATE, createdTime);
-        values.put(NoteColumns.MODIFIED_DATE, createdTime);
-        values.put(NoteColumns.TYPE, Notes.TYPE_NOTE);
-        values.put(NoteColumns.LOCAL_MODIFIED, 1);
-        values.put(NoteColumns.PARENT_ID, folderId);
-        Uri uri = context.getContentResolver().insert(Notes.CONTENT_NOTE_URI, values);
-
-        long noteId = 0;
-        try {
-            noteId = Long.valueOf(uri.getPathSegments().get(1));
-        } catch (NumberFormatException e) {
-            Log.e(TAG, "Get note id error :" + e.toString());
-            noteId = 0;
-        }
-        if (noteId == -1) {
-            throw new IllegalStateException("Wrong note id:" + noteId);
-        }
-        return noteId;
+    public static long getNewNoteId(Context context, long folderId) {
+        return new Note().insertNewNote(context, folderId);
     }
 
     /**
@@ -91,7 +74,7 @@ public class Note {
      * @param key 属性键名
      * @param value 属性值
      */
-    public void setNoteValue(String key, String value) {
+    public synchronized void setNoteValue(String key, String value) {
         mNoteDiffValues.put(key, value);
         mNoteDiffValues.put(NoteColumns.LOCAL_MODIFIED, 1);
         mNoteDiffValues.put(NoteColumns.MODIFIED_DATE, System.currentTimeMillis());
@@ -102,7 +85,7 @@ public class Note {
      * @param key 数据键名
      * @param value 数据值
      */
-    public void setTextData(String key, String value) {
+    public synchronized void setTextData(String key, String value) {
         mNoteData.setTextData(key, value);
     }
 
@@ -110,7 +93,7 @@ public class Note {
      * 设置文本数据的ID
      * @param id 文本数据ID
      */
-    public void setTextDataId(long id) {
+    public synchronized void setTextDataId(long id) {
         mNoteData.setTextDataId(id);
     }
 
@@ -118,7 +101,7 @@ public class Note {
      * 获取文本数据的ID
      * @return 文本数据ID
      */
-    public long getTextDataId() {
+    public synchronized long getTextDataId() {
         return mNoteData.mTextDataId;
     }
 
@@ -126,7 +109,7 @@ public class Note {
      * 设置通话记录数据的ID
      * @param id 通话记录数据ID
      */
-    public void setCallDataId(long id) {
+    public synchronized void setCallDataId(long id) {
         mNoteData.setCallDataId(id);
     }
 
@@ -135,7 +118,7 @@ public class Note {
      * @param key 数据键名
      * @param value 数据值
      */
-    public void setCallData(String key, String value) {
+    public synchronized void setCallData(String key, String value) {
         mNoteData.setCallData(key, value);
     }
 
@@ -143,10 +126,111 @@ public class Note {
      * 检查笔记是否在本地被修改
      * @return 如果笔记被修改返回true，否则返回false
      */
-    public boolean isLocalModified() {
+    public synchronized boolean isLocalModified() {
         return mNoteDiffValues.size() > 0 || mNoteData.isLocalModified();
     }
 
+    /**
+     * 把笔记和累积的数据内容作为新笔记插入数据库
+     * 笔记行和数据行在同一个事务中创建，失败时不会留下没有内容的空笔记，修改记录也保持不变
+     * @param context 上下文对象
+     * @param folderId 文件夹ID，新笔记将被添加到该文件夹
+     * @return 新创建的笔记ID，失败时返回0
+     */
+    public synchronized long insertNewNote(Context context, long folderId) {
+        ContentValues values = new ContentValues();
+        long createdTime = System.currentTimeMillis();
+        values.put(NoteColumns.CREATED_DATE, createdTime);
+        values.put(NoteColumns.MODIFIED_DATE, createdTime);
+        values.put(NoteColumns.TYPE, Notes.TYPE_NOTE);
+        values.put(NoteColumns.LOCAL_MODIFIED, 1);
+        values.put(NoteColumns.PARENT_ID, folderId);
+        values.putAll(mNoteDiffValues);
+
+        boolean hasText = mNoteData.mTextDataId == 0 && mNoteData.mTextDataValues.size() > 0;
+        boolean hasCall = mNoteData.mCallDataId == 0 && mNoteData.mCallDataValues.size() > 0;
+        ArrayList<ContentValues> data = new ArrayList<ContentValues>(2);
+        if (hasText) {
+            ContentValues text = new ContentValues(mNoteData.mTextDataValues);
+            text.put(DataColumns.MIME_TYPE, TextNote.CONTENT_ITEM_TYPE);
+            data.add(text);
+        }
+        if (hasCall) {
+            ContentValues call = new ContentValues(mNoteData.mCallDataValues);
+            call.put(DataColumns.MIME_TYPE, CallNote.CONTENT_ITEM_TYPE);
+            data.add(call);
+        }
+
+        long[] dataIds = new long[data.size()];
+        long noteId = DataUtils.createNote(context.getContentResolver(), values,
+                data.toArray(new ContentValues[data.size()]), dataIds);
+        if (noteId == 0) {
+            Log.e(TAG, "Create new note failed in folder:" + folderId);
+            return 0;
+        }
+
+        int index = 0;
+        if (hasText) {
+            mNoteData.mTextDataId = dataIds[index++];
+            mNoteData.mTextDataValues.clear();
+        }
+        if (hasCall) {
+            mNoteData.mCallDataId = dataIds[index++];
+            mNoteData.mCallDataValues.clear();
+        }
+        mNoteDiffValues.clear();
+        return noteId;
+    }
+
+    /**
+     * 取出目前累积的所有修改，本对象的修改记录随之清空
+     * 返回的对象只由保存线程使用，写入期间的新修改继续在本对象上累积
+     * @return 包含取出修改的笔记对象
+     */
+    public synchronized Note takeChanges() {
+        Note changes = new Note();
+        changes.mNoteDiffValues.putAll(mNoteDiffValues);
+        changes.mNoteData.mTextDataId = mNoteData.mTextDataId;
+        changes.mNoteData.mTextDataValues.putAll(mNoteData.mTextDataValues);
+        changes.mNoteData.mCallDataId = mNoteData.mCallDataId;
+        changes.mNoteData.mCallDataValues.putAll(mNoteData.mCallDataValues);
+        mNoteDiffValues.clear();
+        mNoteData.mTextDataValues.clear();
+        mNoteData.mCallDataValues.clear();
+        return changes;
+    }
+
+    /**
+     * 取回写入时新插入的数据行ID，避免下次保存重复插入
+     * @param saved 已写入的修改
+     */
+    public synchronized void adoptDataIds(Note saved) {
+        if (mNoteData.mTextDataId == 0 && saved.mNoteData.mTextDataId > 0) {
+            mNoteData.mTextDataId = saved.mNoteData.mTextDataId;
+        }
+        if (mNoteData.mCallDataId == 0 && saved.mNoteData.mCallDataId > 0) {
+            mNoteData.mCallDataId = saved.mNoteData.mCallDataId;
+        }
+    }
+
+    /**
+     * 写入失败时放回取出的修改，取出之后的新修改优先
+     * @param failed 未能写入的修改
+     */
+    public synchronized void restoreChanges(Note failed) {
+        mergeBack(mNoteDiffValues, failed.mNoteDiffValues);
+        mergeBack(mNoteData.mTextDataValues, failed.mNoteData.mTextDataValues);
+        mergeBack(mNoteData.mCallDataValues, failed.mNoteData.mCallDataValues);
+        adoptDataIds(failed);
+    }
+
+    private static void mergeBack(ContentValues current, ContentValues failed) {
+        ContentValues merged = new ContentValues(failed);
+        merged.putAll(current);
+        current.clear();
+        current.putAll(merged);
+    }
+
     /**
      * 将本地修改的笔记数据同步到ContentResolver
      * @param context 上下文对象
@@ -183,6 +267,83 @@ public class Note {
         return true;
     }
 
+    /**
+     * 将结构化待办事项清单中有变化的列表项写入数据库
+     * 每个变化的列表项只写一行，删除已移除或变为空的列表项，
+     * 不会修改笔记的{@link NoteColumns#LOCAL_MODIFIED}
+     * @param context 上下文对象
+     * @param noteId 笔记ID
+     * @param list 待办事项清单
+     * @return 如果写入成功返回true，否则返回false
+     * @throws IllegalArgumentException 如果笔记ID无效
+     */
+    public static boolean syncCheckList(Context context, long noteId, CheckList list) {
+        if (noteId <= 0) {
+            throw new IllegalArgumentException("Wrong note id:" + noteId);
+        }
+
+        // 在清单的锁内取出变化，写入期间编辑界面可以继续修改清单
+        CheckList.Changes changes = list.takeChanges();
+        if (changes.isEmpty()) {
+            return true;
+        }
+
+        ArrayList<ContentProviderOperation> operationList = new ArrayList<ContentProviderOperation>();
+        for (long id : changes.getRemovedIds()) {
+            operationList.add(ContentProviderOperation.newDelete(
+                    ContentUris.withAppendedId(Notes.CONTENT_DATA_URI, id)).build());
+        }
+
+        // 每个有变化的列表项对应一个操作，位于删除操作之后
+        int itemOffset = operationList.size();
+        ArrayList<CheckList.ItemChange> items = changes.getItems();
+        for (CheckList.ItemChange item : items) {
+            ContentProviderOperation.Builder builder;
+            if (TextUtils.isEmpty(item.getText())) {
+                // 空列表项不保存，已保存的需要删除
+                builder = ContentProviderOperation.newDelete(
+                        ContentUris.withAppendedId(Notes.CONTENT_DATA_URI, item.getId()));
+            } else if (item.getId() == 0) {
+                builder = ContentProviderOperation.newInsert(Notes.CONTENT_DATA_URI)
+                        .withValue(DataColumns.NOTE_ID, noteId)
+                        .withValue(DataColumns.MIME_TYPE, CheckItem.CONTENT_ITEM_TYPE)
+                        .withValue(CheckItem.CONTENT, item.getText())
+                        .withValue(CheckItem.CHECKED, item.isChecked() ? 1 : 0)
+                        .withValue(CheckItem.ORDER, item.getOrder());
+            } else {
+                builder = ContentProviderOperation.newUpdate(
+                        ContentUris.withAppendedId(Notes.CONTENT_DATA_URI, item.getId()))
+                        .withValue(CheckItem.CONTENT, item.getText())
+                        .withValue(CheckItem.CHECKED, item.isChecked() ? 1 : 0)
+                        .withValue(CheckItem.ORDER, item.getOrder());
+            }
+            operationList.add(builder.build());
+        }
+
+        try {
+            ContentProviderResult[] results = context.getContentResolver().applyBatch(
+                    Notes.AUTHORITY, operationList);
+            if (results != null && results.length == operationList.size()) {
+                long[] newIds = new long[items.size()];
+                for (int i = 0; i < items.size(); i++) {
+                    ContentProviderResult result = results[itemOffset + i];
+                    if (items.get(i).getId() == 0 && result.uri != null) {
+                        newIds[i] = ContentUris.parseId(result.uri);
+                    }
+                }
+                list.commitChanges(changes, newIds);
+                return true;
+            }
+            Log.e(TAG, "Sync check list failed with noteId" + noteId);
+        } catch (RemoteException e) {
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+        } catch (OperationApplicationException e) {
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+        }
+        list.rollbackChanges(changes);
+        return false;
+    }
+
     /**
      * 笔记数据内部类，用于管理笔记的具体数据内容
      * 包括文本数据和通话记录数据
@@ -290,15 +451,13 @@ public class Note {
                 if (mTextDataId == 0) {
                     // 新建文本数据
                     mTextDataValues.put(DataColumns.MIME_TYPE, TextNote.CONTENT_ITEM_TYPE);
-                    Uri uri = context.getContentResolver().insert(Notes.CONTENT_DATA_URI,
-                            mTextDataValues);
-                    try {
-                        setTextDataId(Long.valueOf(uri.getPathSegments().get(1)));
-                    } catch (NumberFormatException e) {
+                    long id = insertData(context, mTextDataValues);
+                    if (id == 0) {
                         Log.e(TAG, "Insert new text data fail with noteId" + noteId);
-                        mTextDataValues.clear();
                         return null;
                     }
+                    setTextDataId(id);
+                    mTextDataValues.clear();
                 } else {
                     // 更新已有文本数据
                     builder = ContentProviderOperation.newUpdate(ContentUris.withAppendedId(
@@ -306,7 +465,6 @@ public class Note {
                     builder.withValues(mTextDataValues);
                     operationList.add(builder.build());
                 }
-                mTextDataValues.clear();
             }
 
             if(mCallDataValues.size() > 0) {
@@ -314,15 +472,13 @@ public class Note {
                 if (mCallDataId == 0) {
                     // 新建通话记录数据
                     mCallDataValues.put(DataColumns.MIME_TYPE, CallNote.CONTENT_ITEM_TYPE);
-                    Uri uri = context.getContentResolver().insert(Notes.CONTENT_DATA_URI,
-                            mCallDataValues);
-                    try {
-                        setCallDataId(Long.valueOf(uri.getPathSegments().get(1)));
-                    } catch (NumberFormatException e) {
+                    long id = insertData(context, mCallDataValues);
+                    if (id == 0) {
                         Log.e(TAG, "Insert new call data fail with noteId" + noteId);
-                        mCallDataValues.clear();
                         return null;
                     }
+                    setCallDataId(id);
+                    mCallDataValues.clear();
                 } else {
                     // 更新已有通话记录数据
                     builder = ContentProviderOperation.newUpdate(ContentUris.withAppendedId(
@@ -330,7 +486,6 @@ public class Note {
                     builder.withValues(mCallDataValues);
                     operationList.add(builder.build());
                 }
-                mCallDataValues.clear();
             }
 
             // 执行批量操作
@@ -338,8 +493,9 @@ public class Note {
                 try {
                     ContentProviderResult[] results = context.getContentResolver().applyBatch(
                             Notes.AUTHORITY, operationList);
-                    return (results == null || results.length == 0 || results[0] == null) ? null
-                            : ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId);
+                    if (results == null || results.length == 0 || results[0] == null) {
+                        return null;
+                    }
                 } catch (RemoteException e) {
                     Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
                     return null;
@@ -348,7 +504,26 @@ public class Note {
                     return null;
                 }
             }
-            return null;
+            // 全部写入后才清空，写入失败的修改由调用者放回，下次保存时重试
+            mTextDataValues.clear();
+            mCallDataValues.clear();
+            return ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId);
+        }
+
+        /**
+         * 插入一个数据行
+         * @return 新数据行的ID，插入失败时返回0
+         */
+        private long insertData(Context context, ContentValues values) {
+            Uri uri = context.getContentResolver().insert(Notes.CONTENT_DATA_URI, values);
+            if (uri == null) {
+                return 0;
+            }
+            try {
+                return Long.valueOf(uri.getPathSegments().get(1));
+            } catch (NumberFormatException e) {
+                return 0;
+            }
         }
     }
 }
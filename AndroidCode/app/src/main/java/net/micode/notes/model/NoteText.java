@@ -0,0 +1,295 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.model;
+
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+
+/**
+ * 便签文本的分段表（piece table）模型
+ * 文本由若干片段组成，每个片段引用原始文本或追加缓冲区中的一段字符。
+ * 编辑只修改片段表，代价与编辑的大小和片段数量有关，与便签长度无关；
+ * 连续输入会追加到同一个片段上，片段数量保持很少。
+ * 追加缓冲区按块分配且写入后不再修改，快照只需复制片段表，
+ * 可以在保存线程上生成完整文本，不阻塞编辑。
+ */
+public class NoteText {
+    // 追加缓冲区每块的大小
+    private static final int CHUNK_SIZE = 4096;
+
+    // 片段数量超过该值时合并为一个片段，避免定位越来越慢
+    private static final int MAX_PIECES = 2048;
+
+    /**
+     * 片段，引用原始文本或追加缓冲区中的一段字符，创建后不再修改
+     */
+    private static class Piece {
+        final String mString;  // 原始文本，片段属于追加缓冲区时为null
+        final char[] mChars;   // 追加缓冲区的块
+        final int mOffset;     // 在原始文本或块中的起点
+        final int mLength;     // 长度
+
+        Piece(String string, char[] chars, int offset, int length) {
+            mString = string;
+            mChars = chars;
+            mOffset = offset;
+            mLength = length;
+        }
+
+        void appendTo(StringBuilder sb) {
+            if (mString != null) {
+                sb.append(mString, mOffset, mOffset + mLength);
+            } else {
+                sb.append(mChars, mOffset, mLength);
+            }
+        }
+
+        char charAt(int index) {
+            return mString != null ? mString.charAt(mOffset + index) : mChars[mOffset + index];
+        }
+
+        Piece sub(int start, int end) {
+            return new Piece(mString, mChars, mOffset + start, end - start);
+        }
+    }
+
+    /**
+     * 某一时刻的文本快照，可以在其他线程上生成字符串
+     */
+    public static class Snapshot {
+        private final Piece[] mPieces;
+        private final int mLength;
+
+        private Snapshot(Piece[] pieces, int length) {
+            mPieces = pieces;
+            mLength = length;
+        }
+
+        public int length() {
+            return mLength;
+        }
+
+        @Override
+        public String toString() {
+            return build(mPieces, mPieces.length, mLength);
+        }
+    }
+
+    private ArrayList<Piece> mPieces;
+
+    // 文本长度
+    private int mLength;
+
+    // 追加缓冲区当前的块及已使用的长度
+    private char[] mChunk;
+    private int mChunkUsed;
+
+    // 上次定位到的片段及其起点，连续输入时不必从头查找
+    private int mCachedIndex;
+    private int mCachedStart;
+
+    // 每次修改递增的版本号
+    private long mVersion;
+
+    public NoteText(String text) {
+        mPieces = new ArrayList<Piece>();
+        reset(text);
+    }
+
+    /**
+     * 用新的文本整体替换
+     * @param text 新文本
+     */
+    public synchronized void reset(String text) {
+        mPieces.clear();
+        mLength = text == null ? 0 : text.length();
+        if (mLength > 0) {
+            mPieces.add(new Piece(text, null, 0, mLength));
+        }
+        mChunk = null;
+        mChunkUsed = 0;
+        mCachedIndex = 0;
+        mCachedStart = 0;
+        mVersion++;
+    }
+
+    /**
+     * 用source中[sourceStart, sourceStart + count)的字符替换[start, start + before)
+     * @param start 替换的起点
+     * @param before 被替换的字符数
+     * @param source 新字符的来源
+     * @param sourceStart 新字符在来源中的起点
+     * @param count 新字符数
+     */
+    public synchronized void replace(int start, int before, CharSequence source,
+            int sourceStart, int count) {
+        if (start < 0 || before < 0 || start + before > mLength) {
+            throw new IndexOutOfBoundsException("replace " + start + "+" + before
+                    + " in length " + mLength);
+        }
+        if (before == 0 && count == 0) {
+            return;
+        }
+        int index = split(start);
+        if (before > 0) {
+            int end = split(start + before);
+            mPieces.subList(index, end).clear();
+            mLength -= before;
+        }
+        if (count > 0) {
+            index = insertChars(index, source, sourceStart, count);
+            mLength += count;
+        }
+        // 编辑之后的片段从start + count开始，下次在附近编辑时从这里查找
+        mCachedIndex = index;
+        mCachedStart = start + count;
+        mVersion++;
+        if (mPieces.size() > MAX_PIECES) {
+            reset(toString());
+        }
+    }
+
+    public synchronized int length() {
+        return mLength;
+    }
+
+    /**
+     * 获取版本号，文本每次修改后递增
+     */
+    public synchronized long getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * 获取当前文本的快照，只复制片段表
+     */
+    public synchronized Snapshot snapshot() {
+        return new Snapshot(mPieces.toArray(new Piece[mPieces.size()]), mLength);
+    }
+
+    /**
+     * 比较文本内容，长度不同时立即返回
+     * @param text 要比较的文本
+     * @return 内容相同返回true
+     */
+    public synchronized boolean contentEquals(String text) {
+        int length = text == null ? 0 : text.length();
+        if (length != mLength) {
+            return false;
+        }
+        int position = 0;
+        for (Piece piece : mPieces) {
+            for (int i = 0; i < piece.mLength; i++) {
+                if (piece.charAt(i) != text.charAt(position++)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized String toString() {
+        if (mPieces.size() == 1 && mPieces.get(0).mString != null
+                && mPieces.get(0).mLength == mPieces.get(0).mString.length()) {
+            // 未修改的原始文本直接返回
+            return mPieces.get(0).mString;
+        }
+        return build(mPieces.toArray(new Piece[mPieces.size()]), mPieces.size(), mLength);
+    }
+
+    private static String build(Piece[] pieces, int count, int length) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < count; i++) {
+            pieces[i].appendTo(sb);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 确保position落在片段边界上
+     * @return 从position开始的片段下标
+     */
+    private int split(int position) {
+        int index;
+        int pieceStart;
+        if (position >= mCachedStart && mCachedIndex <= mPieces.size()) {
+            index = mCachedIndex;
+            pieceStart = mCachedStart;
+        } else {
+            index = 0;
+            pieceStart = 0;
+        }
+        while (index < mPieces.size()) {
+            Piece piece = mPieces.get(index);
+            if (position < pieceStart + piece.mLength) {
+                break;
+            }
+            pieceStart += piece.mLength;
+            index++;
+        }
+        mCachedIndex = index;
+        mCachedStart = pieceStart;
+        if (index == mPieces.size() || position == pieceStart) {
+            return index;
+        }
+        Piece piece = mPieces.get(index);
+        int offset = position - pieceStart;
+        mPieces.set(index, piece.sub(0, offset));
+        mPieces.add(index + 1, piece.sub(offset, piece.mLength));
+        mCachedIndex = index + 1;
+        mCachedStart = position;
+        return index + 1;
+    }
+
+    /**
+     * 把字符写入追加缓冲区并在index处插入对应的片段
+     * 紧接着上一次输入的字符会扩展前一个片段，不产生新片段
+     * @return 插入的字符之后第一个片段的下标
+     */
+    private int insertChars(int index, CharSequence source, int sourceStart, int count) {
+        while (count > 0) {
+            if (count > CHUNK_SIZE) {
+                // 大段粘贴使用独立的块
+                char[] chars = new char[count];
+                TextUtils.getChars(source, sourceStart, sourceStart + count, chars, 0);
+                mPieces.add(index, new Piece(null, chars, 0, count));
+                return index + 1;
+            }
+            if (mChunk == null || mChunkUsed == mChunk.length) {
+                mChunk = new char[CHUNK_SIZE];
+                mChunkUsed = 0;
+            }
+            int n = Math.min(count, mChunk.length - mChunkUsed);
+            TextUtils.getChars(source, sourceStart, sourceStart + n, mChunk, mChunkUsed);
+            Piece previous = index > 0 ? mPieces.get(index - 1) : null;
+            if (previous != null && previous.mChars == mChunk
+                    && previous.mOffset + previous.mLength == mChunkUsed) {
+                mPieces.set(index - 1, new Piece(null, mChunk, previous.mOffset,
+                        previous.mLength + n));
+            } else {
+                mPieces.add(index, new Piece(null, mChunk, mChunkUsed, n));
+                index++;
+            }
+            mChunkUsed += n;
+            sourceStart += n;
+            count -= n;
+        }
+        return index;
+    }
+}
@@ -17,29 +17,47 @@
 package net.micode.notes.model;
 
 import android.appwidget.AppWidgetManager;
-import android.content.ContentUris;
 import android.content.Context;
 import android.database.Cursor;
-import android.text.TextUtils;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
+import net.micode.notes.data.NoteWithDataCursor;
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.CallNote;
+import net.micode.notes.data.Notes.CheckItem;
 import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.DataConstants;
 import net.micode.notes.data.Notes.NoteColumns;
 import net.micode.notes.data.Notes.TextNote;
 import net.micode.notes.tool.ResourceParser.NoteBgResources;
 
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 
 /**
  * 工作笔记类，用于处理正在编辑的笔记
  * 是Note类的包装类，提供更多功能和状态管理
  * 支持创建新笔记、加载现有笔记、保存笔记等操作
+ * 保存在所有笔记共用的单一写线程上进行，编辑期间的修改在内存中合并，
+ * 写入时整体取出，主线程不需要等待数据库
  */
 public class WorkingNote {
     // 日志标签
     private static final String TAG = "WorkingNote";
+
+    // 所有笔记共用的保存线程，保证同一时刻只有一个线程写入笔记数据
+    private static final ExecutorService sSaveExecutor = Executors.newSingleThreadExecutor();
+
+    // 主线程Handler，保存完成后的回调在主线程执行
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
     
     // 上下文对象
     private Context mContext;
@@ -47,15 +65,28 @@ public class WorkingNote {
     // 内部Note对象，用于实际数据操作
     private Note mNote;
     
-    // 笔记ID
-    private long mNoteId;
+    // 笔记ID，新笔记在保存线程上创建后回填
+    private volatile long mNoteId;
     
-    // 笔记内容
+    // 笔记内容，编辑器中的修改增量地记录在分段表中
+    private final NoteText mText = new NoteText("");
+
+    // 上次从mText生成的内容及其对应的版本，需要时才生成
     private String mContent;
+    private long mContentVersion = -1;
+
+    // mText中是否有尚未交给保存线程的修改
+    private boolean mTextDirty;
     
     // 笔记模式（如普通模式、检查列表模式）
     private int mMode;
 
+    // 结构化存储的待办事项清单，文本存储时为null
+    private CheckList mCheckList;
+
+    // 已转为文本存储、等待从数据库删除列表项的清单
+    private CheckList mDetachedCheckList;
+
     // 提醒日期
     private long mAlertDate;
 
@@ -80,6 +111,13 @@ public class WorkingNote {
     // 笔记设置变化监听器
     private NoteSettingChangedListener mNoteSettingStatusListener;
 
+    // 是否已有排队但尚未开始的保存，排队期间的修改由该次保存一并写入
+    private boolean mSaveQueued;
+
+    // 排队的保存完成后要回调的监听器
+    private final ArrayList<OnNoteSavedListener> mSaveListeners =
+            new ArrayList<OnNoteSavedListener>();
+
     /**
      * 数据查询投影数组，用于获取笔记的具体数据内容
      */
@@ -117,6 +155,9 @@ public class WorkingNote {
     // DATA_PROJECTION中模式列的索引
     private static final int DATA_MODE_COLUMN = 3;
 
+    // DATA_PROJECTION中存储方式列的索引，对待办事项为排序键
+    private static final int DATA_STORAGE_COLUMN = 4;
+
     // NOTE_PROJECTION中父ID列的索引
     private static final int NOTE_PARENT_ID_COLUMN = 0;
 
@@ -168,60 +209,74 @@ public class WorkingNote {
     }
 
     /**
-     * 从数据库加载笔记的基本信息
+     * 用一次联合查询从数据库加载笔记的基本信息和具体数据内容
      * @throws IllegalArgumentException 如果找不到指定ID的笔记
      */
     private void loadNote() {
-        Cursor cursor = mContext.getContentResolver().query(
-                ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, mNoteId), NOTE_PROJECTION, null,
-                null, null);
-
-        if (cursor != null) {
-            if (cursor.moveToFirst()) {
-                mFolderId = cursor.getLong(NOTE_PARENT_ID_COLUMN);
-                mBgColorId = cursor.getInt(NOTE_BG_COLOR_ID_COLUMN);
-                mWidgetId = cursor.getInt(NOTE_WIDGET_ID_COLUMN);
-                mWidgetType = cursor.getInt(NOTE_WIDGET_TYPE_COLUMN);
-                mAlertDate = cursor.getLong(NOTE_ALERTED_DATE_COLUMN);
-                mModifiedDate = cursor.getLong(NOTE_MODIFIED_DATE_COLUMN);
-            }
-            cursor.close();
-        } else {
+        // 数据行按排序键升序读出，待办事项可以直接按顺序追加到清单
+        NoteWithDataCursor cursor = NoteWithDataCursor.query(mContext.getContentResolver(),
+                mNoteId, NOTE_PROJECTION, DATA_PROJECTION, CheckItem.ORDER);
+        if (cursor == null) {
             Log.e(TAG, "No note with id:" + mNoteId);
             throw new IllegalArgumentException("Unable to find note with id " + mNoteId);
         }
-        loadNoteData();
-    }
-
-    /**
-     * 从数据库加载笔记的具体数据内容
-     * @throws IllegalArgumentException 如果找不到指定ID的笔记数据
-     */
-    private void loadNoteData() {
-        Cursor cursor = mContext.getContentResolver().query(Notes.CONTENT_DATA_URI, DATA_PROJECTION,
-                DataColumns.NOTE_ID + "=?", new String[] {
-                    String.valueOf(mNoteId)
-                }, null);
-
-        if (cursor != null) {
-            if (cursor.moveToFirst()) {
-                do {
-                    String type = cursor.getString(DATA_MIME_TYPE_COLUMN);
-                    if (DataConstants.NOTE.equals(type)) {
-                        mContent = cursor.getString(DATA_CONTENT_COLUMN);
-                        mMode = cursor.getInt(DATA_MODE_COLUMN);
-                        mNote.setTextDataId(cursor.getLong(DATA_ID_COLUMN));
-                    } else if (DataConstants.CALL_NOTE.equals(type)) {
-                        mNote.setCallDataId(cursor.getLong(DATA_ID_COLUMN));
-                    } else {
-                        Log.d(TAG, "Wrong note type with type:" + type);
+
+        try {
+            if (!cursor.moveToFirst()) {
+                Log.e(TAG, "No note with id:" + mNoteId);
+                throw new IllegalArgumentException("Unable to find note with id " + mNoteId);
+            }
+            mFolderId = cursor.getLong(NOTE_PARENT_ID_COLUMN);
+            mBgColorId = cursor.getInt(NOTE_BG_COLOR_ID_COLUMN);
+            mWidgetId = cursor.getInt(NOTE_WIDGET_ID_COLUMN);
+            mWidgetType = cursor.getInt(NOTE_WIDGET_TYPE_COLUMN);
+            mAlertDate = cursor.getLong(NOTE_ALERTED_DATE_COLUMN);
+            mModifiedDate = cursor.getLong(NOTE_MODIFIED_DATE_COLUMN);
+
+            Cursor data = cursor.getDataView();
+            boolean structured = false;
+            CheckList checkList = new CheckList();
+            do {
+                // 没有数据行的笔记只有一行，数据列为空
+                if (!cursor.hasData()) {
+                    continue;
+                }
+                String type = data.getString(DATA_MIME_TYPE_COLUMN);
+                if (DataConstants.NOTE.equals(type)) {
+                    mText.reset(data.getString(DATA_CONTENT_COLUMN));
+                    mMode = data.getInt(DATA_MODE_COLUMN);
+                    structured = data.getInt(DATA_STORAGE_COLUMN) == TextNote.STORAGE_ITEMS;
+                    mNote.setTextDataId(data.getLong(DATA_ID_COLUMN));
+                } else if (DataConstants.CHECK_ITEM.equals(type)) {
+                    checkList.addSaved(data.getLong(DATA_ID_COLUMN),
+                            data.getString(DATA_CONTENT_COLUMN),
+                            data.getInt(DATA_MODE_COLUMN) != 0,
+                            data.getLong(DATA_STORAGE_COLUMN));
+                } else if (DataConstants.CALL_NOTE.equals(type)) {
+                    mNote.setCallDataId(data.getLong(DATA_ID_COLUMN));
+                } else {
+                    Log.d(TAG, "Wrong note type with type:" + type);
+                }
+            } while (cursor.moveToNext());
+            if (structured) {
+                // 列表项的行是清单的准确状态，勾选和移动不会改写文本行
+                mCheckList = checkList;
+            } else if (checkList.size() > 0) {
+                if (mMode == TextNote.MODE_CHECK_LIST) {
+                    // 同步改写文本行时把存储方式标为文本，以文本行为准调整列表项，下次保存时写入
+                    if (checkList.reconcile(mText.toString())) {
+                        Log.i(TAG, "Check items of note " + mNoteId + " reconciled with its content");
                     }
-                } while (cursor.moveToNext());
+                    mCheckList = checkList;
+                    mNote.setTextData(TextNote.STORAGE, String.valueOf(TextNote.STORAGE_ITEMS));
+                } else {
+                    // 转为文本存储时未能删除的列表项，下次保存时删除
+                    checkList.clear();
+                    mDetachedCheckList = checkList;
+                }
             }
+        } finally {
             cursor.close();
-        } else {
-            Log.e(TAG, "No data with id:" + mNoteId);
-            throw new IllegalArgumentException("Unable to find note's data with id " + mNoteId);
         }
     }
 
@@ -250,37 +305,241 @@ public class WorkingNote {
      * @return 加载的工作笔记对象
      */
     public static WorkingNote load(Context context, long id) {
-        return new WorkingNote(context, id, 0);
+        WorkingNote note = new WorkingNote(context, id, 0);
+        note.recoverDraft();
+        return note;
+    }
+
+    /**
+     * 重放上次意外退出前草稿日志中的输入，恢复的内容在下次保存时写入数据库
+     * 需要读取文件，加载已有笔记时在后台线程调用
+     * @return 恢复了草稿返回true，否则返回false
+     */
+    public boolean recoverDraft() {
+        DraftJournal.Draft draft = DraftJournal.recover(mContext, mNoteId, mMode, getDraftText());
+        if (draft == null) {
+            return false;
+        }
+        Log.i(TAG, "Recovered draft for note " + mNoteId);
+        if (draft.getMode() != mMode) {
+            setCheckListMode(draft.getMode());
+        }
+        if (mCheckList != null) {
+            CheckList recovered = CheckList.parse(draft.getText());
+            mCheckList.clear();
+            for (int i = 0; i < recovered.size(); i++) {
+                CheckList.Item item = recovered.get(i);
+                mCheckList.insert(mCheckList.size(), item.getText(), item.isChecked());
+            }
+        } else {
+            setWorkingText(draft.getText());
+        }
+        return true;
+    }
+
+    /**
+     * 获取草稿日志使用的工作文本，清单模式下为带前缀标记的文本
+     * @return 工作文本
+     */
+    private String getDraftText() {
+        if (mCheckList != null) {
+            return mCheckList.getContent();
+        }
+        return getContent();
     }
 
     /**
-     * 保存笔记到数据库
-     * 该方法是线程安全的，确保在多线程环境下正确保存笔记
+     * 保存笔记到数据库，并等待保存完成
+     * 写入在保存线程上进行，排在之前提交的保存之后；只在需要立即得到笔记ID时使用
      * @return 保存成功返回true，否则返回false
      */
-    public synchronized boolean saveNote() {
-        if (isWorthSaving()) {
-            if (!existInDatabase()) {
-                if ((mNoteId = Note.getNewNoteId(mContext, mFolderId)) == 0) {
-                    Log.e(TAG, "Create new note fail with id:" + mNoteId);
-                    return false;
-                }
+    public boolean saveNote() {
+        Future<Boolean> future = sSaveExecutor.submit(new Callable<Boolean>() {
+            public Boolean call() {
+                return writeNote();
             }
+        });
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Log.e(TAG, "Interrupted while saving note with id:" + mNoteId);
+        } catch (ExecutionException e) {
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+        }
+        return false;
+    }
 
-            mNote.syncNote(mContext, mNoteId);
+    /**
+     * 将笔记的修改提交到保存线程后立即返回
+     * 尚未开始的保存不会重复提交，执行时写入此刻累积的全部修改
+     * @return 有需要保存的修改返回true，否则返回false
+     */
+    public boolean saveNoteAsync() {
+        return saveNoteAsync(null);
+    }
 
-            /**
-             * Update widget content if there exist any widget of this note
-             */
-            if (mWidgetId != AppWidgetManager.INVALID_APPWIDGET_ID
-                    && mWidgetType != Notes.TYPE_WIDGET_INVALIDE
-                    && mNoteSettingStatusListener != null) {
-                mNoteSettingStatusListener.onWidgetChanged();
+    /**
+     * 将笔记的修改提交到保存线程，写入完成后在主线程回调
+     * 已有排队的保存时只登记监听器，由该次保存一并回调；没有需要保存的修改时也会回调，
+     * 回调时可通过{@link #getNoteId()}取得ID
+     * @param listener 保存完成监听器，为null时没有修改就不提交
+     * @return 有需要保存的修改返回true，否则返回false
+     */
+    public boolean saveNoteAsync(OnNoteSavedListener listener) {
+        boolean worthSaving;
+        synchronized (this) {
+            worthSaving = isWorthSaving();
+            if (!worthSaving && listener == null) {
+                return false;
             }
-            return true;
+            if (listener != null) {
+                mSaveListeners.add(listener);
+            }
+            if (mSaveQueued) {
+                return worthSaving;
+            }
+            mSaveQueued = true;
+        }
+        sSaveExecutor.execute(new Runnable() {
+            public void run() {
+                runQueuedSave();
+            }
+        });
+        return worthSaving;
+    }
+
+    /**
+     * 在保存线程上执行排队的保存，完成后在主线程回调登记的监听器
+     */
+    private void runQueuedSave() {
+        final OnNoteSavedListener[] listeners;
+        synchronized (this) {
+            mSaveQueued = false;
+            listeners = mSaveListeners.toArray(new OnNoteSavedListener[mSaveListeners.size()]);
+            mSaveListeners.clear();
+        }
+        writeNote();
+        if (listeners.length > 0) {
+            sMainHandler.post(new Runnable() {
+                public void run() {
+                    for (OnNoteSavedListener listener : listeners) {
+                        listener.onNoteSaved(WorkingNote.this);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * 等待之前提交的保存完成，并且保存完成的回调已在主线程执行，应在后台线程调用
+     * 用于界面重建后重新加载笔记，读到的是被销毁的界面提交的内容
+     */
+    public static void awaitPendingSaves() {
+        try {
+            sSaveExecutor.submit(new Runnable() {
+                public void run() {
+                }
+            }).get();
+            // 保存完成的回调在保存任务中投递到主线程，排在这之前
+            final CountDownLatch latch = new CountDownLatch(1);
+            sMainHandler.post(new Runnable() {
+                public void run() {
+                    latch.countDown();
+                }
+            });
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+        }
+    }
+
+    /**
+     * 在保存线程上写入笔记
+     * 只在取出修改时持有锁，数据库操作期间主线程可以继续修改笔记
+     * @return 保存成功返回true，否则返回false
+     */
+    private boolean writeNote() {
+        Note changes;
+        long noteId;
+        long folderId;
+        CheckList checkList;
+        CheckList detachedCheckList;
+        NoteText.Snapshot text = null;
+        synchronized (this) {
+            if (!isWorthSaving()) {
+                return false;
+            }
+            // 列表项增删或文本变化时文本行随之更新，只勾选或移动时只写列表项的行
+            if (mCheckList != null && mCheckList.isContentChanged()) {
+                setWorkingText(mCheckList.getContent());
+            }
+            // 只复制分段表，完整文本在锁外生成
+            if (mTextDirty) {
+                text = mText.snapshot();
+                mTextDirty = false;
+            }
+            changes = mNote.takeChanges();
+            noteId = mNoteId;
+            folderId = mFolderId;
+            checkList = mCheckList;
+            detachedCheckList = mDetachedCheckList;
+        }
+        if (text != null) {
+            changes.setTextData(DataColumns.CONTENT, text.toString());
+        }
+
+        if (noteId == 0) {
+            // 笔记行和内容在一个事务中创建，之后的syncNote没有需要写入的修改
+            if ((noteId = changes.insertNewNote(mContext, folderId)) == 0) {
+                Log.e(TAG, "Create new note fail with id:" + noteId);
+                mNote.restoreChanges(changes);
+                return false;
+            }
+            mNoteId = noteId;
+        }
+
+        boolean saved = changes.syncNote(mContext, noteId);
+        if (saved) {
+            mNote.adoptDataIds(changes);
         } else {
-            return false;
+            // 放回未写入的数据，下次保存时重试
+            Log.e(TAG, "Write note data fail with id:" + noteId);
+            mNote.restoreChanges(changes);
+        }
+
+        // 写入失败的列表项保留修改标记，下次保存时重试
+        if (checkList != null && !Note.syncCheckList(mContext, noteId, checkList)) {
+            saved = false;
+        }
+        if (detachedCheckList != null) {
+            if (Note.syncCheckList(mContext, noteId, detachedCheckList)) {
+                synchronized (this) {
+                    if (mDetachedCheckList == detachedCheckList) {
+                        mDetachedCheckList = null;
+                    }
+                }
+            } else {
+                saved = false;
+            }
         }
+
+        /**
+         * Update widget content if there exist any widget of this note
+         */
+        if (mWidgetId != AppWidgetManager.INVALID_APPWIDGET_ID
+                && mWidgetType != Notes.TYPE_WIDGET_INVALIDE) {
+            sMainHandler.post(new Runnable() {
+                public void run() {
+                    if (mNoteSettingStatusListener != null) {
+                        mNoteSettingStatusListener.onWidgetChanged();
+                    }
+                }
+            });
+        }
+        return saved;
     }
 
     /**
@@ -296,8 +555,13 @@ public class WorkingNote {
      * @return 如果笔记值得保存返回true，否则返回false
      */
     private boolean isWorthSaving() {
-        if (mIsDeleted || (!existInDatabase() && TextUtils.isEmpty(mContent))
-                || (existInDatabase() && !mNote.isLocalModified())) {
+        boolean checkListDirty = (mCheckList != null && mCheckList.isDirty())
+                || mDetachedCheckList != null;
+        if (mIsDeleted
+                || (!existInDatabase() && mText.length() == 0
+                        && (mCheckList == null || !mCheckList.isDirty()))
+                || (existInDatabase() && !mNote.isLocalModified() && !mTextDirty
+                        && !checkListDirty)) {
             return false;
         } else {
             return true;
@@ -318,9 +582,11 @@ public class WorkingNote {
      * @param set 是否设置提醒
      */
     public void setAlertDate(long date, boolean set) {
-        if (date != mAlertDate) {
-            mAlertDate = date;
-            mNote.setNoteValue(NoteColumns.ALERTED_DATE, String.valueOf(mAlertDate));
+        synchronized (this) {
+            if (date != mAlertDate) {
+                mAlertDate = date;
+                mNote.setNoteValue(NoteColumns.ALERTED_DATE, String.valueOf(mAlertDate));
+            }
         }
         if (mNoteSettingStatusListener != null) {
             mNoteSettingStatusListener.onClockAlertChanged(date, set);
@@ -332,7 +598,9 @@ public class WorkingNote {
      * @param mark true表示标记为已删除，false表示标记为未删除
      */
     public void markDeleted(boolean mark) {
-        mIsDeleted = mark;
+        synchronized (this) {
+            mIsDeleted = mark;
+        }
         if (mWidgetId != AppWidgetManager.INVALID_APPWIDGET_ID
                 && mWidgetType != Notes.TYPE_WIDGET_INVALIDE && mNoteSettingStatusListener != null) {
                 mNoteSettingStatusListener.onWidgetChanged();
@@ -345,7 +613,9 @@ public class WorkingNote {
      */
     public void setBgColorId(int id) {
         if (id != mBgColorId) {
-            mBgColorId = id;
+            synchronized (this) {
+                mBgColorId = id;
+            }
             if (mNoteSettingStatusListener != null) {
                 mNoteSettingStatusListener.onBackgroundColorChanged();
             }
@@ -359,19 +629,49 @@ public class WorkingNote {
      */
     public void setCheckListMode(int mode) {
         if (mMode != mode) {
+            // 回调中会更新笔记文本，不能在持有锁时调用
             if (mNoteSettingStatusListener != null) {
                 mNoteSettingStatusListener.onCheckListModeChanged(mMode, mode);
             }
-            mMode = mode;
-            mNote.setTextData(TextNote.MODE, String.valueOf(mMode));
+            synchronized (this) {
+                mMode = mode;
+                mNote.setTextData(TextNote.MODE, String.valueOf(mMode));
+                if (mMode != TextNote.MODE_CHECK_LIST && mCheckList != null) {
+                    // 退出清单模式后转为文本存储，列表项在下次保存时删除
+                    mCheckList.clear();
+                    mDetachedCheckList = mCheckList;
+                    mCheckList = null;
+                    mNote.setTextData(TextNote.STORAGE, String.valueOf(TextNote.STORAGE_TEXT));
+                }
+            }
         }
     }
 
+    /**
+     * 获取结构化存储的待办事项清单
+     * @return 待办事项清单，笔记使用文本存储时返回null
+     */
+    public CheckList getCheckList() {
+        return mCheckList;
+    }
+
+    /**
+     * 将清单模式的笔记转为结构化存储，每个列表项保存为单独的一行
+     * @param list 当前的待办事项清单
+     */
+    public synchronized void setStructuredCheckList(CheckList list) {
+        if (mCheckList != null || mMode != TextNote.MODE_CHECK_LIST) {
+            return;
+        }
+        mCheckList = list;
+        mNote.setTextData(TextNote.STORAGE, String.valueOf(TextNote.STORAGE_ITEMS));
+    }
+
     /**
      * 设置笔记的小组件类型
      * @param type 小组件类型
      */
-    public void setWidgetType(int type) {
+    public synchronized void setWidgetType(int type) {
         if (type != mWidgetType) {
             mWidgetType = type;
             mNote.setNoteValue(NoteColumns.WIDGET_TYPE, String.valueOf(mWidgetType));
@@ -382,7 +682,7 @@ public class WorkingNote {
      * 设置笔记的小组件ID
      * @param id 小组件ID
      */
-    public void setWidgetId(int id) {
+    public synchronized void setWidgetId(int id) {
         if (id != mWidgetId) {
             mWidgetId = id;
             mNote.setNoteValue(NoteColumns.WIDGET_ID, String.valueOf(mWidgetId));
@@ -393,11 +693,33 @@ public class WorkingNote {
      * 设置笔记的工作文本内容
      * @param text 笔记内容文本
      */
-    public void setWorkingText(String text) {
-        if (!TextUtils.equals(mContent, text)) {
+    public synchronized void setWorkingText(String text) {
+        if (!mText.contentEquals(text)) {
+            mText.reset(text);
             mContent = text;
-            mNote.setTextData(DataColumns.CONTENT, mContent);
+            mContentVersion = mText.getVersion();
+            mTextDirty = true;
+        }
+    }
+
+    /**
+     * 把编辑器中的一次修改应用到工作文本，代价只与修改的大小有关
+     * 用source中[start, start + count)的字符替换工作文本中[start, start + before)的内容
+     * @param source 修改后的编辑器文本
+     * @param start 修改的起点
+     * @param before 被替换的字符数
+     * @param count 新字符数
+     */
+    public synchronized void applyEdit(CharSequence source, int start, int before, int count) {
+        if (start + before > mText.length()
+                || mText.length() - before + count != source.length()) {
+            // 不应发生，工作文本与编辑器不一致时以编辑器为准
+            Log.w(TAG, "Working text out of sync with editor, reset it");
+            mText.reset(source.toString());
+        } else {
+            mText.replace(start, before, source, start, count);
         }
+        mTextDirty = true;
     }
 
     /**
@@ -405,7 +727,7 @@ public class WorkingNote {
      * @param phoneNumber 电话号码
      * @param callDate 通话日期（时间戳）
      */
-    public void convertToCallNote(String phoneNumber, long callDate) {
+    public synchronized void convertToCallNote(String phoneNumber, long callDate) {
         mNote.setCallData(CallNote.CALL_DATE, String.valueOf(callDate));
         mNote.setCallData(CallNote.PHONE_NUMBER, phoneNumber);
         mNote.setNoteValue(NoteColumns.PARENT_ID, String.valueOf(Notes.ID_CALL_RECORD_FOLDER));
@@ -423,10 +745,23 @@ public class WorkingNote {
      * 获取笔记的内容
      * @return 笔记内容文本
      */
-    public String getContent() {
+    public synchronized String getContent() {
+        long version = mText.getVersion();
+        if (mContent == null || mContentVersion != version) {
+            mContent = mText.toString();
+            mContentVersion = version;
+        }
         return mContent;
     }
 
+    /**
+     * 获取笔记内容的快照，只复制分段表，完整文本可以在其他线程上生成
+     * @return 笔记内容的快照
+     */
+    public synchronized NoteText.Snapshot snapshotText() {
+        return mText.snapshot();
+    }
+
     /**
      * 获取笔记的提醒日期
      * @return 提醒日期（时间戳）
@@ -536,4 +871,15 @@ public class WorkingNote {
          */
         void onCheckListModeChanged(int oldMode, int newMode);
     }
+
+    /**
+     * 笔记保存完成监听器接口
+     */
+    public interface OnNoteSavedListener {
+        /**
+         * 保存线程处理完笔记后在主线程调用，笔记不值得保存时也会调用
+         * @param note 保存的笔记
+         */
+        void onNoteSaved(WorkingNote note);
+    }
 }
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.model;
+
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.util.Log;
+import android.util.LruCache;
+
+import net.micode.notes.data.Notes;
+
+import java.util.HashSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+
+/**
+ * 工作笔记预取缓存
+ * 列表中可见或被触摸的笔记在后台线程预先加载为WorkingNote，
+ * 编辑界面打开时直接取用，避免在主线程上查询数据库
+ * 笔记数据变化只使该笔记的缓存项失效，不带笔记ID的变化才清空全部缓存
+ */
+public class WorkingNoteCache {
+    // 日志标签
+    private static final String TAG = "WorkingNoteCache";
+
+    // 缓存的最大笔记数
+    private static final int MAX_CACHED_NOTES = 16;
+
+    // 单例实例
+    private static WorkingNoteCache sInstance;
+
+    // 应用上下文
+    private final Context mContext;
+
+    // 笔记ID到预加载笔记的LRU缓存
+    private final LruCache<Long, WorkingNote> mCache;
+
+    // 正在后台加载的笔记ID
+    private final HashSet<Long> mPending;
+
+    // 后台加载线程
+    private final ExecutorService mExecutor;
+
+    // 加载期间数据发生了变化的笔记ID，加载结果需要丢弃
+    private final HashSet<Long> mStale;
+
+    private WorkingNoteCache(Context context) {
+        mContext = context.getApplicationContext();
+        mCache = new LruCache<Long, WorkingNote>(MAX_CACHED_NOTES);
+        mPending = new HashSet<Long>();
+        mStale = new HashSet<Long>();
+        mExecutor = Executors.newSingleThreadExecutor();
+        mContext.getContentResolver().registerContentObserver(Notes.CONTENT_NOTE_URI, true,
+                new ContentObserver(null) {
+                    @Override
+                    public void onChange(boolean selfChange, Uri uri) {
+                        invalidate(uri);
+                    }
+
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        invalidate(null);
+                    }
+                });
+    }
+
+    /**
+     * 获取缓存单例
+     * @param context 上下文对象
+     * @return 缓存实例
+     */
+    public static synchronized WorkingNoteCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new WorkingNoteCache(context);
+        }
+        return sInstance;
+    }
+
+    /**
+     * 在后台预加载指定笔记，已缓存或正在加载时直接返回
+     * @param noteId 笔记ID
+     */
+    public void prefetch(final long noteId) {
+        if (noteId <= 0) {
+            return;
+        }
+        synchronized (this) {
+            if (mCache.get(noteId) != null || !mPending.add(noteId)) {
+                return;
+            }
+        }
+        mExecutor.execute(new Runnable() {
+            public void run() {
+                WorkingNote note = null;
+                try {
+                    note = WorkingNote.load(mContext, noteId);
+                } catch (IllegalArgumentException e) {
+                    Log.w(TAG, "Prefetch note failed with id:" + noteId);
+                }
+                synchronized (WorkingNoteCache.this) {
+                    mPending.remove(noteId);
+                    if (!mStale.remove(noteId) && note != null) {
+                        mCache.put(noteId, note);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * 取出预加载的笔记，取出后该笔记归调用者独占
+     * @param noteId 笔记ID
+     * @return 预加载的笔记，未命中时返回null
+     */
+    public synchronized WorkingNote take(long noteId) {
+        return mCache.remove(noteId);
+    }
+
+    /**
+     * 等待之前提交的预加载完成，应在后台线程调用
+     */
+    void awaitPrefetches() {
+        try {
+            mExecutor.submit(new Runnable() {
+                public void run() {
+                }
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+        }
+    }
+
+    /**
+     * 根据变化的URI使缓存失效
+     * @param uri 变化的笔记URI，为空或不带ID时清空全部缓存
+     */
+    private synchronized void invalidate(Uri uri) {
+        if (uri != null && uri.getPathSegments().size() > 1) {
+            try {
+                long noteId = ContentUris.parseId(uri);
+                mCache.remove(noteId);
+                if (mPending.contains(noteId)) {
+                    mStale.add(noteId);
+                }
+                return;
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Unexpected note uri:" + uri);
+            }
+        }
+        mCache.evictAll();
+        mStale.addAll(mPending);
+    }
+}
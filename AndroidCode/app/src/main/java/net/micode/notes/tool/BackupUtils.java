@@ -25,9 +25,12 @@ import android.util.Log;
 
 import net.micode.notes.R;
 import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.CheckItem;
 import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.DataConstants;
 import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.Notes.TextNote;
+import net.micode.notes.model.CheckList;
 
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -152,6 +155,8 @@ public class BackupUtils {
 
         private static final int DATA_COLUMN_CALL_DATE = 2;
 
+        private static final int DATA_COLUMN_STORAGE = 3;
+
         private static final int DATA_COLUMN_PHONE_NUMBER = 4;
 
         private final String [] TEXT_FORMAT;
@@ -247,6 +252,10 @@ public class BackupUtils {
                             }
                         } else if (DataConstants.NOTE.equals(mimeType)) {
                             String content = dataCursor.getString(DATA_COLUMN_CONTENT);
+                            if (dataCursor.getInt(DATA_COLUMN_STORAGE) == TextNote.STORAGE_ITEMS) {
+                                // 勾选和移动只写列表项的行，清单的文本按列表项生成
+                                content = getCheckListContent(noteId);
+                            }
                             if (!TextUtils.isEmpty(content)) {
                                 ps.println(String.format(getFormat(FORMAT_NOTE_CONTENT),
                                         content));
@@ -266,6 +275,29 @@ public class BackupUtils {
             }
         }
 
+        /**
+         * 按待办事项的数据行生成带前缀标记的清单文本
+         * @param noteId 笔记ID
+         * @return 清单文本
+         */
+        private String getCheckListContent(String noteId) {
+            CheckList list = new CheckList();
+            Cursor c = mContext.getContentResolver().query(Notes.CONTENT_DATA_URI,
+                    new String[] { DataColumns.CONTENT, CheckItem.CHECKED },
+                    DataColumns.NOTE_ID + "=? AND " + DataColumns.MIME_TYPE + "=?",
+                    new String[] { noteId, DataConstants.CHECK_ITEM }, CheckItem.ORDER);
+            if (c != null) {
+                try {
+                    while (c.moveToNext()) {
+                        list.addSaved(0, c.getString(0), c.getInt(1) != 0, 0);
+                    }
+                } finally {
+                    c.close();
+                }
+            }
+            return list.getContent();
+        }
+
         /**
          * 将所有笔记导出为用户可读的文本格式
          * @return 导出状态，可能的值包括：
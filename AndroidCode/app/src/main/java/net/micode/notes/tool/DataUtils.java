@@ -23,6 +23,7 @@ import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.OperationApplicationException;
 import android.database.Cursor;
+import android.os.Bundle;
 import android.os.RemoteException;
 import android.util.Log;
 
@@ -136,6 +137,106 @@ public class DataUtils {
         return false;
     }
 
+    /**
+     * 在一个事务中批量创建笔记及其数据行
+     * @param resolver 内容解析器
+     * @param notes 每个笔记的列值
+     * @param data 所有数据行的列值，不需要包含笔记ID
+     * @param dataNoteIndex 每个数据行所属笔记在notes中的下标
+     * @param dataIds 用于返回新数据行的ID，长度与data相同，可以为null
+     * @return 新笔记的ID，创建失败时返回null
+     */
+    public static long[] batchCreateNotes(ContentResolver resolver, ContentValues[] notes,
+            ContentValues[] data, int[] dataNoteIndex, long[] dataIds) {
+        Bundle extras = new Bundle();
+        extras.putParcelableArray(Notes.EXTRA_NOTE_VALUES, notes);
+        extras.putParcelableArray(Notes.EXTRA_DATA_VALUES, data);
+        extras.putIntArray(Notes.EXTRA_DATA_NOTE_INDEX, dataNoteIndex);
+        Bundle result;
+        try {
+            result = resolver.call(Notes.CONTENT_NOTE_URI, Notes.METHOD_CREATE_NOTES, null, extras);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+            return null;
+        }
+        if (result == null) {
+            Log.e(TAG, "create notes failed, count:" + notes.length);
+            return null;
+        }
+        if (dataIds != null) {
+            long[] ids = result.getLongArray(Notes.EXTRA_DATA_IDS);
+            System.arraycopy(ids, 0, dataIds, 0, Math.min(ids.length, dataIds.length));
+        }
+        return result.getLongArray(Notes.EXTRA_NOTE_IDS);
+    }
+
+    /**
+     * 在一个事务中创建一个笔记及其数据行
+     * @param resolver 内容解析器
+     * @param note 笔记的列值
+     * @param data 数据行的列值，不需要包含笔记ID
+     * @param dataIds 用于返回新数据行的ID，长度与data相同，可以为null
+     * @return 新笔记的ID，创建失败时返回0
+     */
+    public static long createNote(ContentResolver resolver, ContentValues note,
+            ContentValues[] data, long[] dataIds) {
+        int[] dataNoteIndex = new int[data.length];
+        long[] noteIds = batchCreateNotes(resolver, new ContentValues[] { note }, data,
+                dataNoteIndex, dataIds);
+        return noteIds == null ? 0 : noteIds[0];
+    }
+
+    /**
+     * 在一个事务中写入多个笔记的同步ID
+     * @param resolver 内容解析器
+     * @param noteIds 笔记ID
+     * @param syncIds 与笔记ID一一对应的同步ID
+     * @return 成功更新的笔记数量，失败时返回-1
+     */
+    public static int batchUpdateSyncIds(ContentResolver resolver, long[] noteIds,
+            long[] syncIds) {
+        Bundle extras = new Bundle();
+        extras.putLongArray(Notes.EXTRA_NOTE_IDS, noteIds);
+        extras.putLongArray(Notes.EXTRA_SYNC_IDS, syncIds);
+        Bundle result;
+        try {
+            result = resolver.call(Notes.CONTENT_NOTE_URI, Notes.METHOD_UPDATE_SYNC_IDS, null,
+                    extras);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+            return -1;
+        }
+        if (result == null) {
+            Log.e(TAG, "update sync ids failed, count:" + noteIds.length);
+            return -1;
+        }
+        long[] ids = result.getLongArray(Notes.EXTRA_NOTE_IDS);
+        return ids == null ? 0 : ids.length;
+    }
+
+    /**
+     * 在一个事务中复制笔记及其所有数据行，较长的内容在两份笔记之间共享，直到其中一份被修改
+     * @param resolver 内容解析器
+     * @param noteId 要复制的笔记ID
+     * @return 新笔记的ID，复制失败时返回0
+     */
+    public static long duplicateNote(ContentResolver resolver, long noteId) {
+        Bundle result;
+        try {
+            result = resolver.call(Notes.CONTENT_NOTE_URI, Notes.METHOD_DUPLICATE_NOTE,
+                    String.valueOf(noteId), null);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+            return 0;
+        }
+        if (result == null) {
+            Log.e(TAG, "duplicate note failed, id:" + noteId);
+            return 0;
+        }
+        long[] ids = result.getLongArray(Notes.EXTRA_NOTE_IDS);
+        return ids == null || ids.length == 0 ? 0 : ids[0];
+    }
+
     /**
      * 获取用户创建的文件夹数量，不包括系统文件夹
      * @param resolver 内容解析器
@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.tool;
+
+import android.text.Spannable;
+import android.text.SpannableString;
+import android.text.TextUtils;
+import android.text.style.BackgroundColorSpan;
+
+import java.util.Arrays;
+
+/**
+ * 搜索词高亮工具类
+ * 把用户查询按空白拆分成多个词，忽略大小写，按字面匹配（不解释正则元字符）。
+ * 所有词在构造时一次编译成Aho-Corasick自动机，之后对任意多段文本复用，
+ * 每段文本只需线性扫描一遍。
+ */
+public class QueryHighlighter {
+    // 根节点下标
+    private static final int ROOT = 0;
+
+    // 原始查询词
+    private final String mQuery;
+
+    // 高亮背景颜色
+    private final int mColor;
+
+    // 每个节点的出边字符，按插入顺序存放
+    private char[][] mKeys;
+
+    // 每个节点的出边目标节点，与mKeys一一对应
+    private int[][] mNext;
+
+    // 每个节点的出边数量
+    private int[] mEdgeCount;
+
+    // 每个节点的失败指针
+    private int[] mFail;
+
+    // 在该节点结束的最长词长度，0表示没有词在此结束
+    private int[] mOutput;
+
+    // 节点数量
+    private int mNodeCount;
+
+    /**
+     * 编译查询词
+     * @param query 用户输入的查询词，可以为空
+     * @param color 高亮背景颜色
+     */
+    public QueryHighlighter(String query, int color) {
+        mQuery = query;
+        mColor = color;
+        int capacity = 1 + (query == null ? 0 : query.length());
+        mKeys = new char[capacity][];
+        mNext = new int[capacity][];
+        mEdgeCount = new int[capacity];
+        mFail = new int[capacity];
+        mOutput = new int[capacity];
+        mNodeCount = 1;
+
+        if (!TextUtils.isEmpty(query)) {
+            for (String term : query.trim().split("\\s+")) {
+                if (term.length() > 0) {
+                    addTerm(term);
+                }
+            }
+            buildFailLinks();
+        }
+    }
+
+    /**
+     * 获取编译时使用的查询词
+     */
+    public String getQuery() {
+        return mQuery;
+    }
+
+    /**
+     * 查询中是否没有任何可匹配的词
+     */
+    public boolean isEmpty() {
+        return mOutput[ROOT] == 0 && mEdgeCount[ROOT] == 0;
+    }
+
+    /**
+     * 在文本中查找所有匹配，重叠或相邻的匹配会合并
+     * @param text 要查找的文本
+     * @return 依次存放每段匹配起止位置的数组，长度为匹配段数的两倍
+     */
+    public int[] find(CharSequence text) {
+        if (text == null || isEmpty()) {
+            return new int[0];
+        }
+        int[] spans = new int[16];
+        int count = 0;
+        int state = ROOT;
+        for (int i = 0; i < text.length(); i++) {
+            state = step(state, fold(text.charAt(i)));
+            int length = mOutput[state];
+            if (length == 0) {
+                continue;
+            }
+            int start = i + 1 - length;
+            int end = i + 1;
+            // 结束位置单调递增，只需向前合并与新匹配重叠的段
+            while (count > 0 && start <= spans[count - 1]) {
+                start = Math.min(start, spans[count - 2]);
+                count -= 2;
+            }
+            if (count + 2 > spans.length) {
+                spans = Arrays.copyOf(spans, spans.length * 2);
+            }
+            spans[count++] = start;
+            spans[count++] = end;
+        }
+        return Arrays.copyOf(spans, count);
+    }
+
+    /**
+     * 生成带高亮的文本
+     * @param text 原始文本
+     * @return 匹配部分带背景色的Spannable文本
+     */
+    public Spannable highlight(String text) {
+        SpannableString spannable = new SpannableString(text == null ? "" : text);
+        int[] spans = find(text);
+        for (int i = 0; i < spans.length; i += 2) {
+            spannable.setSpan(new BackgroundColorSpan(mColor), spans[i], spans[i + 1],
+                    Spannable.SPAN_INCLUSIVE_EXCLUSIVE);
+        }
+        return spannable;
+    }
+
+    /**
+     * 大小写折叠，保证折叠前后长度不变，匹配位置可以直接用于原文
+     */
+    static char fold(char c) {
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+
+    /**
+     * 把一个词加入字典树
+     */
+    private void addTerm(String term) {
+        int node = ROOT;
+        for (int i = 0; i < term.length(); i++) {
+            char c = fold(term.charAt(i));
+            int next = child(node, c);
+            if (next < 0) {
+                next = newNode();
+                addEdge(node, c, next);
+            }
+            node = next;
+        }
+        mOutput[node] = Math.max(mOutput[node], term.length());
+    }
+
+    /**
+     * 按层次遍历建立失败指针，并把失败链上更长的输出合并到当前节点
+     */
+    private void buildFailLinks() {
+        int[] queue = new int[mNodeCount];
+        int head = 0;
+        int tail = 0;
+        for (int e = 0; e < mEdgeCount[ROOT]; e++) {
+            int child = mNext[ROOT][e];
+            mFail[child] = ROOT;
+            queue[tail++] = child;
+        }
+        while (head < tail) {
+            int node = queue[head++];
+            for (int e = 0; e < mEdgeCount[node]; e++) {
+                char c = mKeys[node][e];
+                int child = mNext[node][e];
+                mFail[child] = step(mFail[node], c);
+                mOutput[child] = Math.max(mOutput[child], mOutput[mFail[child]]);
+                queue[tail++] = child;
+            }
+        }
+    }
+
+    /**
+     * 自动机状态转移
+     */
+    private int step(int state, char c) {
+        while (true) {
+            int next = child(state, c);
+            if (next >= 0) {
+                return next;
+            }
+            if (state == ROOT) {
+                return ROOT;
+            }
+            state = mFail[state];
+        }
+    }
+
+    private int child(int node, char c) {
+        char[] keys = mKeys[node];
+        for (int e = 0; e < mEdgeCount[node]; e++) {
+            if (keys[e] == c) {
+                return mNext[node][e];
+            }
+        }
+        return -1;
+    }
+
+    private int newNode() {
+        return mNodeCount++;
+    }
+
+    private void addEdge(int node, char c, int target) {
+        int count = mEdgeCount[node];
+        if (mKeys[node] == null) {
+            mKeys[node] = new char[2];
+            mNext[node] = new int[2];
+        } else if (count == mKeys[node].length) {
+            mKeys[node] = Arrays.copyOf(mKeys[node], count * 2);
+            mNext[node] = Arrays.copyOf(mNext[node], count * 2);
+        }
+        mKeys[node][count] = c;
+        mNext[node][count] = target;
+        mEdgeCount[node] = count + 1;
+    }
+}
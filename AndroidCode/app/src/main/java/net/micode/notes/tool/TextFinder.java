@@ -0,0 +1,323 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.tool;
+
+import android.text.TextUtils;
+
+import java.util.Arrays;
+
+/**
+ * 便签内查找替换引擎
+ * 文本由若干段组成：普通模式只有一段，清单模式每个列表项一段。
+ * 查找忽略大小写，按字面匹配。每段折叠大小写后的文本会缓存到文本变化为止，
+ * 查询词在输入时逐字加长，只需在上次的匹配位置中筛选，不必重新扫描全文。
+ */
+public class TextFinder {
+
+    /**
+     * 被查找的文本
+     */
+    public interface Source {
+        /**
+         * 文本段数
+         */
+        int getSegmentCount();
+
+        /**
+         * 获取一段文本
+         */
+        CharSequence getSegment(int index);
+
+        /**
+         * 把一段中[start, end)的文本替换为text
+         */
+        void replace(int index, int start, int end, String text);
+    }
+
+    private final Source mSource;
+
+    // 每段折叠大小写后的文本，为null表示文本已变化需要重新生成
+    private String[] mFolded;
+
+    // 折叠大小写后的查询词
+    private String mQuery;
+
+    // 所有出现位置（允许重叠），按段和位置排序，用于查询词加长时筛选
+    private int[] mCandidateSegments;
+    private int[] mCandidateStarts;
+    private int mCandidateCount;
+
+    // 不重叠的匹配，按段和位置排序
+    private int[] mSegments;
+    private int[] mStarts;
+    private int mCount;
+
+    // 当前匹配的下标，-1表示没有当前匹配
+    private int mCurrent;
+
+    public TextFinder(Source source) {
+        mSource = source;
+        mQuery = "";
+        mCandidateSegments = new int[0];
+        mCandidateStarts = new int[0];
+        mSegments = new int[0];
+        mStarts = new int[0];
+        mCurrent = -1;
+    }
+
+    /**
+     * 文本发生变化，下次访问匹配时重新扫描
+     */
+    public void invalidate() {
+        mFolded = null;
+    }
+
+    /**
+     * 设置查询词并重新计算匹配
+     * @param query 查询词，为空时清除所有匹配
+     */
+    public void setQuery(String query) {
+        String folded = fold(query == null ? "" : query);
+        boolean extended = mFolded != null && mQuery.length() > 0
+                && folded.startsWith(mQuery);
+        mQuery = folded;
+        mCurrent = -1;
+        if (extended) {
+            filterCandidates();
+        } else {
+            scan();
+        }
+    }
+
+    /**
+     * 获取折叠大小写后的查询词
+     */
+    public String getQuery() {
+        return mQuery;
+    }
+
+    /**
+     * 获取匹配数量
+     */
+    public int getMatchCount() {
+        ensureMatches();
+        return mCount;
+    }
+
+    /**
+     * 获取当前匹配的下标，没有时返回-1
+     */
+    public int getCurrent() {
+        ensureMatches();
+        return mCurrent;
+    }
+
+    public int getMatchSegment(int index) {
+        return mSegments[index];
+    }
+
+    public int getMatchStart(int index) {
+        return mStarts[index];
+    }
+
+    public int getMatchEnd(int index) {
+        return mStarts[index] + mQuery.length();
+    }
+
+    /**
+     * 查找第一个不早于指定位置的匹配下标
+     * @param segment 段
+     * @param offset 段内位置
+     * @return 匹配下标，所有匹配都在指定位置之前时返回匹配数量
+     */
+    public int lowerBound(int segment, int offset) {
+        ensureMatches();
+        int low = 0;
+        int high = mCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mSegments[mid] < segment
+                    || (mSegments[mid] == segment && mStarts[mid] < offset)) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * 把指定位置之后最近的匹配设为当前匹配，到末尾时从头开始
+     * @return 当前匹配下标，没有匹配时返回-1
+     */
+    public int selectNearest(int segment, int offset) {
+        int index = lowerBound(segment, offset);
+        mCurrent = mCount == 0 ? -1 : index % mCount;
+        return mCurrent;
+    }
+
+    /**
+     * 移动到下一个匹配，到末尾时从头开始
+     * @return 当前匹配下标，没有匹配时返回-1
+     */
+    public int next() {
+        ensureMatches();
+        if (mCount == 0) {
+            mCurrent = -1;
+        } else {
+            mCurrent = (mCurrent + 1) % mCount;
+        }
+        return mCurrent;
+    }
+
+    /**
+     * 移动到上一个匹配，到开头时从末尾开始
+     * @return 当前匹配下标，没有匹配时返回-1
+     */
+    public int previous() {
+        ensureMatches();
+        if (mCount == 0) {
+            mCurrent = -1;
+        } else {
+            mCurrent = mCurrent <= 0 ? mCount - 1 : mCurrent - 1;
+        }
+        return mCurrent;
+    }
+
+    /**
+     * 替换所有匹配，从后往前逐个替换，前面匹配的位置不受影响
+     * 每次只修改匹配本身，修改和撤销记录的大小与匹配数量有关，与文本长度无关
+     * @param replacement 替换文本
+     * @return 替换的数量
+     */
+    public int replaceAll(String replacement) {
+        ensureMatches();
+        int replaced = mCount;
+        int length = mQuery.length();
+        for (int i = mCount - 1; i >= 0; i--) {
+            mSource.replace(mSegments[i], mStarts[i], mStarts[i] + length, replacement);
+        }
+        invalidate();
+        mCurrent = -1;
+        return replaced;
+    }
+
+    /**
+     * 文本变化后重新扫描，保留查询词
+     */
+    private void ensureMatches() {
+        if (mFolded == null) {
+            scan();
+        }
+    }
+
+    /**
+     * 重新生成折叠文本并查找所有出现位置
+     */
+    private void scan() {
+        int segmentCount = mSource.getSegmentCount();
+        if (mFolded == null || mFolded.length != segmentCount) {
+            mFolded = new String[segmentCount];
+            for (int i = 0; i < segmentCount; i++) {
+                mFolded[i] = fold(mSource.getSegment(i));
+            }
+        }
+
+        mCandidateCount = 0;
+        if (mQuery.length() > 0) {
+            for (int segment = 0; segment < segmentCount; segment++) {
+                String text = mFolded[segment];
+                int start = text.indexOf(mQuery);
+                while (start >= 0) {
+                    addCandidate(segment, start);
+                    start = text.indexOf(mQuery, start + 1);
+                }
+            }
+        }
+        buildMatches();
+    }
+
+    /**
+     * 查询词加长后，新的出现位置一定是原来的出现位置，只需逐个检查
+     */
+    private void filterCandidates() {
+        int kept = 0;
+        for (int i = 0; i < mCandidateCount; i++) {
+            int segment = mCandidateSegments[i];
+            int start = mCandidateStarts[i];
+            if (mFolded[segment].startsWith(mQuery, start)) {
+                mCandidateSegments[kept] = segment;
+                mCandidateStarts[kept] = start;
+                kept++;
+            }
+        }
+        mCandidateCount = kept;
+        buildMatches();
+    }
+
+    /**
+     * 从所有出现位置中按顺序选出互不重叠的匹配
+     */
+    private void buildMatches() {
+        if (mSegments.length < mCandidateCount) {
+            mSegments = new int[mCandidateCount];
+            mStarts = new int[mCandidateCount];
+        }
+        mCount = 0;
+        int lastSegment = -1;
+        int lastEnd = 0;
+        for (int i = 0; i < mCandidateCount; i++) {
+            int segment = mCandidateSegments[i];
+            int start = mCandidateStarts[i];
+            if (segment == lastSegment && start < lastEnd) {
+                continue;
+            }
+            mSegments[mCount] = segment;
+            mStarts[mCount] = start;
+            mCount++;
+            lastSegment = segment;
+            lastEnd = start + mQuery.length();
+        }
+        if (mCurrent >= mCount) {
+            mCurrent = -1;
+        }
+    }
+
+    private void addCandidate(int segment, int start) {
+        if (mCandidateCount == mCandidateStarts.length) {
+            int capacity = Math.max(16, mCandidateCount * 2);
+            mCandidateSegments = Arrays.copyOf(mCandidateSegments, capacity);
+            mCandidateStarts = Arrays.copyOf(mCandidateStarts, capacity);
+        }
+        mCandidateSegments[mCandidateCount] = segment;
+        mCandidateStarts[mCandidateCount] = start;
+        mCandidateCount++;
+    }
+
+    /**
+     * 折叠大小写，长度保持不变，折叠后的位置可以直接用于原文
+     */
+    private static String fold(CharSequence text) {
+        int length = text.length();
+        char[] chars = new char[length];
+        TextUtils.getChars(text, 0, length, chars, 0);
+        for (int i = 0; i < length; i++) {
+            chars[i] = QueryHighlighter.fold(chars[i]);
+        }
+        return new String(chars);
+    }
+}
@@ -28,11 +28,15 @@ import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.graphics.Paint;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
 import android.preference.PreferenceManager;
+import android.text.Editable;
+import android.text.Layout;
 import android.text.Spannable;
-import android.text.SpannableString;
 import android.text.TextUtils;
+import android.text.TextWatcher;
 import android.text.format.DateUtils;
 import android.text.style.BackgroundColorSpan;
 import android.util.Log;
@@ -42,34 +46,45 @@ import android.view.MenuItem;
 import android.view.MotionEvent;
 import android.view.View;
 import android.view.View.OnClickListener;
+import android.view.View.OnFocusChangeListener;
+import android.view.ViewGroup;
+import android.view.ViewTreeObserver;
 import android.view.WindowManager;
+import android.widget.BaseAdapter;
 import android.widget.CheckBox;
 import android.widget.CompoundButton;
 import android.widget.CompoundButton.OnCheckedChangeListener;
 import android.widget.EditText;
 import android.widget.ImageView;
-import android.widget.LinearLayout;
+import android.widget.ListView;
+import android.widget.ScrollView;
 import android.widget.TextView;
 import android.widget.Toast;
 
 import net.micode.notes.R;
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.TextNote;
+import net.micode.notes.model.CheckList;
+import net.micode.notes.model.DraftJournal;
+import net.micode.notes.model.EditHistory;
 import net.micode.notes.model.WorkingNote;
 import net.micode.notes.model.WorkingNote.NoteSettingChangedListener;
+import net.micode.notes.model.WorkingNoteCache;
 import net.micode.notes.tool.DataUtils;
+import net.micode.notes.tool.QueryHighlighter;
 import net.micode.notes.tool.ResourceParser;
 import net.micode.notes.tool.ResourceParser.TextAppearanceResources;
+import net.micode.notes.tool.TextFinder;
 import net.micode.notes.ui.DateTimePickerDialog.OnDateTimeSetListener;
 import net.micode.notes.ui.NoteEditText.OnTextViewChangeListener;
+import net.micode.notes.ui.NoteEditText.OnUndoListener;
 import net.micode.notes.widget.NoteWidgetProvider_2x;
 import net.micode.notes.widget.NoteWidgetProvider_4x;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 
 /**
@@ -94,7 +109,7 @@ import java.util.regex.Pattern;
  * - {@link #mFontSizeSelector} - 字体大小选择器
  */
 public class NoteEditActivity extends Activity implements OnClickListener,
-        NoteSettingChangedListener, OnTextViewChangeListener {
+        NoteSettingChangedListener, OnTextViewChangeListener, OnUndoListener {
     /**
      * HeadViewHolder - 便签头部视图的持有者类
      * 用于缓存便签头部的各个UI组件，提高视图访问效率。
@@ -172,13 +187,167 @@ public class NoteEditActivity extends Activity implements OnClickListener,
 
     private static final int SHORTCUT_ICON_TITLE_MAX_LEN = 10; // 快捷方式图标标题最大长度
 
-    public static final String TAG_CHECKED = String.valueOf('\u221A');    // 待办事项已完成标记
-    public static final String TAG_UNCHECKED = String.valueOf('\u25A1');  // 待办事项未完成标记
+    private static final long AUTO_SAVE_DELAY = 30000; // 停止输入后自动保存的延迟（毫秒），草稿日志已保证输入不丢失
 
-    private LinearLayout mEditTextList; // 便签编辑列表容器
+    public static final String TAG_CHECKED = CheckList.TAG_CHECKED;      // 待办事项已完成标记
+    public static final String TAG_UNCHECKED = CheckList.TAG_UNCHECKED;  // 待办事项未完成标记
+
+    private View mNoteEditorScroll;     // 普通模式编辑器的滚动容器
+    private ListView mEditTextList;     // 待办事项列表视图，只为可见列表项创建视图
+    private CheckList mCheckList;       // 待办事项清单模型
+    private CheckListAdapter mCheckListAdapter; // 待办事项列表适配器
+    private int mFocusPosition;         // 获得焦点的列表项位置
+    private int mFocusSelection;        // 获得焦点的列表项光标位置
 
     private String mUserQuery;  // 用户搜索查询词
-    private Pattern mPattern;   // 搜索查询词的正则表达式模式
+    private QueryHighlighter mQueryHighlighter; // 编译好的搜索词高亮器，按查询词复用
+
+    private View mFindBar;              // 查找替换栏
+    private EditText mFindInput;        // 查找输入框
+    private EditText mReplaceInput;     // 替换输入框
+    private TextView mFindCount;        // 当前匹配位置和匹配数量
+    private TextFinder mTextFinder;     // 查找替换引擎，普通模式和清单模式共用
+
+    private boolean mSettingEditorText; // 是否正在用工作文本填充编辑器
+
+    // 查找替换的文本：普通模式为编辑器中的文本，清单模式每个列表项为一段
+    private final TextFinder.Source mFindSource = new TextFinder.Source() {
+        public int getSegmentCount() {
+            return isCheckListShown() ? mCheckList.size() : 1;
+        }
+
+        public CharSequence getSegment(int index) {
+            return isCheckListShown() ? mCheckList.get(index).getText() : mNoteEditor.getText();
+        }
+
+        public void replace(int index, int start, int end, String text) {
+            if (isCheckListShown()) {
+                String item = mCheckList.get(index).getText();
+                mCheckList.setText(index, item.substring(0, start) + text + item.substring(end));
+            } else {
+                mNoteEditor.getText().replace(start, end, text);
+            }
+        }
+    };
+
+    private AsyncTask<Void, Void, WorkingNote> mNoteLoadTask; // 后台便签加载任务
+    private long mLoadingNoteId;  // 正在后台加载的便签ID
+    private boolean mRestoringNote; // 后台加载是否为界面重建后的重新加载，新便签的ID此时可以为0
+    private boolean mResumed;     // 活动是否处于前台
+
+    private Handler mHandler = new Handler(); // 主线程Handler，用于延迟自动保存
+
+    private DraftJournal mDraftJournal; // 当前便签的草稿日志
+
+    private EditHistory mEditHistory = new EditHistory(); // 撤销/重做历史
+    private boolean mRecordingHistory;  // 是否把修改记入撤销历史，填充界面时关闭
+    private String mReplacedText;       // 编辑器中即将被替换的文本
+    private boolean mCanUndo;           // 菜单上次显示时是否可以撤销
+    private boolean mCanRedo;           // 菜单上次显示时是否可以重做
+
+    // 清单的修改同时记入草稿日志和撤销历史，回调在清单的锁内执行
+    private final CheckList.OnChangeListener mCheckListRecorder = new CheckList.OnChangeListener() {
+        public void onItemInserted(int index, String text, boolean checked) {
+            if (mDraftJournal != null) {
+                mDraftJournal.onItemInserted(index, text, checked);
+            }
+            if (mRecordingHistory) {
+                mEditHistory.recordItemInserted(index, text, checked);
+            }
+        }
+
+        public void onItemRemoved(int index, String text, boolean checked) {
+            if (mDraftJournal != null) {
+                mDraftJournal.onItemRemoved(index, text, checked);
+            }
+            if (mRecordingHistory) {
+                mEditHistory.recordItemRemoved(index, text, checked);
+            }
+        }
+
+        public void onItemMoved(int from, int to) {
+            if (mDraftJournal != null) {
+                mDraftJournal.onItemMoved(from, to);
+            }
+            if (mRecordingHistory) {
+                mEditHistory.recordItemMoved(from, to);
+            }
+        }
+
+        public void onItemTextChanged(int index, String oldText, String text) {
+            if (mDraftJournal != null) {
+                mDraftJournal.onItemTextChanged(index, oldText, text);
+            }
+            if (mRecordingHistory) {
+                mEditHistory.recordItemText(index, oldText, text);
+            }
+        }
+
+        public void onItemCheckedChanged(int index, boolean checked) {
+            if (mDraftJournal != null) {
+                mDraftJournal.onItemCheckedChanged(index, checked);
+            }
+            if (mRecordingHistory) {
+                mEditHistory.recordItemChecked(index, checked);
+            }
+        }
+
+        public void onCleared() {
+            if (mDraftJournal != null) {
+                mDraftJournal.onCleared();
+            }
+            // 清空清单无法按增量撤销，之前的历史也不再适用
+            mEditHistory.clear();
+        }
+    };
+
+    // 撤销和重做时修改编辑器或清单，修改照常应用到便签和草稿日志
+    private final EditHistory.Target mHistoryTarget = new EditHistory.Target() {
+        public void replaceText(int start, int end, String text) {
+            Editable editable = mNoteEditor.getText();
+            if (end > editable.length()) {
+                throw new IndexOutOfBoundsException("replace " + start + "-" + end
+                        + " in length " + editable.length());
+            }
+            editable.replace(start, end, text);
+            mNoteEditor.setSelection(start + text.length());
+        }
+
+        public void insertItem(int index, String text, boolean checked) {
+            mCheckList.insert(index, text, checked);
+            setCheckListFocus(index, text.length());
+        }
+
+        public void removeItem(int index) {
+            mCheckList.remove(index);
+            if (mCheckList.size() > 0) {
+                int focus = Math.max(0, index - 1);
+                setCheckListFocus(focus, mCheckList.get(focus).getText().length());
+            }
+        }
+
+        public void moveItem(int from, int to) {
+            mCheckList.move(from, to);
+            setCheckListFocus(to, mCheckList.get(to).getText().length());
+        }
+
+        public void setItemText(int index, String text) {
+            mCheckList.setText(index, text);
+            setCheckListFocus(index, text.length());
+        }
+
+        public void setItemChecked(int index, boolean checked) {
+            mCheckList.setChecked(index, checked);
+            setCheckListFocus(index, mCheckList.get(index).getText().length());
+        }
+    };
+
+    // 停止输入一段时间后提交保存，连续输入只会推迟保存
+    private final Runnable mAutoSaveRunnable = new Runnable() {
+        public void run() {
+            saveNote();
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -200,13 +369,14 @@ public class NoteEditActivity extends Activity implements OnClickListener,
     protected void onRestoreInstanceState(Bundle savedInstanceState) {
         super.onRestoreInstanceState(savedInstanceState);
         if (savedInstanceState != null && savedInstanceState.containsKey(Intent.EXTRA_UID)) {
-            Intent intent = new Intent(Intent.ACTION_VIEW);
-            intent.putExtra(Intent.EXTRA_UID, savedInstanceState.getLong(Intent.EXTRA_UID));
-            if (!initActivityState(intent)) {
-                finish();
-                return;
-            }
+            startRestoreLoad(savedInstanceState.getLong(Intent.EXTRA_UID));
+            getWindow().setSoftInputMode(
+                    WindowManager.LayoutParams.SOFT_INPUT_STATE_HIDDEN
+                            | WindowManager.LayoutParams.SOFT_INPUT_ADJUST_RESIZE);
             Log.d(TAG, "Restoring from killed activity");
+        } else if (savedInstanceState != null && !initActivityState(getIntent())) {
+            // 通话记录便签在查找完成前被销毁，重新查找
+            finish();
         }
     }
 
@@ -217,11 +387,24 @@ public class NoteEditActivity extends Activity implements OnClickListener,
      * @return 是否成功初始化活动状态
      */
     private boolean initActivityState(Intent intent) {
+        return initActivityState(intent, false);
+    }
+
+    /**
+     * 初始化活动状态
+     * @param intent 传入的Intent对象
+     * @param restoring 是否在恢复保存时还没有写入数据库的新便签，此时保留它的撤销历史
+     * @return 是否成功初始化活动状态
+     */
+    private boolean initActivityState(Intent intent, boolean restoring) {
         /**
          * If the user specified the {@link Intent#ACTION_VIEW} but not provided with id,
          * then jump to the NotesListActivity
          */
         mWorkingNote = null;
+        cancelNoteLoad();
+        closeDraftJournal();
+        mEditHistory.clear();
         if (TextUtils.equals(Intent.ACTION_VIEW, intent.getAction())) {
             long noteId = intent.getLongExtra(Intent.EXTRA_UID, 0);
             mUserQuery = "";
@@ -234,19 +417,12 @@ public class NoteEditActivity extends Activity implements OnClickListener,
                 mUserQuery = intent.getStringExtra(SearchManager.USER_QUERY);
             }
 
-            if (!DataUtils.visibleInNoteDatabase(getContentResolver(), noteId, Notes.TYPE_NOTE)) {
-                Intent jump = new Intent(this, NotesListActivity.class);
-                startActivity(jump);
-                showToast(R.string.error_note_not_exist);
-                finish();
-                return false;
+            // 优先使用列表界面预加载的笔记，未命中时在后台线程加载，不阻塞界面显示
+            mWorkingNote = WorkingNoteCache.getInstance(this).take(noteId);
+            if (mWorkingNote != null) {
+                Log.d(TAG, "Note loaded from prefetch cache, id:" + noteId);
             } else {
-                mWorkingNote = WorkingNote.load(this, noteId);
-                if (mWorkingNote == null) {
-                    Log.e(TAG, "load note failed with note id" + noteId);
-                    finish();
-                    return false;
-                }
+                startNoteLoad(noteId);
             }
             getWindow().setSoftInputMode(
                     WindowManager.LayoutParams.SOFT_INPUT_STATE_HIDDEN
@@ -268,23 +444,17 @@ public class NoteEditActivity extends Activity implements OnClickListener,
                 if (TextUtils.isEmpty(phoneNumber)) {
                     Log.w(TAG, "The call record number is null");
                 }
-                long noteId = 0;
-                if ((noteId = DataUtils.getNoteIdByPhoneNumberAndCallDate(getContentResolver(),
-                        phoneNumber, callDate)) > 0) {
-                    mWorkingNote = WorkingNote.load(this, noteId);
-                    if (mWorkingNote == null) {
-                        Log.e(TAG, "load call note failed with note id" + noteId);
-                        finish();
-                        return false;
-                    }
-                } else {
-                    mWorkingNote = WorkingNote.createEmptyNote(this, folderId, widgetId,
-                            widgetType, bgResId);
-                    mWorkingNote.convertToCallNote(phoneNumber, callDate);
-                }
+                // 查找和加载已有的通话记录便签都在后台线程进行
+                startCallNoteLoad(phoneNumber, callDate, folderId, widgetId, widgetType, bgResId);
             } else {
                 mWorkingNote = WorkingNote.createEmptyNote(this, folderId, widgetId, widgetType,
                         bgResId);
+                // 恢复上次意外退出时尚未保存的新便签
+                mWorkingNote.recoverDraft();
+            }
+            // 新便签共用同一个历史文件，不能恢复之前另一个新便签的撤销历史
+            if (!restoring) {
+                DraftJournal.resetNewNote(this);
             }
 
             getWindow().setSoftInputMode(
@@ -295,14 +465,181 @@ public class NoteEditActivity extends Activity implements OnClickListener,
             finish();
             return false;
         }
-        mWorkingNote.setOnSettingStatusChangedListener(this);
+        if (mWorkingNote != null) {
+            mWorkingNote.setOnSettingStatusChangedListener(this);
+        }
         return true;
     }
 
+    /**
+     * 在后台线程加载便签
+     * 检查便签是否可见并从数据库读取内容，加载完成后再初始化便签界面。
+     * 便签不存在时跳转回便签列表。
+     * @param noteId 要加载的便签ID
+     */
+    private void startNoteLoad(final long noteId) {
+        mLoadingNoteId = noteId;
+        mNoteLoadTask = new AsyncTask<Void, Void, WorkingNote>() {
+            @Override
+            protected WorkingNote doInBackground(Void... unused) {
+                if (!DataUtils.visibleInNoteDatabase(getContentResolver(), noteId,
+                        Notes.TYPE_NOTE)) {
+                    return null;
+                }
+                try {
+                    return WorkingNote.load(NoteEditActivity.this, noteId);
+                } catch (IllegalArgumentException e) {
+                    Log.e(TAG, "load note failed with note id" + noteId);
+                    return null;
+                }
+            }
+
+            @Override
+            protected void onPostExecute(WorkingNote note) {
+                onNoteLoaded(note);
+            }
+        }.execute();
+    }
+
+    /**
+     * 界面重建后在后台线程重新加载便签
+     * 先等待被销毁的界面提交的保存和撤销历史写入完成，读到的是销毁前的内容。
+     * 新便签在保存完成前被销毁时没有ID，按草稿日志记录的ID加载；
+     * 仍未写入数据库时按原Intent新建并从草稿日志恢复
+     * @param noteId 便签ID，新便签为0
+     */
+    private void startRestoreLoad(final long noteId) {
+        mLoadingNoteId = noteId;
+        mRestoringNote = true;
+        mUserQuery = "";
+        mNoteLoadTask = new AsyncTask<Void, Void, WorkingNote>() {
+            // 新便签是否已经写入数据库
+            private boolean mCreated;
+
+            @Override
+            protected WorkingNote doInBackground(Void... unused) {
+                WorkingNote.awaitPendingSaves();
+                DraftJournal.awaitPendingWrites();
+                long id = noteId > 0 ? noteId
+                        : DraftJournal.readCreatedNoteId(NoteEditActivity.this);
+                mCreated = id > 0;
+                if (!mCreated || !DataUtils.visibleInNoteDatabase(getContentResolver(), id,
+                        Notes.TYPE_NOTE)) {
+                    return null;
+                }
+                try {
+                    return WorkingNote.load(NoteEditActivity.this, id);
+                } catch (IllegalArgumentException e) {
+                    Log.e(TAG, "restore note failed with note id" + id);
+                    return null;
+                }
+            }
+
+            @Override
+            protected void onPostExecute(WorkingNote note) {
+                if (note == null && !mCreated) {
+                    mNoteLoadTask = null;
+                    mRestoringNote = false;
+                    if (isFinishing()) {
+                        return;
+                    }
+                    if (!initActivityState(getIntent(), true)) {
+                        finish();
+                        return;
+                    }
+                    if (mWorkingNote != null && mResumed) {
+                        initNoteScreen();
+                    }
+                    invalidateOptionsMenu();
+                    return;
+                }
+                onNoteLoaded(note);
+            }
+        }.execute();
+    }
+
+    /**
+     * 在后台线程查找并加载通话记录便签，没有对应的便签时新建一个
+     * @param phoneNumber 电话号码
+     * @param callDate 通话时间
+     * @param folderId 新便签所在的文件夹ID
+     * @param widgetId 新便签的小部件ID
+     * @param widgetType 新便签的小部件类型
+     * @param bgResId 新便签的背景颜色ID
+     */
+    private void startCallNoteLoad(final String phoneNumber, final long callDate,
+            final long folderId, final int widgetId, final int widgetType, final int bgResId) {
+        mLoadingNoteId = 0;
+        mNoteLoadTask = new AsyncTask<Void, Void, WorkingNote>() {
+            @Override
+            protected WorkingNote doInBackground(Void... unused) {
+                long noteId = DataUtils.getNoteIdByPhoneNumberAndCallDate(getContentResolver(),
+                        phoneNumber, callDate);
+                if (noteId > 0) {
+                    try {
+                        return WorkingNote.load(NoteEditActivity.this, noteId);
+                    } catch (IllegalArgumentException e) {
+                        Log.e(TAG, "load call note failed with note id" + noteId);
+                        return null;
+                    }
+                }
+                WorkingNote note = WorkingNote.createEmptyNote(NoteEditActivity.this, folderId,
+                        widgetId, widgetType, bgResId);
+                note.convertToCallNote(phoneNumber, callDate);
+                return note;
+            }
+
+            @Override
+            protected void onPostExecute(WorkingNote note) {
+                onNoteLoaded(note);
+            }
+        }.execute();
+    }
+
+    /**
+     * 后台加载完成后在主线程上初始化便签界面，便签不存在时跳转回便签列表
+     * @param note 加载的便签，加载失败时为null
+     */
+    private void onNoteLoaded(WorkingNote note) {
+        mNoteLoadTask = null;
+        mRestoringNote = false;
+        if (isFinishing()) {
+            return;
+        }
+        if (note == null) {
+            Intent jump = new Intent(NoteEditActivity.this, NotesListActivity.class);
+            startActivity(jump);
+            showToast(R.string.error_note_not_exist);
+            finish();
+            return;
+        }
+        mWorkingNote = note;
+        mWorkingNote.setOnSettingStatusChangedListener(NoteEditActivity.this);
+        if (mResumed) {
+            initNoteScreen();
+        }
+        invalidateOptionsMenu();
+    }
+
+    /**
+     * 取消尚未完成的便签加载任务
+     */
+    private void cancelNoteLoad() {
+        if (mNoteLoadTask != null) {
+            mNoteLoadTask.cancel(false);
+            mNoteLoadTask = null;
+            mRestoringNote = false;
+        }
+    }
+
     @Override
     protected void onResume() {
         super.onResume();
-        initNoteScreen();
+        mResumed = true;
+        // 便签仍在后台加载时，由加载完成的回调初始化界面
+        if (mWorkingNote != null) {
+            initNoteScreen();
+        }
     }
 
     /**
@@ -311,12 +648,18 @@ public class NoteEditActivity extends Activity implements OnClickListener,
      * 根据便签模式（普通文本或待办事项列表）显示不同的界面布局。
      */
     private void initNoteScreen() {
+        // 重新填充界面不是用户输入，不记入草稿日志和撤销历史
+        if (mDraftJournal != null) {
+            mDraftJournal.suspend();
+        }
+        mRecordingHistory = false;
+        String historyBase = mEditHistory.getEntryCount() > 0 ? getHistoryBase() : null;
         mNoteEditor.setTextAppearance(this, TextAppearanceResources
                 .getTexAppearanceResource(mFontSizeId));
         if (mWorkingNote.getCheckListMode() == TextNote.MODE_CHECK_LIST) {
             switchToListMode(mWorkingNote.getContent());
         } else {
-            mNoteEditor.setText(getHighlightQueryResult(mWorkingNote.getContent(), mUserQuery));
+            setEditorText(mWorkingNote.getContent());
             mNoteEditor.setSelection(mNoteEditor.getText().length());
         }
         for (Integer id : sBgSelectorSelectionMap.keySet()) {
@@ -335,6 +678,13 @@ public class NoteEditActivity extends Activity implements OnClickListener,
          * is not ready
          */
         showAlertHeader();
+        startDraftJournal();
+        if (historyBase != null && !historyBase.equals(getHistoryBase())) {
+            // 重新填充后的界面与历史记录时不一致，例如清单被重新解析
+            mEditHistory.clear();
+        }
+        restoreEditHistory();
+        mRecordingHistory = true;
     }
 
     private void showAlertHeader() {
@@ -363,13 +713,28 @@ public class NoteEditActivity extends Activity implements OnClickListener,
     @Override
     protected void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
+        if (mWorkingNote == null) {
+            // 便签尚未加载完成，只需保存正在加载的便签ID；通话记录便签还在查找时重建后按原Intent查找
+            if (mLoadingNoteId > 0 || mRestoringNote) {
+                outState.putLong(Intent.EXTRA_UID, mLoadingNoteId);
+            }
+            return;
+        }
         /**
-         * For new note without note id, we should firstly save it to
-         * generate a id. If the editing note is not worth saving, there
-         * is no id which is equivalent to create new note
+         * The process may be killed after this. The draft journal already holds
+         * every input, so the save is only queued and never waited for here.
+         * A new note may not have an id yet; it is saved as 0 and the restored
+         * activity looks up the id the journal recorded once the save finishes
          */
-        if (!mWorkingNote.existInDatabase()) {
-            saveNote();
+        if (saveNote()) {
+            Log.d(TAG, "Note data was queued for saving, id:" + mWorkingNote.getNoteId());
+        }
+        // 撤销历史与草稿日志放在一起，界面重建后可以继续撤销，写入在日志的写入线程进行
+        if (mEditHistory.getEntryCount() > 0) {
+            DraftJournal.writeHistory(this, mWorkingNote.getNoteId(),
+                    mEditHistory.toBytes(getHistoryBase()));
+        } else if (mWorkingNote.getNoteId() > 0) {
+            DraftJournal.deleteHistory(this, mWorkingNote.getNoteId());
         }
         outState.putLong(Intent.EXTRA_UID, mWorkingNote.getNoteId());
         Log.d(TAG, "Save working note id: " + mWorkingNote.getNoteId() + " onSaveInstanceState");
@@ -425,6 +790,37 @@ public class NoteEditActivity extends Activity implements OnClickListener,
         mNoteHeaderHolder.ibSetBgColor = (ImageView) findViewById(R.id.btn_set_bg_color);
         mNoteHeaderHolder.ibSetBgColor.setOnClickListener(this);
         mNoteEditor = (EditText) findViewById(R.id.note_edit_view);
+        ((NoteEditText) mNoteEditor).setOnUndoListener(this);
+        // 代替autoLink，每次修改只重新检测被修改的段落
+        ((NoteEditText) mNoteEditor).setLinkDetectionEnabled(true);
+        mNoteEditor.addTextChangedListener(new TextWatcher() {
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+                // 撤销历史只需要被替换的这一段文本
+                mReplacedText = isRecordingEditorHistory()
+                        ? s.subSequence(start, start + count).toString() : null;
+            }
+
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+                // 只把本次修改交给WorkingNote，保存时不需要复制整个编辑器文本
+                if (!mSettingEditorText && mWorkingNote != null) {
+                    mWorkingNote.applyEdit(s, start, before, count);
+                }
+                if (mReplacedText != null && isRecordingEditorHistory()) {
+                    mEditHistory.recordText(start, mReplacedText,
+                            s.subSequence(start, start + count).toString());
+                    mReplacedText = null;
+                    updateUndoMenu();
+                }
+                if (mDraftJournal != null) {
+                    mDraftJournal.appendEdit(start, before, s.subSequence(start, start + count));
+                }
+            }
+
+            public void afterTextChanged(Editable s) {
+                invalidateFind();
+                scheduleAutoSave();
+            }
+        });
         mNoteEditorPanel = findViewById(R.id.sv_note_edit);
         mNoteBgColorSelector = findViewById(R.id.note_bg_color_selector);
         for (int id : sBgSelectorBtnsMap.keySet()) {
@@ -447,18 +843,66 @@ public class NoteEditActivity extends Activity implements OnClickListener,
         if(mFontSizeId >= TextAppearanceResources.getResourcesSize()) {
             mFontSizeId = ResourceParser.BG_DEFAULT_FONT_SIZE;
         }
-        mEditTextList = (LinearLayout) findViewById(R.id.note_edit_list);
+        mNoteEditorScroll = findViewById(R.id.sv_note_edit_text);
+        mEditTextList = (ListView) findViewById(R.id.note_edit_list);
+        mEditTextList.setItemsCanFocus(true);
+        mCheckListAdapter = new CheckListAdapter();
+        mEditTextList.setAdapter(mCheckListAdapter);
+
+        mFindBar = findViewById(R.id.find_bar);
+        mFindInput = (EditText) findViewById(R.id.et_find);
+        mReplaceInput = (EditText) findViewById(R.id.et_replace);
+        mFindCount = (TextView) findViewById(R.id.tv_find_count);
+        findViewById(R.id.btn_find_previous).setOnClickListener(this);
+        findViewById(R.id.btn_find_next).setOnClickListener(this);
+        findViewById(R.id.btn_replace_all).setOnClickListener(this);
+        mTextFinder = new TextFinder(mFindSource);
+        mFindInput.addTextChangedListener(new TextWatcher() {
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            public void afterTextChanged(Editable s) {
+                if (mWorkingNote != null && isFindBarShown()) {
+                    onFindQueryChanged(s.toString());
+                }
+            }
+        });
+        // 普通模式下只高亮屏幕上可见的匹配，滚动时更新
+        mNoteEditorScroll.getViewTreeObserver().addOnScrollChangedListener(
+                new ViewTreeObserver.OnScrollChangedListener() {
+                    public void onScrollChanged() {
+                        if (isFindBarShown() && !isCheckListShown()) {
+                            highlightVisibleMatches();
+                        }
+                    }
+                });
     }
 
     @Override
     protected void onPause() {
         super.onPause();
+        mResumed = false;
         if(saveNote()) {
-            Log.d(TAG, "Note data was saved with length:" + mWorkingNote.getContent().length());
+            Log.d(TAG, "Note data was queued for saving, id:" + mWorkingNote.getNoteId());
         }
         clearSettingState();
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        cancelNoteLoad();
+        mHandler.removeCallbacks(mAutoSaveRunnable);
+        closeDraftJournal();
+        if (isFinishing() && mWorkingNote != null) {
+            // 退出编辑后不再需要撤销历史，界面重建时才保留
+            DraftJournal.deleteHistory(this, mWorkingNote.getNoteId());
+        }
+    }
+
     private void updateWidget() {
         Intent intent = new Intent(AppWidgetManager.ACTION_APPWIDGET_UPDATE);
         if (mWorkingNote.getWidgetType() == Notes.TYPE_WIDGET_2X) {
@@ -485,6 +929,9 @@ public class NoteEditActivity extends Activity implements OnClickListener,
      * @param v 被点击的视图
      */
     public void onClick(View v) {
+        if (mWorkingNote == null) {
+            return;
+        }
         int id = v.getId();
         if (id == R.id.btn_set_bg_color) {
             mNoteBgColorSelector.setVisibility(View.VISIBLE);
@@ -501,13 +948,18 @@ public class NoteEditActivity extends Activity implements OnClickListener,
             mSharedPrefs.edit().putInt(PREFERENCE_FONT_SIZE, mFontSizeId).commit();
             findViewById(sFontSelectorSelectionMap.get(mFontSizeId)).setVisibility(View.VISIBLE);
             if (mWorkingNote.getCheckListMode() == TextNote.MODE_CHECK_LIST) {
-                getWorkingText();
-                switchToListMode(mWorkingNote.getContent());
+                mCheckListAdapter.notifyDataSetChanged();
             } else {
                 mNoteEditor.setTextAppearance(this,
                         TextAppearanceResources.getTexAppearanceResource(mFontSizeId));
             }
             mFontSizeSelector.setVisibility(View.GONE);
+        } else if (id == R.id.btn_find_next) {
+            moveToMatch(mTextFinder.next());
+        } else if (id == R.id.btn_find_previous) {
+            moveToMatch(mTextFinder.previous());
+        } else if (id == R.id.btn_replace_all) {
+            replaceAllMatches();
         }
     }
 
@@ -518,7 +970,7 @@ public class NoteEditActivity extends Activity implements OnClickListener,
      */
     @Override
     public void onBackPressed() {
-        if(clearSettingState()) {
+        if(clearSettingState() || hideFindBar()) {
             return;
         }
 
@@ -560,6 +1012,9 @@ public class NoteEditActivity extends Activity implements OnClickListener,
         }
         clearSettingState();
         menu.clear();
+        if (mWorkingNote == null) {
+            return false;
+        }
         if (mWorkingNote.getFolderId() == Notes.ID_CALL_RECORD_FOLDER) {
             getMenuInflater().inflate(R.menu.call_note_edit, menu);
         } else {
@@ -575,6 +1030,10 @@ public class NoteEditActivity extends Activity implements OnClickListener,
         } else {
             menu.findItem(R.id.menu_delete_remind).setVisible(false);
         }
+        mCanUndo = mEditHistory.canUndo();
+        mCanRedo = mEditHistory.canRedo();
+        menu.findItem(R.id.menu_undo).setEnabled(mCanUndo);
+        menu.findItem(R.id.menu_redo).setEnabled(mCanRedo);
         return true;
     }
 
@@ -584,6 +1043,12 @@ public class NoteEditActivity extends Activity implements OnClickListener,
             case R.id.menu_new_note:
                 createNewNote();
                 break;
+            case R.id.menu_undo:
+                onUndo();
+                break;
+            case R.id.menu_redo:
+                onRedo();
+                break;
             case R.id.menu_delete:
                 AlertDialog.Builder builder = new AlertDialog.Builder(this);
                 builder.setTitle(getString(R.string.alert_title_delete));
@@ -602,17 +1067,27 @@ public class NoteEditActivity extends Activity implements OnClickListener,
             case R.id.menu_copy:
                 copyCurrentNote();
                 break;
+            case R.id.menu_find:
+                showFindBar();
+                break;
             case R.id.menu_font_size:
                 mFontSizeSelector.setVisibility(View.VISIBLE);
                 findViewById(sFontSelectorSelectionMap.get(mFontSizeId)).setVisibility(View.VISIBLE);
                 break;
             case R.id.menu_list_mode:
+                // 切换模式会整体替换文本，切换后保存并开始新的草稿日志段
+                hideFindBar();
+                if (mDraftJournal != null) {
+                    mDraftJournal.suspend();
+                }
                 mWorkingNote.setCheckListMode(mWorkingNote.getCheckListMode() == 0 ?
                         TextNote.MODE_CHECK_LIST : 0);
+                saveNote();
                 break;
             case R.id.menu_share:
                 getWorkingText();
-                sendTo(this, mWorkingNote.getContent());
+                sendTo(this, mWorkingNote.getCheckList() != null ? mCheckList.getContent()
+                        : mWorkingNote.getContent());
                 break;
             case R.id.menu_send_to_desktop:
                 sendToDesktop();
@@ -659,7 +1134,7 @@ public class NoteEditActivity extends Activity implements OnClickListener,
      * 保存当前正在编辑的便签，然后启动一个新的NoteEditActivity来创建新便签。
      */
     private void createNewNote() {
-        // Firstly, save current editing notes
+        // Firstly, save current editing notes in background
         saveNote();
 
         // For safety, start a new NoteEditActivity
@@ -694,6 +1169,10 @@ public class NoteEditActivity extends Activity implements OnClickListener,
             }
         }
         mWorkingNote.markDeleted(true);
+        if (mDraftJournal != null) {
+            mDraftJournal.discard();
+            mDraftJournal = null;
+        }
     }
 
     /**
@@ -711,20 +1190,38 @@ public class NoteEditActivity extends Activity implements OnClickListener,
      * @param date 提醒时间戳
      * @param set 是否设置了提醒
      */
-    public void onClockAlertChanged(long date, boolean set) {
+    public void onClockAlertChanged(final long date, final boolean set) {
         /**
          * User could set clock to an unsaved note, so before setting the
-         * alert clock, we should save the note first
+         * alert clock, we should save the note first. The id is generated
+         * by the writer thread, set the alarm after it is done
          */
         if (!mWorkingNote.existInDatabase()) {
-            saveNote();
+            saveNote(new WorkingNote.OnNoteSavedListener() {
+                public void onNoteSaved(WorkingNote note) {
+                    setClockAlert(note, date, set);
+                }
+            });
+        } else {
+            setClockAlert(mWorkingNote, date, set);
         }
-        if (mWorkingNote.getNoteId() > 0) {
+    }
+
+    /**
+     * 设置或取消便签的闹钟提醒
+     * @param note 已保存的便签
+     * @param date 提醒时间戳
+     * @param set 是否设置了提醒
+     */
+    private void setClockAlert(WorkingNote note, long date, boolean set) {
+        if (note.getNoteId() > 0) {
             Intent intent = new Intent(this, AlarmReceiver.class);
-            intent.setData(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, mWorkingNote.getNoteId()));
+            intent.setData(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, note.getNoteId()));
             PendingIntent pendingIntent = PendingIntent.getBroadcast(this, 0, intent, 0);
             AlarmManager alarmManager = ((AlarmManager) getSystemService(ALARM_SERVICE));
-            showAlertHeader();
+            if (note == mWorkingNote) {
+                showAlertHeader();
+            }
             if(!set) {
                 alarmManager.cancel(pendingIntent);
             } else {
@@ -746,85 +1243,107 @@ public class NoteEditActivity extends Activity implements OnClickListener,
      * 当便签的小部件相关属性发生变化时调用，更新小部件显示。
      */
     public void onWidgetChanged() {
+        // 保存完成的回调可能晚于便签切换
+        if (mWorkingNote == null) {
+            return;
+        }
         updateWidget();
     }
 
     /**
      * 编辑框删除回调方法
-     * 当待办事项列表模式下删除某个编辑框时调用，处理列表项的重新排序和内容合并。
+     * 当待办事项列表模式下删除某个编辑框时调用，删除清单中的列表项并将剩余文本合并到相邻列表项。
+     * 只修改清单模型，其余列表项的位置由适配器在绑定视图时确定，无需逐个更新。
      * @param index 删除的编辑框索引
      * @param text 被删除编辑框中的文本内容
      */
     public void onEditTextDelete(int index, String text) {
-        int childCount = mEditTextList.getChildCount();
-        if (childCount == 1) {
+        if (mCheckList == null || mCheckList.size() == 1 || index >= mCheckList.size()) {
             return;
         }
 
-        for (int i = index + 1; i < childCount; i++) {
-            ((NoteEditText) mEditTextList.getChildAt(i).findViewById(R.id.et_edit_text))
-                    .setIndex(i - 1);
-        }
-
-        mEditTextList.removeViewAt(index);
-        NoteEditText edit = null;
-        if(index == 0) {
-            edit = (NoteEditText) mEditTextList.getChildAt(0).findViewById(
-                    R.id.et_edit_text);
-        } else {
-            edit = (NoteEditText) mEditTextList.getChildAt(index - 1).findViewById(
-                    R.id.et_edit_text);
+        // 删除列表项并合并文本是一次操作，一起撤销
+        mEditHistory.beginGroup();
+        int target = index == 0 ? 0 : index - 1;
+        String targetText;
+        try {
+            mCheckList.remove(index);
+            targetText = mCheckList.get(target).getText();
+            mCheckList.setText(target, targetText + text);
+        } finally {
+            mEditHistory.endGroup();
         }
-        int length = edit.length();
-        edit.append(text);
-        edit.requestFocus();
-        edit.setSelection(length);
+        invalidateFind();
+        updateUndoMenu();
+        mFocusPosition = target;
+        mFocusSelection = targetText.length();
+        mCheckListAdapter.notifyDataSetChanged();
     }
 
     /**
      * 编辑框回车回调方法
-     * 当待办事项列表模式下编辑框中按下回车键时调用，创建新的列表项。
-     * @param index 当前编辑框的索引
+     * 当待办事项列表模式下编辑框中按下回车键时调用，在清单中插入新的列表项。
+     * @param index 新列表项的索引
      * @param text 编辑框中剩余的文本内容
      */
     public void onEditTextEnter(int index, String text) {
+        if (mCheckList == null) {
+            return;
+        }
         /**
          * Should not happen, check for debug
          */
-        if(index > mEditTextList.getChildCount()) {
-            Log.e(TAG, "Index out of mEditTextList boundrary, should not happen");
+        if(index > mCheckList.size()) {
+            Log.e(TAG, "Index out of mCheckList boundrary, should not happen");
+            index = mCheckList.size();
         }
 
-        View view = getListItem(text, index);
-        mEditTextList.addView(view, index);
-        NoteEditText edit = (NoteEditText) view.findViewById(R.id.et_edit_text);
-        edit.requestFocus();
-        edit.setSelection(0);
-        for (int i = index + 1; i < mEditTextList.getChildCount(); i++) {
-            ((NoteEditText) mEditTextList.getChildAt(i).findViewById(R.id.et_edit_text))
-                    .setIndex(i);
+        // 编辑框已经截断了当前列表项，插入新列表项与截断一起撤销
+        mEditHistory.continueGroup();
+        try {
+            mCheckList.insert(index, text, false);
+        } finally {
+            mEditHistory.endGroup();
+        }
+        invalidateFind();
+        updateUndoMenu();
+        mFocusPosition = index;
+        mFocusSelection = 0;
+        mCheckListAdapter.notifyDataSetChanged();
+        if (index > mEditTextList.getLastVisiblePosition()) {
+            mEditTextList.smoothScrollToPosition(index);
         }
     }
 
     /**
      * 切换到列表模式
-     * 将便签从普通文本模式切换到待办事项列表模式，根据现有文本内容创建待办事项列表项。
+     * 将便签从普通文本模式切换到待办事项列表模式，根据现有文本内容生成清单模型。
+     * 列表视图只为屏幕上可见的列表项创建视图，长清单也不会阻塞界面。
      * @param text 便签的当前文本内容
      */
     private void switchToListMode(String text) {
-        mEditTextList.removeAllViews();
-        String[] items = text.split("\n");
-        int index = 0;
-        for (String item : items) {
-            if(!TextUtils.isEmpty(item)) {
-                mEditTextList.addView(getListItem(item, index));
-                index++;
+        mCheckList = mWorkingNote.getCheckList();
+        if (mCheckList == null) {
+            mCheckList = CheckList.parse(text);
+            if (mSharedPrefs.getBoolean(
+                    NotesPreferenceActivity.PREFERENCE_STRUCTURED_CHECK_LIST_KEY, false)) {
+                mWorkingNote.setStructuredCheckList(mCheckList);
+            }
+        } else {
+            // 结构化清单会在多次进入界面间复用，先去掉上次末尾的空白列表项
+            while (mCheckList.size() > 0
+                    && TextUtils.isEmpty(mCheckList.get(mCheckList.size() - 1).getText())) {
+                mCheckList.remove(mCheckList.size() - 1);
             }
         }
-        mEditTextList.addView(getListItem("", index));
-        mEditTextList.getChildAt(index).findViewById(R.id.et_edit_text).requestFocus();
-
-        mNoteEditor.setVisibility(View.GONE);
+        mCheckList.insert(mCheckList.size(), "", false);
+        invalidateFind();
+        mFocusPosition = mCheckList.size() - 1;
+        mFocusSelection = 0;
+        mCheckListAdapter.notifyDataSetChanged();
+        mEditTextList.setSelection(mFocusPosition);
+
+        mNoteEditorScroll.setVisibility(View.GONE);
         mEditTextList.setVisibility(View.VISIBLE);
     }
 
@@ -836,58 +1355,357 @@ public class NoteEditActivity extends Activity implements OnClickListener,
      * @return 带有高亮显示的搜索结果的Spannable文本
      */
     private Spannable getHighlightQueryResult(String fullText, String userQuery) {
-        SpannableString spannable = new SpannableString(fullText == null ? "" : fullText);
-        if (!TextUtils.isEmpty(userQuery)) {
-            mPattern = Pattern.compile(userQuery);
-            Matcher m = mPattern.matcher(fullText);
-            int start = 0;
-            while (m.find(start)) {
-                spannable.setSpan(
-                        new BackgroundColorSpan(this.getResources().getColor(
-                                R.color.user_query_highlight)), m.start(), m.end(),
-                        Spannable.SPAN_INCLUSIVE_EXCLUSIVE);
-                start = m.end();
+        // 查询词只编译一次，编辑器和所有清单项共用
+        if (mQueryHighlighter == null
+                || !TextUtils.equals(mQueryHighlighter.getQuery(), userQuery)) {
+            mQueryHighlighter = new QueryHighlighter(userQuery,
+                    getResources().getColor(R.color.user_query_highlight));
+        }
+        return mQueryHighlighter.highlight(fullText);
+    }
+
+    /**
+     * 是否正在显示清单模式的列表
+     */
+    private boolean isCheckListShown() {
+        return mWorkingNote != null && mCheckList != null
+                && mWorkingNote.getCheckListMode() == TextNote.MODE_CHECK_LIST;
+    }
+
+    /**
+     * 查找替换栏是否可见
+     */
+    private boolean isFindBarShown() {
+        return mFindBar != null && mFindBar.getVisibility() == View.VISIBLE;
+    }
+
+    /**
+     * 显示查找替换栏，按输入框中已有的查询词重新查找
+     */
+    private void showFindBar() {
+        mFindBar.setVisibility(View.VISIBLE);
+        mFindInput.requestFocus();
+        mTextFinder.invalidate();
+        onFindQueryChanged(mFindInput.getText().toString());
+    }
+
+    /**
+     * 隐藏查找替换栏并清除查找高亮
+     * @return 查找替换栏之前是否可见
+     */
+    private boolean hideFindBar() {
+        if (!isFindBarShown()) {
+            return false;
+        }
+        mFindBar.setVisibility(View.GONE);
+        mTextFinder.setQuery(null);
+        refreshFindHighlights();
+        return true;
+    }
+
+    /**
+     * 便签文本变化后，查找结果在下次使用时重新计算
+     */
+    private void invalidateFind() {
+        if (mTextFinder != null) {
+            mTextFinder.invalidate();
+        }
+    }
+
+    /**
+     * 查询词变化时增量查找，并选中光标之后最近的匹配
+     * @param query 查询词
+     */
+    private void onFindQueryChanged(String query) {
+        mTextFinder.setQuery(query);
+        int index;
+        if (isCheckListShown()) {
+            index = mTextFinder.selectNearest(mFocusPosition, mFocusSelection);
+        } else {
+            index = mTextFinder.selectNearest(0, Math.max(0, mNoteEditor.getSelectionStart()));
+        }
+        moveToMatch(index);
+    }
+
+    /**
+     * 显示指定的匹配：更新计数，把匹配滚动到屏幕内并刷新高亮
+     * @param index 匹配下标，-1表示没有匹配
+     */
+    private void moveToMatch(int index) {
+        int count = mTextFinder.getMatchCount();
+        if (TextUtils.isEmpty(mTextFinder.getQuery())) {
+            mFindCount.setText("");
+        } else {
+            mFindCount.setText(getString(R.string.find_count, index + 1, count));
+        }
+        if (index >= 0) {
+            if (isCheckListShown()) {
+                int position = mTextFinder.getMatchSegment(index);
+                if (position < mEditTextList.getFirstVisiblePosition()
+                        || position > mEditTextList.getLastVisiblePosition()) {
+                    mEditTextList.setSelection(position);
+                }
+            } else {
+                Layout layout = mNoteEditor.getLayout();
+                ScrollView scroll = (ScrollView) mNoteEditorScroll;
+                if (layout != null) {
+                    int line = layout.getLineForOffset(mTextFinder.getMatchStart(index));
+                    int top = mNoteEditor.getTop() + mNoteEditor.getTotalPaddingTop()
+                            + layout.getLineTop(line);
+                    int bottom = top + layout.getLineBottom(line) - layout.getLineTop(line);
+                    if (top < scroll.getScrollY()
+                            || bottom > scroll.getScrollY() + scroll.getHeight()) {
+                        scroll.scrollTo(0, Math.max(0, top - scroll.getHeight() / 3));
+                    }
+                }
             }
         }
-        return spannable;
+        refreshFindHighlights();
     }
 
     /**
-     * 获取列表项视图
-     * 为待办事项列表模式创建并配置一个列表项视图，包含复选框和编辑框。 
-     * @param item 列表项的文本内容
-     * @param index 列表项的索引位置
-     * @return 创建好的列表项视图
-     */
-    private View getListItem(String item, int index) {
-        View view = LayoutInflater.from(this).inflate(R.layout.note_edit_list_item, null);
-        final NoteEditText edit = (NoteEditText) view.findViewById(R.id.et_edit_text);
-        edit.setTextAppearance(this, TextAppearanceResources.getTexAppearanceResource(mFontSizeId));
-        CheckBox cb = ((CheckBox) view.findViewById(R.id.cb_edit_item));
-        cb.setOnCheckedChangeListener(new OnCheckedChangeListener() {
-            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
-                if (isChecked) {
-                    edit.setPaintFlags(edit.getPaintFlags() | Paint.STRIKE_THRU_TEXT_FLAG);
-                } else {
-                    edit.setPaintFlags(Paint.ANTI_ALIAS_FLAG | Paint.DEV_KERN_TEXT_FLAG);
+     * 刷新屏幕上可见文本的查找高亮
+     */
+    private void refreshFindHighlights() {
+        if (isCheckListShown()) {
+            for (int i = 0; i < mEditTextList.getChildCount(); i++) {
+                Object tag = mEditTextList.getChildAt(i).getTag();
+                if (tag instanceof CheckListItemHolder) {
+                    ((CheckListItemHolder) tag).highlightMatches();
                 }
             }
-        });
+        } else {
+            highlightVisibleMatches();
+        }
+    }
+
+    /**
+     * 普通模式下只为滚动区域内可见的行设置高亮，长便签不必为所有匹配创建Span
+     */
+    private void highlightVisibleMatches() {
+        Editable text = mNoteEditor.getText();
+        int from = 0;
+        int to = text.length();
+        Layout layout = mNoteEditor.getLayout();
+        if (layout != null && mNoteEditorScroll.getHeight() > 0) {
+            int top = mNoteEditorScroll.getScrollY() - mNoteEditor.getTop()
+                    - mNoteEditor.getTotalPaddingTop();
+            from = layout.getLineStart(layout.getLineForVertical(Math.max(0, top)));
+            to = layout.getLineEnd(layout.getLineForVertical(
+                    Math.max(0, top + mNoteEditorScroll.getHeight())));
+        }
+        applyFindSpans(text, 0, from, to);
+    }
+
+    /**
+     * 清除文本上原有的查找高亮，并为指定范围内的匹配设置高亮，当前匹配使用不同的颜色
+     * @param text 文本
+     * @param segment 文本对应的段
+     * @param from 范围起点
+     * @param to 范围终点
+     */
+    private void applyFindSpans(Spannable text, int segment, int from, int to) {
+        for (FindHighlightSpan span : text.getSpans(0, text.length(), FindHighlightSpan.class)) {
+            text.removeSpan(span);
+        }
+        if (!isFindBarShown()) {
+            return;
+        }
+        int count = mTextFinder.getMatchCount();
+        int current = mTextFinder.getCurrent();
+        int color = getResources().getColor(R.color.find_highlight);
+        int currentColor = getResources().getColor(R.color.find_current_highlight);
+        int start = Math.max(0, from - mTextFinder.getQuery().length());
+        for (int i = mTextFinder.lowerBound(segment, start); i < count
+                && mTextFinder.getMatchSegment(i) == segment
+                && mTextFinder.getMatchStart(i) < to; i++) {
+            int end = Math.min(mTextFinder.getMatchEnd(i), text.length());
+            text.setSpan(new FindHighlightSpan(i == current ? currentColor : color),
+                    mTextFinder.getMatchStart(i), end, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+    }
+
+    /**
+     * 替换所有匹配，替换完成后只提交一次保存
+     */
+    private void replaceAllMatches() {
+        if (mTextFinder.getMatchCount() == 0) {
+            return;
+        }
+        // 每个匹配分别替换，全部替换作为一次操作撤销
+        mEditHistory.beginGroup();
+        int count;
+        try {
+            count = mTextFinder.replaceAll(mReplaceInput.getText().toString());
+        } finally {
+            mEditHistory.endGroup();
+        }
+        updateUndoMenu();
+        if (isCheckListShown()) {
+            mCheckListAdapter.notifyDataSetChanged();
+        }
+        saveNote();
+        Toast.makeText(this, getString(R.string.replace_all_result, count),
+                Toast.LENGTH_SHORT).show();
+        onFindQueryChanged(mFindInput.getText().toString());
+    }
+
+    /**
+     * 查找匹配的高亮，与搜索词高亮区分，便于单独清除
+     */
+    private static class FindHighlightSpan extends BackgroundColorSpan {
+        public FindHighlightSpan(int color) {
+            super(color);
+        }
+    }
+
+    /**
+     * 获取列表项对应的视图
+     * @param index 列表项的索引位置
+     * @return 列表项视图，不在屏幕上时返回null
+     */
+    private View getCheckListItemView(int index) {
+        int child = index - mEditTextList.getFirstVisiblePosition();
+        if (child < 0 || child >= mEditTextList.getChildCount()) {
+            return null;
+        }
+        return mEditTextList.getChildAt(child);
+    }
+
+    /**
+     * CheckListAdapter - 待办事项列表适配器
+     * 将清单模型绑定到可复用的列表项视图上，滚动时只重新绑定进入屏幕的列表项。
+     */
+    private class CheckListAdapter extends BaseAdapter {
+        public int getCount() {
+            return mCheckList == null ? 0 : mCheckList.size();
+        }
+
+        public Object getItem(int position) {
+            return mCheckList.get(position);
+        }
+
+        public long getItemId(int position) {
+            return position;
+        }
+
+        public View getView(int position, View convertView, ViewGroup parent) {
+            CheckListItemHolder holder;
+            if (convertView == null) {
+                convertView = LayoutInflater.from(NoteEditActivity.this).inflate(
+                        R.layout.note_edit_list_item, parent, false);
+                holder = new CheckListItemHolder(convertView);
+                convertView.setTag(holder);
+            } else {
+                holder = (CheckListItemHolder) convertView.getTag();
+            }
+            holder.bind(position);
+            return convertView;
+        }
+    }
+
+    /**
+     * CheckListItemHolder - 待办事项列表项视图持有者
+     * 监听编辑框文本、复选框和焦点的变化，并写回当前绑定的列表项。
+     */
+    private class CheckListItemHolder implements TextWatcher, OnCheckedChangeListener,
+            OnFocusChangeListener {
+        private final NoteEditText mEdit;  // 列表项编辑框
+        private final CheckBox mCheckBox;  // 列表项复选框
+        private int mPosition;             // 当前绑定的列表项位置
+        private boolean mBinding;          // 是否正在绑定数据，绑定期间的变化不写回模型
+
+        public CheckListItemHolder(View view) {
+            mEdit = (NoteEditText) view.findViewById(R.id.et_edit_text);
+            mCheckBox = (CheckBox) view.findViewById(R.id.cb_edit_item);
+            mPosition = -1;
+            mEdit.setOnTextViewChangeListener(NoteEditActivity.this);
+            mEdit.setOnUndoListener(NoteEditActivity.this);
+            mEdit.addTextChangedListener(this);
+            mEdit.setOnFocusChangeListener(this);
+            mCheckBox.setOnCheckedChangeListener(this);
+        }
+
+        /**
+         * 将指定位置的列表项绑定到视图上
+         * @param position 列表项位置
+         */
+        public void bind(int position) {
+            mBinding = true;
+            mPosition = position;
+            CheckList.Item item = mCheckList.get(position);
+            mEdit.setIndex(position);
+            mEdit.setTextAppearance(NoteEditActivity.this,
+                    TextAppearanceResources.getTexAppearanceResource(mFontSizeId));
+            mEdit.setText(getHighlightQueryResult(item.getText(), mUserQuery));
+            highlightMatches();
+            mCheckBox.setChecked(item.isChecked());
+            updateStrikeThrough(item.isChecked());
+            boolean focused = position == mFocusPosition;
+            mCheckBox.setVisibility(focused || !TextUtils.isEmpty(item.getText())
+                    ? View.VISIBLE : View.GONE);
+            // 查找替换栏打开时焦点留在查找输入框
+            if (focused && !isFindBarShown()) {
+                mEdit.requestFocus();
+                mEdit.setSelection(Math.min(mFocusSelection, mEdit.length()));
+            } else if (mEdit.hasFocus()) {
+                // 复用的视图带着之前列表项的焦点，需要清除
+                mEdit.clearFocus();
+            }
+            mBinding = false;
+        }
+
+        /**
+         * 高亮当前列表项中的查找匹配，只有屏幕上的列表项有视图，自然只更新可见区域
+         */
+        public void highlightMatches() {
+            if (mPosition >= 0) {
+                applyFindSpans(mEdit.getText(), mPosition, 0, mEdit.length());
+            }
+        }
+
+        private void updateStrikeThrough(boolean checked) {
+            if (checked) {
+                mEdit.setPaintFlags(mEdit.getPaintFlags() | Paint.STRIKE_THRU_TEXT_FLAG);
+            } else {
+                mEdit.setPaintFlags(Paint.ANTI_ALIAS_FLAG | Paint.DEV_KERN_TEXT_FLAG);
+            }
+        }
 
-        if (item.startsWith(TAG_CHECKED)) {
-            cb.setChecked(true);
-            edit.setPaintFlags(edit.getPaintFlags() | Paint.STRIKE_THRU_TEXT_FLAG);
-            item = item.substring(TAG_CHECKED.length(), item.length()).trim();
-        } else if (item.startsWith(TAG_UNCHECKED)) {
-            cb.setChecked(false);
-            edit.setPaintFlags(Paint.ANTI_ALIAS_FLAG | Paint.DEV_KERN_TEXT_FLAG);
-            item = item.substring(TAG_UNCHECKED.length(), item.length()).trim();
+        public void beforeTextChanged(CharSequence s, int start, int count, int after) {
         }
 
-        edit.setOnTextViewChangeListener(this);
-        edit.setIndex(index);
-        edit.setText(getHighlightQueryResult(item, mUserQuery));
-        return view;
+        public void onTextChanged(CharSequence s, int start, int before, int count) {
+        }
+
+        public void afterTextChanged(Editable s) {
+            if (mBinding || mPosition < 0 || mPosition >= mCheckList.size()) {
+                return;
+            }
+            mCheckList.setText(mPosition, s.toString());
+            invalidateFind();
+            updateUndoMenu();
+            if (mPosition == mFocusPosition) {
+                mFocusSelection = mEdit.getSelectionStart();
+            }
+            scheduleAutoSave();
+        }
+
+        public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+            updateStrikeThrough(isChecked);
+            if (!mBinding && mPosition >= 0 && mPosition < mCheckList.size()) {
+                mCheckList.setChecked(mPosition, isChecked);
+                updateUndoMenu();
+                scheduleAutoSave();
+            }
+        }
+
+        public void onFocusChange(View v, boolean hasFocus) {
+            if (hasFocus && !mBinding) {
+                mFocusPosition = mPosition;
+                mFocusSelection = mEdit.getSelectionStart();
+            }
+        }
     }
 
     /**
@@ -898,14 +1716,14 @@ public class NoteEditActivity extends Activity implements OnClickListener,
      * @param hasText 编辑框中是否有文本内容
      */
     public void onTextChange(int index, boolean hasText) {
-        if (index >= mEditTextList.getChildCount()) {
-            Log.e(TAG, "Wrong index, should not happen");
+        View view = getCheckListItemView(index);
+        if (view == null) {
             return;
         }
         if(hasText) {
-            mEditTextList.getChildAt(index).findViewById(R.id.cb_edit_item).setVisibility(View.VISIBLE);
+            view.findViewById(R.id.cb_edit_item).setVisibility(View.VISIBLE);
         } else {
-            mEditTextList.getChildAt(index).findViewById(R.id.cb_edit_item).setVisibility(View.GONE);
+            view.findViewById(R.id.cb_edit_item).setVisibility(View.GONE);
         }
     }
 
@@ -917,126 +1735,344 @@ public class NoteEditActivity extends Activity implements OnClickListener,
      * @param newMode 新的模式
      */
     public void onCheckListModeChanged(int oldMode, int newMode) {
+        // 切换模式整体替换了文本，之前的历史不再适用
+        boolean recording = mRecordingHistory;
+        mRecordingHistory = false;
+        mEditHistory.clear();
         if (newMode == TextNote.MODE_CHECK_LIST) {
             switchToListMode(mNoteEditor.getText().toString());
         } else {
-            if (!getWorkingText()) {
-                mWorkingNote.setWorkingText(mWorkingNote.getContent().replace(TAG_UNCHECKED + " ",
-                        ""));
+            // 清单一次序列化为普通文本，没有已完成的列表项时不带前缀标记
+            if (mCheckList != null) {
+                mWorkingNote.setWorkingText(mCheckList.hasChecked() ? mCheckList.getContent()
+                        : mCheckList.getPlainContent());
             }
-            mNoteEditor.setText(getHighlightQueryResult(mWorkingNote.getContent(), mUserQuery));
+            setEditorText(mWorkingNote.getContent());
             mEditTextList.setVisibility(View.GONE);
+            mNoteEditorScroll.setVisibility(View.VISIBLE);
             mNoteEditor.setVisibility(View.VISIBLE);
         }
+        mRecordingHistory = recording;
+        updateUndoMenu();
+    }
+
+    /**
+     * 撤销上一次编辑
+     * 普通模式下还原编辑器中的文本，清单模式下还原列表项的操作
+     * @return 是否撤销了修改
+     */
+    public boolean onUndo() {
+        return applyHistory(false);
+    }
+
+    /**
+     * 重做上一次撤销的编辑
+     * @return 是否重做了修改
+     */
+    public boolean onRedo() {
+        return applyHistory(true);
+    }
+
+    private boolean applyHistory(boolean redo) {
+        if (mWorkingNote == null) {
+            return false;
+        }
+        boolean applied;
+        try {
+            applied = redo ? mEditHistory.redo(mHistoryTarget) : mEditHistory.undo(mHistoryTarget);
+        } catch (IndexOutOfBoundsException e) {
+            // 历史与当前内容对不上时不能继续撤销，丢弃历史
+            Log.w(TAG, "Edit history does not match the note, cleared: " + e.getMessage());
+            mEditHistory.clear();
+            applied = true;
+        }
+        if (applied) {
+            if (isCheckListShown()) {
+                mCheckListAdapter.notifyDataSetChanged();
+            }
+            invalidateFind();
+            scheduleAutoSave();
+        }
+        updateUndoMenu();
+        return applied;
+    }
+
+    /**
+     * 撤销或重做后把焦点移到被修改的列表项
+     */
+    private void setCheckListFocus(int index, int selection) {
+        mFocusPosition = index;
+        mFocusSelection = selection;
+        if (index < mEditTextList.getFirstVisiblePosition()
+                || index > mEditTextList.getLastVisiblePosition()) {
+            mEditTextList.setSelection(index);
+        }
+    }
+
+    /**
+     * 普通模式下编辑器的修改是否应记入撤销历史
+     */
+    private boolean isRecordingEditorHistory() {
+        return mRecordingHistory && !mSettingEditorText && !mEditHistory.isApplying()
+                && mWorkingNote != null && !isCheckListShown();
+    }
+
+    /**
+     * 撤销历史适用的内容：普通模式为编辑器文本，清单模式为列表项数量和清单文本
+     */
+    private String getHistoryBase() {
+        if (isCheckListShown()) {
+            return mCheckList.size() + ":" + mCheckList.getContent();
+        }
+        return mNoteEditor.getText().toString();
+    }
+
+    /**
+     * 界面重建后读取保存的撤销历史，内容已经变化时忽略
+     */
+    private void restoreEditHistory() {
+        if (mEditHistory.getEntryCount() > 0) {
+            return;
+        }
+        byte[] data = DraftJournal.readHistory(this, mWorkingNote.getNoteId());
+        if (data == null) {
+            return;
+        }
+        EditHistory history = EditHistory.fromBytes(data, getHistoryBase());
+        if (history != null) {
+            mEditHistory = history;
+            Log.d(TAG, "Edit history restored, " + history.getEntryCount() + " entries, "
+                    + history.getMemoryUsage() + "/" + history.getBudget() + " bytes");
+        }
+        updateUndoMenu();
+    }
+
+    /**
+     * 可撤销或可重做的状态变化时刷新菜单
+     */
+    private void updateUndoMenu() {
+        if (mCanUndo != mEditHistory.canUndo() || mCanRedo != mEditHistory.canRedo()) {
+            mCanUndo = mEditHistory.canUndo();
+            mCanRedo = mEditHistory.canRedo();
+            invalidateOptionsMenu();
+        }
     }
 
     /**
      * 获取当前工作文本
-     * 根据当前便签模式（普通文本或待办事项列表）获取编辑框中的文本内容，
-     * 并更新到WorkingNote对象中。对于待办事项列表模式，会为每个列表项添加
-     * 相应的完成或未完成标记。
+     * 普通模式下编辑器的修改已随输入应用到WorkingNote，无需处理；
+     * 对于待办事项列表模式，把清单的文本形式更新到WorkingNote对象中，
+     * 每个列表项带有相应的完成或未完成标记。
      * @return 是否有待办事项已完成
      */
     private boolean getWorkingText() {
         boolean hasChecked = false;
         if (mWorkingNote.getCheckListMode() == TextNote.MODE_CHECK_LIST) {
-            StringBuilder sb = new StringBuilder();
-            for (int i = 0; i < mEditTextList.getChildCount(); i++) {
-                View view = mEditTextList.getChildAt(i);
-                NoteEditText edit = (NoteEditText) view.findViewById(R.id.et_edit_text);
-                if (!TextUtils.isEmpty(edit.getText())) {
-                    if (((CheckBox) view.findViewById(R.id.cb_edit_item)).isChecked()) {
-                        sb.append(TAG_CHECKED).append(" ").append(edit.getText()).append("\n");
-                        hasChecked = true;
-                    } else {
-                        sb.append(TAG_UNCHECKED).append(" ").append(edit.getText()).append("\n");
-                    }
+            // 清单模型随编辑实时更新，未变化时直接复用上次序列化的文本
+            // 结构化存储的清单由WorkingNote在保存时逐项写入
+            if (mCheckList != null) {
+                if (mWorkingNote.getCheckList() == null) {
+                    mWorkingNote.setWorkingText(mCheckList.getContent());
                 }
+                hasChecked = mCheckList.hasChecked();
             }
-            mWorkingNote.setWorkingText(sb.toString());
-        } else {
-            mWorkingNote.setWorkingText(mNoteEditor.getText().toString());
         }
+        // 普通模式下编辑器的每次修改已经增量地应用到WorkingNote
         return hasChecked;
     }
 
+    /**
+     * 用便签的工作文本填充编辑器，这不是用户的编辑，不会再应用到WorkingNote
+     * @param text 工作文本
+     */
+    private void setEditorText(String text) {
+        mSettingEditorText = true;
+        try {
+            mNoteEditor.setText(getHighlightQueryResult(text, mUserQuery));
+        } finally {
+            mSettingEditorText = false;
+        }
+    }
+
     /**
      * 保存便签
-     * 获取当前编辑的文本内容并保存到数据库中。根据保存结果设置返回结果码，
+     * 获取当前编辑的文本内容并提交给保存线程，不等待数据库写入完成。根据是否有修改设置返回结果码，
      * 用于区分是打开现有便签还是创建新便签的情况。
      * 从列表视图到编辑视图有两种模式：打开现有便签和创建/编辑便签。
      * 打开便签时，返回时需要回到列表中的原始位置；
      * 创建新便签时，返回时需要回到列表顶部。
      * 这里使用{@link #RESULT_OK}来标识创建/编辑状态。
-     * @return 是否成功保存便签
+     * @return 是否提交了便签的修改
      */
     private boolean saveNote() {
+        return saveNote(null);
+    }
+
+    /**
+     * 保存便签，写入完成后整理草稿日志，再在主线程回调
+     * 每次只提交一次保存，已有排队的保存时由该次保存一并完成
+     * @param listener 保存完成监听器，可以为null
+     * @return 是否提交了便签的修改
+     */
+    private boolean saveNote(final WorkingNote.OnNoteSavedListener listener) {
+        mHandler.removeCallbacks(mAutoSaveRunnable);
+        if (mWorkingNote == null) {
+            return false;
+        }
         getWorkingText();
-        boolean saved = mWorkingNote.saveNote();
+        // 当前段被暂停或超过大小上限时才开始新的草稿日志段，之前的段在本次保存完成后删除
+        // 段头保存了起始文本，保存后继续追加到当前段时重放仍从段头开始
+        final DraftJournal journal = mDraftJournal;
+        WorkingNote.OnNoteSavedListener onSaved = listener;
+        if (journal != null) {
+            final long sequence = journal.needsNewSegment() ? beginDraftSegment()
+                    : journal.getSequence();
+            onSaved = new WorkingNote.OnNoteSavedListener() {
+                public void onNoteSaved(WorkingNote note) {
+                    journal.compact(sequence, note.getNoteId());
+                    if (listener != null) {
+                        listener.onNoteSaved(note);
+                    }
+                }
+            };
+        }
+        boolean saved = mWorkingNote.saveNoteAsync(onSaved);
         if (saved) {
             setResult(RESULT_OK);
         }
         return saved;
     }
 
-
     /**
-     * 复制当前便签
-     * 创建一个与当前便签内容相同的新便签，保持相同的文件夹位置、背景颜色和提醒设置。
-     * 复制完成后，会跳转到新创建便签的编辑界面。
+     * 为当前便签打开草稿日志，从当前的工作文本开始记录输入
      */
-    private void copyCurrentNote() {
-        // 首先保存当前编辑的便签
-        saveNote();
-
-        // 创建新便签，使用相同的文件夹ID、背景颜色和提醒设置
-        WorkingNote newNote = WorkingNote.createEmptyNote(
-            this,
-            mWorkingNote.getFolderId(),
-            mWorkingNote.getWidgetId(),
-            mWorkingNote.getWidgetType(),
-            mWorkingNote.getBgColorId()
-        );
+    private void startDraftJournal() {
+        if (mDraftJournal == null) {
+            mDraftJournal = new DraftJournal(this, mWorkingNote.getNoteId());
+        }
+        beginDraftSegment();
+    }
 
-        // 复制当前便签的内容
-        newNote.setWorkingText(mWorkingNote.getContent());
+    /**
+     * 以当前的工作文本开始新的草稿日志段
+     * 清单模式下记录空列表项的位置，重放时才能得到与界面一致的列表；
+     * 普通模式下只取WorkingNote文本的快照，完整文本在日志的写入线程上生成
+     * @return 新段的序号
+     */
+    private long beginDraftSegment() {
+        if (mWorkingNote.getCheckListMode() == TextNote.MODE_CHECK_LIST && mCheckList != null) {
+            int[] emptyItems = new int[mCheckList.size()];
+            int count = 0;
+            for (int i = 0; i < mCheckList.size(); i++) {
+                if (TextUtils.isEmpty(mCheckList.get(i).getText())) {
+                    emptyItems[count++] = i;
+                }
+            }
+            long sequence = mDraftJournal.begin(TextNote.MODE_CHECK_LIST,
+                    mCheckList.getContent(), Arrays.copyOf(emptyItems, count));
+            mCheckList.setOnChangeListener(mCheckListRecorder);
+            return sequence;
+        }
+        if (mCheckList != null) {
+            mCheckList.setOnChangeListener(null);
+        }
+        return mDraftJournal.begin(mWorkingNote.getCheckListMode(),
+                mWorkingNote.snapshotText());
+    }
 
-        // 如果原便签有提醒，复制提醒设置
-        if (mWorkingNote.hasClockAlert()) {
-            newNote.setAlertDate(mWorkingNote.getAlertDate(), true);
+    /**
+     * 关闭当前便签的草稿日志，未写入的记录交给写入线程
+     */
+    private void closeDraftJournal() {
+        if (mDraftJournal != null) {
+            if (mCheckList != null) {
+                mCheckList.setOnChangeListener(null);
+            }
+            mDraftJournal.close();
+            mDraftJournal = null;
         }
+    }
 
-        // 保存新便签
-        if (newNote.saveNote()) {
-            // 复制成功后跳转到新便签的编辑界面
-            Intent intent = new Intent(this, NoteEditActivity.class);
-            intent.setAction(Intent.ACTION_VIEW);
-            intent.putExtra(Intent.EXTRA_UID, newNote.getNoteId());
-            startActivity(intent);
-        } else {
-            Log.e(TAG, "Failed to copy note");
+    /**
+     * 推迟自动保存，停止输入{@link #AUTO_SAVE_DELAY}毫秒后才提交保存
+     * 每次输入只移动一个延迟任务，不会读取编辑器的全部文本
+     */
+    private void scheduleAutoSave() {
+        if (mWorkingNote == null) {
+            return;
         }
+        mHandler.removeCallbacks(mAutoSaveRunnable);
+        mHandler.postDelayed(mAutoSaveRunnable, AUTO_SAVE_DELAY);
+    }
+
+
+    /**
+     * 复制当前便签
+     * 创建一个与当前便签内容相同的新便签，保持相同的文件夹位置、背景颜色和提醒设置。
+     * 新便签在保存线程上写入，完成后跳转到新创建便签的编辑界面。
+     */
+    private void copyCurrentNote() {
+        // 首先保存当前编辑的便签，保存完成后在数据库中复制，内容不经过界面
+        saveNote(new WorkingNote.OnNoteSavedListener() {
+            public void onNoteSaved(WorkingNote note) {
+                if (!note.existInDatabase()) {
+                    Log.e(TAG, "Failed to copy note, note not saved");
+                    return;
+                }
+                final long noteId = note.getNoteId();
+                new AsyncTask<Void, Void, Long>() {
+                    @Override
+                    protected Long doInBackground(Void... unused) {
+                        return DataUtils.duplicateNote(getContentResolver(), noteId);
+                    }
+
+                    @Override
+                    protected void onPostExecute(Long newId) {
+                        if (newId > 0) {
+                            Intent intent = new Intent(NoteEditActivity.this, NoteEditActivity.class);
+                            intent.setAction(Intent.ACTION_VIEW);
+                            intent.putExtra(Intent.EXTRA_UID, newId.longValue());
+                            startActivity(intent);
+                        } else {
+                            Log.e(TAG, "Failed to copy note");
+                        }
+                    }
+                }.execute();
+            }
+        });
     }
 
     /**
      * 发送便签到桌面
      * 在桌面上创建当前便签的快捷方式，方便用户快速访问。
-     * 发送前会确保当前编辑的便签已保存到数据库中。
+     * 新便签先在保存线程上写入数据库，得到ID后再发送。
      */
     private void sendToDesktop() {
         // 发送到桌面之前，确保当前编辑的便签已存在于数据库中
         if (!mWorkingNote.existInDatabase()) {
-            saveNote();
+            saveNote(new WorkingNote.OnNoteSavedListener() {
+                public void onNoteSaved(WorkingNote note) {
+                    sendShortcut(note);
+                }
+            });
+        } else {
+            sendShortcut(mWorkingNote);
         }
+    }
 
-        if (mWorkingNote.getNoteId() > 0) {
+    /**
+     * 为已保存的便签创建桌面快捷方式
+     * @param note 便签
+     */
+    private void sendShortcut(WorkingNote note) {
+        if (note.getNoteId() > 0) {
             Intent sender = new Intent();
             Intent shortcutIntent = new Intent(this, NoteEditActivity.class);
             shortcutIntent.setAction(Intent.ACTION_VIEW);
-            shortcutIntent.putExtra(Intent.EXTRA_UID, mWorkingNote.getNoteId());
+            shortcutIntent.putExtra(Intent.EXTRA_UID, note.getNoteId());
             sender.putExtra(Intent.EXTRA_SHORTCUT_INTENT, shortcutIntent);
             sender.putExtra(Intent.EXTRA_SHORTCUT_NAME,
-                    makeShortcutIconTitle(mWorkingNote.getContent()));
+                    makeShortcutIconTitle(note.getContent()));
             sender.putExtra(Intent.EXTRA_SHORTCUT_ICON_RESOURCE,
                     Intent.ShortcutIconResource.fromContext(this, R.drawable.icon_app));
             sender.putExtra("duplicate", true);
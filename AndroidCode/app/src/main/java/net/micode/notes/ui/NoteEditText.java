@@ -18,11 +18,16 @@ package net.micode.notes.ui;
 
 import android.content.Context;
 import android.graphics.Rect;
+import android.text.Editable;
 import android.text.Layout;
 import android.text.Selection;
+import android.text.Spannable;
+import android.text.SpannableString;
 import android.text.Spanned;
 import android.text.TextUtils;
+import android.text.TextWatcher;
 import android.text.style.URLSpan;
+import android.text.util.Linkify;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.ContextMenu;
@@ -39,7 +44,7 @@ import java.util.Map;
 
 /**
  * 自定义的便签编辑框
- * 扩展自EditText，支持链接检测与处理（电话、网页、邮件）、
+ * 扩展自EditText，支持增量的链接检测与处理（电话、网页、邮件）、
  * 键盘事件监听（删除键、回车键）以及与NoteEditActivity的交互。
  */
 public class NoteEditText extends EditText {
@@ -94,6 +99,56 @@ public class NoteEditText extends EditText {
     /** 编辑框变化监听器实例 */
     private OnTextViewChangeListener mOnTextViewChangeListener;
 
+    /**
+     * 撤销快捷键监听器
+     * 由{@link NoteEditActivity}处理，普通模式和清单模式共用一份编辑历史。
+     */
+    public interface OnUndoListener {
+        /**
+         * Undo the last edit when Ctrl+Z is pressed
+         */
+        boolean onUndo();
+
+        /**
+         * Redo the last undone edit when Ctrl+Shift+Z or Ctrl+Y is pressed
+         */
+        boolean onRedo();
+    }
+
+    /** 撤销快捷键监听器实例 */
+    private OnUndoListener mOnUndoListener;
+
+    /** 检测的链接类型，地址检测依赖WebView且很慢，不再支持 */
+    private static final int LINK_MASK = Linkify.WEB_URLS | Linkify.EMAIL_ADDRESSES
+            | Linkify.PHONE_NUMBERS;
+
+    /**
+     * 检测到的链接，创建时确定对应的菜单操作，长按时不必再匹配协议
+     */
+    private static class LinkSpan extends URLSpan {
+        /** 链接对应的菜单操作资源ID */
+        private final int mActionResId;
+
+        LinkSpan(String url) {
+            super(url);
+            int resId = R.string.note_link_other;
+            for (Map.Entry<String, Integer> entry : sSchemaActionResMap.entrySet()) {
+                if (url.startsWith(entry.getKey())) {
+                    resId = entry.getValue();
+                    break;
+                }
+            }
+            mActionResId = resId;
+        }
+    }
+
+    /** 链接检测器，为null表示未开启链接检测 */
+    private TextWatcher mLinkWatcher;
+
+    /** 本次修改后需要重新检测的范围，-1表示没有 */
+    private int mDirtyStart = -1;
+    private int mDirtyEnd = -1;
+
     /**
      * 构造函数
      * @param context 上下文对象
@@ -119,6 +174,107 @@ public class NoteEditText extends EditText {
         mOnTextViewChangeListener = listener;
     }
 
+    /**
+     * 设置撤销快捷键监听器
+     * @param listener 监听器实例
+     */
+    public void setOnUndoListener(OnUndoListener listener) {
+        mOnUndoListener = listener;
+    }
+
+    /**
+     * 开启或关闭链接检测
+     * 开启时检测一次全文，之后每次修改只重新检测被修改的段落，
+     * 其余段落的链接作为文本中的span保留，位置随编辑自动调整。
+     * @param enabled 是否检测链接
+     */
+    public void setLinkDetectionEnabled(boolean enabled) {
+        if (enabled == (mLinkWatcher != null)) {
+            return;
+        }
+        if (!enabled) {
+            removeTextChangedListener(mLinkWatcher);
+            mLinkWatcher = null;
+            removeLinks(getText(), 0, length());
+            return;
+        }
+        mLinkWatcher = new TextWatcher() {
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+                // 同一次批量输入中可能有多次修改，合并成一个范围
+                int end = start + count;
+                if (mDirtyStart < 0) {
+                    mDirtyStart = start;
+                    mDirtyEnd = end;
+                } else {
+                    if (start < mDirtyEnd) {
+                        mDirtyEnd = Math.max(start, mDirtyEnd + count - before);
+                    }
+                    mDirtyStart = Math.min(mDirtyStart, start);
+                    mDirtyEnd = Math.max(mDirtyEnd, end);
+                }
+            }
+
+            public void afterTextChanged(Editable s) {
+                if (mDirtyStart < 0) {
+                    return;
+                }
+                int start = Math.min(mDirtyStart, s.length());
+                int end = Math.min(Math.max(mDirtyEnd, start), s.length());
+                mDirtyStart = -1;
+                mDirtyEnd = -1;
+                detectLinks(s, start, end);
+            }
+        };
+        addTextChangedListener(mLinkWatcher);
+        detectLinks(getText(), 0, length());
+    }
+
+    /**
+     * 重新检测[start, end)所在的各个段落中的链接
+     * @param text 编辑框的文本
+     * @param start 修改的起点
+     * @param end 修改的终点
+     */
+    private static void detectLinks(Spannable text, int start, int end) {
+        // 扩展到完整的段落，链接不会跨越换行
+        int paragraphStart = start == 0 ? 0 : TextUtils.lastIndexOf(text, '\n', start - 1) + 1;
+        int paragraphEnd = TextUtils.indexOf(text, '\n', end);
+        if (paragraphEnd < 0) {
+            paragraphEnd = text.length();
+        }
+        removeLinks(text, paragraphStart, paragraphEnd);
+        if (paragraphStart == paragraphEnd) {
+            return;
+        }
+
+        SpannableString paragraph = new SpannableString(
+                text.subSequence(paragraphStart, paragraphEnd).toString());
+        if (!Linkify.addLinks(paragraph, LINK_MASK)) {
+            return;
+        }
+        for (URLSpan url : paragraph.getSpans(0, paragraph.length(), URLSpan.class)) {
+            text.setSpan(new LinkSpan(url.getURL()),
+                    paragraphStart + paragraph.getSpanStart(url),
+                    paragraphStart + paragraph.getSpanEnd(url),
+                    Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+    }
+
+    /**
+     * 移除[start, end)内检测到的链接，包括被删除文本留下的空链接
+     */
+    private static void removeLinks(Spannable text, int start, int end) {
+        for (LinkSpan span : text.getSpans(start, end, LinkSpan.class)) {
+            if (text.getSpanStart(span) >= start && text.getSpanEnd(span) <= end
+                    || text.getSpanStart(span) == text.getSpanEnd(span)) {
+                text.removeSpan(span);
+            }
+        }
+    }
+
     /**
      * 构造函数
      * @param context 上下文对象
@@ -169,13 +325,22 @@ public class NoteEditText extends EditText {
 
     /**
      * 处理按键按下事件
-     * 重写父类方法，对回车键和删除键进行特殊处理。
+     * 重写父类方法，对回车键和删除键进行特殊处理，并响应撤销和重做快捷键。
      * @param keyCode 按键编码
      * @param event 按键事件对象
      * @return 是否消费了该事件
      */
     @Override
     public boolean onKeyDown(int keyCode, KeyEvent event) {
+        // 外接键盘的撤销和重做快捷键
+        if (mOnUndoListener != null && event.isCtrlPressed()) {
+            if (keyCode == KeyEvent.KEYCODE_Z) {
+                return event.isShiftPressed() ? mOnUndoListener.onRedo()
+                        : mOnUndoListener.onUndo();
+            } else if (keyCode == KeyEvent.KEYCODE_Y) {
+                return mOnUndoListener.onRedo();
+            }
+        }
         switch (keyCode) {
             case KeyEvent.KEYCODE_ENTER:
                 // 如果设置了监听器，则不处理回车键按下事件，由onKeyUp处理
@@ -275,12 +440,16 @@ public class NoteEditText extends EditText {
             // 获取选择区域内的URLSpan
             final URLSpan[] urls = ((Spanned) getText()).getSpans(min, max, URLSpan.class);
             if (urls.length == 1) {
-                // 根据链接协议获取对应的操作资源ID
+                // 检测到的链接已经确定了操作，其他来源的链接按协议匹配
                 int defaultResId = 0;
-                for(String schema: sSchemaActionResMap.keySet()) {
-                    if(urls[0].getURL().indexOf(schema) >= 0) {
-                        defaultResId = sSchemaActionResMap.get(schema);
-                        break;
+                if (urls[0] instanceof LinkSpan) {
+                    defaultResId = ((LinkSpan) urls[0]).mActionResId;
+                } else {
+                    for(String schema: sSchemaActionResMap.keySet()) {
+                        if(urls[0].getURL().indexOf(schema) >= 0) {
+                            defaultResId = sSchemaActionResMap.get(schema);
+                            break;
+                        }
                     }
                 }
 
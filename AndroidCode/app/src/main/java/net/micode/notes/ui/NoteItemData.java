@@ -49,6 +49,8 @@ public class NoteItemData {
         NoteColumns.TYPE,
         NoteColumns.WIDGET_ID,
         NoteColumns.WIDGET_TYPE,
+        NoteColumns.CHECK_ITEM_COUNT,
+        NoteColumns.CHECKED_ITEM_COUNT,
     };
 
     /** ID列索引 */
@@ -75,6 +77,10 @@ public class NoteItemData {
     private static final int WIDGET_ID_COLUMN             = 10;
     /** 小部件类型列索引 */
     private static final int WIDGET_TYPE_COLUMN           = 11;
+    /** 待办事项总数列索引 */
+    private static final int CHECK_ITEM_COUNT_COLUMN      = 12;
+    /** 已完成待办事项数列索引 */
+    private static final int CHECKED_ITEM_COUNT_COLUMN    = 13;
 
     /** 便签ID */
     private long mId;
@@ -100,6 +106,10 @@ public class NoteItemData {
     private int mWidgetId;
     /** 小部件类型 */
     private int mWidgetType;
+    /** 结构化存储的待办事项总数 */
+    private int mCheckItemCount;
+    /** 结构化存储的已完成待办事项数 */
+    private int mCheckedItemCount;
     /** 联系人姓名（通话记录便签使用） */
     private String mName;
     /** 电话号码（通话记录便签使用） */
@@ -138,6 +148,8 @@ public class NoteItemData {
         mType = cursor.getInt(TYPE_COLUMN);
         mWidgetId = cursor.getInt(WIDGET_ID_COLUMN);
         mWidgetType = cursor.getInt(WIDGET_TYPE_COLUMN);
+        mCheckItemCount = cursor.getInt(CHECK_ITEM_COUNT_COLUMN);
+        mCheckedItemCount = cursor.getInt(CHECKED_ITEM_COUNT_COLUMN);
 
         mPhoneNumber = "";
         // 如果是通话记录便签，获取电话号码和联系人信息
@@ -192,6 +204,22 @@ public class NoteItemData {
         }
     }
 
+    /**
+     * 获取结构化存储的待办事项总数
+     * @return 待办事项总数，文本存储的便签为0
+     */
+    public int getCheckItemCount() {
+        return mCheckItemCount;
+    }
+
+    /**
+     * 获取结构化存储的已完成待办事项数
+     * @return 已完成待办事项数
+     */
+    public int getCheckedItemCount() {
+        return mCheckedItemCount;
+    }
+
     /**
      * 是否为文件夹下的唯一便签
      * @return 是否为文件夹下的唯一便签
@@ -51,6 +51,8 @@ import android.view.View.OnClickListener;
 import android.view.View.OnCreateContextMenuListener;
 import android.view.View.OnTouchListener;
 import android.view.inputmethod.InputMethodManager;
+import android.widget.AbsListView;
+import android.widget.AbsListView.OnScrollListener;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemClickListener;
 import android.widget.AdapterView.OnItemLongClickListener;
@@ -66,6 +68,7 @@ import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.NoteColumns;
 import net.micode.notes.gtask.remote.GTaskSyncService;
 import net.micode.notes.model.WorkingNote;
+import net.micode.notes.model.WorkingNoteCache;
 import net.micode.notes.tool.BackupUtils;
 import net.micode.notes.tool.DataUtils;
 import net.micode.notes.tool.ResourceParser;
@@ -140,6 +143,7 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
     private static final String TAG = "NotesListActivity"; // 日志标记
     public static final int NOTES_LISTVIEW_SCROLL_RATE = 30; // 列表滚动速率
     private NoteItemData mFocusNoteDataItem;            // 当前聚焦的便签数据项
+    private WorkingNoteCache mNoteCache;                // 便签预加载缓存
     private static final String NORMAL_SELECTION = NoteColumns.PARENT_ID + "=?"; // 普通文件夹查询条件
     private static final String ROOT_FOLDER_SELECTION = "(" + NoteColumns.TYPE + "<>"
             + Notes.TYPE_SYSTEM + " AND " + NoteColumns.PARENT_ID + "=?)" + " OR ("
@@ -281,6 +285,9 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
                 null, false);
         mNotesListView.setOnItemClickListener(new OnListItemClickListener());
         mNotesListView.setOnItemLongClickListener(this);
+        mNotesListView.setOnScrollListener(new PrefetchOnScrollListener());
+        mNotesListView.setOnTouchListener(new PrefetchOnTouchListener());
+        mNoteCache = WorkingNoteCache.getInstance(this);
         mNotesListAdapter = new NotesListAdapter(this);
         mNotesListView.setAdapter(mNotesListAdapter);
         mAddNewNote = (Button) findViewById(R.id.btn_new_note);
@@ -557,6 +564,12 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
                 case FOLDER_NOTE_LIST_QUERY_TOKEN:
                     // 更新便签列表适配器的数据源
                     mNotesListAdapter.changeCursor(cursor);
+                    // 等待列表完成布局后预加载可见便签
+                    mNotesListView.post(new Runnable() {
+                        public void run() {
+                            prefetchVisibleNotes();
+                        }
+                    });
                     break;
                 case FOLDER_LIST_QUERY_TOKEN:
                     // 显示文件夹选择菜单
@@ -1216,6 +1229,66 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
 
     }
 
+    /**
+     * 预加载便签内容
+     * 仅对普通便签生效，加载在后台线程完成，打开编辑界面时可直接使用。
+     * @param data 要预加载的便签数据
+     */
+    private void prefetchNote(NoteItemData data) {
+        if (data != null && data.getType() == Notes.TYPE_NOTE) {
+            mNoteCache.prefetch(data.getId());
+        }
+    }
+
+    /**
+     * 预加载当前屏幕上可见的所有便签
+     */
+    private void prefetchVisibleNotes() {
+        for (int i = 0; i < mNotesListView.getChildCount(); i++) {
+            View child = mNotesListView.getChildAt(i);
+            if (child instanceof NotesListItem) {
+                prefetchNote(((NotesListItem) child).getItemData());
+            }
+        }
+    }
+
+    /**
+     * PrefetchOnScrollListener - 列表滚动监听器
+     * 滚动停止时预加载可见便签，滚动过程中不预加载以免产生无用的查询。
+     */
+    private class PrefetchOnScrollListener implements OnScrollListener {
+        public void onScrollStateChanged(AbsListView view, int scrollState) {
+            if (scrollState == OnScrollListener.SCROLL_STATE_IDLE) {
+                prefetchVisibleNotes();
+            }
+        }
+
+        public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                int totalItemCount) {
+        }
+    }
+
+    /**
+     * PrefetchOnTouchListener - 列表触摸监听器
+     * 手指按下时即预加载对应的便签，在点击事件到达之前完成加载。
+     * 不消耗触摸事件，列表原有的点击和长按处理不受影响。
+     */
+    private class PrefetchOnTouchListener implements OnTouchListener {
+        public boolean onTouch(View v, MotionEvent event) {
+            if (event.getAction() == MotionEvent.ACTION_DOWN) {
+                int position = mNotesListView.pointToPosition((int) event.getX(), (int) event.getY());
+                if (position != AdapterView.INVALID_POSITION) {
+                    View child = mNotesListView.getChildAt(
+                            position - mNotesListView.getFirstVisiblePosition());
+                    if (child instanceof NotesListItem) {
+                        prefetchNote(((NotesListItem) child).getItemData());
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
     /**
      * 查询目标文件夹列表
      * 异步查询所有可用的文件夹（不包括垃圾箱文件夹和当前文件夹），
@@ -1255,6 +1328,7 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
     public boolean onItemLongClick(AdapterView<?> parent, View view, int position, long id) {
         if (view instanceof NotesListItem) {
             mFocusNoteDataItem = ((NotesListItem) view).getItemData();
+            prefetchNote(mFocusNoteDataItem);
             if (mFocusNoteDataItem.getType() == Notes.TYPE_NOTE && !mNotesListAdapter.isInChoiceMode()) {
                 if (mNotesListView.startActionMode(mModeCallBack) != null) {
                     mModeCallBack.onItemCheckedStateChanged(null, position, id, true);
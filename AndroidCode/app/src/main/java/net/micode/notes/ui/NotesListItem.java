@@ -119,7 +119,13 @@ public class NotesListItem extends LinearLayout {
                                 data.getNotesCount()));
                 mAlert.setVisibility(View.GONE);
             } else {
-                mTitle.setText(DataUtils.getFormattedSnippet(data.getSnippet()));
+                String title = DataUtils.getFormattedSnippet(data.getSnippet());
+                if (data.getCheckItemCount() > 0) {
+                    // 结构化存储的清单直接显示完成进度
+                    title = context.getString(R.string.format_check_list_progress,
+                            data.getCheckedItemCount(), data.getCheckItemCount()) + title;
+                }
+                mTitle.setText(title);
                 if (data.hasAlert()) {
                     mAlert.setImageResource(R.drawable.clock);
                     mAlert.setVisibility(View.VISIBLE);
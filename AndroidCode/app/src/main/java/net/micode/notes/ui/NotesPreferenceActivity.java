@@ -70,9 +70,18 @@ public class NotesPreferenceActivity extends PreferenceActivity {
     // 最后同步时间偏好键
     public static final String PREFERENCE_LAST_SYNC_TIME = "pref_last_sync_time";
 
+    // 上次同步处理到的本地修改日志序号偏好键
+    public static final String PREFERENCE_SYNC_CHECKPOINT = "pref_sync_checkpoint";
+
+    // 上次同步时远程节点的最大修改时间偏好键
+    public static final String PREFERENCE_SYNC_REMOTE_CHECKPOINT = "pref_sync_remote_checkpoint";
+
     // 背景颜色设置偏好键
     public static final String PREFERENCE_SET_BG_COLOR_KEY = "pref_key_bg_random_appear";
 
+    // 待办事项逐项存储偏好键
+    public static final String PREFERENCE_STRUCTURED_CHECK_LIST_KEY = "pref_key_structured_check_list";
+
     // 同步账户设置分类键
     private static final String PREFERENCE_SYNC_ACCOUNT_KEY = "pref_sync_account_key";
 
@@ -377,6 +386,9 @@ public class NotesPreferenceActivity extends PreferenceActivity {
             } else {
                 editor.putString(PREFERENCE_SYNC_ACCOUNT_NAME, "");
             }
+            // 新账户需要完整同步
+            editor.remove(PREFERENCE_SYNC_CHECKPOINT);
+            editor.remove(PREFERENCE_SYNC_REMOTE_CHECKPOINT);
             editor.commit();
 
             // clean up last sync time
@@ -412,6 +424,8 @@ public class NotesPreferenceActivity extends PreferenceActivity {
         if (settings.contains(PREFERENCE_LAST_SYNC_TIME)) {
             editor.remove(PREFERENCE_LAST_SYNC_TIME);
         }
+        editor.remove(PREFERENCE_SYNC_CHECKPOINT);
+        editor.remove(PREFERENCE_SYNC_REMOTE_CHECKPOINT);
         editor.commit();
 
         // clean up local gtask related info
@@ -451,6 +465,44 @@ public class NotesPreferenceActivity extends PreferenceActivity {
         editor.commit();
     }
 
+    /**
+     * 保存同步检查点，下次同步只处理检查点之后的本地修改和远程修改
+     * 更换或移除同步账户时删除，之后的第一次同步为完整同步
+     * @param context 应用上下文
+     * @param changeSeq 已处理的本地修改日志序号
+     * @param remoteModified 远程节点的最大修改时间
+     */
+    public static void setSyncCheckpoint(Context context, long changeSeq, long remoteModified) {
+        SharedPreferences settings = context.getSharedPreferences(PREFERENCE_NAME,
+                Context.MODE_PRIVATE);
+        SharedPreferences.Editor editor = settings.edit();
+        editor.putLong(PREFERENCE_SYNC_CHECKPOINT, changeSeq);
+        editor.putLong(PREFERENCE_SYNC_REMOTE_CHECKPOINT, remoteModified);
+        editor.commit();
+    }
+
+    /**
+     * 获取上次同步处理到的本地修改日志序号
+     * @param context 应用上下文
+     * @return 日志序号，没有检查点时返回-1
+     */
+    public static long getSyncCheckpoint(Context context) {
+        SharedPreferences settings = context.getSharedPreferences(PREFERENCE_NAME,
+                Context.MODE_PRIVATE);
+        return settings.getLong(PREFERENCE_SYNC_CHECKPOINT, -1);
+    }
+
+    /**
+     * 获取上次同步时远程节点的最大修改时间
+     * @param context 应用上下文
+     * @return 修改时间，没有检查点时返回0
+     */
+    public static long getSyncRemoteCheckpoint(Context context) {
+        SharedPreferences settings = context.getSharedPreferences(PREFERENCE_NAME,
+                Context.MODE_PRIVATE);
+        return settings.getLong(PREFERENCE_SYNC_REMOTE_CHECKPOINT, 0);
+    }
+
     /**
      * 获取最后同步时间
      * 从应用偏好设置中读取最后一次同步的时间。
@@ -0,0 +1,136 @@
+package net.micode.notes.gtask.data;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * 验证任务列表在中间位置的增删和移动后位置、兄弟任务和GID索引的正确性
+ */
+public class TaskListTest {
+    private static final int TASK_COUNT = 10000;
+
+    private static final int MOVE_COUNT = 10000;
+
+    @Test
+    public void randomEditsMatchArrayList() {
+        Random random = new Random(42);
+        TaskList list = new TaskList();
+        List<Task> expected = new ArrayList<Task>();
+        for (int i = 0; i < 500; i++) {
+            Task task = newTask(i);
+            int index = random.nextInt(expected.size() + 1);
+            assertTrue(list.addChildTask(task, index));
+            expected.add(index, task);
+        }
+
+        for (int i = 0; i < 3000; i++) {
+            Task task = expected.get(random.nextInt(expected.size()));
+            switch (random.nextInt(3)) {
+                case 0: {
+                    int index = random.nextInt(expected.size());
+                    assertTrue(list.moveChildTask(task, index));
+                    expected.remove(task);
+                    expected.add(index, task);
+                    break;
+                }
+                case 1: {
+                    assertTrue(list.removeChildTask(task));
+                    expected.remove(task);
+                    assertEquals(-1, list.getChildTaskIndex(task));
+                    assertNull(task.getParent());
+                    int index = random.nextInt(expected.size() + 1);
+                    assertTrue(list.addChildTask(task, index));
+                    expected.add(index, task);
+                    break;
+                }
+                default:
+                    assertEquals(expected.indexOf(task), list.getChildTaskIndex(task));
+                    break;
+            }
+        }
+
+        assertEquals(expected.size(), list.getChildTaskCount());
+        assertEquals(expected, list.getChildTaskList());
+        for (int i = 0; i < expected.size(); i++) {
+            Task task = expected.get(i);
+            assertSame(task, list.getChildTaskByIndex(i));
+            assertEquals(i, list.getChildTaskIndex(task));
+            assertSame(i == 0 ? null : expected.get(i - 1), task.getPriorSibling());
+            assertSame(list, task.getParent());
+            assertSame(task, list.findChildTaskByGid(task.getGid()));
+        }
+    }
+
+    @Test
+    public void moveHeavySyncOn10kTasks() {
+        Random random = new Random(7);
+        TaskList source = new TaskList();
+        TaskList target = new TaskList();
+        List<Task> expectedSource = new ArrayList<Task>();
+        List<Task> expectedTarget = new ArrayList<Task>();
+        for (int i = 0; i < TASK_COUNT; i++) {
+            Task task = newTask(i);
+            source.addChildTask(task);
+            expectedSource.add(task);
+        }
+
+        // 按同步时的方式移动任务：在列表中间移动并取新的位置生成移动操作，
+        // 或从一个列表的中间移到另一个列表的末尾
+        for (int i = 0; i < MOVE_COUNT; i++) {
+            boolean fromSource = source.getChildTaskCount() >= target.getChildTaskCount();
+            TaskList from = fromSource ? source : target;
+            TaskList to = fromSource ? target : source;
+            List<Task> expectedFrom = fromSource ? expectedSource : expectedTarget;
+            List<Task> expectedTo = fromSource ? expectedTarget : expectedSource;
+
+            int pos = random.nextInt(from.getChildTaskCount());
+            Task task = from.getChildTaskByIndex(pos);
+            assertSame(expectedFrom.get(pos), task);
+            if (random.nextBoolean()) {
+                int index = random.nextInt(from.getChildTaskCount());
+                assertTrue(from.moveChildTask(task, index));
+                expectedFrom.remove(pos);
+                expectedFrom.add(index, task);
+                assertEquals(index, from.getChildTaskIndex(task));
+            } else {
+                assertTrue(from.removeChildTask(task));
+                assertTrue(to.addChildTask(task));
+                expectedFrom.remove(pos);
+                expectedTo.add(task);
+                assertEquals(to.getChildTaskCount() - 1, to.getChildTaskIndex(task));
+                assertSame(task, to.findChildTaskByGid(task.getGid()));
+                assertNull(from.findChildTaskByGid(task.getGid()));
+            }
+        }
+
+        assertListMatches(expectedSource, source);
+        assertListMatches(expectedTarget, target);
+    }
+
+    /**
+     * 检查任务列表的顺序、位置、前一个兄弟任务和GID索引与预期一致
+     */
+    private static void assertListMatches(List<Task> expected, TaskList list) {
+        assertEquals(expected.size(), list.getChildTaskCount());
+        assertEquals(expected, list.getChildTaskList());
+        for (int i = 0; i < expected.size(); i++) {
+            Task task = expected.get(i);
+            assertEquals(i, list.getChildTaskIndex(task));
+            assertSame(i == 0 ? null : expected.get(i - 1), task.getPriorSibling());
+            assertSame(list, task.getParent());
+            assertSame(task, list.findChildTaskByGid(task.getGid()));
+        }
+    }
+
+    private static Task newTask(int i) {
+        Task task = new Task();
+        task.setGid("gid-" + i);
+        task.setName("task " + i);
+        return task;
+    }
+}
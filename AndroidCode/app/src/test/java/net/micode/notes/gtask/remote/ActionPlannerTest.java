@@ -0,0 +1,212 @@
+package net.micode.notes.gtask.remote;
+
+import net.micode.notes.gtask.data.Task;
+import net.micode.notes.gtask.exception.ActionFailureException;
+import net.micode.notes.tool.GTaskStringUtils;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+/**
+ * 用JSON操作验证批量计划中临时ID的替换、批次的切分和前一个兄弟节点的处理
+ * org.json需要Robolectric提供实现
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class ActionPlannerTest {
+    private ActionPlanner mPlanner;
+
+    @Before
+    public void setUp() {
+        mPlanner = new ActionPlanner(10);
+    }
+
+    @Test
+    public void createThenUpdateChainsThroughServerId() throws JSONException {
+        Task task = newTask("a");
+        JSONObject create = create(1, "list", null);
+        assertTrue(mPlanner.prepare(create));
+        mPlanner.add(create, task, null);
+        assertEquals("temp_1", task.getGid());
+
+        // 更新引用了尚未创建的节点，需要先发送当前批次
+        JSONObject update = update(2, task.getGid());
+        assertFalse(mPlanner.prepare(update));
+
+        ArrayList<ActionPlanner.Entry> batch = mPlanner.takeBatch();
+        assertEquals(1, batch.size());
+        assertFalse(mPlanner.hasPending());
+        mPlanner.resolve(batch, results(result(1, "server-a")));
+        assertEquals("server-a", task.getGid());
+
+        // 发送后临时ID换成服务器ID
+        assertTrue(mPlanner.prepare(update));
+        assertEquals("server-a", update.getString(GTaskStringUtils.GTASK_JSON_ID));
+        mPlanner.add(update, null, null);
+        assertTrue(mPlanner.hasPending());
+    }
+
+    @Test
+    public void createWithPendingSiblingStaysInBatch() throws JSONException {
+        Task first = newTask("first");
+        JSONObject createFirst = create(1, "list", null);
+        assertTrue(mPlanner.prepare(createFirst));
+        mPlanner.add(createFirst, first, null);
+
+        JSONObject createSecond = create(2, "list", first.getGid());
+        assertTrue(mPlanner.prepare(createSecond));
+        // 同一批次中按index排序，不再引用临时ID
+        assertFalse(createSecond.has(GTaskStringUtils.GTASK_JSON_PRIOR_SIBLING_ID));
+        mPlanner.add(createSecond, newTask("second"), null);
+        assertEquals(2, mPlanner.takeBatch().size());
+    }
+
+    @Test
+    public void createWithResolvedSiblingUsesServerId() throws JSONException {
+        Task first = newTask("first");
+        JSONObject createFirst = create(1, "list", null);
+        mPlanner.prepare(createFirst);
+        mPlanner.add(createFirst, first, null);
+        mPlanner.resolve(mPlanner.takeBatch(), results(result(1, "server-first")));
+
+        JSONObject createSecond = create(2, "list", "temp_1");
+        assertTrue(mPlanner.prepare(createSecond));
+        assertEquals("server-first",
+                createSecond.getString(GTaskStringUtils.GTASK_JSON_PRIOR_SIBLING_ID));
+    }
+
+    @Test
+    public void createInPendingParentFlushesBatch() throws JSONException {
+        Task list = newTask("list");
+        JSONObject createList = create(1, null, null);
+        mPlanner.prepare(createList);
+        mPlanner.add(createList, list, null);
+
+        // 父节点不是前一个兄弟节点，必须先创建
+        JSONObject createChild = create(2, list.getGid(), null);
+        assertFalse(mPlanner.prepare(createChild));
+        assertEquals(list.getGid(), createChild.getString(GTaskStringUtils.GTASK_JSON_LIST_ID));
+    }
+
+    @Test
+    public void moveReferencingPendingCreateFlushesBatch() throws JSONException {
+        Task task = newTask("a");
+        JSONObject create = create(1, "list", null);
+        mPlanner.prepare(create);
+        mPlanner.add(create, task, null);
+
+        JSONObject move = new JSONObject();
+        move.put(GTaskStringUtils.GTASK_JSON_ACTION_TYPE,
+                GTaskStringUtils.GTASK_JSON_ACTION_TYPE_MOVE);
+        move.put(GTaskStringUtils.GTASK_JSON_ACTION_ID, 2);
+        move.put(GTaskStringUtils.GTASK_JSON_ID, "existing");
+        move.put(GTaskStringUtils.GTASK_JSON_PRIOR_SIBLING_ID, task.getGid());
+        // 只有创建操作可以在同一批次中引用前一个兄弟节点
+        assertFalse(mPlanner.prepare(move));
+    }
+
+    @Test
+    public void resultsWithoutActionIdMatchByOrder() throws JSONException {
+        Task a = newTask("a");
+        Task b = newTask("b");
+        JSONObject createA = create(1, "list", null);
+        mPlanner.prepare(createA);
+        mPlanner.add(createA, a, null);
+        JSONObject update = update(2, "existing");
+        mPlanner.prepare(update);
+        mPlanner.add(update, null, null);
+        JSONObject createB = create(3, "list", null);
+        mPlanner.prepare(createB);
+        mPlanner.add(createB, b, null);
+
+        JSONArray results = new JSONArray();
+        results.put(new JSONObject().put(GTaskStringUtils.GTASK_JSON_NEW_ID, "server-a"));
+        results.put(new JSONObject());
+        results.put(new JSONObject().put(GTaskStringUtils.GTASK_JSON_NEW_ID, "server-b"));
+        mPlanner.resolve(mPlanner.takeBatch(), results);
+        assertEquals("server-a", a.getGid());
+        assertEquals("server-b", b.getGid());
+    }
+
+    @Test(expected = ActionFailureException.class)
+    public void missingNewIdFails() throws JSONException {
+        JSONObject create = create(1, "list", null);
+        mPlanner.prepare(create);
+        mPlanner.add(create, newTask("a"), null);
+        mPlanner.resolve(mPlanner.takeBatch(), new JSONArray());
+    }
+
+    @Test(expected = ActionFailureException.class)
+    public void unknownTemporaryIdFails() throws JSONException {
+        mPlanner.prepare(update(1, "temp_99"));
+    }
+
+    @Test
+    public void fullBatchFlushes() throws JSONException {
+        ActionPlanner planner = new ActionPlanner(2);
+        for (int i = 1; i <= 2; i++) {
+            JSONObject update = update(i, "existing-" + i);
+            assertTrue(planner.prepare(update));
+            planner.add(update, null, null);
+        }
+        assertFalse(planner.prepare(update(3, "existing-3")));
+        planner.takeBatch();
+        assertTrue(planner.prepare(update(3, "existing-3")));
+    }
+
+    private static Task newTask(String name) {
+        Task task = new Task();
+        task.setName(name);
+        return task;
+    }
+
+    private static JSONObject create(int actionId, String listId, String priorSiblingId)
+            throws JSONException {
+        JSONObject action = new JSONObject();
+        action.put(GTaskStringUtils.GTASK_JSON_ACTION_TYPE,
+                GTaskStringUtils.GTASK_JSON_ACTION_TYPE_CREATE);
+        action.put(GTaskStringUtils.GTASK_JSON_ACTION_ID, actionId);
+        action.put(GTaskStringUtils.GTASK_JSON_INDEX, 0);
+        if (listId != null) {
+            action.put(GTaskStringUtils.GTASK_JSON_LIST_ID, listId);
+        }
+        if (priorSiblingId != null) {
+            action.put(GTaskStringUtils.GTASK_JSON_PRIOR_SIBLING_ID, priorSiblingId);
+        }
+        return action;
+    }
+
+    private static JSONObject update(int actionId, String id) throws JSONException {
+        JSONObject action = new JSONObject();
+        action.put(GTaskStringUtils.GTASK_JSON_ACTION_TYPE,
+                GTaskStringUtils.GTASK_JSON_ACTION_TYPE_UPDATE);
+        action.put(GTaskStringUtils.GTASK_JSON_ACTION_ID, actionId);
+        action.put(GTaskStringUtils.GTASK_JSON_ID, id);
+        return action;
+    }
+
+    private static JSONObject result(int actionId, String newId) throws JSONException {
+        JSONObject result = new JSONObject();
+        result.put(GTaskStringUtils.GTASK_JSON_ACTION_ID, actionId);
+        result.put(GTaskStringUtils.GTASK_JSON_NEW_ID, newId);
+        return result;
+    }
+
+    private static JSONArray results(JSONObject... results) {
+        JSONArray array = new JSONArray();
+        for (JSONObject result : results) {
+            array.put(result);
+        }
+        return array;
+    }
+}
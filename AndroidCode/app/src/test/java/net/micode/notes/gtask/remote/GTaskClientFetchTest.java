@@ -0,0 +1,297 @@
+package net.micode.notes.gtask.remote;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import net.micode.notes.gtask.exception.ActionFailureException;
+import net.micode.notes.gtask.exception.NetworkFailureException;
+import net.micode.notes.tool.GTaskStringUtils;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * 在本地服务器上验证任务列表的并发下载，用同时处理中的请求数判断是否并发
+ * Android的JsonReader和org.json需要Robolectric提供实现
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class GTaskClientFetchTest {
+    // 等待其他请求到达的最长时间，只用于发现失败，正常情况下不会等这么久
+    private static final long BARRIER_TIMEOUT_SECONDS = 10;
+
+    /**
+     * 本地服务器上一个任务列表的响应方式
+     */
+    private static class ListBehavior {
+        // 开始响应前的延迟
+        final long latency;
+
+        // 任务数
+        final int taskCount;
+
+        // 每个任务之间的延迟，模拟边下载边解析
+        final long taskDelay;
+
+        // 是否返回没有任务数组的错误响应
+        final boolean broken;
+
+        ListBehavior(long latency, int taskCount, long taskDelay, boolean broken) {
+            this.latency = latency;
+            this.taskCount = taskCount;
+            this.taskDelay = taskDelay;
+            this.broken = broken;
+        }
+    }
+
+    /**
+     * 记录收到的任务和调用线程
+     */
+    private static class RecordingHandler implements RemoteJsonParser.TaskHandler {
+        final List<String> ids = new ArrayList<String>();
+        final List<Thread> threads = new ArrayList<Thread>();
+        final AtomicInteger callsAfterReturn = new AtomicInteger();
+        volatile boolean returned;
+
+        public synchronized void onTask(JSONObject js) throws JSONException {
+            if (returned) {
+                callsAfterReturn.incrementAndGet();
+            }
+            ids.add(js.getString(GTaskStringUtils.GTASK_JSON_ID));
+            threads.add(Thread.currentThread());
+        }
+
+        synchronized int count() {
+            return ids.size();
+        }
+    }
+
+    private final Map<String, ListBehavior> mBehaviors =
+            new ConcurrentHashMap<String, ListBehavior>();
+
+    // 不为null时，每个请求都要等到这么多请求同时到达后才响应
+    private volatile CountDownLatch mBarrier;
+
+    // 等待其他请求超时的次数
+    private final AtomicInteger mBarrierTimeouts = new AtomicInteger();
+
+    // 正在处理的请求数和出现过的最大值
+    private final AtomicInteger mInFlight = new AtomicInteger();
+    private final AtomicInteger mMaxInFlight = new AtomicInteger();
+    private HttpServer mServer;
+    private ExecutorService mServerExecutor;
+    private GTaskClient mClient;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        mServerExecutor = Executors.newCachedThreadPool();
+        mServer.setExecutor(mServerExecutor);
+        mServer.createContext("/r/ig", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    respond(exchange);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (IOException e) {
+                    // 客户端放弃了请求
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        mServer.start();
+        mClient = GTaskClient.createForServer(
+                "http://127.0.0.1:" + mServer.getAddress().getPort() + "/", 1);
+    }
+
+    @After
+    public void tearDown() {
+        mClient.closeIdleConnections();
+        mServer.stop(0);
+        mServerExecutor.shutdownNow();
+    }
+
+    @Test
+    public void parallelFetchOverlapsRequests() throws Exception {
+        List<String> gids = Arrays.asList("a", "b", "c", "d");
+        for (String gid : gids) {
+            mBehaviors.put(gid, new ListBehavior(0, 50, 0, false));
+        }
+        List<RecordingHandler> handlers = newHandlers(gids.size());
+        mClient.setFetchParallelism(4);
+        // 四个请求都在处理中时才开始响应，逐个下载时第一个请求会等到超时
+        mBarrier = new CountDownLatch(gids.size());
+
+        mClient.getTaskList(gids, handlers);
+
+        assertEquals(0, mBarrierTimeouts.get());
+        assertEquals(gids.size(), mMaxInFlight.get());
+        for (int i = 0; i < gids.size(); i++) {
+            RecordingHandler handler = handlers.get(i);
+            assertEquals(50, handler.count());
+            for (int j = 0; j < 50; j++) {
+                assertEquals(gids.get(i) + "-" + j, handler.ids.get(j));
+            }
+            // 每个回调只在一个线程上调用
+            for (Thread thread : handler.threads) {
+                assertSame(handler.threads.get(0), thread);
+            }
+        }
+    }
+
+    @Test
+    public void sequentialFetchSendsOneRequestAtATime() throws NetworkFailureException {
+        List<String> gids = Arrays.asList("a", "b", "c");
+        for (String gid : gids) {
+            mBehaviors.put(gid, new ListBehavior(20, 10, 0, false));
+        }
+        List<RecordingHandler> handlers = newHandlers(gids.size());
+        mClient.setFetchParallelism(1);
+
+        mClient.getTaskList(gids, handlers);
+
+        assertEquals(1, mMaxInFlight.get());
+        for (RecordingHandler handler : handlers) {
+            assertEquals(10, handler.count());
+            assertSame(Thread.currentThread(), handler.threads.get(0));
+        }
+    }
+
+    @Test
+    public void failureStopsOtherHandlers() throws Exception {
+        List<String> gids = Arrays.asList("slow1", "broken", "slow2");
+        mBehaviors.put("slow1", new ListBehavior(0, 40, 25, false));
+        mBehaviors.put("broken", new ListBehavior(100, 0, 0, true));
+        mBehaviors.put("slow2", new ListBehavior(0, 40, 25, false));
+        List<RecordingHandler> handlers = newHandlers(gids.size());
+        mClient.setFetchParallelism(3);
+
+        try {
+            mClient.getTaskList(gids, handlers);
+            fail("the broken list should fail the fetch");
+        } catch (ActionFailureException e) {
+            // expected
+        }
+        for (RecordingHandler handler : handlers) {
+            handler.returned = true;
+        }
+
+        // 等其余的列表都发送完，仍在下载的线程不能再调用回调
+        Thread.sleep(40 * 25 + 500);
+        for (RecordingHandler handler : handlers) {
+            assertEquals(0, handler.callsAfterReturn.get());
+        }
+        assertTrue(handlers.get(0).count() < 40);
+        assertTrue(handlers.get(2).count() < 40);
+    }
+
+    private static List<RecordingHandler> newHandlers(int count) {
+        List<RecordingHandler> handlers = new ArrayList<RecordingHandler>();
+        for (int i = 0; i < count; i++) {
+            handlers.add(new RecordingHandler());
+        }
+        return handlers;
+    }
+
+    private void respond(HttpExchange exchange) throws IOException, InterruptedException {
+        String gid;
+        try {
+            JSONObject request = new JSONObject(readForm(exchange.getRequestBody()));
+            gid = request.getJSONArray(GTaskStringUtils.GTASK_JSON_ACTION_LIST)
+                    .getJSONObject(0).getString(GTaskStringUtils.GTASK_JSON_LIST_ID);
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
+        ListBehavior behavior = mBehaviors.get(gid);
+        int inFlight = mInFlight.incrementAndGet();
+        try {
+            while (true) {
+                int max = mMaxInFlight.get();
+                if (inFlight <= max || mMaxInFlight.compareAndSet(max, inFlight)) {
+                    break;
+                }
+            }
+            CountDownLatch barrier = mBarrier;
+            if (barrier != null) {
+                barrier.countDown();
+                if (!barrier.await(BARRIER_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                    mBarrierTimeouts.incrementAndGet();
+                }
+            }
+            Thread.sleep(behavior.latency);
+            send(exchange, behavior, gid);
+        } finally {
+            mInFlight.decrementAndGet();
+        }
+    }
+
+    private static void send(HttpExchange exchange, ListBehavior behavior, String gid)
+            throws IOException, InterruptedException {
+
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(200, 0);
+        OutputStream out = exchange.getResponseBody();
+        if (behavior.broken) {
+            out.write("{\"error\":1}".getBytes(StandardCharsets.UTF_8));
+            out.close();
+            return;
+        }
+        out.write("{\"tasks\":[".getBytes(StandardCharsets.UTF_8));
+        for (int i = 0; i < behavior.taskCount; i++) {
+            String task = (i > 0 ? "," : "") + "{\"id\":\"" + gid + "-" + i
+                    + "\",\"name\":\"task " + i + "\"}";
+            out.write(task.getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            if (behavior.taskDelay > 0) {
+                Thread.sleep(behavior.taskDelay);
+            }
+        }
+        out.write("]}".getBytes(StandardCharsets.UTF_8));
+        out.close();
+    }
+
+    private static String readForm(InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            body.write(buffer, 0, n);
+        }
+        String form = new String(body.toByteArray(), StandardCharsets.UTF_8);
+        for (String pair : form.split("&")) {
+            if (pair.startsWith("r=")) {
+                return URLDecoder.decode(pair.substring(2), "UTF-8");
+            }
+        }
+        throw new IOException("no request in form: " + form);
+    }
+}
@@ -0,0 +1,203 @@
+package net.micode.notes.gtask.remote;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * 在本地HTTP服务器上验证同步传输层的连接复用、gzip解压和耗时回调
+ */
+public class HttpTransportTest {
+    private static final String BODY = "{\"results\":[1,2,3]}";
+
+    private HttpServer mServer;
+    private String mBaseUrl;
+
+    // 每个请求到达时的客户端端口，端口相同说明复用了连接
+    private final List<Integer> mClientPorts =
+            Collections.synchronizedList(new ArrayList<Integer>());
+
+    // 每个请求的Accept-Encoding头
+    private final List<String> mAcceptEncodings =
+            Collections.synchronizedList(new ArrayList<String>());
+
+    private HttpTransport mTransport;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        mServer.createContext("/plain", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                record(exchange);
+                send(exchange, BODY.getBytes(StandardCharsets.UTF_8), null);
+            }
+        });
+        mServer.createContext("/gzip", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                record(exchange);
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+                GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+                gzip.write(BODY.getBytes(StandardCharsets.UTF_8));
+                gzip.close();
+                send(exchange, compressed.toByteArray(), "gzip");
+            }
+        });
+        mServer.createContext("/deflate", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                record(exchange);
+                send(exchange, deflate(BODY, false), "deflate");
+            }
+        });
+        mServer.createContext("/rawdeflate", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                record(exchange);
+                send(exchange, deflate(BODY, true), "deflate");
+            }
+        });
+        mServer.start();
+        mBaseUrl = "http://127.0.0.1:" + mServer.getAddress().getPort();
+        mTransport = new HttpTransport(4);
+    }
+
+    @After
+    public void tearDown() {
+        mTransport.shutdown();
+        mServer.stop(0);
+    }
+
+    @Test
+    public void sequentialRequestsReuseConnection() throws IOException {
+        for (int i = 0; i < 5; i++) {
+            assertEquals(BODY, mTransport.execute(new HttpGet(mBaseUrl + "/plain")));
+        }
+        assertEquals(5, mClientPorts.size());
+        for (int port : mClientPorts) {
+            assertEquals(mClientPorts.get(0).intValue(), port);
+        }
+    }
+
+    @Test
+    public void gzipResponseIsDecoded() throws IOException {
+        assertEquals(BODY, mTransport.execute(new HttpGet(mBaseUrl + "/gzip")));
+        assertEquals("gzip, deflate", mAcceptEncodings.get(0));
+
+        // 解压后的响应读完，连接同样可以复用
+        assertEquals(BODY, mTransport.execute(new HttpGet(mBaseUrl + "/gzip")));
+        assertEquals(mClientPorts.get(0), mClientPorts.get(1));
+    }
+
+    @Test
+    public void deflateResponseIsDecoded() throws IOException {
+        // HTTP的deflate是带zlib头的数据
+        assertEquals(BODY, mTransport.execute(new HttpGet(mBaseUrl + "/deflate")));
+        // 也接受不带头的原始数据
+        assertEquals(BODY, mTransport.execute(new HttpGet(mBaseUrl + "/rawdeflate")));
+        assertEquals(mClientPorts.get(0), mClientPorts.get(1));
+    }
+
+    @Test
+    public void timingListenerReportsRequests() throws IOException {
+        final List<Object[]> calls = new ArrayList<Object[]>();
+        mTransport.setTimingListener(new HttpTransport.TimingListener() {
+            public void onRequestFinished(HttpUriRequest request, int statusCode, long elapsed,
+                    long length) {
+                calls.add(new Object[] { request, statusCode, elapsed, length });
+            }
+        });
+
+        HttpGet plain = new HttpGet(mBaseUrl + "/plain");
+        mTransport.execute(plain);
+        HttpGet gzip = new HttpGet(mBaseUrl + "/gzip");
+        mTransport.execute(gzip);
+
+        assertEquals(2, calls.size());
+        assertSame(plain, calls.get(0)[0]);
+        assertEquals(200, calls.get(0)[1]);
+        assertTrue((Long) calls.get(0)[2] >= 0);
+        assertEquals((long) BODY.length(), calls.get(0)[3]);
+        // 长度按解压后的字节计算
+        assertSame(gzip, calls.get(1)[0]);
+        assertEquals((long) BODY.length(), calls.get(1)[3]);
+
+        mTransport.setTimingListener(null);
+        mTransport.execute(new HttpGet(mBaseUrl + "/plain"));
+        assertEquals(2, calls.size());
+    }
+
+    @Test
+    public void timingListenerReportsFailure() throws IOException {
+        ServerSocket socket = new ServerSocket(0, 0, InetAddress.getLoopbackAddress());
+        int closedPort = socket.getLocalPort();
+        socket.close();
+
+        final List<Object[]> calls = new ArrayList<Object[]>();
+        mTransport.setTimingListener(new HttpTransport.TimingListener() {
+            public void onRequestFinished(HttpUriRequest request, int statusCode, long elapsed,
+                    long length) {
+                calls.add(new Object[] { request, statusCode, elapsed, length });
+            }
+        });
+
+        try {
+            mTransport.execute(new HttpGet("http://127.0.0.1:" + closedPort + "/plain"));
+            fail("request to a closed port should fail");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(1, calls.size());
+        assertEquals(-1, calls.get(0)[1]);
+        assertEquals(-1L, calls.get(0)[3]);
+    }
+
+    private void record(HttpExchange exchange) {
+        mClientPorts.add(exchange.getRemoteAddress().getPort());
+        mAcceptEncodings.add(exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+    }
+
+    private static byte[] deflate(String body, boolean raw) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        DeflaterOutputStream out = new DeflaterOutputStream(compressed,
+                new Deflater(Deflater.DEFAULT_COMPRESSION, raw));
+        out.write(body.getBytes(StandardCharsets.UTF_8));
+        out.close();
+        return compressed.toByteArray();
+    }
+
+    private static void send(HttpExchange exchange, byte[] body, String encoding)
+            throws IOException {
+        // 读完请求再响应，并给出长度，服务器才会保持连接
+        while (exchange.getRequestBody().read() != -1) {
+            // drain
+        }
+        if (encoding != null) {
+            exchange.getResponseHeaders().set("Content-Encoding", encoding);
+        }
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+}
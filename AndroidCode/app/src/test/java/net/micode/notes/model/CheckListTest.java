@@ -0,0 +1,166 @@
+package net.micode.notes.model;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * 验证清单的文本形式和结构化存储时列表项与文本行的对应
+ * TextUtils需要Robolectric提供实现
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class CheckListTest {
+    private static final String CHECKED = CheckList.TAG_CHECKED + " ";
+    private static final String UNCHECKED = CheckList.TAG_UNCHECKED + " ";
+
+    @Test
+    public void checkingAnItemOnlyChangesItsRow() {
+        CheckList list = savedList();
+        assertFalse(list.isContentChanged());
+
+        list.setChecked(1, true);
+        // 勾选只写列表项自己的行，不改写文本行
+        assertFalse(list.isContentChanged());
+        assertTrue(list.isDirty());
+        assertEquals(UNCHECKED + "milk\n" + CHECKED + "eggs\n" + CHECKED + "bread\n",
+                list.getContent());
+
+        list.move(2, 0);
+        assertFalse(list.isContentChanged());
+        assertEquals(CHECKED + "bread\n" + UNCHECKED + "milk\n" + CHECKED + "eggs\n",
+                list.getContent());
+
+        CheckList.Changes changes = list.takeChanges();
+        assertEquals(2, changes.getItems().size());
+        assertEquals(2, changes.getItems().get(1).getId());
+        assertEquals(3, changes.getItems().get(0).getId());
+
+        list.setText(0, "rye bread");
+        assertTrue(list.isContentChanged());
+    }
+
+    @Test
+    public void contentFollowsRandomEdits() {
+        Random random = new Random(3);
+        CheckList list = CheckList.parse(UNCHECKED + "a\n" + CHECKED + "b\n");
+        for (int i = 0; i < 2000; i++) {
+            int size = list.size();
+            switch (random.nextInt(6)) {
+                case 0:
+                    list.insert(random.nextInt(size + 1), random.nextInt(4) == 0 ? ""
+                            : "item " + i, random.nextBoolean());
+                    break;
+                case 1:
+                    if (size > 0) {
+                        list.remove(random.nextInt(size));
+                    }
+                    break;
+                case 2:
+                    if (size > 0) {
+                        list.move(random.nextInt(size), random.nextInt(size));
+                    }
+                    break;
+                case 3:
+                    if (size > 0) {
+                        list.setText(random.nextInt(size), random.nextInt(4) == 0 ? ""
+                                : "text " + i);
+                    }
+                    break;
+                case 4:
+                    if (size > 0) {
+                        list.setChecked(random.nextInt(size), random.nextBoolean());
+                    }
+                    break;
+                default:
+                    if (random.nextInt(50) == 0) {
+                        list.clear();
+                    }
+                    break;
+            }
+            if (random.nextInt(3) == 0) {
+                assertEquals(serialize(list), list.getContent());
+            }
+        }
+        assertEquals(serialize(list), list.getContent());
+    }
+
+    @Test
+    public void reconcileKeepsRowsOfUnchangedItems() {
+        CheckList list = savedList();
+        String remote = CHECKED + "eggs\n" + CHECKED + "milk\n" + UNCHECKED + "butter\n";
+
+        assertTrue(list.reconcile(remote));
+        assertEquals(remote, list.getContent());
+        assertFalse(list.isContentChanged());
+        assertTrue(list.isDirty());
+
+        assertEquals(3, list.size());
+        assertEquals(2, list.get(0).getId());
+        assertEquals(1, list.get(1).getId());
+        assertTrue(list.get(1).isChecked());
+        assertEquals(0, list.get(2).getId());
+        assertTrue(list.get(0).getOrder() < list.get(1).getOrder());
+        assertTrue(list.get(1).getOrder() < list.get(2).getOrder());
+
+        CheckList.Changes changes = list.takeChanges();
+        ArrayList<Long> removed = changes.getRemovedIds();
+        assertEquals(1, removed.size());
+        assertEquals(3L, (long) removed.get(0));
+        assertEquals(3, changes.getItems().size());
+    }
+
+    @Test
+    public void reconcileWithSameContentDoesNothing() {
+        CheckList list = savedList();
+        assertFalse(list.reconcile(list.getContent()));
+        assertFalse(list.isDirty());
+    }
+
+    @Test
+    public void reconcileKeepsItemsOfUnmarkedContent() {
+        CheckList list = savedList();
+        // 旧版本只在文本行保存列表项文本
+        assertFalse(list.reconcile("milk\neggs\nbread\n"));
+        assertTrue(list.get(2).isChecked());
+        assertTrue(list.isContentChanged());
+        assertTrue(list.isDirty());
+    }
+
+    @Test
+    public void reconcileRewritesNonCanonicalContent() {
+        CheckList list = savedList();
+        assertTrue(list.reconcile(UNCHECKED + "milk\n\n" + CHECKED + "eggs"));
+        assertEquals(UNCHECKED + "milk\n" + CHECKED + "eggs\n", list.getContent());
+        assertTrue(list.isContentChanged());
+    }
+
+    /**
+     * 逐项生成清单的文本形式，作为对照
+     */
+    private static String serialize(CheckList list) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < list.size(); i++) {
+            CheckList.Item item = list.get(i);
+            if (!item.getText().isEmpty()) {
+                sb.append(item.isChecked() ? CHECKED : UNCHECKED).append(item.getText())
+                        .append("\n");
+            }
+        }
+        return sb.toString();
+    }
+
+    private static CheckList savedList() {
+        CheckList list = new CheckList();
+        list.addSaved(1, "milk", false, 1 << 16);
+        list.addSaved(2, "eggs", false, 2 << 16);
+        list.addSaved(3, "bread", true, 3 << 16);
+        return list;
+    }
+}
@@ -0,0 +1,132 @@
+package net.micode.notes.model;
+
+import android.content.Context;
+
+import net.micode.notes.data.Notes.TextNote;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+/**
+ * 验证保存后继续追加到当前段、超过大小上限后换段时草稿都能从日志恢复
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class DraftJournalTest {
+    private static final long NOTE_ID = 7;
+
+    private static final String CHECKED = CheckList.TAG_CHECKED + " ";
+    private static final String UNCHECKED = CheckList.TAG_UNCHECKED + " ";
+
+    private Context mContext;
+
+    private NoteText mText;
+
+    private DraftJournal mJournal;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.getApplication();
+        mText = new NoteText("hello");
+        mJournal = new DraftJournal(mContext, NOTE_ID);
+        mJournal.begin(0, mText.snapshot());
+    }
+
+    @Test
+    public void inputAfterSaveIsRecoveredFromSameSegment() {
+        type(" world");
+        String saved = mText.toString();
+        // 保存时当前段不大，不开始新的一段
+        assertFalse(mJournal.needsNewSegment());
+        mJournal.compact(mJournal.getSequence(), NOTE_ID);
+        type("!");
+        mJournal.close();
+        DraftJournal.awaitPendingWrites();
+
+        DraftJournal.Draft draft = DraftJournal.recover(mContext, NOTE_ID, 0, saved);
+        assertNotNull(draft);
+        assertEquals("hello world!", draft.getText());
+        // 数据库内容是保存之前的状态时同样恢复
+        assertEquals("hello world!",
+                DraftJournal.recover(mContext, NOTE_ID, 0, "hello").getText());
+        assertNull(DraftJournal.recover(mContext, NOTE_ID, 0, "hello world!"));
+    }
+
+    @Test
+    public void journalOfOtherContentIsIgnored() {
+        type(" world");
+        mJournal.close();
+        DraftJournal.awaitPendingWrites();
+        assertNull(DraftJournal.recover(mContext, NOTE_ID, 0, "changed by sync"));
+    }
+
+    @Test
+    public void fullSegmentIsReplacedAfterSave() {
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < 1024; i++) {
+            line.append('x');
+        }
+        while (!mJournal.needsNewSegment()) {
+            type(line.toString());
+        }
+        String boundary = mText.toString();
+        long sequence = mJournal.begin(0, mText.snapshot());
+        type(" tail");
+        mJournal.close();
+        DraftJournal.awaitPendingWrites();
+
+        // 保存完成之前，数据库中仍是上一段经过的状态
+        assertEquals(boundary + " tail",
+                DraftJournal.recover(mContext, NOTE_ID, 0, "hello").getText());
+
+        mJournal.compact(sequence, NOTE_ID);
+        DraftJournal.awaitPendingWrites();
+        assertEquals(1, countSegments());
+        assertEquals(boundary + " tail",
+                DraftJournal.recover(mContext, NOTE_ID, 0, boundary).getText());
+        assertNull(DraftJournal.recover(mContext, NOTE_ID, 0, "hello"));
+    }
+
+    @Test
+    public void checkListIsReplayedWithEmptyItems() {
+        DraftJournal journal = new DraftJournal(mContext, NOTE_ID + 1);
+        String saved = UNCHECKED + "milk\n" + CHECKED + "eggs\n";
+        // 界面末尾有一个空列表项
+        journal.begin(TextNote.MODE_CHECK_LIST, saved, new int[] { 2 });
+        journal.onItemTextChanged(2, "", "bread");
+        journal.onItemCheckedChanged(0, true);
+        journal.close();
+        DraftJournal.awaitPendingWrites();
+
+        DraftJournal.Draft draft = DraftJournal.recover(mContext, NOTE_ID + 1,
+                TextNote.MODE_CHECK_LIST, saved);
+        assertEquals(TextNote.MODE_CHECK_LIST, draft.getMode());
+        assertEquals(CHECKED + "milk\n" + CHECKED + "eggs\n" + UNCHECKED + "bread\n",
+                draft.getText());
+    }
+
+    private void type(String text) {
+        int start = mText.length();
+        mText.replace(start, 0, text, 0, text.length());
+        mJournal.appendEdit(start, 0, text);
+    }
+
+    private int countSegments() {
+        String[] names = new File(mContext.getFilesDir(), "drafts").list();
+        int count = 0;
+        for (String name : names) {
+            if (name.startsWith(NOTE_ID + ".") && name.endsWith(".jnl")) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,62 @@
+package net.micode.notes.model;
+
+import android.appwidget.AppWidgetManager;
+import android.content.Context;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.NotesProvider;
+import net.micode.notes.tool.ResourceParser;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.*;
+
+/**
+ * 验证保存一个笔记只使该笔记的预加载结果失效
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class WorkingNoteCacheTest {
+    private Context mContext;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.getApplication();
+        Robolectric.setupContentProvider(NotesProvider.class, Notes.AUTHORITY);
+    }
+
+    @Test
+    public void savingNoteKeepsOtherNotesCached() {
+        long noteA = createNote("note a");
+        long noteB = createNote("note b");
+
+        WorkingNoteCache cache = WorkingNoteCache.getInstance(mContext);
+        cache.prefetch(noteA);
+        cache.prefetch(noteB);
+        cache.awaitPrefetches();
+
+        WorkingNote note = WorkingNote.load(mContext, noteA);
+        note.setWorkingText("note a edited");
+        assertTrue(note.saveNote());
+
+        assertNull(cache.take(noteA));
+        WorkingNote cached = cache.take(noteB);
+        assertNotNull(cached);
+        assertEquals("note b", cached.getContent());
+    }
+
+    private long createNote(String text) {
+        WorkingNote note = WorkingNote.createEmptyNote(mContext, Notes.ID_ROOT_FOLDER,
+                AppWidgetManager.INVALID_APPWIDGET_ID, Notes.TYPE_WIDGET_INVALIDE,
+                ResourceParser.BG_DEFAULT_COLOR);
+        note.setWorkingText(text);
+        assertTrue(note.saveNote());
+        return note.getNoteId();
+    }
+}
@@ -0,0 +1,212 @@
+package net.micode.notes.model;
+
+import android.appwidget.AppWidgetManager;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Looper;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.CheckItem;
+import net.micode.notes.data.Notes.DataColumns;
+import net.micode.notes.data.Notes.DataConstants;
+import net.micode.notes.data.Notes.TextNote;
+import net.micode.notes.data.NotesProvider;
+import net.micode.notes.tool.ResourceParser;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * 验证结构化存储的清单保存时只写入有变化的行，以及排队的保存合并为一次写入
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class WorkingNoteTest {
+    private static final String CHECKED = CheckList.TAG_CHECKED + " ";
+    private static final String UNCHECKED = CheckList.TAG_UNCHECKED + " ";
+
+    private Context mContext;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.getApplication();
+        Robolectric.setupContentProvider(NotesProvider.class, Notes.AUTHORITY);
+    }
+
+    @Test
+    public void checkingAnItemWritesOnlyItsRow() {
+        String content = UNCHECKED + "milk\n" + UNCHECKED + "eggs\n";
+        long noteId = createCheckList(content);
+
+        WorkingNote note = WorkingNote.load(mContext, noteId);
+        CheckList list = note.getCheckList();
+        assertNotNull(list);
+        long itemId = list.get(1).getId();
+
+        final List<Uri> changed = Collections.synchronizedList(new ArrayList<Uri>());
+        ContentObserver observer = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange, Uri uri) {
+                changed.add(uri);
+            }
+        };
+        mContext.getContentResolver().registerContentObserver(Notes.CONTENT_DATA_URI, true,
+                observer);
+        try {
+            list.setChecked(1, true);
+            assertTrue(note.saveNote());
+        } finally {
+            mContext.getContentResolver().unregisterContentObserver(observer);
+        }
+
+        assertEquals(1, changed.size());
+        assertEquals(ContentUris.withAppendedId(Notes.CONTENT_DATA_URI, itemId), changed.get(0));
+        assertEquals(content, queryTextContent(noteId));
+
+        // 重新打开时以列表项的行为准
+        CheckList reloaded = WorkingNote.load(mContext, noteId).getCheckList();
+        assertTrue(reloaded.get(1).isChecked());
+        assertEquals(UNCHECKED + "milk\n" + CHECKED + "eggs\n", reloaded.getContent());
+    }
+
+    @Test
+    public void rewrittenTextIsReconciledOnLoad() {
+        long noteId = createCheckList(UNCHECKED + "milk\n" + UNCHECKED + "eggs\n");
+
+        // 同步改写文本行时把存储方式标为文本
+        ContentValues values = new ContentValues();
+        values.put(DataColumns.CONTENT, CHECKED + "eggs\n" + UNCHECKED + "milk\n");
+        values.put(TextNote.STORAGE, TextNote.STORAGE_TEXT);
+        mContext.getContentResolver().update(Notes.CONTENT_DATA_URI, values,
+                DataColumns.NOTE_ID + "=? AND " + DataColumns.MIME_TYPE + "=?",
+                new String[] { String.valueOf(noteId), DataConstants.NOTE });
+
+        WorkingNote note = WorkingNote.load(mContext, noteId);
+        CheckList list = note.getCheckList();
+        assertEquals(CHECKED + "eggs\n" + UNCHECKED + "milk\n", list.getContent());
+        assertTrue(note.saveNote());
+
+        CheckList reloaded = WorkingNote.load(mContext, noteId).getCheckList();
+        assertEquals(CHECKED + "eggs\n" + UNCHECKED + "milk\n", reloaded.getContent());
+        assertEquals(2, countCheckItems(noteId));
+    }
+
+    @Test
+    public void queuedSaveRunsOnceAndCallsEveryListener() throws InterruptedException {
+        WorkingNote note = WorkingNote.createEmptyNote(mContext, Notes.ID_ROOT_FOLDER,
+                AppWidgetManager.INVALID_APPWIDGET_ID, Notes.TYPE_WIDGET_INVALIDE,
+                ResourceParser.BG_DEFAULT_COLOR);
+        note.setWorkingText("first");
+        assertTrue(note.saveNote());
+        final long noteId = note.getNoteId();
+
+        // 第一次写入在通知观察者时停住，之后的保存只能排队
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Uri> changed = Collections.synchronizedList(new ArrayList<Uri>());
+        ContentObserver observer = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange, Uri uri) {
+                changed.add(uri);
+                writing.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        final List<String> saved = new ArrayList<String>();
+        WorkingNote.OnNoteSavedListener listener = new WorkingNote.OnNoteSavedListener() {
+            public void onNoteSaved(WorkingNote n) {
+                assertEquals(noteId, n.getNoteId());
+                saved.add(queryTextContent(noteId));
+            }
+        };
+        mContext.getContentResolver().registerContentObserver(Notes.CONTENT_DATA_URI, true,
+                observer);
+        try {
+            note.setWorkingText("second");
+            assertTrue(note.saveNoteAsync());
+            assertTrue(writing.await(5, TimeUnit.SECONDS));
+
+            note.setWorkingText("third");
+            assertTrue(note.saveNoteAsync());
+            // 已有排队的保存，只登记监听器，由该次保存一并回调
+            assertTrue(note.saveNoteAsync(listener));
+            assertTrue(note.saveNoteAsync(listener));
+            release.countDown();
+            // 阻塞的保存排在之后，返回时排队的保存已经完成
+            assertFalse(note.saveNote());
+        } finally {
+            release.countDown();
+            mContext.getContentResolver().unregisterContentObserver(observer);
+        }
+        assertEquals(2, changed.size());
+
+        shadowOf(Looper.getMainLooper()).idle();
+        assertEquals(2, saved.size());
+        assertEquals("third", saved.get(0));
+
+        // 没有修改时监听器同样在保存线程之后回调
+        assertFalse(note.saveNoteAsync(listener));
+        assertFalse(note.saveNote());
+        shadowOf(Looper.getMainLooper()).idle();
+        assertEquals(3, saved.size());
+    }
+
+    private long createCheckList(String content) {
+        WorkingNote note = WorkingNote.createEmptyNote(mContext, Notes.ID_ROOT_FOLDER,
+                AppWidgetManager.INVALID_APPWIDGET_ID, Notes.TYPE_WIDGET_INVALIDE,
+                ResourceParser.BG_DEFAULT_COLOR);
+        note.setCheckListMode(TextNote.MODE_CHECK_LIST);
+        CheckList list = CheckList.parse(content);
+        note.setStructuredCheckList(list);
+        note.setWorkingText(list.getContent());
+        assertTrue(note.saveNote());
+        return note.getNoteId();
+    }
+
+    private String queryTextContent(long noteId) {
+        Cursor c = mContext.getContentResolver().query(Notes.CONTENT_DATA_URI,
+                new String[] { DataColumns.CONTENT },
+                DataColumns.NOTE_ID + "=? AND " + DataColumns.MIME_TYPE + "=?",
+                new String[] { String.valueOf(noteId), DataConstants.NOTE }, null);
+        try {
+            assertTrue(c.moveToFirst());
+            return c.getString(0);
+        } finally {
+            c.close();
+        }
+    }
+
+    private int countCheckItems(long noteId) {
+        Cursor c = mContext.getContentResolver().query(Notes.CONTENT_DATA_URI,
+                new String[] { CheckItem.ID },
+                DataColumns.NOTE_ID + "=? AND " + DataColumns.MIME_TYPE + "=?",
+                new String[] { String.valueOf(noteId), DataConstants.CHECK_ITEM }, null);
+        try {
+            return c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+}
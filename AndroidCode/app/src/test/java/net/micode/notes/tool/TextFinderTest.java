@@ -0,0 +1,137 @@
+package net.micode.notes.tool;
+
+import net.micode.notes.model.EditHistory;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.*;
+
+/**
+ * 验证全部替换只修改匹配本身，替换后可以撤销
+ * EditHistory使用的SystemClock需要Robolectric提供实现
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class TextFinderTest {
+    // 约1MB的便签，远大于撤销历史的预算
+    private static final int LINE_COUNT = 20000;
+
+    private static final int MATCH_EVERY = 20;
+
+    private StringBuilder mText;
+
+    private EditHistory mHistory;
+
+    private int mReplaceCalls;
+
+    // 与编辑界面一样，每次修改记入撤销历史
+    private final TextFinder.Source mSource = new TextFinder.Source() {
+        public int getSegmentCount() {
+            return 1;
+        }
+
+        public CharSequence getSegment(int index) {
+            return mText;
+        }
+
+        public void replace(int index, int start, int end, String text) {
+            mReplaceCalls++;
+            mHistory.recordText(start, mText.substring(start, end), text);
+            mText.replace(start, end, text);
+        }
+    };
+
+    private final EditHistory.Target mTarget = new EditHistory.Target() {
+        public void replaceText(int start, int end, String text) {
+            mText.replace(start, end, text);
+        }
+
+        public void insertItem(int index, String text, boolean checked) {
+        }
+
+        public void removeItem(int index) {
+        }
+
+        public void moveItem(int from, int to) {
+        }
+
+        public void setItemText(int index, String text) {
+        }
+
+        public void setItemChecked(int index, boolean checked) {
+        }
+    };
+
+    @Before
+    public void setUp() {
+        mText = new StringBuilder();
+        for (int i = 0; i < LINE_COUNT; i++) {
+            mText.append(i % MATCH_EVERY == 0 ? "Needle" : "straw").append(" line ")
+                    .append(i).append(" of the long note\n");
+        }
+        mHistory = new EditHistory();
+        mReplaceCalls = 0;
+    }
+
+    @Test
+    public void replaceAllTouchesOnlyMatches() {
+        TextFinder finder = new TextFinder(mSource);
+        finder.setQuery("needle");
+        assertEquals(LINE_COUNT / MATCH_EVERY, finder.getMatchCount());
+
+        assertEquals(LINE_COUNT / MATCH_EVERY, replaceAll(finder, "pin"));
+        assertEquals(LINE_COUNT / MATCH_EVERY, mReplaceCalls);
+        assertEquals(-1, mText.indexOf("Needle"));
+        assertEquals(0, mText.indexOf("pin line 0 "));
+        assertEquals(0, finder.getMatchCount());
+        assertTrue(mHistory.getMemoryUsage() < mHistory.getBudget());
+    }
+
+    @Test
+    public void replaceAllCanBeUndone() {
+        String original = mText.toString();
+        // 替换之前的一次输入
+        mHistory.recordText(0, "", "x");
+        mText.insert(0, "x");
+        String typed = mText.toString();
+
+        TextFinder finder = new TextFinder(mSource);
+        finder.setQuery("needle");
+        replaceAll(finder, "pin");
+        String replaced = mText.toString();
+
+        assertTrue(mHistory.undo(mTarget));
+        assertEquals(typed, mText.toString());
+        assertTrue(mHistory.undo(mTarget));
+        assertEquals(original, mText.toString());
+
+        assertTrue(mHistory.redo(mTarget));
+        assertTrue(mHistory.redo(mTarget));
+        assertEquals(replaced, mText.toString());
+    }
+
+    @Test
+    public void groupOverBudgetIsDroppedWhole() {
+        EditHistory history = new EditHistory(1024);
+        mHistory = history;
+        TextFinder finder = new TextFinder(mSource);
+        finder.setQuery("needle");
+        replaceAll(finder, "pin");
+        // 超出预算的一组修改整体丢弃，不会只撤销其中一部分
+        assertFalse(history.canUndo());
+        assertEquals(0, history.getMemoryUsage());
+    }
+
+    private int replaceAll(TextFinder finder, String replacement) {
+        mHistory.beginGroup();
+        try {
+            return finder.replaceAll(replacement);
+        } finally {
+            mHistory.endGroup();
+        }
+    }
+}